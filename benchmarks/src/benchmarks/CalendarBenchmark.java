@@ -0,0 +1,111 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import calendar.CalendarGenerator;
+import calendar.CorruptedCalendarFileException;
+import calendar.Event;
+import calendar.TCalendar;
+
+/**
+ * CalendarBenchmark measures the queries, the loading and the saving of a
+ * {@link TCalendar}, for calendars of different sizes with different shares
+ * of repeating events (see {@link CalendarGenerator}).
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalendarBenchmark {
+
+	// The number of days queried in turn, a power of two.
+	private static final int DAYS = 1024;
+
+	@Param( { "1000", "10000", "100000" })
+	public int size;
+
+	@Param( { "0", "0.1", "0.5" })
+	public double repeating;
+
+	private TCalendar calendar;
+	private String serialized;
+	private File file;
+	private GregorianCalendar[] days;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		CalendarGenerator generator = new CalendarGenerator(42);
+		generator.setSize(this.size);
+		generator.setRepeating(this.repeating);
+		this.calendar = generator.generate();
+		StringWriter out = new StringWriter();
+		this.calendar.serializeCalendar(out);
+		this.serialized = out.toString();
+		this.file = File.createTempFile("benchmark", ".ics");
+		this.days = Calendars.days(generator, DAYS, 7);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	// Returns the next day to query.
+	private GregorianCalendar nextDay() {
+		this.next = (this.next + 1) & (DAYS - 1);
+		return (GregorianCalendar) this.days[this.next].clone();
+	}
+
+	@Benchmark
+	public ArrayList<Event> getDay() {
+		return this.calendar.getDay(this.nextDay());
+	}
+
+	@Benchmark
+	public ArrayList<Event> getMonthsEvents() {
+		return this.calendar.getMonthsEvents(this.nextDay());
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public TCalendar loadCalendar() throws IOException,
+			CorruptedCalendarFileException {
+		TCalendar loaded = new TCalendar();
+		loaded.loadCalendar(new StringReader(this.serialized));
+		return loaded;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public File serializeCalendar() throws IOException {
+		this.calendar.serializeCalendar(this.file);
+		return this.file;
+	}
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+import calendar.CalendarGenerator;
+
+/**
+ * Calendars picks the days the benchmarks query from the days the events of
+ * a {@link CalendarGenerator} are on.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+class Calendars {
+
+	/**
+	 * Returns random days that the events of a generator start on.
+	 * 
+	 * @param generator
+	 *            The generator of the events.
+	 * @param count
+	 *            The number of days.
+	 * @param seed
+	 *            The seed of the random days.
+	 * @return The days, each at midnight.
+	 */
+	static GregorianCalendar[] days(CalendarGenerator generator, int count,
+			long seed) {
+		Random random = new Random(seed);
+		GregorianCalendar[] days = new GregorianCalendar[count];
+		for (int i = 0; i < count; i++) {
+			days[i] = generator.getFirstDay();
+			days[i].add(Calendar.DAY_OF_YEAR, random.nextInt(generator
+					.getDays()));
+		}
+		return days;
+	}
+
+	// Not to be instantiated.
+	private Calendars() {
+	}
+}
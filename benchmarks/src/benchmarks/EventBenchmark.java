@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import calendar.CalendarGenerator;
+import calendar.DateCalc;
+import calendar.MeetingEvent;
+
+/**
+ * EventBenchmark measures the checks made on every event by the queries of
+ * a calendar: {@link MeetingEvent#isValid} and
+ * {@link MeetingEvent#getDurationInMonth}, and
+ * {@link DateCalc#getFieldDifference}, which the GUI uses to place them. The
+ * events are made by a {@link CalendarGenerator}, all or none of them
+ * repeating.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBenchmark {
+
+	// The number of events and days used in turn, a power of two.
+	private static final int COUNT = 1024;
+
+	@Param( { "false", "true" })
+	public boolean repeats;
+
+	private MeetingEvent[] events;
+	private GregorianCalendar[] days;
+	private GregorianCalendar[] ends;
+	private GregorianCalendar[] months;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		CalendarGenerator generator = new CalendarGenerator(42);
+		generator.setSize(COUNT);
+		generator.setRepeating(this.repeats ? 1 : 0);
+		this.events = new MeetingEvent[COUNT];
+		int made = 0;
+		for (MeetingEvent event : generator) {
+			this.events[made++] = event;
+		}
+		this.days = Calendars.days(generator, COUNT, 7);
+		this.ends = new GregorianCalendar[COUNT];
+		this.months = new GregorianCalendar[COUNT];
+		for (int i = 0; i < COUNT; i++) {
+			this.ends[i] = DateCalc.endOf((GregorianCalendar) this.days[i]
+					.clone(), Calendar.WEEK_OF_YEAR);
+			this.months[i] = DateCalc.startOf((GregorianCalendar) this.days[i]
+					.clone(), Calendar.MONTH);
+		}
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		int i = this.next = (this.next + 1) & (COUNT - 1);
+		return this.events[i].isValid(this.days[i], this.ends[i]);
+	}
+
+	@Benchmark
+	public long getDurationInMonth() {
+		int i = this.next = (this.next + 1) & (COUNT - 1);
+		return this.events[i].getDurationInMonth(this.months[i]);
+	}
+
+	@Benchmark
+	public int getFieldDifference() {
+		int i = this.next = (this.next + 1) & (COUNT - 1);
+		return DateCalc.getFieldDifference(Calendar.WEEK_OF_YEAR,
+				this.events[i].getStart(), this.days[i]);
+	}
+}
@@ -0,0 +1,126 @@
+package calendar;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A CalendarChange tells that an {@link Event} has been added to, removed
+ * from or modified in a {@link TCalendar}, and the range of time the change
+ * touched: where the event is for an addition, where it was for a removal,
+ * and both for a modification. For a repeating event the range reaches from
+ * its first start to its expiration, or to Long.MAX_VALUE if it never
+ * expires. A view only needs to update what overlaps the range.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class CalendarChange {
+
+	public static final int ADDED = 1;
+	public static final int REMOVED = 2;
+	public static final int MODIFIED = 3;
+
+	private int type;
+	private Event event;
+	private long from;
+	private long to;
+
+	/**
+	 * Creates a change.
+	 *
+	 * @param type
+	 *            ADDED, REMOVED or MODIFIED.
+	 * @param event
+	 *            The {@link Event} that was changed.
+	 * @param from
+	 *            The start of the range touched, in milliseconds.
+	 * @param to
+	 *            The end of the range touched, in milliseconds.
+	 */
+	public CalendarChange(int type, Event event, long from, long to) {
+		this.type = type;
+		this.event = event;
+		this.from = from;
+		this.to = to;
+	}
+
+	public int getType() {
+		return this.type;
+	}
+
+	public Event getEvent() {
+		return this.event;
+	}
+
+	public long getFrom() {
+		return this.from;
+	}
+
+	public long getTo() {
+		return this.to;
+	}
+
+	/**
+	 * Checks whether this change touched a range of time. An event that takes
+	 * no time touches the range it starts in.
+	 *
+	 * @param start
+	 *            The start of the range, in milliseconds.
+	 * @param end
+	 *            The end of the range, not included.
+	 * @return true if the range overlaps the range of the change.
+	 */
+	public boolean touches(long start, long end) {
+		return this.from < end && Math.max(this.to, this.from + 1) > start;
+	}
+
+	public String toString() {
+		String[] types = { null, "ADDED", "REMOVED", "MODIFIED" };
+		return types[this.type] + " " + this.event.getUID();
+	}
+
+	/**
+	 * Merges a sequence of changes so that every event appears at most once,
+	 * with a range covering all of its changes. An event that was added and
+	 * then removed does not appear at all, and one that was removed and then
+	 * added again counts as modified.
+	 *
+	 * @param changes
+	 *            The changes in the order they were made.
+	 * @return The merged changes, in the order the events were first changed.
+	 */
+	static ArrayList<CalendarChange> merge(List<CalendarChange> changes) {
+		IdentityHashMap<Event, CalendarChange> merged;
+		merged = new IdentityHashMap<Event, CalendarChange>();
+		ArrayList<Event> order = new ArrayList<Event>();
+		for (CalendarChange change : changes) {
+			CalendarChange earlier = merged.get(change.event);
+			if (earlier == null) {
+				merged.put(change.event, change);
+				order.add(change.event);
+				continue;
+			}
+			int type = change.type;
+			if (earlier.type == ADDED) {
+				type = change.type == REMOVED ? 0 : ADDED;
+			} else if (earlier.type == REMOVED && change.type == ADDED) {
+				type = MODIFIED;
+			}
+			merged.put(change.event, new CalendarChange(type, change.event,
+					Math.min(earlier.from, change.from), Math.max(earlier.to,
+							change.to)));
+		}
+		ArrayList<CalendarChange> result = new ArrayList<CalendarChange>(
+				order.size());
+		for (Event event : order) {
+			CalendarChange change = merged.get(event);
+			if (change.type != 0) {
+				result.add(change);
+			}
+		}
+		return result;
+	}
+
+}
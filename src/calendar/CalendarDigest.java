@@ -0,0 +1,155 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A CalendarDigest lists the VEVENTs of an .ics file by UID, with a checksum
+ * of each VEVENT and its place in the file, so that two versions of a file
+ * can be compared without constructing their events. The checksum covers the
+ * DTSTAMP along with the rest of the VEVENT, so an event counts as changed
+ * even if the tool that changed it did not update its DTSTAMP.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+class CalendarDigest extends ICalScanner {
+
+	private int size;
+	private String[] uids;
+	private long[] checksums;
+	private long[] offsets;
+	private int[] lengths;
+	private HashMap<String, Integer> positions;
+
+	// The state of the scan.
+	private boolean inEvent;
+	private long eventOffset;
+	private String uid;
+	private CRC32 checksum;
+
+	private CalendarDigest(File file) {
+		super(file);
+		this.uids = new String[1024];
+		this.checksums = new long[1024];
+		this.offsets = new long[1024];
+		this.lengths = new int[1024];
+		this.positions = new HashMap<String, Integer>();
+		this.checksum = new CRC32();
+	}
+
+	/**
+	 * Scans an uncompressed .ics file.
+	 *
+	 * @param file
+	 *            The file to scan.
+	 * @return The digest of the file.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the VCALENDAR header is missing, or a VEVENT has no UID.
+	 */
+	static CalendarDigest scan(File file) throws IOException,
+			CorruptedCalendarFileException {
+		CalendarDigest digest = new CalendarDigest(file);
+		digest.scan();
+		digest.checksum = null;
+		return digest;
+	}
+
+	/**
+	 * Returns the number of VEVENTs in the file.
+	 *
+	 * @return The number of events.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Finds the VEVENT with a UID. If several VEVENTs have the same UID, the
+	 * last one is found, as it replaces the others when the file is loaded.
+	 *
+	 * @param uid
+	 *            The UID to look for.
+	 * @return The position of the VEVENT, or -1 if there is none.
+	 */
+	int indexOf(String uid) {
+		Integer position = this.positions.get(uid);
+		return position == null ? -1 : position.intValue();
+	}
+
+	String getUID(int position) {
+		return this.uids[position];
+	}
+
+	long getChecksum(int position) {
+		return this.checksums[position];
+	}
+
+	long getOffset(int position) {
+		return this.offsets[position];
+	}
+
+	int getLength(int position) {
+		return this.lengths[position];
+	}
+
+	@Override
+	void line(byte[] line, int length, long offset, long next)
+			throws CorruptedCalendarFileException {
+		if (is(line, length, "BEGIN:VEVENT")) {
+			this.inEvent = true;
+			this.eventOffset = offset;
+			this.uid = null;
+			this.checksum.reset();
+			return;
+		}
+		if (!this.inEvent) {
+			return;
+		}
+		if (is(line, length, "END:VEVENT")) {
+			this.inEvent = false;
+			this.add((int) (next - this.eventOffset));
+			return;
+		}
+		if (startsWith(line, length, "UID")) {
+			this.uid = valueOf(line, length);
+		}
+		this.checksum.update(line, 0, length);
+		this.checksum.update('\n');
+	}
+
+	// Records the VEVENT that has just ended.
+	private void add(int length) throws CorruptedCalendarFileException {
+		if (this.uid == null || this.uid.length() == 0) {
+			throw new CorruptedCalendarFileException(
+					"The UID is corrupted or missing");
+		}
+		if (this.size == this.uids.length) {
+			int grown = this.size * 2;
+			String[] uids = new String[grown];
+			long[] checksums = new long[grown];
+			long[] offsets = new long[grown];
+			int[] lengths = new int[grown];
+			System.arraycopy(this.uids, 0, uids, 0, this.size);
+			System.arraycopy(this.checksums, 0, checksums, 0, this.size);
+			System.arraycopy(this.offsets, 0, offsets, 0, this.size);
+			System.arraycopy(this.lengths, 0, lengths, 0, this.size);
+			this.uids = uids;
+			this.checksums = checksums;
+			this.offsets = offsets;
+			this.lengths = lengths;
+		}
+		this.uids[this.size] = this.uid;
+		this.checksums[this.size] = this.checksum.getValue();
+		this.offsets[this.size] = this.eventOffset;
+		this.lengths[this.size] = length;
+		this.positions.put(this.uid, Integer.valueOf(this.size));
+		this.size++;
+	}
+
+}
@@ -0,0 +1,139 @@
+package calendar;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The CalendarFiles class is used by the TCalendar program to recognize and
+ * open calendar files. Calendars can be stored as plain .ics files or
+ * compressed with gzip as .ics.gz files. Compressed files are decompressed
+ * while they are read, so the uncompressed file is never held in memory.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class CalendarFiles {
+
+	public static final String SUFFIX = ".ics";
+	public static final String COMPRESSED_SUFFIX = ".ics.gz";
+
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * Checks whether a file is named like a calendar file.
+	 *
+	 * @param file
+	 *            The file to check.
+	 * @return true if the name ends with .ics or .ics.gz.
+	 */
+	public static boolean isCalendarFile(File file) {
+		String name = file.getName();
+		return name.endsWith(SUFFIX) || name.endsWith(COMPRESSED_SUFFIX);
+	}
+
+	/**
+	 * Checks whether a calendar is to be compressed when it is written into a
+	 * file.
+	 *
+	 * @param file
+	 *            The file to be written.
+	 * @return true if the name ends with .gz.
+	 */
+	public static boolean isCompressed(File file) {
+		return file.getName().endsWith(".gz");
+	}
+
+	/**
+	 * Adds the .ics suffix to the name of a file, unless it already is named
+	 * like a calendar file.
+	 *
+	 * @param file
+	 *            The file to be named.
+	 * @return The file with the suffix.
+	 */
+	public static File withSuffix(File file) {
+		if (isCalendarFile(file)) {
+			return file;
+		}
+		return new File(file.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Checks whether a calendar file is stored as plain text, so that its
+	 * events can be read from any offset. Like {@link #open(File)}, this looks
+	 * at the first bytes of the file rather than its name.
+	 *
+	 * @param file
+	 *            The file to check.
+	 * @return false if the file is compressed.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	static boolean isPlainText(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int[] magic = readMagic(in);
+			return !isGzip(magic) && !isZstd(magic);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Opens a calendar file for reading. The format is recognized from the
+	 * first bytes of the file rather than from its name: files starting with
+	 * the gzip magic number are decompressed as they are read.
+	 *
+	 * @param file
+	 *            The file to open.
+	 * @return An {@link InputStream} of the uncompressed calendar.
+	 * @throws IOException
+	 *             If the file cannot be opened, or is compressed in a format
+	 *             that is not supported.
+	 */
+	public static InputStream open(File file) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(
+				file), BUFFER_SIZE);
+		try {
+			in.mark(4);
+			int[] magic = readMagic(in);
+			in.reset();
+			if (isGzip(magic)) {
+				return new GZIPInputStream(in, BUFFER_SIZE);
+			}
+			if (isZstd(magic)) {
+				throw new IOException(file.getName()
+						+ " is compressed with Zstandard, which is not"
+						+ " supported. Recompress it with gzip.");
+			}
+			return in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	// Reads the first four bytes of a file, -1 for those past its end.
+	private static int[] readMagic(InputStream in) throws IOException {
+		int[] magic = new int[4];
+		for (int i = 0; i < magic.length; i++) {
+			magic[i] = in.read();
+		}
+		return magic;
+	}
+
+	private static boolean isGzip(int[] magic) {
+		return magic[0] == 0x1f && magic[1] == 0x8b;
+	}
+
+	private static boolean isZstd(int[] magic) {
+		return magic[0] == 0x28 && magic[1] == 0xb5 && magic[2] == 0x2f
+				&& magic[3] == 0xfd;
+	}
+
+}
@@ -0,0 +1,385 @@
+package calendar;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CalendarGenerator makes up calendars for benchmarks and stress tests. The
+ * events start at quarter hours during the working hours of days from
+ * January 1st 2011 on, and last from 15 minutes to 3 hours. Some of them
+ * repeat daily, weekly, monthly or yearly, every one to three periods, and
+ * half of those until a given date. The same seed and settings always give
+ * the same events, so a calendar can be written into a file or built in
+ * memory as needed.
+ *
+ * The events are made one at a time as they are iterated, so files of
+ * millions of events can be written without holding them in memory.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class CalendarGenerator implements Iterable<MeetingEvent> {
+
+	// The working hours the events start in.
+	private static final int FIRST_HOUR = 8;
+	private static final int WORKING_HOURS = 10;
+	// The longest event, in quarter hours.
+	private static final int MAX_QUARTERS = 12;
+	private static final double MEAN_HOURS = (MAX_QUARTERS + 1) / 8.0;
+	private static final int[] FIELDS = { Calendar.DAY_OF_YEAR,
+			Calendar.WEEK_OF_YEAR, Calendar.MONTH, Calendar.YEAR };
+	private static final int BUFFER_SIZE = 65536;
+
+	private long seed;
+	private int size;
+	private double repeating;
+	private int[] frequencies;
+	private double overlap;
+	private int categories;
+	private double durations;
+
+	/**
+	 * Creates a generator of 1000 events that do not repeat, one at a time
+	 * during the working hours, in 5 categories, all written with a DTEND.
+	 *
+	 * @param seed
+	 *            The seed the events are made from.
+	 */
+	public CalendarGenerator(long seed) {
+		this.seed = seed;
+		this.size = 1000;
+		this.frequencies = new int[] { 1, 1, 1, 1 };
+		this.overlap = 1;
+		this.categories = 5;
+	}
+
+	/**
+	 * Sets the number of events.
+	 *
+	 * @param size
+	 *            The number of events.
+	 * @throws IllegalArgumentException
+	 *             If size is negative.
+	 */
+	public void setSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("The size cannot be negative");
+		}
+		this.size = size;
+	}
+
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Sets the share of the events that repeat.
+	 *
+	 * @param share
+	 *            The share, from 0 to 1.
+	 * @throws IllegalArgumentException
+	 *             If share is not between 0 and 1.
+	 */
+	public void setRepeating(double share) {
+		this.repeating = share(share);
+	}
+
+	/**
+	 * Sets how often each frequency is given to the repeating events,
+	 * relative to the others. By default they are all equally common.
+	 *
+	 * @param daily
+	 *            The weight of daily repetition.
+	 * @param weekly
+	 *            The weight of weekly repetition.
+	 * @param monthly
+	 *            The weight of monthly repetition.
+	 * @param yearly
+	 *            The weight of yearly repetition.
+	 * @throws IllegalArgumentException
+	 *             If a weight is negative or they are all 0.
+	 */
+	public void setFrequencies(int daily, int weekly, int monthly, int yearly) {
+		int[] frequencies = { daily, weekly, monthly, yearly };
+		int total = 0;
+		for (int weight : frequencies) {
+			if (weight < 0) {
+				throw new IllegalArgumentException(
+						"The weights cannot be negative");
+			}
+			total += weight;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException(
+					"Some frequency must have a weight");
+		}
+		this.frequencies = frequencies;
+	}
+
+	/**
+	 * Sets how densely the events overlap: the mean number of events going
+	 * on at once during the working hours, counting every repeating event
+	 * once. The denser the events, the fewer days they are spread over.
+	 *
+	 * @param overlap
+	 *            The mean number of events at once, more than 0.
+	 * @throws IllegalArgumentException
+	 *             If overlap is not positive.
+	 */
+	public void setOverlap(double overlap) {
+		if (!(overlap > 0)) {
+			throw new IllegalArgumentException("The overlap must be positive");
+		}
+		this.overlap = overlap;
+	}
+
+	/**
+	 * Sets the number of categories the events are in, named CATEGORY1,
+	 * CATEGORY2 and so on.
+	 *
+	 * @param categories
+	 *            The number of categories, at least 1.
+	 * @throws IllegalArgumentException
+	 *             If categories is less than 1.
+	 */
+	public void setCategories(int categories) {
+		if (categories < 1) {
+			throw new IllegalArgumentException(
+					"There must be at least one category");
+		}
+		this.categories = categories;
+	}
+
+	/**
+	 * Sets the share of the events that are written into files with a
+	 * DURATION instead of a DTEND.
+	 *
+	 * @param share
+	 *            The share, from 0 to 1.
+	 * @throws IllegalArgumentException
+	 *             If share is not between 0 and 1.
+	 */
+	public void setDurations(double share) {
+		this.durations = share(share);
+	}
+
+	/**
+	 * Returns the first day the events may start on.
+	 *
+	 * @return January 1st 2011, at midnight.
+	 */
+	public GregorianCalendar getFirstDay() {
+		return new GregorianCalendar(2011, Calendar.JANUARY, 1);
+	}
+
+	/**
+	 * Returns the number of days the events start on, from the first day
+	 * (see {@link #getFirstDay()}). It follows from the size and the overlap.
+	 *
+	 * @return The number of days, at least 1.
+	 */
+	public int getDays() {
+		double days = this.size * MEAN_HOURS / (this.overlap * WORKING_HOURS);
+		return (int) Math.max(Math.ceil(days), 1);
+	}
+
+	/**
+	 * Spreads the events over a number of days by setting the overlap (see
+	 * {@link #setOverlap(double)}) so that they fit.
+	 *
+	 * @param days
+	 *            The number of days, at least 1.
+	 * @throws IllegalArgumentException
+	 *             If days is less than 1.
+	 */
+	public void setDays(int days) {
+		if (days < 1) {
+			throw new IllegalArgumentException("There must be at least a day");
+		}
+		this.overlap = Math.max(this.size, 1) * MEAN_HOURS
+				/ (days * (double) WORKING_HOURS);
+	}
+
+	/**
+	 * Returns an iterator over the events, made anew from the seed.
+	 *
+	 * @return The iterator.
+	 */
+	public Iterator<MeetingEvent> iterator() {
+		final Random random = new Random(this.seed);
+		final int days = this.getDays();
+		return new Iterator<MeetingEvent>() {
+			private int made;
+
+			public boolean hasNext() {
+				return this.made < CalendarGenerator.this.size;
+			}
+
+			public MeetingEvent next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return CalendarGenerator.this.event(random, days, this.made++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Builds a calendar of the events.
+	 *
+	 * @return The calendar.
+	 */
+	public TCalendar generate() {
+		TCalendar calendar = new TCalendar();
+		for (MeetingEvent event : this) {
+			calendar.addEvent(event);
+		}
+		return calendar;
+	}
+
+	/**
+	 * Writes the events into a file. A file whose name ends with .ics.gz is
+	 * compressed with gzip.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void write(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			if (CalendarFiles.isCompressed(file)) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+					"UTF-8"), BUFFER_SIZE);
+			this.write(writer);
+			writer.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the events as a VCALENDAR. The writer is flushed but not closed.
+	 *
+	 * @param out
+	 *            The {@link Writer} to write into.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public void write(Writer out) throws IOException {
+		ICalWriter writer = new ICalWriter(out);
+		// The choice between DURATION and DTEND does not change the events.
+		Random choice = new Random(~this.seed);
+		SnapshotWriter.writeHeader(writer);
+		for (MeetingEvent event : this) {
+			if (choice.nextDouble() < this.durations) {
+				this.writeWithDuration(writer, event);
+			} else {
+				event.writeTo(writer);
+			}
+		}
+		SnapshotWriter.writeFooter(writer);
+		writer.flush();
+	}
+
+	// Makes the index:th event.
+	private MeetingEvent event(Random random, int days, int index) {
+		GregorianCalendar start = this.getFirstDay();
+		start.add(Calendar.DAY_OF_YEAR, random.nextInt(days));
+		start.set(Calendar.HOUR_OF_DAY, FIRST_HOUR
+				+ random.nextInt(WORKING_HOURS));
+		start.set(Calendar.MINUTE, 15 * random.nextInt(4));
+		GregorianCalendar end = (GregorianCalendar) start.clone();
+		end.add(Calendar.MINUTE, 15 * (1 + random.nextInt(MAX_QUARTERS)));
+		MeetingEvent event = new MeetingEvent(start, end);
+		event.setDateStamp(this.getFirstDay());
+		event.setUID("generated-" + this.seed + "-" + index + "-"
+				+ TCalendar.UID);
+		event.setCategory("CATEGORY" + (1 + random.nextInt(this.categories)));
+		event.setPriority(random.nextInt(10) == 0 ? 1 + random.nextInt(9) : 0);
+		if (random.nextDouble() < this.repeating) {
+			int field = FIELDS[this.frequency(random)];
+			int interval = 1 + random.nextInt(3);
+			GregorianCalendar until = null;
+			if (random.nextBoolean()) {
+				// From 2 to 50 occurrences.
+				until = (GregorianCalendar) start.clone();
+				until.add(field, interval * (1 + random.nextInt(49)));
+			}
+			event.setRepeat(field, interval, until);
+		}
+		return event;
+	}
+
+	// Draws a frequency by the weights.
+	private int frequency(Random random) {
+		int total = 0;
+		for (int weight : this.frequencies) {
+			total += weight;
+		}
+		int draw = random.nextInt(total);
+		int frequency = 0;
+		while (draw >= this.frequencies[frequency]) {
+			draw -= this.frequencies[frequency];
+			frequency++;
+		}
+		return frequency;
+	}
+
+	// Writes an event like MeetingEvent.writeTo, but with a DURATION.
+	private void writeWithDuration(ICalWriter writer, MeetingEvent event)
+			throws IOException {
+		writer.append("BEGIN:VEVENT");
+		writer.endLine();
+		writer.property("DTSTAMP", this.getFirstDay());
+		writer.property("UID", event.getUID());
+		writer.property("DTSTART", event.getStart());
+		long minutes = event.getDuration() / 60000;
+		StringBuilder duration = new StringBuilder("PT");
+		if (minutes >= 60) {
+			duration.append(minutes / 60).append('H');
+		}
+		if (minutes % 60 != 0) {
+			duration.append(minutes % 60).append('M');
+		}
+		writer.property("DURATION", duration);
+		writer.property("CATEGORIES", event.getCategory());
+		if (event.getPriority() > 0) {
+			writer.property("PRIORITY", event.getPriority());
+		}
+		if (event.isRepeating()) {
+			writer.property("RRULE", event.getRule().toString());
+		}
+		writer.append("END:VEVENT");
+		writer.endLine();
+	}
+
+	// Checks that a share is between 0 and 1.
+	private static double share(double share) {
+		if (!(share >= 0 && share <= 1)) {
+			throw new IllegalArgumentException(
+					"The share must be between 0 and 1");
+		}
+		return share;
+	}
+
+}
@@ -0,0 +1,365 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A CalendarIndex is a compact summary of the VEVENTs in an .ics file, made by
+ * scanning the bytes of the file without constructing any events. For every
+ * non-repeating event it records the byte range of its VEVENT, its start and
+ * end and a hash of its UID, in primitive arrays sorted by the start. The
+ * repeating events are only located, as they are few and have to be parsed
+ * anyway to tell when they occur.
+ *
+ * A {@link TCalendar} opened with {@link TCalendar#openLazily(File)} uses the
+ * index to parse only the events that a query touches.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+class CalendarIndex extends ICalScanner {
+
+	// The non-repeating events, sorted by start.
+	private int size;
+	private long[] starts;
+	private long[] ends;
+	private long[] offsets;
+	private int[] lengths;
+	private int[] uidHashes;
+	private BitSet loaded;
+	private long[] byHash; // UID hashes and positions, sorted.
+	private int unloaded;
+	private long longest; // The longest time from a start to its end.
+
+	// The repeating events, in the order of the file.
+	private int repeaters;
+	private long[] repeaterOffsets;
+	private int[] repeaterLengths;
+
+	// The state of the scan.
+	private ICalParser parser;
+	private boolean inEvent;
+	private long eventOffset;
+	private long start;
+	private long end;
+	private long duration;
+	private boolean hasStart;
+	private boolean hasEnd;
+	private boolean hasDuration;
+	private boolean repeating;
+	private int uidHash;
+
+	private CalendarIndex(File file) {
+		super(file);
+		this.starts = new long[1024];
+		this.ends = new long[1024];
+		this.offsets = new long[1024];
+		this.lengths = new int[1024];
+		this.uidHashes = new int[1024];
+		this.repeaterOffsets = new long[16];
+		this.repeaterLengths = new int[16];
+		this.parser = new ICalParser();
+	}
+
+	/**
+	 * Scans an uncompressed .ics file.
+	 *
+	 * @param file
+	 *            The file to scan.
+	 * @return The index of the file.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the VCALENDAR header is missing, or a VEVENT has no
+	 *             valid start.
+	 */
+	static CalendarIndex scan(File file) throws IOException,
+			CorruptedCalendarFileException {
+		CalendarIndex index = new CalendarIndex(file);
+		index.scan();
+		index.sort();
+		index.loaded = new BitSet(index.size);
+		index.unloaded = index.size;
+		index.parser = null;
+		return index;
+	}
+
+	/**
+	 * Returns the number of non-repeating events.
+	 *
+	 * @return The number of events.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Finds the first non-repeating event that starts at or after a time.
+	 *
+	 * @param time
+	 *            The time in milliseconds.
+	 * @return The position of the event, or size() if there is none.
+	 */
+	int firstStartingAt(long time) {
+		int low = 0;
+		int high = this.size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.starts[middle] < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns how long the longest non-repeating event lasts. No event that
+	 * starts earlier than this before a time can be taking place at it.
+	 *
+	 * @return The longest duration in milliseconds.
+	 */
+	long getLongest() {
+		return this.longest;
+	}
+
+	long getStart(int position) {
+		return this.starts[position];
+	}
+
+	long getEnd(int position) {
+		return this.ends[position];
+	}
+
+	long getOffset(int position) {
+		return this.offsets[position];
+	}
+
+	int getLength(int position) {
+		return this.lengths[position];
+	}
+
+	int getUIDHash(int position) {
+		return this.uidHashes[position];
+	}
+
+	/**
+	 * Finds the non-repeating events whose UID has a given hash code.
+	 *
+	 * @param hash
+	 *            The {@link String#hashCode()} of the UID.
+	 * @return The positions of the events, of which the ones with another UID
+	 *         that happens to have the same hash have to be skipped by the
+	 *         caller.
+	 */
+	int[] findUIDHash(int hash) {
+		if (this.byHash == null) {
+			// Built on the first lookup, as only replaying a journal needs it.
+			this.byHash = new long[this.size];
+			for (int i = 0; i < this.size; i++) {
+				this.byHash[i] = ((long) this.uidHashes[i] << 32) | i;
+			}
+			Arrays.sort(this.byHash);
+		}
+		long key = (long) hash << 32;
+		int first = Arrays.binarySearch(this.byHash, key);
+		if (first < 0) {
+			first = -first - 1;
+		}
+		int last = first;
+		while (last < this.size && (int) (this.byHash[last] >> 32) == hash) {
+			last++;
+		}
+		int[] positions = new int[last - first];
+		for (int i = first; i < last; i++) {
+			positions[i - first] = (int) this.byHash[i];
+		}
+		return positions;
+	}
+
+	boolean isLoaded(int position) {
+		return this.loaded.get(position);
+	}
+
+	/**
+	 * Marks an event as parsed.
+	 *
+	 * @param position
+	 *            The position of the event.
+	 */
+	void setLoaded(int position) {
+		if (!this.loaded.get(position)) {
+			this.loaded.set(position);
+			this.unloaded--;
+		}
+	}
+
+	/**
+	 * Checks whether all the non-repeating events have been parsed.
+	 *
+	 * @return true if nothing is left to parse.
+	 */
+	boolean isComplete() {
+		return this.unloaded == 0;
+	}
+
+	int getRepeaterCount() {
+		return this.repeaters;
+	}
+
+	long getRepeaterOffset(int position) {
+		return this.repeaterOffsets[position];
+	}
+
+	int getRepeaterLength(int position) {
+		return this.repeaterLengths[position];
+	}
+
+	@Override
+	void line(byte[] line, int length, long offset, long next)
+			throws CorruptedCalendarFileException {
+		if (is(line, length, "BEGIN:VEVENT")) {
+			this.inEvent = true;
+			this.eventOffset = offset;
+			this.hasStart = false;
+			this.hasEnd = false;
+			this.hasDuration = false;
+			this.repeating = false;
+			this.uidHash = 0;
+		} else if (!this.inEvent) {
+			return;
+		} else if (is(line, length, "END:VEVENT")) {
+			this.inEvent = false;
+			this.add((int) (next - this.eventOffset));
+		} else if (startsWith(line, length, "DTSTART")) {
+			this.start = this.parser.parseDateTime(new String(line, 0,
+					length, LATIN1));
+			this.hasStart = true;
+		} else if (startsWith(line, length, "DTEND")) {
+			this.end = this.parser.parseDateTime(new String(line, 0, length,
+					LATIN1));
+			this.hasEnd = true;
+		} else if (startsWith(line, length, "DURATION")) {
+			this.duration = ICalParser.parseDuration(new String(line, 0,
+					length, LATIN1));
+			this.hasDuration = true;
+		} else if (startsWith(line, length, "RRULE")) {
+			this.repeating = true;
+		} else if (startsWith(line, length, "UID")) {
+			// The same hash as the UID String that is parsed later.
+			this.uidHash = valueOf(line, length).hashCode();
+		}
+	}
+
+	// Records the VEVENT that has just ended.
+	private void add(int length) throws CorruptedCalendarFileException {
+		if (!this.hasStart) {
+			throw new CorruptedCalendarFileException(
+					"A VEVENT section is missing required information");
+		}
+		if (this.repeating) {
+			if (this.repeaters == this.repeaterOffsets.length) {
+				this.repeaterOffsets = grow(this.repeaterOffsets);
+				this.repeaterLengths = grow(this.repeaterLengths);
+			}
+			this.repeaterOffsets[this.repeaters] = this.eventOffset;
+			this.repeaterLengths[this.repeaters] = length;
+			this.repeaters++;
+			return;
+		}
+		if (this.size == this.starts.length) {
+			this.starts = grow(this.starts);
+			this.ends = grow(this.ends);
+			this.offsets = grow(this.offsets);
+			this.lengths = grow(this.lengths);
+			this.uidHashes = grow(this.uidHashes);
+		}
+		long end = this.start;
+		if (this.hasEnd) {
+			end = this.end;
+		} else if (this.hasDuration) {
+			end = this.start + this.duration;
+		}
+		this.starts[this.size] = this.start;
+		this.ends[this.size] = end;
+		this.offsets[this.size] = this.eventOffset;
+		this.lengths[this.size] = length;
+		this.uidHashes[this.size] = this.uidHash;
+		this.size++;
+		this.longest = Math.max(this.longest, end - this.start);
+	}
+
+	// Sorts the non-repeating events by start, unless they already are, as in
+	// the files TCalendar writes.
+	private void sort() {
+		boolean sorted = true;
+		for (int i = 1; i < this.size && sorted; i++) {
+			sorted = this.starts[i - 1] <= this.starts[i];
+		}
+		if (sorted) {
+			return;
+		}
+		int[] order = new int[this.size];
+		for (int i = 0; i < this.size; i++) {
+			order[i] = i;
+		}
+		mergeSort(order, new int[this.size], 0, this.size, this.starts);
+		long[] starts = new long[this.size];
+		long[] ends = new long[this.size];
+		long[] offsets = new long[this.size];
+		int[] lengths = new int[this.size];
+		int[] uidHashes = new int[this.size];
+		for (int i = 0; i < this.size; i++) {
+			int from = order[i];
+			starts[i] = this.starts[from];
+			ends[i] = this.ends[from];
+			offsets[i] = this.offsets[from];
+			lengths[i] = this.lengths[from];
+			uidHashes[i] = this.uidHashes[from];
+		}
+		this.starts = starts;
+		this.ends = ends;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.uidHashes = uidHashes;
+	}
+
+	// Sorts order[from, to) by keys, keeping equal keys in order.
+	private static void mergeSort(int[] order, int[] work, int from, int to,
+			long[] keys) {
+		if (to - from < 2) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(order, work, from, middle, keys);
+		mergeSort(order, work, middle, to, keys);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle
+					&& keys[order[left]] <= keys[order[right]])) {
+				work[i] = order[left++];
+			} else {
+				work[i] = order[right++];
+			}
+		}
+		System.arraycopy(work, from, order, from, to - from);
+	}
+
+	private static long[] grow(long[] array) {
+		long[] grown = new long[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+}
@@ -0,0 +1,25 @@
+package calendar;
+
+import java.util.List;
+
+/**
+ * The interface CalendarListener is told about the changes made to a
+ * {@link TCalendar}, so that views and caches only need to update what the
+ * changes touched. The changes made between {@link TCalendar#begin()} and
+ * {@link TCalendar#commit()}, or by a single call otherwise, are told at once.
+ * The method is called on the thread that made the changes, while the
+ * calendar is locked, so it should return quickly.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public interface CalendarListener {
+	/**
+	 * Called after changes have been made to the calendar.
+	 *
+	 * @param changes
+	 *            The {@link CalendarChange}s, at most one for each event.
+	 */
+	public void calendarChanged(List<CalendarChange> changes);
+}
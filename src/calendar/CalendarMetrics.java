@@ -0,0 +1,148 @@
+package calendar;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * CalendarMetrics keeps the {@link OperationMetrics} of the operations of
+ * all the {@link TCalendar}s of the program, of drawing the week view and of
+ * computing the weeks next to it ahead of time, so that it can be told
+ * whether slowness comes from loading, querying or rendering. They are
+ * published as MBeans named
+ * calendar:type=Operation,name=getDay and so on, and can be switched on and
+ * off through the MBean calendar:type=Metrics.
+ * 
+ * The metrics are on unless the system property tcalendar.metrics is false,
+ * in which case the MBeans are not published either. While they are off,
+ * timing an operation costs one read of a volatile field.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+public final class CalendarMetrics implements CalendarMetricsMBean {
+
+	/**
+	 * The start time given while the metrics are off.
+	 */
+	static final long OFF = Long.MIN_VALUE;
+
+	private static final String DOMAIN = "calendar";
+	private static final ArrayList<OperationMetrics> OPERATIONS;
+	static {
+		OPERATIONS = new ArrayList<OperationMetrics>();
+	}
+	private static volatile boolean enabled = !"false"
+			.equalsIgnoreCase(System.getProperty("tcalendar.metrics"));
+
+	public static final OperationMetrics ADD_EVENT = operation("addEvent");
+	public static final OperationMetrics REMOVE_EVENT = operation(
+			"removeEvent");
+	public static final OperationMetrics GET_DAY = operation("getDay");
+	public static final OperationMetrics GET_MONTHS_EVENTS = operation(
+			"getMonthsEvents");
+	public static final OperationMetrics GET_MONTH_AGGREGATE = operation(
+			"getMonthAggregate");
+	public static final OperationMetrics LOAD_CALENDAR = operation(
+			"loadCalendar");
+	public static final OperationMetrics SERIALIZE_CALENDAR = operation(
+			"serializeCalendar");
+	public static final OperationMetrics RENDER_WEEK = operation(
+			"renderWeek");
+	public static final OperationMetrics PREFETCH_WEEK = operation(
+			"prefetchWeek");
+
+	static {
+		if (enabled) {
+			register();
+		}
+	}
+
+	/**
+	 * Returns the time an operation starts at, to be given to
+	 * {@link OperationMetrics#record(long)} when it ends.
+	 * 
+	 * @return The current time in nanoseconds, or a value telling that the
+	 *         metrics are off.
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : OFF;
+	}
+
+	/**
+	 * Returns the metrics of every operation.
+	 * 
+	 * @return The metrics, in the order they were created.
+	 */
+	public static List<OperationMetrics> getOperations() {
+		return Collections.unmodifiableList(OPERATIONS);
+	}
+
+	public static boolean isRecording() {
+		return enabled;
+	}
+
+	/**
+	 * Switches the metrics on or off. Operations that started while they
+	 * were off are not recorded.
+	 * 
+	 * @param on
+	 *            Whether to record the operations.
+	 */
+	public static void setRecording(boolean on) {
+		enabled = on;
+	}
+
+	// Creates the metrics of an operation.
+	private static OperationMetrics operation(String name) {
+		OperationMetrics operation = new OperationMetrics(name);
+		OPERATIONS.add(operation);
+		return operation;
+	}
+
+	// Publishes the MBeans. The metrics are kept even if they cannot be
+	// published, for example because another class loader already has.
+	private static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName control = new ObjectName(DOMAIN + ":type=Metrics");
+			if (server.isRegistered(control)) {
+				return;
+			}
+			server.registerMBean(new CalendarMetrics(), control);
+			for (OperationMetrics operation : OPERATIONS) {
+				server.registerMBean(operation, new ObjectName(DOMAIN
+						+ ":type=Operation,name=" + operation.getName()));
+			}
+		} catch (JMException e) {
+			// Left unpublished.
+		} catch (SecurityException e) {
+			// Left unpublished.
+		}
+	}
+
+	// Only created for publishing.
+	private CalendarMetrics() {
+	}
+
+	public boolean isEnabled() {
+		return isRecording();
+	}
+
+	public void setEnabled(boolean enabled) {
+		setRecording(enabled);
+	}
+
+	public void reset() {
+		for (OperationMetrics operation : OPERATIONS) {
+			operation.reset();
+		}
+	}
+
+}
@@ -0,0 +1,22 @@
+package calendar;
+
+/**
+ * The management interface of {@link CalendarMetrics}, for switching the
+ * metrics on and off.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+public interface CalendarMetricsMBean {
+
+	public boolean isEnabled();
+
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * Forgets what has been recorded of every operation.
+	 */
+	public void reset();
+
+}
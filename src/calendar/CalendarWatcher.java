@@ -0,0 +1,213 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A CalendarWatcher keeps a {@link TCalendar} up to date with an .ics file
+ * that other applications change. When the file changes, it is scanned
+ * without constructing any events and compared to how it was before, and
+ * only the VEVENTs that were added or changed are parsed (see
+ * {@link TCalendar}). Saves made by the calendar itself are recognized and
+ * not applied again.
+ *
+ * Only uncompressed files can be watched, as the changed VEVENTs are read
+ * from their offsets in the file.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class CalendarWatcher {
+
+	// How long the file has to stay unchanged before it is read, so that it
+	// is not read while it is being written.
+	private static final long SETTLE_TIME = 100;
+	// How long to wait for a save of the calendar to finish.
+	private static final long RETRY_TIME = 100;
+
+	private TCalendar calendar;
+	private File file;
+	private ReloadListener listener;
+	private CalendarDigest digest; // The file as it was last applied.
+	private WatchService service; // null if not watching.
+
+	/**
+	 * Creates a watcher that applies the changes of a file to a calendar. The
+	 * calendar should have been loaded from the file.
+	 *
+	 * @param calendar
+	 *            The {@link TCalendar} to keep up to date.
+	 * @param file
+	 *            The .ics file to watch.
+	 */
+	public CalendarWatcher(TCalendar calendar, File file) {
+		this.calendar = calendar;
+		this.file = file.getAbsoluteFile();
+	}
+
+	/**
+	 * Returns the file that is watched.
+	 *
+	 * @return The .ics file.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Sets a {@link ReloadListener} to tell about the changes.
+	 *
+	 * @param listener
+	 *            The listener, or null.
+	 */
+	public void setListener(ReloadListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts watching the file on a background thread. The changes made to the
+	 * file from now on are applied to the calendar. A lazily opened calendar
+	 * is parsed completely first.
+	 *
+	 * @throws IOException
+	 *             If the file is compressed, or cannot be read or watched.
+	 * @throws CorruptedCalendarFileException
+	 *             If the file is corrupted.
+	 */
+	public synchronized void start() throws IOException,
+			CorruptedCalendarFileException {
+		if (this.service != null) {
+			return;
+		}
+		if (!CalendarFiles.isPlainText(this.file)) {
+			throw new IOException(this.file.getName()
+					+ " is compressed, so it cannot be watched");
+		}
+		// The events not parsed yet could not be read once the file changes.
+		this.calendar.getAllEvents();
+		this.digest = CalendarDigest.scan(this.file);
+		final WatchService service = this.file.toPath().getFileSystem()
+				.newWatchService();
+		this.file.getParentFile().toPath().register(service,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.service = service;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				CalendarWatcher.this.watch(service);
+			}
+		}, "TCalendar watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the file.
+	 */
+	public synchronized void stop() {
+		if (this.service != null) {
+			try {
+				this.service.close();
+			} catch (IOException e) {
+				// The thread stops anyway.
+			}
+			this.service = null;
+		}
+	}
+
+	/**
+	 * Compares the file to how it was when it was last read, and applies the
+	 * changes to the calendar. This is done automatically once watching has
+	 * been started. If it has not, the first call only reads the file.
+	 *
+	 * @return The number of events that were added, changed or removed, or -1
+	 *         if the calendar is being saved and the file has to be compared
+	 *         again later.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the file is corrupted. The calendar is left as it was.
+	 */
+	public synchronized int reload() throws IOException,
+			CorruptedCalendarFileException {
+		if (this.digest == null) {
+			this.digest = CalendarDigest.scan(this.file);
+			return 0;
+		}
+		CalendarDigest next = CalendarDigest.scan(this.file);
+		int changes = this.calendar.reload(this.digest, next);
+		if (changes >= 0) {
+			this.digest = next;
+		}
+		return changes;
+	}
+
+	// Waits for the file to change and reloads it, until the service is
+	// closed.
+	private void watch(WatchService service) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				boolean changed = false;
+				while (key != null) {
+					changed |= this.concerns(key);
+					key.reset();
+					key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+				}
+				if (changed) {
+					this.apply();
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped.
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+
+	// Checks whether the events of key are about the file.
+	private boolean concerns(WatchKey key) {
+		boolean found = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| this.file.getName().equals(event.context().toString())) {
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	// Reloads the file, waiting for a save of the calendar to finish, and
+	// tells the listener how it went.
+	private void apply() throws InterruptedException {
+		Exception error;
+		try {
+			int changes;
+			while ((changes = this.reload()) < 0) {
+				Thread.sleep(RETRY_TIME);
+			}
+			if (this.listener != null && changes > 0) {
+				this.listener.reloaded(changes);
+			}
+			return;
+		} catch (IOException e) {
+			error = e;
+		} catch (UncheckedIOException e) {
+			error = e.getCause();
+		} catch (CorruptedCalendarFileException e) {
+			error = e;
+		}
+		if (this.listener != null) {
+			this.listener.failed(error);
+		}
+	}
+
+}
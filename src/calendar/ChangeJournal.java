@@ -0,0 +1,351 @@
+package calendar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * A ChangeJournal is an append-only log of the changes made to a
+ * {@link TCalendar} since its .ics file (the snapshot) was last written. Every
+ * added, removed or updated {@link Event} is appended as one record and forced
+ * to the disk before the change returns, so a crash loses nothing even though
+ * the snapshot itself is only rewritten occasionally. Loading the snapshot and
+ * replaying the journal on top of it restores the calendar.
+ *
+ * Each record is framed as [length][CRC-32][type][payload], where the payload
+ * is the VEVENT serialization of the event (or just its UID for a removal) in
+ * UTF-8. A record that was only partly written when the program stopped fails
+ * its checksum, and the journal is cut off before it.
+ *
+ * When the calendar is saved, a pending journal is started next to the new
+ * file and receives the same records as the current one while the file is
+ * written. Once the file is in place, the pending journal is renamed over the
+ * file's journal (see {@link #promote()}). Replaying is idempotent, so a crash
+ * at any point of the save is harmless.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class ChangeJournal implements Closeable {
+
+	public static final String SUFFIX = ".journal";
+	public static final String PENDING_SUFFIX = ".new";
+
+	static final byte ADD = 1;
+	static final byte REMOVE = 2;
+	static final byte UPDATE = 3;
+
+	private static final int HEADER = 9; // length, CRC-32 and type.
+	private static final int MAX_RECORD = 16 * 1024 * 1024;
+	private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File snapshot;
+	private File file;
+	private FileChannel channel;
+	private ByteBuffer record; // Reused, grown when a record does not fit.
+	private CRC32 crc;
+	private long size;
+	private int depth; // Nesting of begin() calls.
+	private boolean unforced; // Records written but not yet forced.
+	private boolean compactionPending;
+
+	/**
+	 * Opens the journal of a snapshot for appending, creating it if needed.
+	 * An existing journal should have been replayed (and so repaired) with
+	 * {@link #replay(File, TCalendar)} first.
+	 *
+	 * @param snapshot
+	 *            The .ics file the journal belongs to.
+	 * @throws IOException
+	 *             If the journal cannot be opened.
+	 */
+	ChangeJournal(File snapshot) throws IOException {
+		this(snapshot, journalOf(snapshot));
+	}
+
+	// Opens file for appending as a journal of snapshot.
+	private ChangeJournal(File snapshot, File file) throws IOException {
+		this.snapshot = snapshot;
+		this.file = file;
+		this.record = ByteBuffer.allocate(4096);
+		this.crc = new CRC32();
+		this.open();
+	}
+
+	/**
+	 * Starts a new, empty journal for a snapshot that is about to be written.
+	 * The journal is kept under a temporary name, and is ignored when the
+	 * snapshot is loaded, until it is promoted.
+	 *
+	 * @param snapshot
+	 *            The .ics file that is going to be written.
+	 * @return The pending journal.
+	 * @throws IOException
+	 *             If the journal cannot be created.
+	 */
+	static ChangeJournal pending(File snapshot) throws IOException {
+		File directory = snapshot.getAbsoluteFile().getParentFile();
+		File file = File.createTempFile(snapshot.getName() + SUFFIX,
+				PENDING_SUFFIX, directory);
+		return new ChangeJournal(snapshot, file);
+	}
+
+	/**
+	 * Returns the .ics file this journal belongs to.
+	 *
+	 * @return The snapshot {@link File}.
+	 */
+	public File getSnapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * Returns the number of bytes in the journal.
+	 *
+	 * @return The size of the journal in bytes.
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the journal file of a snapshot.
+	 *
+	 * @param snapshot
+	 *            The .ics file.
+	 * @return The journal next to the file.
+	 */
+	public static File journalOf(File snapshot) {
+		return new File(snapshot.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Appends a change to the journal. Unless a batch has been started with
+	 * {@link #begin()}, the record is forced to the disk before returning.
+	 *
+	 * @param type
+	 *            ADD, REMOVE or UPDATE.
+	 * @param event
+	 *            The {@link Event} that was changed.
+	 * @throws IOException
+	 *             If the record cannot be written.
+	 */
+	synchronized void append(byte type, Event event) throws IOException {
+		String payload;
+		if (type == REMOVE) {
+			payload = event.getUID();
+		} else {
+			payload = event.getSerialization().toString();
+		}
+		byte[] bytes = payload.getBytes(UTF8);
+		if (this.record.capacity() < HEADER + bytes.length) {
+			this.record = ByteBuffer.allocate(HEADER + bytes.length);
+		}
+		this.crc.reset();
+		this.crc.update(type);
+		this.crc.update(bytes, 0, bytes.length);
+
+		this.record.clear();
+		this.record.putInt(bytes.length);
+		this.record.putInt((int) this.crc.getValue());
+		this.record.put(type);
+		this.record.put(bytes);
+		this.record.flip();
+		while (this.record.hasRemaining()) {
+			this.size += this.channel.write(this.record);
+		}
+		if (this.depth == 0) {
+			this.channel.force(false);
+		} else {
+			this.unforced = true;
+		}
+	}
+
+	/**
+	 * Starts a batch of changes. The records appended before the matching
+	 * {@link #commit()} are forced to the disk together, which is much faster
+	 * than forcing each of them when many events are added at once.
+	 */
+	synchronized void begin() {
+		this.depth++;
+	}
+
+	/**
+	 * Ends a batch of changes started with {@link #begin()}.
+	 *
+	 * @throws IOException
+	 *             If the records cannot be forced to the disk.
+	 */
+	synchronized void commit() throws IOException {
+		this.depth--;
+		if (this.depth == 0 && this.unforced) {
+			this.channel.force(false);
+			this.unforced = false;
+		}
+	}
+
+	/**
+	 * Checks whether the journal has grown large enough to be compacted into
+	 * the snapshot. Returns true only once until the compaction is done, so
+	 * that only one compaction is scheduled at a time.
+	 *
+	 * @return true if the caller should compact the journal.
+	 */
+	synchronized boolean claimCompaction() {
+		if (this.compactionPending || this.size < COMPACTION_THRESHOLD) {
+			return false;
+		}
+		this.compactionPending = true;
+		return true;
+	}
+
+	/**
+	 * Allows a new compaction to be claimed after a failed one.
+	 */
+	synchronized void releaseCompaction() {
+		this.compactionPending = false;
+	}
+
+	/**
+	 * Makes a pending journal the journal of its snapshot, replacing any
+	 * earlier one. This is done once the snapshot has been written.
+	 *
+	 * @throws IOException
+	 *             If the journal cannot be renamed.
+	 */
+	synchronized void promote() throws IOException {
+		File target = journalOf(this.snapshot);
+		this.close();
+		try {
+			Files.move(this.file.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(this.file.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.file = target;
+		this.open();
+	}
+
+	/**
+	 * Closes and deletes a pending journal whose snapshot was not written.
+	 *
+	 * @throws IOException
+	 *             If the journal cannot be closed.
+	 */
+	synchronized void discard() throws IOException {
+		this.close();
+		this.file.delete();
+	}
+
+	/**
+	 * Forces and closes the journal.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.channel.isOpen()) {
+			this.channel.force(false);
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Replays the records of a journal into a calendar, stopping at the end of
+	 * the file or at the first record that is incomplete or corrupted. Such a
+	 * record, and anything after it, is cut off the journal.
+	 *
+	 * @param journal
+	 *            The journal to replay.
+	 * @param into
+	 *            The {@link TCalendar} to apply the changes to.
+	 * @return The number of records replayed.
+	 * @throws IOException
+	 *             If the journal cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If a record passes its checksum but contains an invalid
+	 *             event.
+	 */
+	static int replay(File journal, TCalendar into) throws IOException,
+			CorruptedCalendarFileException {
+		if (!journal.exists()) {
+			return 0;
+		}
+		RandomAccessFile file = new RandomAccessFile(journal, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			ByteBuffer payload = ByteBuffer.allocate(4096);
+			CRC32 crc = new CRC32();
+			long valid = 0;
+			int records = 0;
+			while (true) {
+				header.clear();
+				if (!readFully(channel, header)) {
+					break;
+				}
+				header.flip();
+				int length = header.getInt();
+				int checksum = header.getInt();
+				byte type = header.get();
+				if (length < 0 || length > MAX_RECORD) {
+					break;
+				}
+				if (payload.capacity() < length) {
+					payload = ByteBuffer.allocate(length);
+				}
+				payload.clear();
+				payload.limit(length);
+				if (!readFully(channel, payload)) {
+					break;
+				}
+				crc.reset();
+				crc.update(type);
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				into.replayChange(type, new String(payload.array(), 0,
+						length, UTF8));
+				valid += HEADER + length;
+				records++;
+			}
+			if (channel.size() > valid) {
+				channel.truncate(valid);
+				channel.force(false);
+			}
+			return records;
+		} finally {
+			file.close();
+		}
+	}
+
+	// Fills buffer from the channel, returns false if the file ends first.
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Opens the journal file for appending at its end.
+	private void open() throws IOException {
+		this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+		this.size = this.channel.size();
+		this.channel.position(this.size);
+	}
+
+}
@@ -0,0 +1,177 @@
+package calendar;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A ChangePublisher delivers the batches of {@link CalendarChange}s of a
+ * {@link TCalendar} to {@link Flow.Subscriber}s on a background thread, as
+ * many as each subscriber has requested. The calendar is never held up by a
+ * slow subscriber: the batches it has not requested yet are queued, and once
+ * too many are queued they are merged into one (see
+ * {@link CalendarChange#merge(List)}), so a subscriber that falls behind
+ * still learns about every event that changed.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+class ChangePublisher implements Flow.Publisher<List<CalendarChange>> {
+
+	// The number of batches queued for a subscriber before they are merged.
+	private static final int MAX_QUEUED = 64;
+
+	// Delivers the batches, one thread per subscriber that has some to take.
+	private static final ExecutorService DELIVERY = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "TCalendar notifier");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private CopyOnWriteArrayList<Subscription> subscriptions;
+
+	// The state of one subscriber.
+	private class Subscription implements Flow.Subscription, Runnable {
+		private Flow.Subscriber<? super List<CalendarChange>> subscriber;
+		private ArrayDeque<List<CalendarChange>> queue;
+		private long demand;
+		private boolean delivering; // A delivery task is running.
+		private boolean cancelled;
+		private IllegalArgumentException error; // Of a bad request.
+
+		Subscription(Flow.Subscriber<? super List<CalendarChange>> subscriber) {
+			this.subscriber = subscriber;
+			this.queue = new ArrayDeque<List<CalendarChange>>();
+		}
+
+		public synchronized void request(long n) {
+			if (this.cancelled) {
+				return;
+			}
+			if (n <= 0) {
+				this.error = new IllegalArgumentException(
+						"The number of batches requested must be positive");
+			} else {
+				this.demand += n;
+				if (this.demand < 0) {
+					this.demand = Long.MAX_VALUE; // Unbounded.
+				}
+			}
+			this.schedule();
+		}
+
+		public void cancel() {
+			synchronized (this) {
+				this.cancelled = true;
+				this.queue.clear();
+			}
+			ChangePublisher.this.subscriptions.remove(this);
+		}
+
+		// Queues a batch, merging the queued batches if there are too many.
+		synchronized void offer(List<CalendarChange> batch) {
+			if (this.cancelled) {
+				return;
+			}
+			if (this.queue.size() >= MAX_QUEUED) {
+				ArrayList<CalendarChange> all = new ArrayList<CalendarChange>();
+				for (List<CalendarChange> queued : this.queue) {
+					all.addAll(queued);
+				}
+				all.addAll(batch);
+				this.queue.clear();
+				batch = Collections.unmodifiableList(CalendarChange.merge(all));
+			}
+			this.queue.add(batch);
+			this.schedule();
+		}
+
+		// Starts delivering unless a delivery is running already.
+		private void schedule() {
+			if (!this.delivering
+					&& (this.error != null || this.demand > 0
+							&& !this.queue.isEmpty())) {
+				this.delivering = true;
+				DELIVERY.execute(this);
+			}
+		}
+
+		// Delivers the queued batches that have been requested.
+		public void run() {
+			while (true) {
+				List<CalendarChange> batch;
+				IllegalArgumentException error;
+				synchronized (this) {
+					error = this.error;
+					if (error != null) {
+						this.error = null;
+						this.cancelled = true;
+						this.queue.clear();
+						batch = null;
+					} else if (this.cancelled || this.demand == 0
+							|| this.queue.isEmpty()) {
+						this.delivering = false;
+						return;
+					} else {
+						batch = this.queue.poll();
+						if (this.demand != Long.MAX_VALUE) {
+							this.demand--;
+						}
+					}
+				}
+				if (error != null) {
+					ChangePublisher.this.subscriptions.remove(this);
+					this.subscriber.onError(error);
+					synchronized (this) {
+						this.delivering = false;
+					}
+					return;
+				}
+				try {
+					this.subscriber.onNext(batch);
+				} catch (RuntimeException e) {
+					// A subscriber that fails is dropped.
+					this.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a publisher without subscribers.
+	 */
+	ChangePublisher() {
+		this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+	}
+
+	public void subscribe(
+			Flow.Subscriber<? super List<CalendarChange>> subscriber) {
+		Subscription subscription = new Subscription(subscriber);
+		// Nothing is delivered before the subscriber requests it.
+		this.subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Queues a batch of changes for every subscriber.
+	 *
+	 * @param batch
+	 *            The changes, which are not changed afterwards.
+	 */
+	void publish(List<CalendarChange> batch) {
+		for (Subscription subscription : this.subscriptions) {
+			subscription.offer(batch);
+		}
+	}
+
+}
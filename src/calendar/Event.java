@@ -1,5 +1,6 @@
 package calendar;
 
+import java.io.IOException;
 import java.util.GregorianCalendar;
 
 /**
@@ -85,6 +86,17 @@ public interface Event {
 	 */
 	public StringBuilder getSerialization();
 
+	/**
+	 * Writes the serialization of the Event (see getSerialization()) straight
+	 * into an {@link ICalWriter}.
+	 * 
+	 * @param writer
+	 *            The {@link ICalWriter} to write into.
+	 * @throws IOException
+	 *             If the writer fails.
+	 */
+	public void writeTo(ICalWriter writer) throws IOException;
+
 	/**
 	 * Sets the priority from 1-9. 1-5 represents low priority, 6 represents
 	 * medium and 7-9 represents high (as specified by the iCal specification).
@@ -113,6 +125,18 @@ public interface Event {
 	 */
 	public boolean isValid(GregorianCalendar start, GregorianCalendar end);
 
+	/**
+	 * Finds the first occurrence of the Event that has not ended by the given
+	 * time. For repeating events this is calculated from the recurrence rule
+	 * without going through the earlier occurrences.
+	 * 
+	 * @param time
+	 *            The time in milliseconds.
+	 * @return The start of the occurrence in milliseconds, or Long.MAX_VALUE
+	 *         if the Event has no more occurrences.
+	 */
+	public long getNextOccurrence(long time);
+
 	/**
 	 * Checks whether the Event has a high priority.
 	 * 
@@ -193,6 +217,23 @@ public interface Event {
 	 */
 	public void setUID(String UID);
 
+	/**
+	 * Returns the UID of the Event. The UID identifies the Event in the
+	 * calendar's change journal, so it should be unique within a calendar.
+	 * 
+	 * @return The UID, or null if none has been set.
+	 */
+	public String getUID();
+
+	/**
+	 * Returns a copy of this Event that is not affected by later changes to
+	 * this one. The dates are shared, as they are replaced rather than changed
+	 * by the setters.
+	 * 
+	 * @return The copy.
+	 */
+	public Event copy();
+
 	/**
 	 * Sets the datestamp of the event.
 	 * 
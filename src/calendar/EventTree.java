@@ -0,0 +1,1105 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * An EventTree stores events in a single file as a B+tree, for calendars that
+ * are too large to be kept in memory. It can be queried like a
+ * {@link TCalendar}, and only the pages of the file that a query needs are
+ * read. The non-repeating events are kept in order of their start and UID;
+ * the repeating events are kept in a second tree that is read into memory
+ * when the file is opened, as they can occur at any time.
+ *
+ * Every event is stored as its VEVENT. The nodes of the trees are pages of
+ * 4096 bytes, and a VEVENT too large to fit in a leaf is stored in a chain of
+ * overflow pages. The most recently used nodes are cached.
+ *
+ * Changes are made copy-on-write: a changed page is written to a free place
+ * in the file, never over a page of the last committed tree. A commit writes
+ * the changed pages, forces them to disk, and then writes a header naming the
+ * new roots into whichever of the two header pages is older. When the file
+ * is opened, the newest header with a valid checksum is used, so a crash at
+ * any point leaves the tree as it was after the last commit. Each change is
+ * committed at once unless it is made between begin() and commit().
+ *
+ * Nodes are not merged when events are removed; empty nodes are dropped.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class EventTree {
+
+	public static final String SUFFIX = ".tree";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int PAGE_SIZE = PageFile.PAGE_SIZE;
+	private static final long MAGIC = 0x5443414c54524545L; // "TCALTREE"
+	private static final int VERSION = 2; // 1 did not record the longest.
+	private static final long NONE = -1;
+	private static final int HEADERS = 2; // Pages 0 and 1.
+
+	private static final int TIMED = 0;
+	private static final int REPEATING = 1;
+
+	private static final byte LEAF = 1;
+	private static final byte BRANCH = 2;
+	private static final byte OVERFLOW = 3;
+	private static final byte FREE_LIST = 4;
+
+	private static final int MAX_UID = 512; // In bytes.
+	private static final int MAX_ENTRY = 1024; // Larger values overflow.
+	private static final int OVERFLOW_CAPACITY = PAGE_SIZE - 13;
+	private static final int FREE_LIST_CAPACITY = (PAGE_SIZE - 13) / 8;
+	private static final int CACHE_SIZE = 1024; // Pages.
+
+	// A node of a tree, decoded from its page.
+	private static class Node {
+		boolean leaf;
+		long page;
+		long first; // The leftmost child of a branch.
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+	}
+
+	// An event in a leaf, or a key and the child to its right in a branch.
+	private static class Entry {
+		long start;
+		String uid;
+		byte[] uidBytes;
+		byte[] value; // The VEVENT, unless it is in overflow pages.
+		long overflow = NONE;
+		int length; // The length of an overflowing value.
+		long child;
+	}
+
+	// Where an event was stored when it was given out.
+	private static class Key {
+		int tree;
+		long start;
+	}
+
+	private PageFile pages;
+	private long generation;
+	private long[] roots;
+	private long pageCount; // Pages in use, including free ones.
+	private long size;
+	private long longest; // The longest non-repeating event stored.
+	private ArrayList<Long> freeListPages; // Hold the list of the last commit.
+	private ArrayDeque<Long> reusable; // Free pages of the last commit.
+	private ArrayList<Long> freed; // Freed now, reusable after the commit.
+	private HashSet<Long> fresh; // Allocated since the last commit.
+	private HashMap<Long, Node> dirty;
+	private LinkedHashMap<Long, Node> cache;
+	private int depth; // The nesting of begin() and commit().
+	private ArrayList<Event> repeating;
+	private WeakHashMap<Event, Key> homes;
+	private Entry split; // The separator for a node split by insert().
+
+	/**
+	 * Opens an EventTree file, creating it if it does not exist.
+	 *
+	 * @param file
+	 *            The file of the tree.
+	 * @throws IOException
+	 *             If the file cannot be opened, or is not an EventTree.
+	 * @throws CorruptedCalendarFileException
+	 *             If a repeating event in the file is corrupted.
+	 */
+	public EventTree(File file) throws IOException,
+			CorruptedCalendarFileException {
+		this.pages = new PageFile(file);
+		try {
+			this.load();
+		} catch (IOException e) {
+			this.pages.close();
+			throw e;
+		} catch (CorruptedCalendarFileException e) {
+			this.pages.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the events of a day, like
+	 * {@link TCalendar#getDay(GregorianCalendar)}.
+	 *
+	 * @param date
+	 *            The date at which to start looking.
+	 * @return An ArrayList containing the day's events.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If a stored event is corrupted.
+	 */
+	public ArrayList<Event> getDay(GregorianCalendar date) throws IOException,
+			CorruptedCalendarFileException {
+		GregorianCalendar end = (GregorianCalendar) date.clone();
+		end = DateCalc.endOf(end, Calendar.DAY_OF_MONTH);
+		return this.getEvents(date, end);
+	}
+
+	/**
+	 * Returns the non-repeating events that start between two times, and the
+	 * repeating events that occur between them, like
+	 * {@link TCalendar#getEvents(GregorianCalendar, GregorianCalendar)}.
+	 *
+	 * @param from
+	 *            The start of the range.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @return An ArrayList containing the events, the non-repeating ones in
+	 *         order of their start followed by the repeating ones.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If a stored event is corrupted.
+	 */
+	public synchronized ArrayList<Event> getEvents(GregorianCalendar from,
+			GregorianCalendar to) throws IOException,
+			CorruptedCalendarFileException {
+		ArrayList<Event> events = this.read(TIMED, from.getTimeInMillis(), to
+				.getTimeInMillis());
+		for (Event event : this.repeating) {
+			if (event.isValid(from, to)) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Returns the events that take place between two times, like
+	 * {@link TCalendar#getOverlapping(GregorianCalendar, GregorianCalendar)}.
+	 *
+	 * @param from
+	 *            The start of the range.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @return An ArrayList containing the events, the non-repeating ones in
+	 *         order of their start followed by the repeating ones.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If a stored event is corrupted.
+	 */
+	public synchronized ArrayList<Event> getOverlapping(
+			GregorianCalendar from, GregorianCalendar to) throws IOException,
+			CorruptedCalendarFileException {
+		long start = from.getTimeInMillis();
+		ArrayList<Event> events = new ArrayList<Event>();
+		// No event that starts earlier can still be taking place at start.
+		for (Event event : this.read(TIMED, start - this.longest, to
+				.getTimeInMillis())) {
+			if (event.getStart().getTimeInMillis() >= start
+					|| event.getEnd().getTimeInMillis() > start) {
+				events.add(event);
+			}
+		}
+		for (Event event : this.repeating) {
+			if (event.isValid(from, to)) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Returns the high priority events of a month, like
+	 * {@link TCalendar#getMonthsEvents(GregorianCalendar)}.
+	 *
+	 * @param date
+	 *            A date in the month to be searched.
+	 * @return An ArrayList containing the high priority events.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If a stored event is corrupted.
+	 */
+	public synchronized ArrayList<Event> getMonthsEvents(GregorianCalendar date)
+			throws IOException, CorruptedCalendarFileException {
+		GregorianCalendar start = (GregorianCalendar) date.clone();
+		start = DateCalc.startOf(start, Calendar.MONTH);
+		GregorianCalendar end = (GregorianCalendar) date.clone();
+		end = DateCalc.endOf(end, Calendar.MONTH);
+		ArrayList<Event> events = new ArrayList<Event>();
+		for (Event event : this.getEvents(start, end)) {
+			if (event.isHighPriority()) {
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Returns all the events in the tree, like {@link TCalendar#getAllEvents()}.
+	 *
+	 * @return An ArrayList containing the events, the non-repeating ones in
+	 *         order of their start followed by the repeating ones.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If a stored event is corrupted.
+	 */
+	public synchronized ArrayList<Event> getAllEvents() throws IOException,
+			CorruptedCalendarFileException {
+		ArrayList<Event> events = this.read(TIMED, Long.MIN_VALUE,
+				Long.MAX_VALUE);
+		events.addAll(this.repeating);
+		return events;
+	}
+
+	/**
+	 * Adds an {@link Event}. An Event without a UID is given a new one (see
+	 * {@link TCalendar#newUID()}). An event with the same start and UID is
+	 * replaced.
+	 *
+	 * @param event
+	 *            The {@link Event} to be added.
+	 * @throws IOException
+	 *             If the event cannot be written. Changes made since the last
+	 *             commit are then undone.
+	 */
+	public synchronized void addEvent(Event event) throws IOException {
+		if (event.getUID() == null) {
+			event.setUID(TCalendar.newUID());
+		}
+		this.begin();
+		try {
+			this.store(event);
+		} catch (IOException e) {
+			this.rollback();
+			throw e;
+		}
+		this.commit();
+	}
+
+	/**
+	 * Removes an {@link Event}.
+	 *
+	 * @param target
+	 *            The {@link Event} to be removed.
+	 * @throws IOException
+	 *             If the change cannot be written. Changes made since the last
+	 *             commit are then undone.
+	 */
+	public synchronized void removeEvent(Event target) throws IOException {
+		this.begin();
+		try {
+			this.unstore(target);
+		} catch (IOException e) {
+			this.rollback();
+			throw e;
+		}
+		this.commit();
+	}
+
+	/**
+	 * Tells the tree that an {@link Event} given out by it has been changed,
+	 * so that it is stored again under its new start.
+	 *
+	 * @param target
+	 *            The {@link Event} that was changed.
+	 * @throws IOException
+	 *             If the change cannot be written. Changes made since the last
+	 *             commit are then undone.
+	 */
+	public synchronized void updateEvent(Event target) throws IOException {
+		this.begin();
+		try {
+			this.unstore(target);
+			this.store(target);
+		} catch (IOException e) {
+			this.rollback();
+			throw e;
+		}
+		this.commit();
+	}
+
+	/**
+	 * Starts a batch of changes that are committed together by the matching
+	 * commit(). Batches may be nested.
+	 */
+	public synchronized void begin() {
+		this.depth++;
+	}
+
+	/**
+	 * Ends a batch started with begin(), and commits the changes once the
+	 * outermost batch ends.
+	 *
+	 * @throws IOException
+	 *             If the changes cannot be written. They are then undone.
+	 */
+	public synchronized void commit() throws IOException {
+		if (this.depth > 0) {
+			this.depth--;
+		}
+		if (this.depth == 0) {
+			this.flush();
+		}
+	}
+
+	/**
+	 * Returns the number of events in the tree.
+	 *
+	 * @return The number of events.
+	 */
+	public synchronized long size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of pages read from the file since it was opened.
+	 *
+	 * @return The number of pages.
+	 */
+	public synchronized long getPagesRead() {
+		return this.pages.getReads();
+	}
+
+	/**
+	 * Commits any changes and closes the file.
+	 *
+	 * @throws IOException
+	 *             If the changes cannot be written or the file closed.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			this.depth = 0;
+			this.flush();
+		} finally {
+			this.pages.close();
+		}
+	}
+
+	// Writes event into its tree.
+	private void store(Event event) throws IOException {
+		Key key = new Key();
+		key.tree = event.isRepeating() ? REPEATING : TIMED;
+		key.start = event.getStart().getTimeInMillis();
+		this.put(key.tree, this.entryOf(key.start, event));
+		if (key.tree == REPEATING) {
+			// An event with the same start and UID has just been replaced.
+			this.dropRepeating(event);
+			this.repeating.add(event);
+		} else {
+			this.longest = Math.max(this.longest, event.getDuration());
+		}
+		this.homes.put(event, key);
+	}
+
+	// Deletes target from the tree it was stored in.
+	private void unstore(Event target) throws IOException {
+		Key key = this.homes.remove(target);
+		if (key == null) {
+			key = new Key();
+			key.tree = target.isRepeating() ? REPEATING : TIMED;
+			key.start = target.getStart().getTimeInMillis();
+		}
+		if (!this.delete(key.tree, key.start, target.getUID())) {
+			return;
+		}
+		if (key.tree == REPEATING) {
+			this.dropRepeating(target);
+		}
+	}
+
+	// Removes target, or the event with its UID, from the repeating events.
+	private void dropRepeating(Event target) {
+		Iterator<Event> events = this.repeating.iterator();
+		while (events.hasNext()) {
+			Event event = events.next();
+			if (event == target || event.getUID().equals(target.getUID())) {
+				events.remove();
+				break;
+			}
+		}
+	}
+
+	// Reads the events of a tree that start from from to to.
+	private ArrayList<Event> read(int tree, long from, long to)
+			throws IOException, CorruptedCalendarFileException {
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		if (this.roots[tree] != NONE && from < to) {
+			this.scan(this.roots[tree], from, to, found);
+		}
+		ArrayList<Event> events = new ArrayList<Event>(found.size());
+		for (Entry entry : found) {
+			byte[] value = entry.value;
+			if (value == null) {
+				value = this.readOverflow(entry.overflow, entry.length);
+			}
+			Event event = TCalendar.parseEvent(new String(value, UTF8));
+			Key key = new Key();
+			key.tree = tree;
+			key.start = entry.start;
+			this.homes.put(event, key);
+			events.add(event);
+		}
+		return events;
+	}
+
+	// Collects the entries under page that start from from to to.
+	private void scan(long page, long from, long to, ArrayList<Entry> found)
+			throws IOException {
+		Node node = this.node(page);
+		if (node.leaf) {
+			for (Entry entry : node.entries) {
+				if (entry.start >= to) {
+					break;
+				}
+				if (entry.start >= from) {
+					found.add(entry);
+				}
+			}
+			return;
+		}
+		// Keys starting at from may be left of a separator starting at from.
+		int low = 0;
+		int high = node.entries.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (node.entries.get(middle).start < from) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		for (int i = low; i <= node.entries.size(); i++) {
+			this.scan(childAt(node, i), from, to, found);
+			if (i < node.entries.size() && node.entries.get(i).start >= to) {
+				break;
+			}
+		}
+	}
+
+	// Makes the leaf entry of an event, writing its value into overflow pages
+	// if it is too large.
+	private Entry entryOf(long start, Event event) throws IOException {
+		Entry entry = new Entry();
+		entry.start = start;
+		entry.uid = event.getUID();
+		entry.uidBytes = entry.uid.getBytes(UTF8);
+		if (entry.uidBytes.length > MAX_UID) {
+			throw new IllegalArgumentException("The UID is longer than "
+					+ MAX_UID + " bytes");
+		}
+		byte[] value = event.getSerialization().toString().getBytes(UTF8);
+		if (15 + entry.uidBytes.length + value.length <= MAX_ENTRY) {
+			entry.value = value;
+		} else {
+			entry.overflow = this.writeOverflow(value);
+			entry.length = value.length;
+		}
+		return entry;
+	}
+
+	// Inserts entry into a tree, replacing an entry with the same key.
+	private void put(int tree, Entry entry) throws IOException {
+		if (this.roots[tree] == NONE) {
+			Node leaf = new Node();
+			leaf.leaf = true;
+			leaf.page = this.allocate();
+			leaf.entries.add(entry);
+			this.dirty.put(Long.valueOf(leaf.page), leaf);
+			this.roots[tree] = leaf.page;
+			this.size++;
+			return;
+		}
+		long root = this.insert(this.roots[tree], entry);
+		if (this.split != null) {
+			Node top = new Node();
+			top.page = this.allocate();
+			top.first = root;
+			top.entries.add(this.split);
+			this.split = null;
+			this.dirty.put(Long.valueOf(top.page), top);
+			root = top.page;
+		}
+		this.roots[tree] = root;
+	}
+
+	// Inserts entry under page, and returns the new page of the node. If the
+	// node had to be split, the separator of its new right sibling is left in
+	// split.
+	private long insert(long page, Entry entry) throws IOException {
+		Node node = this.writable(page);
+		if (node.leaf) {
+			int i = search(node, entry.start, entry.uid);
+			if (i >= 0) {
+				this.release(node.entries.get(i));
+				node.entries.set(i, entry);
+			} else {
+				node.entries.add(-i - 1, entry);
+				this.size++;
+			}
+		} else {
+			int c = childIndex(node, entry.start, entry.uid);
+			setChild(node, c, this.insert(childAt(node, c), entry));
+			if (this.split != null) {
+				node.entries.add(c, this.split);
+				this.split = null;
+			}
+		}
+		if (sizeOf(node) > PAGE_SIZE) {
+			this.split = this.split(node);
+		}
+		return node.page;
+	}
+
+	// Moves the upper half of node, by size, into a new node, and returns the
+	// separator to insert into the parent.
+	private Entry split(Node node) {
+		int half = sizeOf(node) / 2;
+		int used = sizeOf(new Node());
+		int m = 0;
+		do {
+			used += entrySize(node.entries.get(m), node.leaf);
+			m++;
+		} while (m < node.entries.size() - 1 && used < half);
+		Node right = new Node();
+		right.leaf = node.leaf;
+		right.page = this.allocate();
+		Entry separator = new Entry();
+		if (node.leaf) {
+			Entry first = node.entries.get(m);
+			separator.start = first.start;
+			separator.uid = first.uid;
+			separator.uidBytes = first.uidBytes;
+			right.entries.addAll(node.entries.subList(m, node.entries.size()));
+		} else {
+			Entry middle = node.entries.get(m);
+			separator.start = middle.start;
+			separator.uid = middle.uid;
+			separator.uidBytes = middle.uidBytes;
+			right.first = middle.child;
+			right.entries.addAll(node.entries.subList(m + 1, node.entries
+					.size()));
+		}
+		node.entries.subList(m, node.entries.size()).clear();
+		separator.child = right.page;
+		this.dirty.put(Long.valueOf(right.page), right);
+		return separator;
+	}
+
+	// Deletes the entry with a key from a tree. Returns false if there is
+	// none.
+	private boolean delete(int tree, long start, String uid)
+			throws IOException {
+		if (this.roots[tree] == NONE
+				|| !this.contains(this.roots[tree], start, uid)) {
+			return false;
+		}
+		long root = this.remove(this.roots[tree], start, uid);
+		// A root with a single child is replaced by the child.
+		while (root != NONE) {
+			Node top = this.node(root);
+			if (top.leaf || !top.entries.isEmpty()) {
+				break;
+			}
+			this.free(root);
+			root = top.first;
+		}
+		this.roots[tree] = root;
+		this.size--;
+		return true;
+	}
+
+	// Checks whether there is an entry with a key under page.
+	private boolean contains(long page, long start, String uid)
+			throws IOException {
+		Node node = this.node(page);
+		while (!node.leaf) {
+			node = this.node(childAt(node, childIndex(node, start, uid)));
+		}
+		return search(node, start, uid) >= 0;
+	}
+
+	// Removes the entry with a key under page, which must be there, and
+	// returns the new page of the node, or NONE if the node became empty.
+	private long remove(long page, long start, String uid) throws IOException {
+		Node node = this.writable(page);
+		if (node.leaf) {
+			this.release(node.entries.remove(search(node, start, uid)));
+			if (node.entries.isEmpty()) {
+				this.free(node.page);
+				return NONE;
+			}
+			return node.page;
+		}
+		int c = childIndex(node, start, uid);
+		long child = this.remove(childAt(node, c), start, uid);
+		if (child != NONE) {
+			setChild(node, c, child);
+		} else if (c > 0) {
+			node.entries.remove(c - 1);
+		} else if (node.entries.isEmpty()) {
+			this.free(node.page);
+			return NONE;
+		} else {
+			node.first = node.entries.remove(0).child;
+		}
+		return node.page;
+	}
+
+	// Returns a node that may be changed: the node itself if it has been
+	// written since the last commit, and otherwise the node moved to a new
+	// page, so that the committed page stays as it was.
+	private Node writable(long page) throws IOException {
+		Node node = this.dirty.get(Long.valueOf(page));
+		if (node != null) {
+			return node;
+		}
+		node = this.node(page);
+		this.free(page);
+		node.page = this.allocate();
+		this.dirty.put(Long.valueOf(node.page), node);
+		return node;
+	}
+
+	// Returns the node of page, reading it if it is not cached.
+	private Node node(long page) throws IOException {
+		Long key = Long.valueOf(page);
+		Node node = this.dirty.get(key);
+		if (node == null) {
+			node = this.cache.get(key);
+		}
+		if (node == null) {
+			ByteBuffer buffer = this.pages.read(page);
+			try {
+				node = decode(page, buffer);
+			} finally {
+				this.pages.release(buffer);
+			}
+			this.cache.put(key, node);
+		}
+		return node;
+	}
+
+	// Returns a page for new data.
+	private long allocate() {
+		Long page = this.reusable.poll();
+		long allocated = page == null ? this.pageCount++ : page.longValue();
+		this.fresh.add(Long.valueOf(allocated));
+		return allocated;
+	}
+
+	// Frees a page. Pages of the last commit can only be reused after the
+	// next one, as the last committed tree must stay intact until then.
+	private void free(long page) {
+		Long key = Long.valueOf(page);
+		this.cache.remove(key);
+		this.dirty.remove(key);
+		if (this.fresh.remove(key)) {
+			this.reusable.push(key);
+		} else {
+			this.freed.add(key);
+		}
+	}
+
+	// Frees the overflow pages of an entry that is replaced or removed.
+	private void release(Entry entry) throws IOException {
+		long page = entry.overflow;
+		while (page != NONE) {
+			ByteBuffer buffer = this.pages.read(page);
+			buffer.get();
+			long next = buffer.getLong();
+			this.pages.release(buffer);
+			this.free(page);
+			page = next;
+		}
+	}
+
+	// Writes a value into a chain of new overflow pages, and returns the first.
+	private long writeOverflow(byte[] value) throws IOException {
+		int count = (value.length + OVERFLOW_CAPACITY - 1) / OVERFLOW_CAPACITY;
+		long[] chain = new long[count];
+		for (int i = 0; i < count; i++) {
+			chain[i] = this.allocate();
+		}
+		for (int i = 0; i < count; i++) {
+			int offset = i * OVERFLOW_CAPACITY;
+			int length = Math.min(OVERFLOW_CAPACITY, value.length - offset);
+			ByteBuffer buffer = this.pages.buffer();
+			buffer.put(OVERFLOW);
+			buffer.putLong(i + 1 < count ? chain[i + 1] : NONE);
+			buffer.putInt(length);
+			buffer.put(value, offset, length);
+			this.pages.write(chain[i], buffer);
+		}
+		return chain[0];
+	}
+
+	// Reads a value from a chain of overflow pages.
+	private byte[] readOverflow(long page, int length) throws IOException {
+		byte[] value = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			if (page == NONE) {
+				throw new IOException("An overflow chain is too short");
+			}
+			ByteBuffer buffer = this.pages.read(page);
+			try {
+				if (buffer.get() != OVERFLOW) {
+					throw new IOException("Page " + page
+							+ " is not an overflow page");
+				}
+				page = buffer.getLong();
+				int count = buffer.getInt();
+				buffer.get(value, offset, count);
+				offset += count;
+			} finally {
+				this.pages.release(buffer);
+			}
+		}
+		return value;
+	}
+
+	// Writes the changed nodes and a new header naming them. If anything
+	// fails, the changes are undone.
+	private void flush() throws IOException {
+		if (this.dirty.isEmpty() && this.freed.isEmpty()) {
+			return;
+		}
+		ArrayList<Long> free = new ArrayList<Long>();
+		ArrayList<Long> listPages;
+		try {
+			for (Node node : this.dirty.values()) {
+				ByteBuffer buffer = this.pages.buffer();
+				encode(node, buffer);
+				this.pages.write(node.page, buffer);
+			}
+			listPages = this.writeFreeList(free);
+			this.pages.force();
+			this.generation++;
+			this.writeHeader(listPages.isEmpty() ? NONE : listPages.get(0)
+					.longValue());
+			this.pages.force();
+		} catch (IOException e) {
+			this.rollback();
+			throw e;
+		}
+		for (Node node : this.dirty.values()) {
+			this.cache.put(Long.valueOf(node.page), node);
+		}
+		this.dirty.clear();
+		this.freed.clear();
+		this.fresh.clear();
+		this.reusable = new ArrayDeque<Long>(free);
+		this.freeListPages = listPages;
+	}
+
+	// Writes the pages that will be free after this commit into a chain of
+	// free list pages, collecting them into free, and returns the chain.
+	// Only pages that the last committed tree does not use are written.
+	private ArrayList<Long> writeFreeList(ArrayList<Long> free)
+			throws IOException {
+		free.addAll(this.freed);
+		free.addAll(this.freeListPages);
+		ArrayList<Long> chain = new ArrayList<Long>();
+		while ((long) chain.size() * FREE_LIST_CAPACITY < free.size()
+				+ this.reusable.size()) {
+			Long page = this.reusable.poll();
+			chain.add(page == null ? Long.valueOf(this.pageCount++) : page);
+		}
+		free.addAll(this.reusable);
+		for (int i = 0; i < chain.size(); i++) {
+			int from = i * FREE_LIST_CAPACITY;
+			int to = Math.min(from + FREE_LIST_CAPACITY, free.size());
+			ByteBuffer buffer = this.pages.buffer();
+			buffer.put(FREE_LIST);
+			buffer.putLong(i + 1 < chain.size() ? chain.get(i + 1).longValue()
+					: NONE);
+			buffer.putInt(to - from);
+			for (int j = from; j < to; j++) {
+				buffer.putLong(free.get(j).longValue());
+			}
+			this.pages.write(chain.get(i).longValue(), buffer);
+		}
+		return chain;
+	}
+
+	// Writes the header of the current generation into the older slot.
+	private void writeHeader(long freeHead) throws IOException {
+		ByteBuffer buffer = this.pages.buffer();
+		buffer.putLong(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(this.generation);
+		buffer.putLong(this.roots[TIMED]);
+		buffer.putLong(this.roots[REPEATING]);
+		buffer.putLong(this.pageCount);
+		buffer.putLong(freeHead);
+		buffer.putLong(this.size);
+		buffer.putLong(this.longest);
+		buffer.putInt(checksum(buffer, buffer.position()));
+		this.pages.write(this.generation % HEADERS, buffer);
+	}
+
+	// Undoes the changes made since the last commit.
+	private void rollback() throws IOException {
+		this.depth = 0;
+		this.split = null;
+		try {
+			this.load();
+		} catch (CorruptedCalendarFileException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	// Reads the state of the last commit from the file, or starts a new file.
+	private void load() throws IOException, CorruptedCalendarFileException {
+		this.dirty = new HashMap<Long, Node>();
+		this.cache = new LinkedHashMap<Long, Node>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest) {
+				return this.size() > CACHE_SIZE;
+			}
+		};
+		this.freed = new ArrayList<Long>();
+		this.fresh = new HashSet<Long>();
+		this.reusable = new ArrayDeque<Long>();
+		this.freeListPages = new ArrayList<Long>();
+		this.homes = new WeakHashMap<Event, Key>();
+		this.repeating = new ArrayList<Event>();
+		this.roots = new long[] { NONE, NONE };
+		if (this.pages.size() < HEADERS) {
+			this.generation = 0;
+			this.pageCount = HEADERS;
+			this.size = 0;
+			this.longest = 0;
+			this.writeHeader(NONE);
+			this.pages.force();
+			return;
+		}
+		long freeHead = this.readHeader();
+		while (freeHead != NONE) {
+			ByteBuffer buffer = this.pages.read(freeHead);
+			try {
+				if (buffer.get() != FREE_LIST) {
+					throw new IOException("Page " + freeHead
+							+ " is not a free list page");
+				}
+				this.freeListPages.add(Long.valueOf(freeHead));
+				freeHead = buffer.getLong();
+				int count = buffer.getInt();
+				for (int i = 0; i < count; i++) {
+					this.reusable.add(Long.valueOf(buffer.getLong()));
+				}
+			} finally {
+				this.pages.release(buffer);
+			}
+		}
+		this.repeating.addAll(this.read(REPEATING, Long.MIN_VALUE,
+				Long.MAX_VALUE));
+		if (this.longest < 0) {
+			// Written by version 1, which did not record it.
+			this.longest = 0;
+			for (Event event : this.read(TIMED, Long.MIN_VALUE,
+					Long.MAX_VALUE)) {
+				this.longest = Math.max(this.longest, event.getDuration());
+			}
+		}
+	}
+
+	// Reads the newest valid header into the fields, and returns the first
+	// page of its free list.
+	private long readHeader() throws IOException {
+		long freeHead = NONE;
+		boolean found = false;
+		for (long slot = 0; slot < HEADERS; slot++) {
+			ByteBuffer buffer = this.pages.read(slot);
+			try {
+				if (buffer.getLong() != MAGIC) {
+					continue;
+				}
+				int version = buffer.getInt();
+				if (version < 1 || version > VERSION) {
+					continue;
+				}
+				long generation = buffer.getLong();
+				long timed = buffer.getLong();
+				long repeating = buffer.getLong();
+				long pageCount = buffer.getLong();
+				long free = buffer.getLong();
+				long size = buffer.getLong();
+				long longest = version > 1 ? buffer.getLong() : -1;
+				int position = buffer.position();
+				if (buffer.getInt() != checksum(buffer, position)
+						|| (found && generation < this.generation)) {
+					continue;
+				}
+				found = true;
+				this.generation = generation;
+				this.roots[TIMED] = timed;
+				this.roots[REPEATING] = repeating;
+				this.pageCount = pageCount;
+				this.size = size;
+				this.longest = longest;
+				freeHead = free;
+			} finally {
+				this.pages.release(buffer);
+			}
+		}
+		if (!found) {
+			throw new IOException("The file is not an event tree");
+		}
+		return freeHead;
+	}
+
+	// Returns the CRC32 of the first length bytes of buffer.
+	private static int checksum(ByteBuffer buffer, int length) {
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.position(0);
+		bytes.limit(length);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	// Decodes a node from its page.
+	private static Node decode(long page, ByteBuffer buffer)
+			throws IOException {
+		Node node = new Node();
+		node.page = page;
+		byte type = buffer.get();
+		if (type != LEAF && type != BRANCH) {
+			throw new IOException("Page " + page + " is not a node");
+		}
+		node.leaf = type == LEAF;
+		int count = buffer.getShort() & 0xffff;
+		if (!node.leaf) {
+			node.first = buffer.getLong();
+		}
+		for (int i = 0; i < count; i++) {
+			Entry entry = new Entry();
+			entry.start = buffer.getLong();
+			entry.uidBytes = new byte[buffer.getShort() & 0xffff];
+			buffer.get(entry.uidBytes);
+			entry.uid = new String(entry.uidBytes, UTF8);
+			if (!node.leaf) {
+				entry.child = buffer.getLong();
+			} else if (buffer.get() == 0) {
+				entry.value = new byte[buffer.getInt()];
+				buffer.get(entry.value);
+			} else {
+				entry.overflow = buffer.getLong();
+				entry.length = buffer.getInt();
+			}
+			node.entries.add(entry);
+		}
+		return node;
+	}
+
+	// Encodes a node into the buffer of its page.
+	private static void encode(Node node, ByteBuffer buffer) {
+		buffer.put(node.leaf ? LEAF : BRANCH);
+		buffer.putShort((short) node.entries.size());
+		if (!node.leaf) {
+			buffer.putLong(node.first);
+		}
+		for (Entry entry : node.entries) {
+			buffer.putLong(entry.start);
+			buffer.putShort((short) entry.uidBytes.length);
+			buffer.put(entry.uidBytes);
+			if (!node.leaf) {
+				buffer.putLong(entry.child);
+			} else if (entry.value != null) {
+				buffer.put((byte) 0);
+				buffer.putInt(entry.value.length);
+				buffer.put(entry.value);
+			} else {
+				buffer.put((byte) 1);
+				buffer.putLong(entry.overflow);
+				buffer.putInt(entry.length);
+			}
+		}
+	}
+
+	// Returns the size of a node when encoded.
+	private static int sizeOf(Node node) {
+		int size = node.leaf ? 3 : 11;
+		for (Entry entry : node.entries) {
+			size += entrySize(entry, node.leaf);
+		}
+		return size;
+	}
+
+	// Returns the size of an entry when encoded.
+	private static int entrySize(Entry entry, boolean leaf) {
+		int size = 10 + entry.uidBytes.length;
+		if (!leaf) {
+			return size + 8;
+		}
+		return size + (entry.value != null ? 5 + entry.value.length : 13);
+	}
+
+	// Finds the entry with a key in a leaf. Returns its index, or
+	// -(insertion point) - 1 if there is none.
+	private static int search(Node node, long start, String uid) {
+		int low = 0;
+		int high = node.entries.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int order = compare(node.entries.get(middle), start, uid);
+			if (order < 0) {
+				low = middle + 1;
+			} else if (order > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -low - 1;
+	}
+
+	// Returns the index of the child of a branch that may contain a key.
+	private static int childIndex(Node node, long start, String uid) {
+		int low = 0;
+		int high = node.entries.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compare(node.entries.get(middle), start, uid) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static long childAt(Node node, int index) {
+		return index == 0 ? node.first : node.entries.get(index - 1).child;
+	}
+
+	private static void setChild(Node node, int index, long page) {
+		if (index == 0) {
+			node.first = page;
+		} else {
+			node.entries.get(index - 1).child = page;
+		}
+	}
+
+	// Compares the key of an entry to another key.
+	private static int compare(Entry entry, long start, String uid) {
+		if (entry.start != start) {
+			return entry.start < start ? -1 : 1;
+		}
+		return entry.uid.compareTo(uid);
+	}
+
+}
@@ -0,0 +1,148 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.IdentityHashMap;
+
+/**
+ * A FileLayout records where each {@link Event} was written in an .ics file,
+ * as a range of bytes, so that the next save can copy the events that have not
+ * changed straight from the file instead of serializing them again. The
+ * layout only applies as long as the file has not been changed by anyone
+ * else, which is checked from its length, modification time and, where the
+ * file system has one, the key that identifies the file (as a file renamed
+ * into place gets a new one even if the time has not changed).
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+class FileLayout {
+
+	private File file;
+	private long length;
+	private long modified;
+	private Object key;
+	private IdentityHashMap<Event, Integer> index;
+	private long[] starts;
+	private long[] ends;
+	private int size;
+
+	/**
+	 * Creates an empty layout for a file that is being written.
+	 *
+	 * @param file
+	 *            The file the layout describes.
+	 * @param capacity
+	 *            The number of events expected in the file.
+	 */
+	FileLayout(File file, int capacity) {
+		this.file = file;
+		this.index = new IdentityHashMap<Event, Integer>(capacity);
+		this.starts = new long[Math.max(capacity, 1)];
+		this.ends = new long[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Returns the file the layout describes.
+	 *
+	 * @return The .ics file.
+	 */
+	File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Records the range an event was written to.
+	 *
+	 * @param event
+	 *            The (live, not copied) {@link Event}.
+	 * @param start
+	 *            The offset of the first byte of its VEVENT.
+	 * @param end
+	 *            The offset after the last byte of its VEVENT.
+	 */
+	void add(Event event, long start, long end) {
+		if (this.size == this.starts.length) {
+			int grown = this.size * 2;
+			long[] starts = new long[grown];
+			long[] ends = new long[grown];
+			System.arraycopy(this.starts, 0, starts, 0, this.size);
+			System.arraycopy(this.ends, 0, ends, 0, this.size);
+			this.starts = starts;
+			this.ends = ends;
+		}
+		this.starts[this.size] = start;
+		this.ends[this.size] = end;
+		this.index.put(event, Integer.valueOf(this.size));
+		this.size++;
+	}
+
+	/**
+	 * Returns the position of an event in the layout.
+	 *
+	 * @param event
+	 *            The {@link Event} to look for.
+	 * @return The position, to be given to getStart() and getEnd(), or -1 if
+	 *         the event is not in the file.
+	 */
+	int indexOf(Event event) {
+		Integer position = this.index.get(event);
+		return position == null ? -1 : position.intValue();
+	}
+
+	long getStart(int position) {
+		return this.starts[position];
+	}
+
+	long getEnd(int position) {
+		return this.ends[position];
+	}
+
+	/**
+	 * Forgets an event, after it has been removed from the calendar.
+	 *
+	 * @param event
+	 *            The removed {@link Event}.
+	 */
+	void forget(Event event) {
+		this.index.remove(event);
+	}
+
+	/**
+	 * Records the length and modification time of the file once it has been
+	 * written.
+	 */
+	void seal() {
+		this.length = this.file.length();
+		this.modified = this.file.lastModified();
+		this.key = keyOf(this.file);
+	}
+
+	/**
+	 * Checks that the file has not been changed since it was written.
+	 *
+	 * @return true if the layout still describes the file.
+	 */
+	boolean isCurrent() {
+		if (this.file.length() != this.length
+				|| this.file.lastModified() != this.modified) {
+			return false;
+		}
+		Object key = keyOf(this.file);
+		return key == null ? this.key == null : key.equals(this.key);
+	}
+
+	// Returns the key of file, or null if the file system has none.
+	private static Object keyOf(File file) {
+		try {
+			return Files.readAttributes(file.toPath(),
+					BasicFileAttributes.class).fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,435 @@
+package calendar;
+
+import java.util.TimeZone;
+
+/**
+ * The ICalParser class decodes the value types of an .ics file (DATE,
+ * DATE-TIME and DURATION) straight from the characters of a content line,
+ * without creating any intermediate objects. The values are returned as
+ * milliseconds since the epoch. A parser caches the last time zone it has
+ * looked up, so one parser should be used per thread (for example one per
+ * call to loadCalendar).
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class ICalParser {
+
+	private static final long MILLIS_IN_SECOND = 1000L;
+	private static final long MILLIS_IN_DAY = 24L * 60 * 60 * 1000;
+
+	private TimeZone floating; // The zone used for times without a TZID or Z.
+	private String lastTZID; // The most recently looked up TZID and its zone.
+	private TimeZone lastZone;
+
+	/**
+	 * Creates a parser that interprets floating times (times without a TZID
+	 * parameter or a 'Z' suffix) in the default time zone.
+	 */
+	public ICalParser() {
+		this(TimeZone.getDefault());
+	}
+
+	/**
+	 * Creates a parser that interprets floating times in the given time zone.
+	 *
+	 * @param floating
+	 *            The {@link TimeZone} for floating times.
+	 */
+	public ICalParser(TimeZone floating) {
+		this.floating = floating;
+	}
+
+	/**
+	 * Parses a whole content line of the form NAME[;PARAM=...]:VALUE, where
+	 * VALUE is a DATE (yyyymmdd) or a DATE-TIME (yyyymmddThhmmss[Z]). A TZID
+	 * parameter is honoured if the JVM knows the zone, otherwise the time is
+	 * treated as floating.
+	 *
+	 * @param line
+	 *            The content line, eg. "DTSTART;TZID=Europe/Helsinki:20110330T130000".
+	 * @return The date-time in milliseconds since the epoch.
+	 * @throws CorruptedCalendarFileException
+	 *             If the value is not a valid DATE or DATE-TIME.
+	 */
+	public long parseDateTime(String line)
+			throws CorruptedCalendarFileException {
+		int colon = line.indexOf(':');
+		if (colon < 0) {
+			throw new CorruptedCalendarFileException(
+					"A date value is incorrect");
+		}
+		TimeZone zone = this.floating;
+		int tzid = indexOfIgnoreCase(line, ";TZID=", 0, colon);
+		if (tzid >= 0) {
+			int from = tzid + 6;
+			int to = from;
+			while (to < colon && line.charAt(to) != ';') {
+				to++;
+			}
+			// Quoted parameter values are allowed by the specification.
+			if (to - from > 1 && line.charAt(from) == '"'
+					&& line.charAt(to - 1) == '"') {
+				from++;
+				to--;
+			}
+			zone = this.zoneFor(line, from, to);
+		}
+		int end = line.length();
+		while (end > colon + 1 && line.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return parseDateTime(line, colon + 1, end, zone);
+	}
+
+	/**
+	 * Parses a DATE or DATE-TIME value from the characters between from and to.
+	 * A trailing 'Z' marks the value as UTC, in which case the zone parameter
+	 * is ignored.
+	 *
+	 * @param text
+	 *            The characters to read.
+	 * @param from
+	 *            The index of the first digit of the year.
+	 * @param to
+	 *            The index after the last character of the value.
+	 * @param zone
+	 *            The {@link TimeZone} in which local (non-UTC) values are
+	 *            given.
+	 * @return The date-time in milliseconds since the epoch.
+	 * @throws CorruptedCalendarFileException
+	 *             If the value is not a valid DATE or DATE-TIME.
+	 */
+	public static long parseDateTime(CharSequence text, int from, int to,
+			TimeZone zone) throws CorruptedCalendarFileException {
+		int length = to - from;
+		boolean utc = false;
+		if (length == 16
+				&& (text.charAt(to - 1) == 'Z' || text.charAt(to - 1) == 'z')) {
+			utc = true;
+			length--;
+		}
+		if (length != 8 && length != 15) {
+			throw new CorruptedCalendarFileException(
+					"A date value is incorrect");
+		}
+		int year = digits(text, from, 4);
+		int month = digits(text, from + 4, 2);
+		int day = digits(text, from + 6, 2);
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		if (length == 15) {
+			char separator = text.charAt(from + 8);
+			if (separator != 'T' && separator != 't') {
+				throw new CorruptedCalendarFileException(
+						"A date value is incorrect");
+			}
+			hour = digits(text, from + 9, 2);
+			minute = digits(text, from + 11, 2);
+			second = digits(text, from + 13, 2);
+		}
+		if (month < 1 || month > 12 || day < 1
+				|| day > daysInMonth(year, month) || hour > 23 || minute > 59
+				|| second > 60) {
+			throw new CorruptedCalendarFileException(
+					"A date value is incorrect");
+		}
+		long local = daysFromCivil(year, month, day) * MILLIS_IN_DAY
+				+ ((hour * 60 + minute) * 60 + second) * MILLIS_IN_SECOND;
+		if (utc) {
+			return local;
+		}
+		return localToUtc(local, zone);
+	}
+
+	/**
+	 * Parses the value of a DURATION content line.
+	 *
+	 * @param line
+	 *            The content line, eg. "DURATION:PT1H30M".
+	 * @return The duration in milliseconds, negative for negative durations.
+	 * @throws CorruptedCalendarFileException
+	 *             If the value is not a valid duration.
+	 * @see #parseDuration(CharSequence, int, int)
+	 */
+	public static long parseDuration(String line)
+			throws CorruptedCalendarFileException {
+		int colon = line.indexOf(':');
+		int end = line.length();
+		while (end > colon + 1 && line.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return parseDuration(line, colon + 1, end);
+	}
+
+	/**
+	 * Parses an RFC 5545 DURATION value, [+|-]P(nW | [nD][T[nH][nM][nS]]),
+	 * from the characters between from and to. Each component may have any
+	 * number of digits. Weeks may also be combined with the other components,
+	 * which some programs write even though the specification forbids it.
+	 *
+	 * @param text
+	 *            The characters to read.
+	 * @param from
+	 *            The index of the sign or the 'P'.
+	 * @param to
+	 *            The index after the last character of the value.
+	 * @return The duration in milliseconds, negative for negative durations.
+	 * @throws CorruptedCalendarFileException
+	 *             If the value is not a valid duration or does not fit into a
+	 *             long.
+	 */
+	public static long parseDuration(CharSequence text, int from, int to)
+			throws CorruptedCalendarFileException {
+		int i = from;
+		boolean negative = false;
+		if (i < to && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+		if (i >= to || (text.charAt(i) != 'P' && text.charAt(i) != 'p')) {
+			throw new CorruptedCalendarFileException(
+					"The DURATION section is corrupted.");
+		}
+		i++;
+		long total = 0;
+		boolean time = false; // Set after the 'T' separator.
+		int lastUnit = 0; // Ensures the components come in order, once each.
+		boolean components = false;
+		while (i < to) {
+			char current = text.charAt(i);
+			if (current == 'T' || current == 't') {
+				if (time) {
+					throw new CorruptedCalendarFileException(
+							"The DURATION section is corrupted.");
+				}
+				time = true;
+				i++;
+				if (i >= to) {
+					throw new CorruptedCalendarFileException(
+							"The DURATION section is corrupted.");
+				}
+				continue;
+			}
+			long value = 0;
+			int start = i;
+			while (i < to) {
+				int digit = text.charAt(i) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				if (value > (Long.MAX_VALUE - digit) / 10) {
+					throw new CorruptedCalendarFileException(
+							"The DURATION value is too large.");
+				}
+				value = value * 10 + digit;
+				i++;
+			}
+			if (i == start || i >= to) {
+				throw new CorruptedCalendarFileException(
+						"The DURATION section is corrupted.");
+			}
+			long unit;
+			int order;
+			switch (text.charAt(i)) {
+			case 'W':
+			case 'w':
+				unit = 7 * MILLIS_IN_DAY;
+				order = 1;
+				break;
+			case 'D':
+			case 'd':
+				unit = MILLIS_IN_DAY;
+				order = 2;
+				break;
+			case 'H':
+			case 'h':
+				unit = 60 * 60 * MILLIS_IN_SECOND;
+				order = 3;
+				break;
+			case 'M':
+			case 'm':
+				unit = 60 * MILLIS_IN_SECOND;
+				order = 4;
+				break;
+			case 'S':
+			case 's':
+				unit = MILLIS_IN_SECOND;
+				order = 5;
+				break;
+			default:
+				throw new CorruptedCalendarFileException(
+						"A DURATION-field contained illegal characters (only 0-9, P, T, W, D, H, M and S are allowed).");
+			}
+			// Hours, minutes and seconds belong after the 'T', weeks and days
+			// before it.
+			if (order <= lastUnit || time != (order >= 3)) {
+				throw new CorruptedCalendarFileException(
+						"The DURATION section is corrupted.");
+			}
+			lastUnit = order;
+			components = true;
+			if (value > (Long.MAX_VALUE - total) / unit) {
+				throw new CorruptedCalendarFileException(
+						"The DURATION value is too large.");
+			}
+			total += value * unit;
+			i++;
+		}
+		if (!components) {
+			throw new CorruptedCalendarFileException(
+					"The DURATION section is corrupted.");
+		}
+		return negative ? -total : total;
+	}
+
+	/**
+	 * Converts a local wall-clock time, given as milliseconds since the local
+	 * epoch, into a UTC instant in the given zone. Wall-clock times that fall
+	 * into a daylight saving gap are moved forward.
+	 *
+	 * @param local
+	 *            The wall-clock time.
+	 * @param zone
+	 *            The {@link TimeZone} of the wall clock.
+	 * @return The instant in milliseconds since the epoch.
+	 */
+	public static long localToUtc(long local, TimeZone zone) {
+		int offset = zone.getOffset(local - zone.getRawOffset());
+		long utc = local - offset;
+		int corrected = zone.getOffset(utc);
+		if (corrected != offset) {
+			utc = local - corrected;
+		}
+		return utc;
+	}
+
+	/**
+	 * Returns the number of days from 1970-01-01 to the given date in the
+	 * proleptic Gregorian calendar.
+	 *
+	 * @param year
+	 *            The year.
+	 * @param month
+	 *            The month, 1-12 (unlike Calendar, January is 1).
+	 * @param day
+	 *            The day of the month, 1-31.
+	 * @return The epoch day, negative for dates before 1970.
+	 */
+	public static long daysFromCivil(int year, int month, int day) {
+		// Shift the year to start in March so that the leap day is last.
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+				- 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * The inverse of daysFromCivil: returns the date of an epoch day packed
+	 * into an int of the form yyyymmdd, like an iCal DATE value.
+	 *
+	 * @param epochDay
+	 *            The number of days since 1970-01-01.
+	 * @return The date as year * 10000 + month * 100 + day.
+	 */
+	public static int civilFromDays(long epochDay) {
+		long z = epochDay + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+				- dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+		return year * 10000 + month * 100 + day;
+	}
+
+	/**
+	 * Returns the number of days in the given month.
+	 *
+	 * @param year
+	 *            The year.
+	 * @param month
+	 *            The month, 1-12.
+	 * @return The length of the month in days.
+	 */
+	public static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return isLeapYear(year) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Checks whether the year is a leap year in the Gregorian calendar.
+	 *
+	 * @param year
+	 *            The year to check.
+	 * @return true for leap years.
+	 */
+	public static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	// Returns the zone named by text[from, to). Only a new TZID causes a lookup.
+	private TimeZone zoneFor(String text, int from, int to) {
+		int length = to - from;
+		if (this.lastTZID != null && this.lastTZID.length() == length
+				&& this.lastTZID.regionMatches(0, text, from, length)) {
+			return this.lastZone;
+		}
+		String id = text.substring(from, to);
+		TimeZone zone = TimeZone.getTimeZone(id);
+		// Unknown zones come back as GMT: treat those times as floating.
+		if (!zone.getID().equals(id)) {
+			zone = this.floating;
+		}
+		this.lastTZID = id;
+		this.lastZone = zone;
+		return zone;
+	}
+
+	// Reads count decimal digits starting at from.
+	private static int digits(CharSequence text, int from, int count)
+			throws CorruptedCalendarFileException {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new CorruptedCalendarFileException(
+						"A date value is incorrect");
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	// Case-insensitive indexOf limited to [from, to).
+	private static int indexOfIgnoreCase(String text, String target, int from,
+			int to) {
+		int last = to - target.length();
+		for (int i = from; i <= last; i++) {
+			if (text.regionMatches(true, i, target, 0, target.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,99 @@
+package calendar;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * An ICalReader reads the content lines of an .ics file. Lines that have been
+ * folded (continued on the next line, which then starts with a space or a
+ * tab) are joined back together.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class ICalReader implements Closeable {
+
+	private BufferedReader in;
+	private String next; // The physical line after the one last returned.
+	private long size; // The characters read, with two for every line end.
+
+	/**
+	 * Creates an ICalReader that reads from the given {@link Reader}.
+	 *
+	 * @param in
+	 *            The {@link Reader} to read from.
+	 */
+	public ICalReader(Reader in) {
+		if (in instanceof BufferedReader) {
+			this.in = (BufferedReader) in;
+		} else {
+			this.in = new BufferedReader(in);
+		}
+	}
+
+	/**
+	 * Reads the next unfolded content line.
+	 *
+	 * @return The line without the line terminator, or null at the end of the
+	 *         file.
+	 * @throws IOException
+	 *             If the underlying reader fails.
+	 */
+	public String readLine() throws IOException {
+		String line = this.next;
+		this.next = null;
+		if (line == null) {
+			line = this.readPhysical();
+			if (line == null) {
+				return null;
+			}
+		}
+		String following = this.readPhysical();
+		if (isContinuation(following)) {
+			StringBuilder unfolded = new StringBuilder(line);
+			while (isContinuation(following)) {
+				unfolded.append(following, 1, following.length());
+				following = this.readPhysical();
+			}
+			line = unfolded.toString();
+		}
+		this.next = following;
+		return line;
+	}
+
+	/**
+	 * Returns about how much has been read: the number of characters read,
+	 * counting every line end as two like in an .ics file.
+	 *
+	 * @return The number of characters.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Closes the underlying reader.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	// Reads a physical line and counts it into the size.
+	private String readPhysical() throws IOException {
+		String line = this.in.readLine();
+		if (line != null) {
+			this.size += line.length() + 2;
+		}
+		return line;
+	}
+
+	private static boolean isContinuation(String line) {
+		return line != null && line.length() > 0
+				&& (line.charAt(0) == ' ' || line.charAt(0) == '\t');
+	}
+
+}
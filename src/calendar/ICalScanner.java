@@ -0,0 +1,279 @@
+package calendar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * An ICalScanner goes through the bytes of an uncompressed .ics file line by
+ * line without decoding them, so that large files can be summarized without
+ * constructing any events. Folded lines are joined, and the byte offset of
+ * every logical line is known, so that a VEVENT can later be read straight
+ * from the file.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+abstract class ICalScanner {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	// Decodes every byte as one char, so the ASCII property values are read
+	// as they are whatever the rest of the line holds.
+	static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private File file;
+	private long fileLength;
+	private long modified;
+
+	/**
+	 * Creates a scanner of a file.
+	 *
+	 * @param file
+	 *            The .ics file to scan.
+	 */
+	ICalScanner(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the file that is scanned.
+	 *
+	 * @return The .ics file.
+	 */
+	File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Returns the length of the file when it was scanned.
+	 *
+	 * @return The length in bytes.
+	 */
+	long getFileLength() {
+		return this.fileLength;
+	}
+
+	/**
+	 * Returns the modification time of the file when it was scanned.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	long getModified() {
+		return this.modified;
+	}
+
+	/**
+	 * Goes through the file, calling line() for every logical line after the
+	 * VCALENDAR header.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the VCALENDAR header is missing, or line() finds the file
+	 *             corrupted.
+	 */
+	void scan() throws IOException, CorruptedCalendarFileException {
+		this.modified = this.file.lastModified();
+		InputStream in = new FileInputStream(this.file);
+		try {
+			this.scan(in);
+		} finally {
+			in.close();
+		}
+		this.fileLength = this.file.length();
+	}
+
+	/**
+	 * Processes a logical line of the file.
+	 *
+	 * @param line
+	 *            The bytes of the line, without the line terminator or
+	 *            trailing white space.
+	 * @param length
+	 *            The number of bytes in line.
+	 * @param offset
+	 *            The offset of the line in the file.
+	 * @param next
+	 *            The offset after the line terminator.
+	 * @throws CorruptedCalendarFileException
+	 *             If the line shows that the file is corrupted.
+	 */
+	abstract void line(byte[] line, int length, long offset, long next)
+			throws CorruptedCalendarFileException;
+
+	/**
+	 * Opens the file for reading events from it.
+	 *
+	 * @return A {@link FileChannel} of the file, to be closed by the caller.
+	 * @throws IOException
+	 *             If the file cannot be opened, or has been changed since it
+	 *             was scanned.
+	 */
+	FileChannel open() throws IOException {
+		if (this.file.length() != this.fileLength
+				|| this.file.lastModified() != this.modified) {
+			throw new IOException(this.file.getName()
+					+ " has been changed since it was loaded");
+		}
+		return new RandomAccessFile(this.file, "r").getChannel();
+	}
+
+	/**
+	 * Reads the text of a VEVENT from the file.
+	 *
+	 * @param channel
+	 *            The channel returned by open().
+	 * @param offset
+	 *            The offset of the VEVENT.
+	 * @param length
+	 *            The length of the VEVENT in bytes.
+	 * @return The VEVENT, starting with the BEGIN:VEVENT line.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	static String read(FileChannel channel, long offset, int length)
+			throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, offset + bytes.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		return new String(bytes.array(), 0, length, UTF8);
+	}
+
+	/**
+	 * Compares a line to text, ignoring case.
+	 *
+	 * @param line
+	 *            The bytes of the line.
+	 * @param length
+	 *            The number of bytes in line.
+	 * @param text
+	 *            The upper case ASCII text to compare to.
+	 * @return true if the line is the text.
+	 */
+	static boolean is(byte[] line, int length, String text) {
+		return length == text.length() && startsWith(line, length, text);
+	}
+
+	/**
+	 * Checks whether a line starts with text, ignoring case.
+	 *
+	 * @param line
+	 *            The bytes of the line.
+	 * @param length
+	 *            The number of bytes in line.
+	 * @param text
+	 *            The upper case ASCII text to look for.
+	 * @return true if the line starts with the text.
+	 */
+	static boolean startsWith(byte[] line, int length, String text) {
+		if (length < text.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			int b = line[i];
+			if (b >= 'a' && b <= 'z') {
+				b -= 'a' - 'A';
+			}
+			if (b != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the value of a content line, after its first colon.
+	 *
+	 * @param line
+	 *            The bytes of the line.
+	 * @param length
+	 *            The number of bytes in line.
+	 * @return The value decoded from UTF-8, or "" if there is no colon.
+	 */
+	static String valueOf(byte[] line, int length) {
+		int colon = 0;
+		while (colon < length && line[colon] != ':') {
+			colon++;
+		}
+		return new String(line, colon + 1, Math.max(length - colon - 1, 0),
+				UTF8);
+	}
+
+	// Splits the file into logical (unfolded) lines and processes them.
+	private void scan(InputStream in) throws IOException,
+			CorruptedCalendarFileException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		byte[] line = new byte[256]; // The logical line being collected.
+		int lineLength = 0;
+		long lineOffset = 0; // Where the logical line starts.
+		boolean atLineStart = true;
+		boolean started = false; // Whether a logical line has been started.
+		boolean first = true;
+		long position = 0;
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++, position++) {
+				byte b = buffer[i];
+				if (atLineStart) {
+					atLineStart = false;
+					if (started && (b == ' ' || b == '\t')) {
+						continue; // A folded line goes on.
+					}
+					if (started) {
+						this.trimmed(line, lineLength, lineOffset, position,
+								first);
+						first = false;
+					}
+					started = true;
+					lineLength = 0;
+					lineOffset = position;
+				}
+				if (b == '\n') {
+					atLineStart = true;
+				} else if (b != '\r') {
+					if (lineLength == line.length) {
+						byte[] grown = new byte[line.length * 2];
+						System.arraycopy(line, 0, grown, 0, lineLength);
+						line = grown;
+					}
+					line[lineLength++] = b;
+				}
+			}
+		}
+		if (started) {
+			this.trimmed(line, lineLength, lineOffset, position, first);
+		} else {
+			this.trimmed(line, 0, 0, 0, true); // An empty file.
+		}
+	}
+
+	// Trims a logical line like TCalendar does and processes it, checking
+	// the header if it is the first one.
+	private void trimmed(byte[] line, int length, long offset, long next,
+			boolean first) throws CorruptedCalendarFileException {
+		while (length > 0
+				&& (line[length - 1] == ' ' || line[length - 1] == '\t')) {
+			length--;
+		}
+		if (first) {
+			if (!is(line, length, "BEGIN:VCALENDAR")) {
+				throw new CorruptedCalendarFileException(
+						"VCALENDAR header is missing");
+			}
+		} else {
+			this.line(line, length, offset, next);
+		}
+	}
+
+}
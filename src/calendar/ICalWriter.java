@@ -0,0 +1,271 @@
+package calendar;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * An ICalWriter writes the content lines of an .ics file into a
+ * {@link Writer} or a {@link WritableByteChannel} through a single reusable
+ * buffer, so that a calendar can be saved one VEVENT at a time without
+ * building the whole file in memory. Lines end in CRLF and are folded so that
+ * no line is longer than 75 octets in UTF-8, as required by the iCal
+ * specification.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class ICalWriter implements Closeable, Flushable {
+
+	public static final int MAX_LINE_OCTETS = 75;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private Writer out;
+	private char[] buffer;
+	private int position;
+	private int lineOctets; // Octets written on the current physical line.
+	private long octets; // Octets written in all, including buffered ones.
+
+	/**
+	 * Creates an ICalWriter that writes into the given {@link Writer}.
+	 *
+	 * @param out
+	 *            The {@link Writer} to write into.
+	 */
+	public ICalWriter(Writer out) {
+		this.out = out;
+		this.buffer = new char[BUFFER_SIZE];
+	}
+
+	/**
+	 * Creates an ICalWriter that writes UTF-8 into the given channel.
+	 *
+	 * @param channel
+	 *            The {@link WritableByteChannel} to write into.
+	 */
+	public ICalWriter(WritableByteChannel channel) {
+		this(Channels.newWriter(channel, Charset.forName("UTF-8")
+				.newEncoder(), BUFFER_SIZE));
+	}
+
+	/**
+	 * Writes a whole content line of the form NAME:VALUE.
+	 *
+	 * @param name
+	 *            The name of the property, eg. "CATEGORIES".
+	 * @param value
+	 *            The value of the property.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void property(String name, CharSequence value) throws IOException {
+		this.append(name);
+		this.append(':');
+		this.append(value);
+		this.endLine();
+	}
+
+	/**
+	 * Writes a content line of the form NAME:VALUE where the value is an
+	 * integer.
+	 *
+	 * @param name
+	 *            The name of the property, eg. "PRIORITY".
+	 * @param value
+	 *            The value of the property.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void property(String name, long value) throws IOException {
+		this.append(name);
+		this.append(':');
+		this.append(value);
+		this.endLine();
+	}
+
+	/**
+	 * Writes a content line of the form NAME:yyyymmddThhmmss. The date is
+	 * written as a local (floating) time.
+	 *
+	 * @param name
+	 *            The name of the property, eg. "DTSTART".
+	 * @param date
+	 *            The date to write.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void property(String name, GregorianCalendar date)
+			throws IOException {
+		this.append(name);
+		this.append(':');
+		this.appendDateTime(date);
+		this.endLine();
+	}
+
+	/**
+	 * Appends text to the current line, folding it if necessary.
+	 *
+	 * @param text
+	 *            The text to append.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void append(CharSequence text) throws IOException {
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			this.append(text.charAt(i));
+		}
+	}
+
+	/**
+	 * Appends a character to the current line, folding it if necessary.
+	 * Surrogate pairs are never split across lines.
+	 *
+	 * @param c
+	 *            The character to append.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void append(char c) throws IOException {
+		int octets;
+		if (c < 0x80) {
+			octets = 1;
+		} else if (c < 0x800) {
+			octets = 2;
+		} else if (Character.isHighSurrogate(c)) {
+			octets = 4;
+		} else if (Character.isLowSurrogate(c)) {
+			octets = 0; // Counted with the high surrogate.
+		} else {
+			octets = 3;
+		}
+		if (octets > 0 && this.lineOctets + octets > MAX_LINE_OCTETS) {
+			this.put('\r');
+			this.put('\n');
+			this.put(' ');
+			this.lineOctets = 1;
+		}
+		this.put(c);
+		this.lineOctets += octets;
+	}
+
+	/**
+	 * Appends a number to the current line.
+	 *
+	 * @param value
+	 *            The number to append.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void append(long value) throws IOException {
+		if (value < 0) {
+			this.append('-');
+		} else {
+			value = -value; // Negative values reach Long.MIN_VALUE safely.
+		}
+		long divisor = -1;
+		while (value / 10 <= divisor) {
+			divisor *= 10;
+		}
+		while (divisor != 0) {
+			this.append((char) ('0' + value / divisor));
+			value %= divisor;
+			divisor /= 10;
+		}
+	}
+
+	/**
+	 * Appends a date in the form yyyymmddThhmmss.
+	 *
+	 * @param date
+	 *            The date to append.
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void appendDateTime(GregorianCalendar date) throws IOException {
+		this.append(date.get(Calendar.YEAR));
+		this.appendTwoDigits(date.get(Calendar.MONTH) + 1);
+		this.appendTwoDigits(date.get(Calendar.DAY_OF_MONTH));
+		this.append('T');
+		this.appendTwoDigits(date.get(Calendar.HOUR_OF_DAY));
+		this.appendTwoDigits(date.get(Calendar.MINUTE));
+		this.appendTwoDigits(date.get(Calendar.SECOND));
+	}
+
+	/**
+	 * Ends the current content line.
+	 *
+	 * @throws IOException
+	 *             If the underlying writer fails.
+	 */
+	public void endLine() throws IOException {
+		this.put('\r');
+		this.put('\n');
+		this.lineOctets = 0;
+	}
+
+	/**
+	 * Returns the number of octets written through this ICalWriter so far in
+	 * UTF-8, including the ones still in the buffer.
+	 *
+	 * @return The number of octets.
+	 */
+	public long getOctets() {
+		return this.octets;
+	}
+
+	/**
+	 * Writes the buffered characters into the underlying writer and flushes
+	 * it.
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.drain();
+		this.out.flush();
+	}
+
+	/**
+	 * Flushes and closes the underlying writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.drain();
+		this.out.close();
+	}
+
+	private void appendTwoDigits(int value) throws IOException {
+		this.append((char) ('0' + value / 10));
+		this.append((char) ('0' + value % 10));
+	}
+
+	private void put(char c) throws IOException {
+		if (this.position == this.buffer.length) {
+			this.drain();
+		}
+		this.buffer[this.position++] = c;
+		if (c < 0x80) {
+			this.octets++;
+		} else if (c < 0x800 || Character.isSurrogate(c)) {
+			this.octets += 2; // Four for a surrogate pair.
+		} else {
+			this.octets += 3;
+		}
+	}
+
+	// Moves the buffered characters into the underlying writer.
+	private void drain() throws IOException {
+		if (this.position > 0) {
+			this.out.write(this.buffer, 0, this.position);
+			this.position = 0;
+		}
+	}
+
+}
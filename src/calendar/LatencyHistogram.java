@@ -0,0 +1,136 @@
+package calendar;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A LatencyHistogram counts latencies into buckets the way HdrHistogram
+ * does: every power of two is split into 8 buckets, so a latency is known
+ * to within an eighth of its value however long it is. Recording is a few
+ * {@link LongAdder} increments, so threads recording at the same time do not
+ * contend, and nothing is allocated.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+	private LongAdder[] buckets;
+	private LongAdder count;
+	private LongAdder total;
+	private LongAccumulator max;
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	LatencyHistogram() {
+		this.buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets[i] = new LongAdder();
+		}
+		this.count = new LongAdder();
+		this.total = new LongAdder();
+		this.max = new LongAccumulator(new LongBinaryOperator() {
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            The latency in nanoseconds. Negative ones count as 0.
+	 */
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		this.buckets[bucketOf(nanos)].increment();
+		this.count.increment();
+		this.total.add(nanos);
+		this.max.accumulate(nanos);
+	}
+
+	long getCount() {
+		return this.count.sum();
+	}
+
+	long getTotal() {
+		return this.total.sum();
+	}
+
+	long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * Returns the latency that a percentage of the recorded latencies do not
+	 * exceed, rounded up to the end of its bucket.
+	 * 
+	 * @param percent
+	 *            The percentage, from 0 to 100.
+	 * @return The latency in nanoseconds, or 0 if nothing was recorded.
+	 */
+	long getPercentile(double percent) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long wanted = Math.max((long) Math.ceil(count * percent / 100), 1);
+		long seen = 0;
+		int i = 0;
+		while (i < BUCKETS - 1 && seen + counts[i] < wanted) {
+			seen += counts[i];
+			i++;
+		}
+		long end = i == BUCKETS - 1 ? Long.MAX_VALUE : lowestOf(i + 1) - 1;
+		return Math.min(end, this.getMax());
+	}
+
+	/**
+	 * Forgets the recorded latencies. Latencies recorded at the same time may
+	 * be partly forgotten.
+	 */
+	void reset() {
+		for (LongAdder bucket : this.buckets) {
+			bucket.reset();
+		}
+		this.count.reset();
+		this.total.reset();
+		this.max.reset();
+	}
+
+	// Returns the bucket a latency falls into.
+	private static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// Returns the lowest latency that falls into a bucket.
+	private static long lowestOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+}
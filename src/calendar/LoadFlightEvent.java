@@ -0,0 +1,36 @@
+package calendar;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A LoadFlightEvent is recorded by Java Flight Recorder when events are read
+ * into a {@link TCalendar} from an .ics file.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+@Name("calendar.Load")
+@Label("Calendar Load")
+@Category("TCalendar")
+@Description("Events read into a calendar from an .ics file")
+class LoadFlightEvent extends jdk.jfr.Event {
+
+	@Label("File")
+	@Description("The file read, or null if read from a stream")
+	String file;
+
+	@Label("Size")
+	@Description("The characters read, with two for every line end")
+	@DataAmount
+	long size;
+
+	@Label("Events")
+	@Description("The number of events parsed")
+	int events;
+
+}
@@ -1,7 +1,10 @@
 package calendar;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
 /**
  * The class AbstractEvent describes calendar events, such as meetings, tests,
@@ -21,9 +24,8 @@ public class MeetingEvent implements Event {
 	private GregorianCalendar expiration;
 	private int priority;
 	private boolean isRepeating;
-	private int repeatFieldValue; // As specified in Calendar (WEEK,
-	// DAY_OF_MONTH etc).
-	private int interval;
+	private RecurrenceRule rule; // null if the event doesn't repeat.
+	private long lastStart; // The latest start allowed by the rule.
 
 	/**
 	 * Creates a new Event.
@@ -52,7 +54,24 @@ public class MeetingEvent implements Event {
 	}
 
 	public void setUID(String UID) {
-		this.UID = this.dateTime(this.dateStamp) + " - " + UID;
+		this.UID = UID;
+	}
+
+	public String getUID() {
+		return this.UID;
+	}
+
+	public Event copy() {
+		MeetingEvent copy = new MeetingEvent(this.start, this.end);
+		copy.category = this.category;
+		copy.UID = this.UID;
+		copy.dateStamp = this.dateStamp;
+		copy.expiration = this.expiration;
+		copy.priority = this.priority;
+		copy.isRepeating = this.isRepeating;
+		copy.rule = this.rule;
+		copy.lastStart = this.lastStart;
+		return copy;
 	}
 
 	public void setDateStamp(GregorianCalendar dateStamp) {
@@ -61,16 +80,46 @@ public class MeetingEvent implements Event {
 
 	public void setRepeat(int repeatFieldValue, int interval,
 			GregorianCalendar expiration) {
+		long until = Long.MAX_VALUE;
+		if (expiration != null) {
+			until = expiration.getTimeInMillis();
+		}
+		RecurrenceRule simple = RecurrenceRule.simple(repeatFieldValue,
+				interval, until);
+		// Keep the BYDAY etc. parts of an imported rule if only the interval
+		// or the expiration changes.
+		if (this.rule != null
+				&& this.rule.getFrequency() == simple.getFrequency()) {
+			this.setRule(this.rule.derive(interval, until));
+		} else {
+			this.setRule(simple);
+		}
+	}
+
+	/**
+	 * Sets the recurrence rule of this event.
+	 * 
+	 * @param rule
+	 *            The compiled {@link RecurrenceRule}.
+	 */
+	public void setRule(RecurrenceRule rule) {
 		this.isRepeating = true;
-		this.repeatFieldValue = repeatFieldValue;
-		this.interval = interval;
-		this.expiration = expiration;
+		this.rule = rule;
+		this.bindRule();
+	}
+
+	/**
+	 * Returns the recurrence rule of this event.
+	 * 
+	 * @return The {@link RecurrenceRule}, or null if the event does not repeat.
+	 */
+	public RecurrenceRule getRule() {
+		return this.rule;
 	}
 
 	public void endRepeat() {
 		this.isRepeating = false;
-		this.repeatFieldValue = 0;
-		this.interval = 0;
+		this.rule = null;
 		this.expiration = this.end;
 
 	}
@@ -80,7 +129,15 @@ public class MeetingEvent implements Event {
 	}
 
 	public void setExpiration(GregorianCalendar expirationDate) {
-		this.expiration = expirationDate;
+		if (this.isRepeating) {
+			long until = Long.MAX_VALUE;
+			if (expirationDate != null) {
+				until = expirationDate.getTimeInMillis();
+			}
+			this.setRule(this.rule.derive(this.rule.getInterval(), until));
+		} else {
+			this.expiration = expirationDate;
+		}
 	}
 
 	public GregorianCalendar getExpiration() {
@@ -100,83 +157,38 @@ public class MeetingEvent implements Event {
 	}
 
 	public StringBuilder getSerialization() {
-		StringBuilder serial = new StringBuilder();
+		StringWriter serial = new StringWriter();
+		try {
+			ICalWriter writer = new ICalWriter(serial);
+			this.writeTo(writer);
+			writer.flush();
+		} catch (IOException e) {
+			// A StringWriter does not throw IOExceptions.
+			throw new IllegalStateException(e);
+		}
+		return new StringBuilder(serial.getBuffer());
+	}
 
-		serial.append("BEGIN:VEVENT\n");
-		serial.append("DTSTAMP:" + this.dateTime(this.dateStamp) + "\n");
-		serial.append("UID:" + this.UID + "\n");
-		serial.append("DTSTART:" + this.dateTime(this.start) + "\n");
-		serial.append("DTEND:" + this.dateTime(this.end) + "\n");
-		serial.append("CATEGORIES:" + this.category + "\n");
+	public void writeTo(ICalWriter writer) throws IOException {
+		writer.append("BEGIN:VEVENT");
+		writer.endLine();
+		writer.property("DTSTAMP", this.dateStamp);
+		writer.property("UID", this.UID);
+		writer.property("DTSTART", this.start);
+		writer.property("DTEND", this.end);
+		if (this.category != null) {
+			writer.property("CATEGORIES", this.category);
+		}
 
 		if (this.priority > 0) {
-			serial.append("PRIORITY:" + this.priority + "\n");
+			writer.property("PRIORITY", this.priority);
 		}
 
 		if (this.isRepeating) {
-			StringBuilder currentLine = new StringBuilder(75);
-			currentLine.append("RRULE:FREQ=");
-			switch (this.repeatFieldValue) {
-			case Calendar.WEEK_OF_YEAR:
-				currentLine.append("WEEKLY");
-				break;
-			case Calendar.DAY_OF_YEAR:
-				currentLine.append("DAILY");
-				break;
-			case Calendar.MONTH:
-				currentLine.append("MONTHLY");
-				break;
-			case Calendar.YEAR:
-				currentLine.append("YEARLY");
-				break;
-			}
-			if (this.interval != 1) {
-				currentLine.append(";INTERVAL=" + this.interval);
-			}
-			if (this.expiration != null) {
-				currentLine.append(";UNTIL=" + this.dateTime(this.expiration));
-			}
-			serial.append(currentLine + "\n");
+			writer.property("RRULE", this.rule.toString());
 		}
-		serial.append("END:VEVENT\n\n");
-
-		return serial;
-	}
-
-	// Extracts the date in the form of a "yyyymmddThhmmss" string
-	private String dateTime(GregorianCalendar date) {
-		StringBuilder builder = new StringBuilder(15);
-		char o = '0';
-		int field;
-		builder.append(date.get(Calendar.YEAR));
-		field = date.get(Calendar.MONTH) + 1;
-		if (field < 10) {
-			builder.append(o);
-		}
-		builder.append(field);
-		field = date.get(Calendar.DAY_OF_MONTH);
-		if (field < 10) {
-			builder.append(o);
-		}
-		builder.append(field);
-		builder.append('T');
-		field = date.get(Calendar.HOUR_OF_DAY);
-		if (field < 10) {
-			builder.append(o);
-		}
-		builder.append(field);
-		field = date.get(Calendar.MINUTE);
-		if (field < 10) {
-			builder.append(o);
-		}
-		builder.append(field);
-		field = date.get(Calendar.SECOND);
-		if (field < 10) {
-			builder.append(o);
-		}
-		builder.append(field);
-
-		return builder.toString();
+		writer.append("END:VEVENT");
+		writer.endLine();
 	}
 
 	public GregorianCalendar getStart() {
@@ -210,46 +222,52 @@ public class MeetingEvent implements Event {
 	}
 
 	public boolean isValid(GregorianCalendar start, GregorianCalendar end) {
-		if (!this.isRepeating) {
-			return this.start.after(start) || this.end.before(end);
-		}
-		// Depending on the interval, the repeat may skip the day/week/whatever
-		// in question
-		if (this.isExpired(end) || this.start.after(end)) {
-			return false;
-		}
+		return this.getNextOccurrence(start.getTimeInMillis()) < end
+				.getTimeInMillis();
+	}
 
-		int startEndDifference = DateCalc.getFieldDifference(
-				this.repeatFieldValue, this.start, start);
-		// If the event skips the date that is being viewed, return false.
-		if (startEndDifference % this.interval != 0) {
-			return false;
+	public long getNextOccurrence(long time) {
+		long duration = this.getDuration();
+		if (duration > 0) {
+			return this.nextStart(time - duration + 1);
 		}
+		return this.nextStart(time);
+	}
 
-		GregorianCalendar futureStart = (GregorianCalendar) this.start.clone();
-		futureStart.add(this.repeatFieldValue, startEndDifference);
-		GregorianCalendar futureEnd = (GregorianCalendar) this.end.clone();
-		futureEnd.add(this.repeatFieldValue, startEndDifference);
-		// if the starting time is within the fork or the ending time is, return
-		// true
-		return ((futureStart.after(start) && futureStart.before(end)) || (futureEnd
-				.before(end))
-				&& futureEnd.after(start))
-				|| futureStart.before(start) && futureEnd.after(end);
+	// Returns the start of the first occurrence that starts at or after from.
+	private long nextStart(long from) {
+		long first = this.start.getTimeInMillis();
+		if (!this.isRepeating) {
+			return first >= from ? first : Long.MAX_VALUE;
+		}
+		return this.rule.next(first, this.start.getTimeZone(), from,
+				this.lastStart);
 	}
 
-	// Checks if this event has expired by the time of the parameter end
-	private boolean isExpired(GregorianCalendar end) {
-		if (this.expiration == null) {
-			return false;
+	// Calculates the last allowed start and the expiration from the rule.
+	private void bindRule() {
+		TimeZone zone = this.start.getTimeZone();
+		this.lastStart = this.rule.getLastStart(this.start.getTimeInMillis(),
+				zone);
+		if (this.lastStart == Long.MAX_VALUE) {
+			this.expiration = null;
 		} else {
-			return this.expiration.before(end);
+			this.expiration = new GregorianCalendar(zone);
+			if (this.rule.getCount() > 0) {
+				this.expiration.setTimeInMillis(this.lastStart
+						+ this.getDuration());
+			} else {
+				this.expiration.setTimeInMillis(this.lastStart);
+			}
 		}
 	}
 
 	public void setNewStartEnd(GregorianCalendar start, GregorianCalendar end) {
 		this.start = start;
 		this.end = end;
+		if (this.isRepeating) {
+			this.bindRule();
+		}
 	}
 
 	public boolean isHighPriority() {
@@ -261,40 +279,35 @@ public class MeetingEvent implements Event {
 	}
 
 	public int getRepeatField() {
-		return this.repeatFieldValue;
+		if (!this.isRepeating) {
+			return 0;
+		}
+		return this.rule.getCalendarField();
 	}
 
 	public int getInterval() {
-		return this.interval;
+		if (!this.isRepeating) {
+			return 0;
+		}
+		return this.rule.getInterval();
 	}
 
 	public long getDurationInMonth(GregorianCalendar firstOfMonth) {
 		GregorianCalendar lastOfMonth = (GregorianCalendar) firstOfMonth
 				.clone();
 		lastOfMonth.add(Calendar.MONTH, 1);
-		long duration = this.end.getTimeInMillis()
-				- this.start.getTimeInMillis();
-
-		int lastDay = firstOfMonth.getMaximum(Calendar.DAY_OF_MONTH);
-		GregorianCalendar first = (GregorianCalendar) firstOfMonth.clone();
-		GregorianCalendar nextDay = (GregorianCalendar) firstOfMonth.clone();
-		nextDay.add(Calendar.DAY_OF_MONTH, 1);
-		int hitcount = 0;
-		// Iterate throught the month, one day at a time until we find the first
-		// valid day
-		for (int i = 1; i < lastDay; i++) {
-			if (this.isValid(first, nextDay)) {
-				break;
-			} else {
-				first.add(Calendar.DAY_OF_MONTH, 1);
-				nextDay.add(Calendar.DAY_OF_MONTH, 1);
-			}
-		}
-		while (first.before(lastOfMonth)) {
-			hitcount++;
-			first.add(this.repeatFieldValue, this.interval);
+		long from = firstOfMonth.getTimeInMillis();
+		long to = lastOfMonth.getTimeInMillis();
+		long duration = this.getDuration();
+		long total = 0;
+		// Sum the part of every occurrence that falls within the month.
+		long occurrence = this.getNextOccurrence(from);
+		while (occurrence < to) {
+			total += Math.min(occurrence + duration, to)
+					- Math.max(occurrence, from);
+			occurrence = this.nextStart(occurrence + 1);
 		}
-		return duration * hitcount;
+		return total;
 	}
 
 }
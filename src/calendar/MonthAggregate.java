@@ -0,0 +1,268 @@
+package calendar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A MonthAggregate sums up the events of a month for each of its days: how
+ * many events take place on the day, how much of the day they take up, how
+ * many have a high priority and how much time each category takes. The
+ * aggregates are kept by the {@link TCalendar} (see
+ * {@link TCalendar#getMonthAggregate(GregorianCalendar)}), so the month and
+ * year views need not go through the events themselves.
+ *
+ * The time the events take up on a day is the sum of their durations within
+ * the day, so events that overlap are all counted. An event that lasts past
+ * midnight is counted on every day it takes place on, and one that takes no
+ * time on the day it starts.
+ *
+ * An aggregate is not changed once the calendar has handed it out.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public final class MonthAggregate {
+
+	private static final String NO_CATEGORY = "";
+
+	private GregorianCalendar month;
+	private long[] starts; // Of the days and of the next month.
+	private int[] counts;
+	private long[] durations;
+	private int[] high;
+	// The categories in the order they were met, and the time each takes on
+	// each day.
+	private ArrayList<String> categories;
+	private HashMap<String, long[]> byCategory;
+
+	// Creates an aggregate of a month without events.
+	MonthAggregate(GregorianCalendar first) {
+		this.month = DateCalc.startOf((GregorianCalendar) first.clone(),
+				Calendar.MONTH);
+		int days = this.month.getActualMaximum(Calendar.DAY_OF_MONTH);
+		this.starts = new long[days + 1];
+		GregorianCalendar day = (GregorianCalendar) this.month.clone();
+		for (int i = 0; i <= days; i++) {
+			this.starts[i] = day.getTimeInMillis();
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		this.counts = new int[days];
+		this.durations = new long[days];
+		this.high = new int[days];
+		this.categories = new ArrayList<String>();
+		this.byCategory = new HashMap<String, long[]>();
+	}
+
+	// Adds an occurrence of an event to the days it takes place on, if any
+	// are in the month.
+	void add(Event event, long start, long end) {
+		int days = this.counts.length;
+		if (start >= this.starts[days] || start < this.starts[0]
+				&& end <= this.starts[0]) {
+			return;
+		}
+		int day = Arrays.binarySearch(this.starts, Math.max(start,
+				this.starts[0]));
+		if (day < 0) {
+			day = -day - 2;
+		}
+		long[] category = null;
+		do {
+			long from = Math.max(start, this.starts[day]);
+			long to = Math.min(end, this.starts[day + 1]);
+			this.counts[day]++;
+			this.durations[day] += to - from;
+			if (event.isHighPriority()) {
+				this.high[day]++;
+			}
+			if (category == null) {
+				category = this.category(event.getCategory());
+			}
+			category[day] += to - from;
+			day++;
+		} while (day < days && this.starts[day] < end);
+	}
+
+	// Returns the times a category takes on the days, adding the category if
+	// it is new.
+	private long[] category(String name) {
+		if (name == null) {
+			name = NO_CATEGORY;
+		}
+		long[] times = this.byCategory.get(name);
+		if (times == null) {
+			times = new long[this.counts.length];
+			this.byCategory.put(name, times);
+			this.categories.add(name);
+		}
+		return times;
+	}
+
+	/**
+	 * Returns the first day of the month.
+	 *
+	 * @return The first of the month, at midnight.
+	 */
+	public GregorianCalendar getMonth() {
+		return (GregorianCalendar) this.month.clone();
+	}
+
+	/**
+	 * Returns the start of the month in milliseconds.
+	 *
+	 * @return The time at midnight on the first of the month.
+	 */
+	public long getStart() {
+		return this.starts[0];
+	}
+
+	/**
+	 * Returns the end of the month in milliseconds.
+	 *
+	 * @return The time at midnight on the first of the next month.
+	 */
+	public long getEnd() {
+		return this.starts[this.counts.length];
+	}
+
+	/**
+	 * Returns the number of days in the month.
+	 *
+	 * @return The number of days, from 28 to 31.
+	 */
+	public int getDays() {
+		return this.counts.length;
+	}
+
+	/**
+	 * Returns the number of events that take place on a day.
+	 *
+	 * @param day
+	 *            The day of the month, from 1.
+	 * @return The number of occurrences on the day.
+	 * @throws IndexOutOfBoundsException
+	 *             If the month has no such day.
+	 */
+	public int getCount(int day) {
+		return this.counts[day - 1];
+	}
+
+	/**
+	 * Returns the time the events take up on a day.
+	 *
+	 * @param day
+	 *            The day of the month, from 1.
+	 * @return The sum of the durations within the day, in milliseconds.
+	 * @throws IndexOutOfBoundsException
+	 *             If the month has no such day.
+	 */
+	public long getDuration(int day) {
+		return this.durations[day - 1];
+	}
+
+	/**
+	 * Returns the number of events with a high priority that take place on a
+	 * day.
+	 *
+	 * @param day
+	 *            The day of the month, from 1.
+	 * @return The number of occurrences on the day.
+	 * @throws IndexOutOfBoundsException
+	 *             If the month has no such day.
+	 */
+	public int getHighPriorityCount(int day) {
+		return this.high[day - 1];
+	}
+
+	/**
+	 * Returns the most time the events take up on any day of the month.
+	 *
+	 * @return The longest total of a day, in milliseconds.
+	 */
+	public long getBusiest() {
+		long busiest = 0;
+		for (long duration : this.durations) {
+			busiest = Math.max(busiest, duration);
+		}
+		return busiest;
+	}
+
+	/**
+	 * Returns the categories of the events of the month.
+	 *
+	 * @return The categories, in the order they were met. Events without a
+	 *         category are under the empty string.
+	 */
+	public List<String> getCategories() {
+		return Collections.unmodifiableList(this.categories);
+	}
+
+	/**
+	 * Returns the time the events of a category take during the month.
+	 *
+	 * @param category
+	 *            The category.
+	 * @return The sum of the durations within the month, in milliseconds.
+	 */
+	public long getCategoryDuration(String category) {
+		long[] times = this.byCategory.get(category);
+		long total = 0;
+		if (times != null) {
+			for (long time : times) {
+				total += time;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the time the events of a category take up on a day.
+	 *
+	 * @param category
+	 *            The category.
+	 * @param day
+	 *            The day of the month, from 1.
+	 * @return The sum of the durations within the day, in milliseconds.
+	 * @throws IndexOutOfBoundsException
+	 *             If the month has no such day.
+	 */
+	public long getCategoryDuration(String category, int day) {
+		long[] times = this.byCategory.get(category);
+		if (day < 1 || day > this.counts.length) {
+			throw new IndexOutOfBoundsException("No day " + day);
+		}
+		return times == null ? 0 : times[day - 1];
+	}
+
+	/**
+	 * Returns the category that takes the most time on a day.
+	 *
+	 * @param day
+	 *            The day of the month, from 1.
+	 * @return The category, or null if no event takes place on the day.
+	 * @throws IndexOutOfBoundsException
+	 *             If the month has no such day.
+	 */
+	public String getTopCategory(int day) {
+		if (this.counts[day - 1] == 0) {
+			return null;
+		}
+		String top = null;
+		long most = -1;
+		for (String category : this.categories) {
+			long time = this.byCategory.get(category)[day - 1];
+			if (time > most) {
+				top = category;
+				most = time;
+			}
+		}
+		return top;
+	}
+
+}
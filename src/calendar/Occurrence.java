@@ -0,0 +1,142 @@
+package calendar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * An Occurrence is a single time an {@link Event} takes place: the event
+ * itself if it does not repeat, or one of its repetitions if it does. The
+ * queries of a {@link TCalendar} return events; expand() turns them into the
+ * occurrences within a range of time, which can then be checked for overlaps.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class Occurrence {
+
+	private Event event;
+	private long start;
+	private long end;
+
+	/**
+	 * Creates an occurrence of an event.
+	 *
+	 * @param event
+	 *            The {@link Event} that occurs.
+	 * @param start
+	 *            The start of the occurrence in milliseconds. It lasts as long
+	 *            as the event.
+	 */
+	public Occurrence(Event event, long start) {
+		this.event = event;
+		this.start = start;
+		this.end = start + event.getDuration();
+	}
+
+	public Event getEvent() {
+		return this.event;
+	}
+
+	public long getStart() {
+		return this.start;
+	}
+
+	public long getEnd() {
+		return this.end;
+	}
+
+	/**
+	 * Lists the occurrences of events that start before the end of a range
+	 * and end after its start.
+	 *
+	 * @param events
+	 *            The events, such as those returned by the queries of a
+	 *            {@link TCalendar}.
+	 * @param from
+	 *            The start of the range.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @return The occurrences, in order of their start and then their end.
+	 */
+	public static ArrayList<Occurrence> expand(List<Event> events,
+			GregorianCalendar from, GregorianCalendar to) {
+		long start = from.getTimeInMillis();
+		long end = to.getTimeInMillis();
+		ArrayList<Occurrence> occurrences = new ArrayList<Occurrence>();
+		for (Event event : events) {
+			long duration = Math.max(event.getDuration(), 1);
+			long time = event.getNextOccurrence(start);
+			while (time < end) {
+				occurrences.add(new Occurrence(event, time));
+				time = event.getNextOccurrence(time + duration);
+			}
+		}
+		Collections.sort(occurrences, new Comparator<Occurrence>() {
+			public int compare(Occurrence first, Occurrence second) {
+				if (first.start != second.start) {
+					return first.start < second.start ? -1 : 1;
+				}
+				return Long.compare(first.end, second.end);
+			}
+		});
+		return occurrences;
+	}
+
+	/**
+	 * Finds the pairs of occurrences that overlap. Occurrences that take no
+	 * time do not overlap anything.
+	 *
+	 * @param occurrences
+	 *            The occurrences, in order of their start (see expand()).
+	 * @return The pairs, each in order of their start, ordered by the start
+	 *         of their overlap.
+	 */
+	public static ArrayList<Occurrence[]> overlaps(
+			List<Occurrence> occurrences) {
+		ArrayList<Occurrence[]> pairs = new ArrayList<Occurrence[]>();
+		ArrayList<Occurrence> open = new ArrayList<Occurrence>();
+		for (Occurrence occurrence : occurrences) {
+			if (occurrence.end <= occurrence.start) {
+				continue;
+			}
+			for (int i = open.size() - 1; i >= 0; i--) {
+				if (open.get(i).end <= occurrence.start) {
+					open.remove(i);
+				}
+			}
+			for (Occurrence other : open) {
+				pairs.add(new Occurrence[] { other, occurrence });
+			}
+			open.add(occurrence);
+		}
+		return pairs;
+	}
+
+	/**
+	 * Merges the times taken by occurrences into the intervals during which
+	 * at least one of them is taking place.
+	 *
+	 * @param occurrences
+	 *            The occurrences, in order of their start (see expand()).
+	 * @return The busy intervals as pairs of start and end in milliseconds,
+	 *         in order.
+	 */
+	public static ArrayList<long[]> busy(List<Occurrence> occurrences) {
+		ArrayList<long[]> busy = new ArrayList<long[]>();
+		long[] current = null;
+		for (Occurrence occurrence : occurrences) {
+			if (current != null && occurrence.start <= current[1]) {
+				current[1] = Math.max(current[1], occurrence.end);
+			} else {
+				current = new long[] { occurrence.start, occurrence.end };
+				busy.add(current);
+			}
+		}
+		return busy;
+	}
+
+}
@@ -0,0 +1,95 @@
+package calendar;
+
+/**
+ * OperationMetrics counts how many times an operation has been done and
+ * keeps a histogram of how long it took. It is published as an MBean by
+ * {@link CalendarMetrics}. An operation is timed like this:
+ * 
+ * <pre>
+ * long started = CalendarMetrics.start();
+ * try {
+ * 	...
+ * } finally {
+ * 	CalendarMetrics.GET_DAY.record(started);
+ * }
+ * </pre>
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+public class OperationMetrics implements OperationMetricsMBean {
+
+	private String name;
+	private LatencyHistogram latencies;
+
+	/**
+	 * Creates the metrics of an operation.
+	 * 
+	 * @param name
+	 *            The name of the operation.
+	 */
+	OperationMetrics(String name) {
+		this.name = name;
+		this.latencies = new LatencyHistogram();
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Records that the operation was done.
+	 * 
+	 * @param started
+	 *            The time returned by {@link CalendarMetrics#start()} when
+	 *            the operation started. Nothing is recorded if the metrics
+	 *            were switched off then.
+	 */
+	public void record(long started) {
+		if (started != CalendarMetrics.OFF) {
+			this.latencies.record(System.nanoTime() - started);
+		}
+	}
+
+	public long getCount() {
+		return this.latencies.getCount();
+	}
+
+	public double getTotalMillis() {
+		return this.latencies.getTotal() / 1e6;
+	}
+
+	public double getMeanMicros() {
+		long count = this.latencies.getCount();
+		return count == 0 ? 0 : this.latencies.getTotal() / 1e3 / count;
+	}
+
+	public double getMedianMicros() {
+		return this.latencies.getPercentile(50) / 1e3;
+	}
+
+	public double getP90Micros() {
+		return this.latencies.getPercentile(90) / 1e3;
+	}
+
+	public double getP99Micros() {
+		return this.latencies.getPercentile(99) / 1e3;
+	}
+
+	public double getMaxMicros() {
+		return this.latencies.getMax() / 1e3;
+	}
+
+	public void reset() {
+		this.latencies.reset();
+	}
+
+	public String toString() {
+		return String.format("%s: %d, mean %.1f us, median %.1f us,"
+				+ " p99 %.1f us, max %.1f us", this.name, this.getCount(),
+				this.getMeanMicros(), this.getMedianMicros(), this
+						.getP99Micros(), this.getMaxMicros());
+	}
+
+}
@@ -0,0 +1,32 @@
+package calendar;
+
+/**
+ * The management interface of {@link OperationMetrics}: how many times an
+ * operation has been done and how long it took, in microseconds.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+public interface OperationMetricsMBean {
+
+	public long getCount();
+
+	public double getTotalMillis();
+
+	public double getMeanMicros();
+
+	public double getMedianMicros();
+
+	public double getP90Micros();
+
+	public double getP99Micros();
+
+	public double getMaxMicros();
+
+	/**
+	 * Forgets what has been recorded so far.
+	 */
+	public void reset();
+
+}
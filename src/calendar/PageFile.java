@@ -0,0 +1,158 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A PageFile reads and writes a file in pages of a fixed size through a
+ * {@link FileChannel}. The buffers the pages are read into are kept in a pool
+ * and reused, so that reading a page does not allocate memory.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+class PageFile {
+
+	static final int PAGE_SIZE = 4096;
+
+	private static final int POOL_SIZE = 16;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private ArrayDeque<ByteBuffer> pool;
+	private long reads; // The number of pages read so far.
+
+	/**
+	 * Opens a file for reading and writing, creating it if it does not exist.
+	 *
+	 * @param file
+	 *            The file.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	PageFile(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		this.pool = new ArrayDeque<ByteBuffer>();
+	}
+
+	/**
+	 * Returns the number of whole pages in the file.
+	 *
+	 * @return The number of pages.
+	 * @throws IOException
+	 *             If the size of the file cannot be read.
+	 */
+	long size() throws IOException {
+		return this.channel.size() / PAGE_SIZE;
+	}
+
+	/**
+	 * Returns the number of pages read since the file was opened.
+	 *
+	 * @return The number of pages.
+	 */
+	long getReads() {
+		return this.reads;
+	}
+
+	/**
+	 * Takes an empty buffer of one page from the pool.
+	 *
+	 * @return The buffer, to be given back with release().
+	 */
+	ByteBuffer buffer() {
+		ByteBuffer buffer = this.pool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(PAGE_SIZE);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool.
+	 *
+	 * @param buffer
+	 *            A buffer taken with buffer() or read().
+	 */
+	void release(ByteBuffer buffer) {
+		if (this.pool.size() < POOL_SIZE) {
+			this.pool.push(buffer);
+		}
+	}
+
+	/**
+	 * Reads a page.
+	 *
+	 * @param page
+	 *            The number of the page.
+	 * @return A buffer from the pool, positioned at the start of the page, to
+	 *         be given back with release().
+	 * @throws IOException
+	 *             If the page is beyond the end of the file or cannot be read.
+	 */
+	ByteBuffer read(long page) throws IOException {
+		ByteBuffer buffer = this.buffer();
+		long position = page * PAGE_SIZE;
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, position + buffer.position()) < 0) {
+				this.release(buffer);
+				throw new IOException("Page " + page + " is missing");
+			}
+		}
+		this.reads++;
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes a page. The rest of the page after the contents of the buffer is
+	 * filled with zeros.
+	 *
+	 * @param page
+	 *            The number of the page.
+	 * @param buffer
+	 *            The contents of the page, from 0 to its position. The buffer
+	 *            is given back to the pool.
+	 * @throws IOException
+	 *             If the page cannot be written.
+	 */
+	void write(long page, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			buffer.put((byte) 0);
+		}
+		buffer.flip();
+		long position = page * PAGE_SIZE;
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer, position + buffer.position());
+		}
+		this.release(buffer);
+	}
+
+	/**
+	 * Forces the written pages onto the disk.
+	 *
+	 * @throws IOException
+	 *             If the pages cannot be forced.
+	 */
+	void force() throws IOException {
+		this.channel.force(true);
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be closed.
+	 */
+	void close() throws IOException {
+		this.file.close();
+	}
+
+}
@@ -0,0 +1,373 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A PartitionedStore keeps a calendar that is too large for a single .ics file
+ * in a directory of smaller ones. The non-repeating events are divided into
+ * segments by the month they start in, each stored as a file named like
+ * 2011-04.ics, and the repeating events are kept in repeating.ics, which is
+ * always loaded as they can occur in any month.
+ *
+ * A month segment is only loaded when a query or a change touches it, and
+ * only a limited number of them are kept in memory: when more are needed,
+ * the one used longest ago is saved if it has been changed and dropped.
+ * Events that have been returned by a query may still be changed and given to
+ * {@link #updateEvent(Event)} or {@link #removeEvent(Event)} after their
+ * segment has been dropped.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class PartitionedStore {
+
+	public static final String REPEATING = "repeating" + CalendarFiles.SUFFIX;
+	public static final int DEFAULT_CAPACITY = 24;
+
+	private static final Integer GLOBAL = Integer.valueOf(-1);
+
+	private File directory;
+	private int capacity; // The number of month segments kept in memory.
+	private TCalendar repeating;
+	// Keys are years * 12 + months, in order of use.
+	private LinkedHashMap<Integer, TCalendar> segments;
+	private HashSet<Integer> changed; // Segments to be saved.
+	private WeakHashMap<Event, Integer> homes; // Where the events are filed.
+
+	/**
+	 * Opens a store in a directory, keeping up to DEFAULT_CAPACITY month
+	 * segments in memory.
+	 *
+	 * @param directory
+	 *            The directory of the store. It is created if it does not
+	 *            exist.
+	 * @throws IOException
+	 *             If the directory cannot be created, or the repeating events
+	 *             cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the file of the repeating events is corrupted.
+	 */
+	public PartitionedStore(File directory) throws IOException,
+			CorruptedCalendarFileException {
+		this(directory, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens a store in a directory.
+	 *
+	 * @param directory
+	 *            The directory of the store. It is created if it does not
+	 *            exist.
+	 * @param capacity
+	 *            The number of month segments to keep in memory, at least 1.
+	 * @throws IOException
+	 *             If the directory cannot be created, or the repeating events
+	 *             cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the file of the repeating events is corrupted.
+	 */
+	public PartitionedStore(File directory, int capacity) throws IOException,
+			CorruptedCalendarFileException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		this.directory = directory;
+		this.capacity = Math.max(capacity, 1);
+		this.segments = new LinkedHashMap<Integer, TCalendar>(16, 0.75f, true);
+		this.changed = new HashSet<Integer>();
+		this.homes = new WeakHashMap<Event, Integer>();
+		this.repeating = new TCalendar(new File(directory, REPEATING));
+		for (Event event : this.repeating.getAllEvents()) {
+			this.homes.put(event, GLOBAL);
+		}
+	}
+
+	/**
+	 * Returns the events of a day, like
+	 * {@link TCalendar#getDay(GregorianCalendar)}. Only the segment of the
+	 * month of the day is loaded.
+	 *
+	 * @param date
+	 *            The date at which to start looking.
+	 * @return An ArrayList containing the day's events.
+	 * @throws IOException
+	 *             If the segment cannot be loaded, or a changed segment cannot
+	 *             be saved to make room for it.
+	 * @throws CorruptedCalendarFileException
+	 *             If the segment is corrupted.
+	 */
+	public ArrayList<Event> getDay(GregorianCalendar date) throws IOException,
+			CorruptedCalendarFileException {
+		GregorianCalendar end = (GregorianCalendar) date.clone();
+		end = DateCalc.endOf(end, Calendar.DAY_OF_MONTH);
+		return this.getEvents(date, end);
+	}
+
+	/**
+	 * Returns the non-repeating events that start between two times, and the
+	 * repeating events that occur between them. Only the segments of the
+	 * months from from to to are loaded.
+	 *
+	 * @param from
+	 *            The start of the range.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @return An ArrayList containing the events, the non-repeating ones in
+	 *         order of their start followed by the repeating ones.
+	 * @throws IOException
+	 *             If a segment cannot be loaded, or a changed segment cannot
+	 *             be saved to make room for it.
+	 * @throws CorruptedCalendarFileException
+	 *             If a segment is corrupted.
+	 */
+	public synchronized ArrayList<Event> getEvents(GregorianCalendar from,
+			GregorianCalendar to) throws IOException,
+			CorruptedCalendarFileException {
+		ArrayList<Event> events = new ArrayList<Event>();
+		if (!from.before(to)) {
+			return events;
+		}
+		GregorianCalendar last = (GregorianCalendar) to.clone();
+		last.add(Calendar.MILLISECOND, -1);
+		for (int key = keyOf(from); key <= keyOf(last); key++) {
+			Integer home = Integer.valueOf(key);
+			this.collect(events, home, this.segment(home).getEvents(from, to));
+		}
+		events.addAll(this.repeating.getEvents(from, to));
+		return events;
+	}
+
+	/**
+	 * Returns the high priority events of a month, like
+	 * {@link TCalendar#getMonthsEvents(GregorianCalendar)}. Only the segment
+	 * of the month is loaded.
+	 *
+	 * @param date
+	 *            A date in the month to be searched.
+	 * @return An ArrayList containing the high priority events.
+	 * @throws IOException
+	 *             If the segment cannot be loaded, or a changed segment cannot
+	 *             be saved to make room for it.
+	 * @throws CorruptedCalendarFileException
+	 *             If the segment is corrupted.
+	 */
+	public synchronized ArrayList<Event> getMonthsEvents(GregorianCalendar date)
+			throws IOException, CorruptedCalendarFileException {
+		ArrayList<Event> events = new ArrayList<Event>();
+		Integer home = Integer.valueOf(keyOf(date));
+		this.collect(events, home, this.segment(home).getMonthsEvents(date));
+		events.addAll(this.repeating.getMonthsEvents(date));
+		return events;
+	}
+
+	/**
+	 * Adds an {@link Event} into the segment of the month it starts in, or
+	 * among the repeating events.
+	 *
+	 * @param event
+	 *            The {@link Event} to be added.
+	 * @throws IOException
+	 *             If the segment cannot be loaded, or a changed segment cannot
+	 *             be saved to make room for it.
+	 * @throws CorruptedCalendarFileException
+	 *             If the segment is corrupted.
+	 */
+	public synchronized void addEvent(Event event) throws IOException,
+			CorruptedCalendarFileException {
+		Integer key = homeOf(event);
+		this.segment(key).addEvent(event);
+		this.homes.put(event, key);
+		this.changed.add(key);
+	}
+
+	/**
+	 * Removes an {@link Event} from the store.
+	 *
+	 * @param target
+	 *            The {@link Event} to be removed.
+	 * @throws IOException
+	 *             If the segment of the event cannot be loaded, or a changed
+	 *             segment cannot be saved to make room for it.
+	 * @throws CorruptedCalendarFileException
+	 *             If the segment is corrupted.
+	 */
+	public synchronized void removeEvent(Event target) throws IOException,
+			CorruptedCalendarFileException {
+		Integer key = this.homes.remove(target);
+		if (key == null) {
+			return;
+		}
+		TCalendar segment = this.segment(key);
+		// The segment may have been dropped and loaded again since target was
+		// returned, in which case it holds another Event with the same UID.
+		Event filed = segment.findByUID(target.getUID());
+		if (filed != null) {
+			segment.removeEvent(filed);
+			this.changed.add(key);
+		}
+	}
+
+	/**
+	 * Tells the store that an {@link Event} in it has been changed, moving it
+	 * into another segment if it now starts in another month.
+	 *
+	 * @param target
+	 *            The {@link Event} that was changed.
+	 * @throws IOException
+	 *             If a segment cannot be loaded, or a changed segment cannot
+	 *             be saved to make room for it.
+	 * @throws CorruptedCalendarFileException
+	 *             If a segment is corrupted.
+	 */
+	public synchronized void updateEvent(Event target) throws IOException,
+			CorruptedCalendarFileException {
+		Integer key = this.homes.get(target);
+		if (key != null && key.equals(homeOf(target))) {
+			TCalendar segment = this.segment(key);
+			Event filed = segment.findByUID(target.getUID());
+			if (filed != null && filed != target) {
+				segment.removeEvent(filed);
+				segment.addEvent(target);
+			} else {
+				segment.updateEvent(target);
+			}
+			this.changed.add(key);
+		} else {
+			this.removeEvent(target);
+			this.addEvent(target);
+		}
+	}
+
+	/**
+	 * Saves the segments that have been changed. A segment that has become
+	 * empty is deleted.
+	 *
+	 * @throws IOException
+	 *             If a segment cannot be saved.
+	 */
+	public synchronized void save() throws IOException {
+		Iterator<Integer> keys = this.changed.iterator();
+		while (keys.hasNext()) {
+			Integer key = keys.next();
+			TCalendar segment = key.equals(GLOBAL) ? this.repeating
+					: this.segments.get(key);
+			this.write(key, segment);
+			keys.remove();
+		}
+	}
+
+	/**
+	 * Saves the changed segments and drops all the month segments from
+	 * memory.
+	 *
+	 * @throws IOException
+	 *             If a segment cannot be saved.
+	 */
+	public synchronized void evictAll() throws IOException {
+		this.save();
+		this.segments.clear();
+	}
+
+	/**
+	 * Returns the number of month segments in memory.
+	 *
+	 * @return The number of segments.
+	 */
+	public synchronized int getLoadedSegments() {
+		return this.segments.size();
+	}
+
+	/**
+	 * Returns the file a month segment is stored in.
+	 *
+	 * @param date
+	 *            A date in the month.
+	 * @return The .ics file of the month, which may not exist.
+	 */
+	public File fileOf(GregorianCalendar date) {
+		return this.fileOf(Integer.valueOf(keyOf(date)));
+	}
+
+	// Adds the events found in the segment of key into events, remembering
+	// where they were found.
+	private void collect(ArrayList<Event> events, Integer key,
+			ArrayList<Event> found) {
+		for (Event event : found) {
+			this.homes.put(event, key);
+		}
+		events.addAll(found);
+	}
+
+	// Returns the segment of key, loading it and dropping the one used longest
+	// ago if needed.
+	private TCalendar segment(Integer key) throws IOException,
+			CorruptedCalendarFileException {
+		if (key.equals(GLOBAL)) {
+			return this.repeating;
+		}
+		TCalendar segment = this.segments.get(key);
+		if (segment != null) {
+			return segment;
+		}
+		while (this.segments.size() >= this.capacity) {
+			Map.Entry<Integer, TCalendar> eldest = this.segments.entrySet()
+					.iterator().next();
+			if (this.changed.contains(eldest.getKey())) {
+				this.write(eldest.getKey(), eldest.getValue());
+				this.changed.remove(eldest.getKey());
+			}
+			this.segments.remove(eldest.getKey());
+		}
+		// Only the events a query touches are parsed.
+		segment = TCalendar.openLazily(this.fileOf(key));
+		this.segments.put(key, segment);
+		return segment;
+	}
+
+	// Writes a segment into its file, or deletes the file if it is empty.
+	private void write(Integer key, TCalendar segment) throws IOException {
+		File file = this.fileOf(key);
+		ArrayList<Event> events = segment.getAllEvents();
+		if (events.isEmpty() && !key.equals(GLOBAL)) {
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Could not delete " + file);
+			}
+			return;
+		}
+		segment.serializeCalendar(file);
+	}
+
+	// Returns the file of the segment of key.
+	private File fileOf(Integer key) {
+		if (key.equals(GLOBAL)) {
+			return new File(this.directory, REPEATING);
+		}
+		int month = key.intValue();
+		return new File(this.directory, String.format("%04d-%02d%s",
+				month / 12, month % 12 + 1, CalendarFiles.SUFFIX));
+	}
+
+	// Returns the key of the segment event belongs in.
+	private static Integer homeOf(Event event) {
+		if (event.isRepeating()) {
+			return GLOBAL;
+		}
+		return Integer.valueOf(keyOf(event.getStart()));
+	}
+
+	// Returns the key of the month of date.
+	private static int keyOf(GregorianCalendar date) {
+		return date.get(Calendar.YEAR) * 12 + date.get(Calendar.MONTH);
+	}
+
+}
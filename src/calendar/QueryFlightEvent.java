@@ -0,0 +1,39 @@
+package calendar;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timestamp;
+
+/**
+ * A QueryFlightEvent is recorded by Java Flight Recorder when the events of
+ * a range of time are looked up in a {@link TCalendar}.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+@Name("calendar.Query")
+@Label("Calendar Query")
+@Category("TCalendar")
+@Description("The events of a range of time looked up in a calendar")
+class QueryFlightEvent extends jdk.jfr.Event {
+
+	@Label("Query")
+	@Description("The method that was called")
+	String query;
+
+	@Label("From")
+	@Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+	long from;
+
+	@Label("To")
+	@Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+	long to;
+
+	@Label("Results")
+	@Description("The number of events found")
+	int results;
+
+}
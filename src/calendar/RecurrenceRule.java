@@ -0,0 +1,833 @@
+package calendar;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A RecurrenceRule is a compiled, immutable form of an iCal RRULE. The rule is
+ * parsed once and then used to generate the occurrences of an event directly
+ * in epoch days, without going through {@link Calendar} objects. The DAILY,
+ * WEEKLY, MONTHLY and YEARLY frequencies are supported together with the
+ * INTERVAL, UNTIL, COUNT, BYDAY, BYMONTHDAY, BYMONTH, BYSETPOS and WKST rule
+ * parts. Other rule parts (BYHOUR, BYWEEKNO etc.) are ignored.
+ *
+ * A rule does not know the start of the event it belongs to: the start is
+ * given to each method instead, so the same rule can be shared and a changed
+ * start does not require a new rule. Like in the iCal specification, the start
+ * of the event always counts as the first occurrence.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public final class RecurrenceRule {
+
+	public static final int DAILY = 0;
+	public static final int WEEKLY = 1;
+	public static final int MONTHLY = 2;
+	public static final int YEARLY = 3;
+
+	private static final String[] FREQUENCIES = { "DAILY", "WEEKLY",
+			"MONTHLY", "YEARLY" };
+	// Indexed by ISO weekday, 1 = Monday ... 7 = Sunday.
+	private static final String[] WEEKDAYS = { null, "MO", "TU", "WE", "TH",
+			"FR", "SA", "SU" };
+	private static final long MILLIS_IN_DAY = 24L * 60 * 60 * 1000;
+	// The Gregorian calendar repeats itself every 400 years, so a rule that
+	// has no occurrences within that time has none at all.
+	private static final long DAYS_IN_400_YEARS = 146097;
+	// iCal dates have four-digit years, so occurrences after this year cannot
+	// be told apart from a rule repeating forever.
+	private static final int LAST_YEAR = 9999;
+	private static final long LAST_DAY = ICalParser.daysFromCivil(LAST_YEAR,
+			12, 31);
+	// The days of one period, reused by each thread as they are expanded.
+	private static final ThreadLocal<int[]> CANDIDATES;
+	static {
+		CANDIDATES = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[366];
+			}
+		};
+	}
+
+	private final int frequency;
+	private final int interval;
+	private final long until; // Long.MAX_VALUE if the rule has no UNTIL part.
+	private final int count; // 0 if the rule has no COUNT part.
+	private final int[] dayWeekdays; // BYDAY weekdays (ISO) ...
+	private final int[] dayOrdinals; // ... and their ordinals, 0 for "every".
+	private final int[] monthDays; // BYMONTHDAY, negative counts from the end.
+	private final int monthMask; // Bit n is set if month n is in BYMONTH.
+	private final int[] setPositions; // BYSETPOS
+	private final int weekStart; // WKST as an ISO weekday.
+
+	private RecurrenceRule(int frequency, int interval, long until, int count,
+			int[] dayWeekdays, int[] dayOrdinals, int[] monthDays,
+			int monthMask, int[] setPositions, int weekStart) {
+		this.frequency = frequency;
+		this.interval = interval;
+		this.until = until;
+		this.count = count;
+		this.dayWeekdays = dayWeekdays;
+		this.dayOrdinals = dayOrdinals;
+		this.monthDays = monthDays;
+		this.monthMask = monthMask;
+		this.setPositions = setPositions;
+		this.weekStart = weekStart;
+	}
+
+	/**
+	 * Creates a rule that repeats an event every interval days, weeks, months
+	 * or years.
+	 *
+	 * @param field
+	 *            The field the rule applies to, as specified in Calendar (eg.
+	 *            Calendar.DAY_OF_YEAR for daily repetition).
+	 * @param interval
+	 *            The interval between repetitions.
+	 * @param until
+	 *            The time after which the event no longer starts, in
+	 *            milliseconds, or Long.MAX_VALUE if the event repeats forever.
+	 * @return The new rule.
+	 * @throws IllegalArgumentException
+	 *             If the field is not a day, week, month or year field or the
+	 *             interval is not positive.
+	 */
+	public static RecurrenceRule simple(int field, int interval, long until) {
+		if (interval < 1) {
+			throw new IllegalArgumentException(
+					"The interval must be a positive integer");
+		}
+		return new RecurrenceRule(frequencyOf(field), interval, until, 0,
+				new int[0], new int[0], new int[0], 0, new int[0], 1);
+	}
+
+	/**
+	 * Parses an RRULE. Local times in the UNTIL part are read in the default
+	 * time zone.
+	 *
+	 * @param rule
+	 *            Either the whole content line ("RRULE:FREQ=...") or just its
+	 *            value ("FREQ=...").
+	 * @return The compiled rule.
+	 * @throws CorruptedCalendarFileException
+	 *             If the rule is missing the FREQ part, has an unsupported
+	 *             frequency or a rule part has an illegal value.
+	 */
+	public static RecurrenceRule parse(String rule)
+			throws CorruptedCalendarFileException {
+		int i = 0;
+		int length = rule.length();
+		if (rule.regionMatches(true, 0, "RRULE", 0, 5)) {
+			i = rule.indexOf(':') + 1;
+		}
+		int frequency = -1;
+		int interval = 1;
+		long until = Long.MAX_VALUE;
+		int count = 0;
+		int[] weekdays = new int[0];
+		int[] ordinals = new int[0];
+		int[] monthDays = new int[0];
+		int monthMask = 0;
+		int[] setPositions = new int[0];
+		int weekStart = 1;
+
+		while (i < length) {
+			int end = rule.indexOf(';', i);
+			if (end < 0) {
+				end = length;
+			}
+			int equals = rule.indexOf('=', i);
+			if (equals < 0 || equals > end) {
+				if (end > i) {
+					throw new CorruptedCalendarFileException(
+							"A recurrence rule part is corrupted");
+				}
+				i = end + 1;
+				continue;
+			}
+			String name = rule.substring(i, equals).trim().toUpperCase();
+			String value = rule.substring(equals + 1, end).trim().toUpperCase();
+			if ("FREQ".equals(name)) {
+				frequency = -1;
+				for (int f = 0; f < FREQUENCIES.length; f++) {
+					if (FREQUENCIES[f].equals(value)) {
+						frequency = f;
+					}
+				}
+				if (frequency < 0) {
+					throw new CorruptedCalendarFileException(
+							"The frequency of repetition is missing or corrupted");
+				}
+			} else if ("INTERVAL".equals(name)) {
+				interval = parseInt(value, 1, Integer.MAX_VALUE);
+			} else if ("COUNT".equals(name)) {
+				count = parseInt(value, 1, Integer.MAX_VALUE);
+			} else if ("UNTIL".equals(name)) {
+				until = ICalParser.parseDateTime(value, 0, value.length(),
+						TimeZone.getDefault());
+				// An UNTIL date (without a time) includes the whole day.
+				if (value.length() == 8) {
+					until += MILLIS_IN_DAY - 1;
+				}
+			} else if ("BYDAY".equals(name)) {
+				String[] days = value.split(",");
+				weekdays = new int[days.length];
+				ordinals = new int[days.length];
+				for (int d = 0; d < days.length; d++) {
+					String day = days[d].trim();
+					if (day.length() < 2) {
+						throw new CorruptedCalendarFileException(
+								"The BYDAY rule part is corrupted");
+					}
+					weekdays[d] = weekdayOf(day.substring(day.length() - 2));
+					if (day.length() > 2) {
+						String ordinal = day.substring(0, day.length() - 2);
+						if (ordinal.startsWith("+")) {
+							ordinal = ordinal.substring(1);
+						}
+						ordinals[d] = parseInt(ordinal, -53, 53);
+						if (ordinals[d] == 0) {
+							throw new CorruptedCalendarFileException(
+									"The BYDAY rule part is corrupted");
+						}
+					}
+				}
+			} else if ("BYMONTHDAY".equals(name)) {
+				monthDays = parseList(value, -31, 31);
+			} else if ("BYMONTH".equals(name)) {
+				int[] months = parseList(value, 1, 12);
+				for (int month : months) {
+					monthMask |= 1 << month;
+				}
+			} else if ("BYSETPOS".equals(name)) {
+				setPositions = parseList(value, -366, 366);
+			} else if ("WKST".equals(name)) {
+				weekStart = weekdayOf(value);
+			}
+			i = end + 1;
+		}
+		if (frequency < 0) {
+			throw new CorruptedCalendarFileException(
+					"A Recurrence rule section is missing the FREQ-parameter.");
+		}
+		return new RecurrenceRule(frequency, interval, until, count, weekdays,
+				ordinals, monthDays, monthMask, setPositions, weekStart);
+	}
+
+	/**
+	 * Returns a copy of this rule with a new interval and end. The BYxxx rule
+	 * parts are kept, a COUNT is dropped in favour of the new end.
+	 *
+	 * @param interval
+	 *            The new interval.
+	 * @param until
+	 *            The new end in milliseconds, or Long.MAX_VALUE if the rule
+	 *            should repeat forever.
+	 * @return The new rule.
+	 */
+	public RecurrenceRule derive(int interval, long until) {
+		if (interval < 1) {
+			throw new IllegalArgumentException(
+					"The interval must be a positive integer");
+		}
+		return new RecurrenceRule(this.frequency, interval, until, 0,
+				this.dayWeekdays, this.dayOrdinals, this.monthDays,
+				this.monthMask, this.setPositions, this.weekStart);
+	}
+
+	/**
+	 * Returns the frequency of this rule (DAILY, WEEKLY, MONTHLY or YEARLY).
+	 *
+	 * @return The frequency.
+	 */
+	public int getFrequency() {
+		return this.frequency;
+	}
+
+	/**
+	 * Returns the field the frequency corresponds to, as specified in Calendar.
+	 *
+	 * @return Calendar.DAY_OF_YEAR, Calendar.WEEK_OF_YEAR, Calendar.MONTH or
+	 *         Calendar.YEAR.
+	 */
+	public int getCalendarField() {
+		switch (this.frequency) {
+		case DAILY:
+			return Calendar.DAY_OF_YEAR;
+		case WEEKLY:
+			return Calendar.WEEK_OF_YEAR;
+		case MONTHLY:
+			return Calendar.MONTH;
+		default:
+			return Calendar.YEAR;
+		}
+	}
+
+	/**
+	 * Returns the interval of this rule.
+	 *
+	 * @return The number of periods between repetitions.
+	 */
+	public int getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * Returns the UNTIL part of the rule.
+	 *
+	 * @return The end in milliseconds, or Long.MAX_VALUE if there is none.
+	 */
+	public long getUntil() {
+		return this.until;
+	}
+
+	/**
+	 * Returns the COUNT part of the rule.
+	 *
+	 * @return The number of occurrences, or 0 if there is no COUNT part.
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Calculates the latest time at which an occurrence can start. A COUNT
+	 * rule without BYxxx parts has one occurrence in each period, so its last
+	 * start is computed directly; other COUNT rules walk through the
+	 * occurrences once, up to the year 9999. The result should be stored by
+	 * the caller: with it, checking whether an event has expired takes
+	 * constant time.
+	 *
+	 * @param start
+	 *            The start of the first occurrence in milliseconds.
+	 * @param zone
+	 *            The {@link TimeZone} of the event.
+	 * @return The start of the last occurrence for COUNT rules, the UNTIL time
+	 *         for UNTIL rules and Long.MAX_VALUE for rules that repeat forever.
+	 */
+	public long getLastStart(long start, TimeZone zone) {
+		if (this.count == 0) {
+			return this.until;
+		}
+		long startLocal = start + zone.getOffset(start);
+		long startDay = Math.floorDiv(startLocal, MILLIS_IN_DAY);
+		long timeOfDay = Math.floorMod(startLocal, MILLIS_IN_DAY);
+		if (this.isPlain(startDay)) {
+			long last = this.plainStart(startDay, timeOfDay, zone,
+					this.count - 1);
+			if (last <= this.until) {
+				return last;
+			}
+			// The occurrences are in order, so the last one before UNTIL is
+			// searched for by halves.
+			long low = 0;
+			long high = this.count - 1;
+			while (high - low > 1) {
+				long middle = (low + high) >>> 1;
+				long occurrence = this.plainStart(startDay, timeOfDay, zone,
+						middle);
+				if (occurrence <= this.until) {
+					low = middle;
+				} else {
+					high = middle;
+				}
+			}
+			return low == 0 ? start : this.plainStart(startDay, timeOfDay,
+					zone, low);
+		}
+		int[] candidates = CANDIDATES.get();
+		long last = start;
+		int found = 1;
+		long emptyUntil = startDay + DAYS_IN_400_YEARS;
+		for (long period = 0; found < this.count; period++) {
+			int n = this.expand(startDay, period, candidates);
+			for (int c = 0; c < n && found < this.count; c++) {
+				if (candidates[c] > startDay) {
+					long occurrence = ICalParser.localToUtc(candidates[c]
+							* MILLIS_IN_DAY + timeOfDay, zone);
+					if (occurrence > this.until) {
+						return last;
+					}
+					last = occurrence;
+					found++;
+					emptyUntil = candidates[c] + DAYS_IN_400_YEARS;
+				}
+			}
+			if (n == 0 && this.periodStart(startDay, period) > emptyUntil) {
+				break;
+			}
+			if (this.periodStart(startDay, period) > LAST_DAY) {
+				return this.until;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Finds the first occurrence that starts at or after the given time.
+	 *
+	 * @param start
+	 *            The start of the first occurrence in milliseconds.
+	 * @param zone
+	 *            The {@link TimeZone} of the event.
+	 * @param from
+	 *            The time from which to look, in milliseconds.
+	 * @param lastStart
+	 *            The latest allowed start, see getLastStart().
+	 * @return The start of the occurrence in milliseconds, or Long.MAX_VALUE
+	 *         if there is none.
+	 */
+	public long next(long start, TimeZone zone, long from, long lastStart) {
+		if (from <= start) {
+			return start;
+		}
+		if (from > lastStart) {
+			return Long.MAX_VALUE;
+		}
+		long startLocal = start + zone.getOffset(start);
+		long startDay = Math.floorDiv(startLocal, MILLIS_IN_DAY);
+		long timeOfDay = Math.floorMod(startLocal, MILLIS_IN_DAY);
+		// The day on which an occurrence at or after from can first start.
+		// One day is taken off to be safe around daylight saving changes.
+		long fromDay = Math.floorDiv(from + zone.getOffset(from) - timeOfDay,
+				MILLIS_IN_DAY) - 1;
+		int[] candidates = CANDIDATES.get();
+		long period = this.periodOf(startDay, Math.max(fromDay, startDay));
+		long giveUp = Math.max(fromDay, startDay) + DAYS_IN_400_YEARS;
+		while (this.periodStart(startDay, period) <= giveUp) {
+			int n = this.expand(startDay, period, candidates);
+			for (int c = 0; c < n; c++) {
+				if (candidates[c] <= startDay) {
+					continue;
+				}
+				long occurrence = ICalParser.localToUtc(candidates[c]
+						* MILLIS_IN_DAY + timeOfDay, zone);
+				if (occurrence > lastStart) {
+					return Long.MAX_VALUE;
+				}
+				if (occurrence >= from) {
+					return occurrence;
+				}
+			}
+			period++;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the rule as the value of an RRULE content line. The UNTIL time
+	 * is written in UTC, so it reads back the same in any time zone.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder rule = new StringBuilder(40);
+		rule.append("FREQ=");
+		rule.append(FREQUENCIES[this.frequency]);
+		if (this.interval != 1) {
+			rule.append(";INTERVAL=");
+			rule.append(this.interval);
+		}
+		if (this.count > 0) {
+			rule.append(";COUNT=");
+			rule.append(this.count);
+		} else if (this.until != Long.MAX_VALUE) {
+			rule.append(";UNTIL=");
+			appendDateTime(rule, this.until, TimeZone.getTimeZone("UTC"));
+			rule.append('Z');
+		}
+		if (this.dayWeekdays.length > 0) {
+			rule.append(";BYDAY=");
+			for (int d = 0; d < this.dayWeekdays.length; d++) {
+				if (d > 0) {
+					rule.append(',');
+				}
+				if (this.dayOrdinals[d] != 0) {
+					rule.append(this.dayOrdinals[d]);
+				}
+				rule.append(WEEKDAYS[this.dayWeekdays[d]]);
+			}
+		}
+		appendList(rule, ";BYMONTHDAY=", this.monthDays);
+		if (this.monthMask != 0) {
+			rule.append(";BYMONTH=");
+			boolean first = true;
+			for (int month = 1; month <= 12; month++) {
+				if ((this.monthMask & (1 << month)) != 0) {
+					if (!first) {
+						rule.append(',');
+					}
+					rule.append(month);
+					first = false;
+				}
+			}
+		}
+		appendList(rule, ";BYSETPOS=", this.setPositions);
+		if (this.weekStart != 1) {
+			rule.append(";WKST=");
+			rule.append(WEEKDAYS[this.weekStart]);
+		}
+		return rule.toString();
+	}
+
+	/**
+	 * Writes the given time as a local yyyymmddThhmmss date-time.
+	 *
+	 * @param builder
+	 *            The {@link StringBuilder} to append to.
+	 * @param time
+	 *            The time in milliseconds.
+	 * @param zone
+	 *            The {@link TimeZone} in which the local time is written.
+	 */
+	static void appendDateTime(StringBuilder builder, long time, TimeZone zone) {
+		long local = time + zone.getOffset(time);
+		long day = Math.floorDiv(local, MILLIS_IN_DAY);
+		int seconds = (int) (Math.floorMod(local, MILLIS_IN_DAY) / 1000);
+		int date = ICalParser.civilFromDays(day);
+		builder.append(date / 10000);
+		appendTwoDigits(builder, date / 100 % 100);
+		appendTwoDigits(builder, date % 100);
+		builder.append('T');
+		appendTwoDigits(builder, seconds / 3600);
+		appendTwoDigits(builder, seconds / 60 % 60);
+		appendTwoDigits(builder, seconds % 60);
+	}
+
+	// Expands one period of the rule into the days (as epoch days) on which an
+	// occurrence takes place, in ascending order. Returns the number of days.
+	private int expand(long startDay, long period, int[] days) {
+		int n = 0;
+		int startDate = ICalParser.civilFromDays(startDay);
+		switch (this.frequency) {
+		case DAILY: {
+			long day = startDay + period * this.interval;
+			int date = ICalParser.civilFromDays(day);
+			int month = date / 100 % 100;
+			int dayOfMonth = date % 100;
+			int length = ICalParser.daysInMonth(date / 10000, month);
+			if (this.monthAllowed(month)
+					&& this.monthDayMatches(dayOfMonth, length)
+					&& this.weekdayMatches(weekdayOf(day))) {
+				days[n++] = (int) day;
+			}
+			break;
+		}
+		case WEEKLY: {
+			long first = startDay
+					- Math.floorMod(weekdayOf(startDay) - this.weekStart, 7)
+					+ period * 7 * this.interval;
+			int startWeekday = weekdayOf(startDay);
+			for (long day = first; day < first + 7; day++) {
+				int weekday = weekdayOf(day);
+				boolean matches;
+				if (this.dayWeekdays.length == 0) {
+					matches = weekday == startWeekday;
+				} else {
+					matches = this.weekdayMatches(weekday);
+				}
+				int month = ICalParser.civilFromDays(day) / 100 % 100;
+				if (matches && this.monthAllowed(month)) {
+					days[n++] = (int) day;
+				}
+			}
+			break;
+		}
+		case MONTHLY: {
+			long months = (startDate / 10000) * 12L + startDate / 100 % 100 - 1
+					+ period * this.interval;
+			int year = (int) Math.floorDiv(months, 12);
+			int month = Math.floorMod(months, 12) + 1;
+			if (this.monthAllowed(month)) {
+				n = this.expandMonth(year, month, startDate % 100, false, days,
+						n);
+			}
+			break;
+		}
+		default: {
+			int year = (int) (startDate / 10000 + period * this.interval);
+			int startMonth = startDate / 100 % 100;
+			boolean plain = this.monthMask == 0 && this.monthDays.length == 0
+					&& this.dayWeekdays.length == 0;
+			for (int month = 1; month <= 12; month++) {
+				if ((this.monthMask != 0 && !this.monthAllowed(month))
+						|| (plain && month != startMonth)) {
+					continue;
+				}
+				// Without BYMONTH the BYDAY ordinals count within the year.
+				n = this.expandMonth(year, month, startDate % 100,
+						this.monthMask == 0, days, n);
+			}
+		}
+		}
+		return this.applySetPositions(days, n);
+	}
+
+	// Adds the matching days of one month to days, starting at index n.
+	private int expandMonth(int year, int month, int startDayOfMonth,
+			boolean yearlyOrdinals, int[] days, int n) {
+		int length = ICalParser.daysInMonth(year, month);
+		long first = ICalParser.daysFromCivil(year, month, 1);
+		boolean any = this.monthDays.length == 0
+				&& this.dayWeekdays.length == 0;
+		int dayOfYear = (int) (first - ICalParser.daysFromCivil(year, 1, 1)) + 1;
+		int yearLength = ICalParser.isLeapYear(year) ? 366 : 365;
+		for (int dayOfMonth = 1; dayOfMonth <= length; dayOfMonth++) {
+			long day = first + dayOfMonth - 1;
+			boolean matches;
+			if (any) {
+				matches = dayOfMonth == startDayOfMonth;
+			} else {
+				matches = this.monthDayMatches(dayOfMonth, length);
+				if (matches && this.dayWeekdays.length > 0) {
+					if (yearlyOrdinals) {
+						int d = dayOfYear + dayOfMonth - 1;
+						matches = this.dayMatches(weekdayOf(day), (d - 1) / 7 + 1,
+								-((yearLength - d) / 7 + 1));
+					} else {
+						matches = this.dayMatches(weekdayOf(day),
+								(dayOfMonth - 1) / 7 + 1,
+								-((length - dayOfMonth) / 7 + 1));
+					}
+				}
+			}
+			if (matches) {
+				days[n++] = (int) day;
+			}
+		}
+		return n;
+	}
+
+	// Keeps only the BYSETPOS positions of the first n days.
+	private int applySetPositions(int[] days, int n) {
+		if (this.setPositions.length == 0 || n == 0) {
+			return n;
+		}
+		int kept = 0;
+		// The positions are checked in day order so the result stays sorted.
+		for (int i = 0; i < n; i++) {
+			for (int position : this.setPositions) {
+				if (position == i + 1 || position == i - n) {
+					days[kept++] = days[i];
+					break;
+				}
+			}
+		}
+		return kept;
+	}
+
+	// Returns true if the rule has exactly one occurrence in each period:
+	// it has no BYxxx parts, and every month has the day of the start.
+	private boolean isPlain(long startDay) {
+		return this.dayWeekdays.length == 0 && this.monthDays.length == 0
+				&& this.monthMask == 0 && this.setPositions.length == 0
+				&& (this.frequency == DAILY || this.frequency == WEEKLY
+				|| ICalParser.civilFromDays(startDay) % 100 <= 28);
+	}
+
+	// Returns the start of the occurrence in the given period of a plain
+	// rule, or Long.MAX_VALUE if it comes after LAST_DAY.
+	private long plainStart(long startDay, long timeOfDay, TimeZone zone,
+			long period) {
+		int startDate = ICalParser.civilFromDays(startDay);
+		long day;
+		switch (this.frequency) {
+		case DAILY:
+		case WEEKLY:
+			long step = this.frequency == DAILY ? this.interval
+					: 7L * this.interval;
+			if (period > (LAST_DAY - startDay) / step) {
+				return Long.MAX_VALUE;
+			}
+			day = startDay + period * step;
+			break;
+		case MONTHLY:
+			long months = (startDate / 10000) * 12L + startDate / 100 % 100 - 1
+					+ period * this.interval;
+			if (Math.floorDiv(months, 12) > LAST_YEAR) {
+				return Long.MAX_VALUE;
+			}
+			day = ICalParser.daysFromCivil((int) Math.floorDiv(months, 12),
+					Math.floorMod(months, 12) + 1, startDate % 100);
+			break;
+		default:
+			long year = startDate / 10000 + period * this.interval;
+			if (year > LAST_YEAR) {
+				return Long.MAX_VALUE;
+			}
+			day = ICalParser.daysFromCivil((int) year, startDate / 100 % 100,
+					startDate % 100);
+		}
+		return ICalParser.localToUtc(day * MILLIS_IN_DAY + timeOfDay, zone);
+	}
+
+	// Returns the index of the period that contains the given day.
+	private long periodOf(long startDay, long day) {
+		int startDate = ICalParser.civilFromDays(startDay);
+		int date = ICalParser.civilFromDays(day);
+		switch (this.frequency) {
+		case DAILY:
+			return (day - startDay) / this.interval;
+		case WEEKLY:
+			long firstWeek = startDay
+					- Math.floorMod(weekdayOf(startDay) - this.weekStart, 7);
+			return (day - firstWeek) / (7L * this.interval);
+		case MONTHLY:
+			long months = (date / 10000 - startDate / 10000) * 12L
+					+ date / 100 % 100 - startDate / 100 % 100;
+			return months / this.interval;
+		default:
+			return (date / 10000 - startDate / 10000) / this.interval;
+		}
+	}
+
+	// Returns the first day of the given period.
+	private long periodStart(long startDay, long period) {
+		int startDate = ICalParser.civilFromDays(startDay);
+		switch (this.frequency) {
+		case DAILY:
+			return startDay + period * this.interval;
+		case WEEKLY:
+			return startDay - Math.floorMod(weekdayOf(startDay) - this.weekStart, 7)
+					+ period * 7 * this.interval;
+		case MONTHLY:
+			long months = (startDate / 10000) * 12L + startDate / 100 % 100 - 1
+					+ period * this.interval;
+			return ICalParser.daysFromCivil((int) Math.floorDiv(months, 12),
+					Math.floorMod(months, 12) + 1, 1);
+		default:
+			return ICalParser.daysFromCivil((int) (startDate / 10000 + period
+					* this.interval), 1, 1);
+		}
+	}
+
+	private boolean monthAllowed(int month) {
+		return this.monthMask == 0 || (this.monthMask & (1 << month)) != 0;
+	}
+
+	private boolean monthDayMatches(int dayOfMonth, int length) {
+		if (this.monthDays.length == 0) {
+			return true;
+		}
+		for (int monthDay : this.monthDays) {
+			if (monthDay == dayOfMonth || monthDay == dayOfMonth - length - 1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Checks only the weekdays of BYDAY, the ordinals are ignored.
+	private boolean weekdayMatches(int weekday) {
+		if (this.dayWeekdays.length == 0) {
+			return true;
+		}
+		for (int d : this.dayWeekdays) {
+			if (d == weekday) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean dayMatches(int weekday, int nth, int nthFromEnd) {
+		for (int d = 0; d < this.dayWeekdays.length; d++) {
+			int ordinal = this.dayOrdinals[d];
+			if (this.dayWeekdays[d] == weekday
+					&& (ordinal == 0 || ordinal == nth || ordinal == nthFromEnd)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// 1970-01-01 was a Thursday.
+	private static int weekdayOf(long epochDay) {
+		return Math.floorMod(epochDay + 3, 7) + 1;
+	}
+
+	private static int weekdayOf(String name)
+			throws CorruptedCalendarFileException {
+		for (int d = 1; d < WEEKDAYS.length; d++) {
+			if (WEEKDAYS[d].equals(name)) {
+				return d;
+			}
+		}
+		throw new CorruptedCalendarFileException("Unknown weekday " + name);
+	}
+
+	private static int frequencyOf(int field) {
+		switch (field) {
+		case Calendar.DAY_OF_YEAR:
+		case Calendar.DAY_OF_MONTH:
+		case Calendar.DAY_OF_WEEK:
+			return DAILY;
+		case Calendar.WEEK_OF_YEAR:
+		case Calendar.WEEK_OF_MONTH:
+			return WEEKLY;
+		case Calendar.MONTH:
+			return MONTHLY;
+		case Calendar.YEAR:
+			return YEARLY;
+		}
+		throw new IllegalArgumentException("The field " + field
+				+ " cannot be used for repetition");
+	}
+
+	private static int parseInt(String value, int min, int max)
+			throws CorruptedCalendarFileException {
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result < min || result > max) {
+				throw new CorruptedCalendarFileException(
+						"A recurrence rule value is out of bounds: " + value);
+			}
+			return result;
+		} catch (NumberFormatException e) {
+			throw new CorruptedCalendarFileException(
+					"A recurrence rule value is not a number: " + value, e);
+		}
+	}
+
+	private static int[] parseList(String value, int min, int max)
+			throws CorruptedCalendarFileException {
+		String[] parts = value.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			String part = parts[i].trim();
+			if (part.startsWith("+")) {
+				part = part.substring(1);
+			}
+			result[i] = parseInt(part, min, max);
+			if (result[i] == 0) {
+				throw new CorruptedCalendarFileException(
+						"A recurrence rule value cannot be zero");
+			}
+		}
+		return result;
+	}
+
+	private static void appendList(StringBuilder builder, String name,
+			int[] values) {
+		if (values.length == 0) {
+			return;
+		}
+		builder.append(name);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(values[i]);
+		}
+	}
+
+	private static void appendTwoDigits(StringBuilder builder, int value) {
+		if (value < 10) {
+			builder.append('0');
+		}
+		builder.append(value);
+	}
+
+}
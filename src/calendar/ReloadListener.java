@@ -0,0 +1,29 @@
+package calendar;
+
+/**
+ * The interface ReloadListener is told when a {@link CalendarWatcher} has
+ * applied the changes made to a calendar file by others. The methods are
+ * called on the thread that watches the file.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public interface ReloadListener {
+	/**
+	 * Called after the changes in the file have been applied to the calendar.
+	 *
+	 * @param changes
+	 *            The number of events that were added, changed or removed.
+	 */
+	public void reloaded(int changes);
+
+	/**
+	 * Called if the changed file could not be read. The calendar is left as
+	 * it was, and the file is read again when it is next changed.
+	 *
+	 * @param error
+	 *            The exception that stopped the reload.
+	 */
+	public void failed(Exception error);
+}
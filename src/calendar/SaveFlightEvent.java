@@ -0,0 +1,36 @@
+package calendar;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A SaveFlightEvent is recorded by Java Flight Recorder when the events of a
+ * {@link TCalendar} are written as an .ics file.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+@Name("calendar.Save")
+@Label("Calendar Save")
+@Category("TCalendar")
+@Description("The events of a calendar written as an .ics file")
+class SaveFlightEvent extends jdk.jfr.Event {
+
+	@Label("File")
+	@Description("The file written, or null if written into a stream")
+	String file;
+
+	@Label("Size")
+	@Description("The octets written")
+	@DataAmount
+	long size;
+
+	@Label("Events")
+	@Description("The number of events written")
+	int events;
+
+}
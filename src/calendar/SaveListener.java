@@ -0,0 +1,42 @@
+package calendar;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The interface SaveListener receives the progress and the outcome of a save
+ * started with {@link TCalendar#saveInBackground(File, SaveListener)}. The
+ * methods are called on the thread that does the saving, not on the thread
+ * that started it.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public interface SaveListener {
+	/**
+	 * Called from time to time while the events are written.
+	 *
+	 * @param written
+	 *            The number of events written so far.
+	 * @param total
+	 *            The number of events in the calendar.
+	 */
+	public void progress(int written, int total);
+
+	/**
+	 * Called once the file has been written and renamed into place.
+	 *
+	 * @param saved
+	 *            The file that was written.
+	 */
+	public void saved(File saved);
+
+	/**
+	 * Called if the save fails. The file is left as it was before the save.
+	 *
+	 * @param error
+	 *            The exception that stopped the save.
+	 */
+	public void failed(IOException error);
+}
@@ -0,0 +1,249 @@
+package calendar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A SnapshotWriter writes a list of events into an .ics file. The file is
+ * written under a temporary name in the same directory and then renamed over
+ * the target, so that the target is never left half written.
+ *
+ * If the layout of an earlier file is given, the events that have not changed
+ * since it was written are copied from it byte for byte with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * instead of being serialized again, so the work done for a save depends
+ * mostly on the number of changed events.
+ *
+ * Files whose names end with .gz are compressed with gzip as they are written.
+ * Their layout is not recorded, as the offsets of a compressed file cannot be
+ * copied from.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+class SnapshotWriter {
+
+	private static final int PROGRESS_INTERVAL = 1024; // Events per report.
+	private static final int BUFFER_SIZE = 65536;
+
+	private File target;
+	private ArrayList<Event> events;
+	private ArrayList<Event> live; // The events the copies were made from.
+	private FileLayout base;
+	private Set<Event> dirty;
+	private SaveListener listener;
+
+	/**
+	 * Creates a SnapshotWriter that serializes all the events.
+	 *
+	 * @param target
+	 *            The file to write.
+	 * @param events
+	 *            The events to write.
+	 */
+	SnapshotWriter(File target, ArrayList<Event> events) {
+		this.target = target;
+		this.events = events;
+		this.live = events;
+	}
+
+	/**
+	 * Sets a {@link SaveListener} to report the progress to.
+	 *
+	 * @param listener
+	 *            The listener, or null.
+	 */
+	void setListener(SaveListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Allows unchanged events to be copied from an earlier file.
+	 *
+	 * @param live
+	 *            The events in the calendar, in the same order as the events
+	 *            to write. The layouts are keyed by these.
+	 * @param base
+	 *            The layout of the earlier file, or null.
+	 * @param dirty
+	 *            The events that have been changed since the earlier file was
+	 *            written.
+	 */
+	void setBase(ArrayList<Event> live, FileLayout base, Set<Event> dirty) {
+		this.live = live;
+		this.base = base;
+		this.dirty = dirty;
+	}
+
+	/**
+	 * Writes the file.
+	 *
+	 * @return The layout of the written file, or null if it is compressed.
+	 * @throws IOException
+	 *             If the file cannot be written. The target is then left as
+	 *             it was.
+	 */
+	FileLayout write() throws IOException {
+		SaveFlightEvent flight = new SaveFlightEvent();
+		flight.begin();
+		File directory = this.target.getAbsoluteFile().getParentFile();
+		File temporary = File.createTempFile("tcal", ".tmp", directory);
+		boolean compressed = CalendarFiles.isCompressed(this.target);
+		FileLayout layout = null;
+		boolean written = false;
+		try {
+			FileOutputStream out = new FileOutputStream(temporary);
+			FileInputStream source = null;
+			try {
+				if (compressed) {
+					GZIPOutputStream zip = new GZIPOutputStream(out,
+							BUFFER_SIZE);
+					this.writeEvents(new ICalWriter(new OutputStreamWriter(
+							zip, "UTF-8")), null, null, null);
+					zip.finish();
+				} else {
+					layout = new FileLayout(this.target, this.events.size());
+					if (this.base != null && this.base.isCurrent()) {
+						source = new FileInputStream(this.base.getFile());
+					}
+					this.writeEvents(new ICalWriter(out.getChannel()), out
+							.getChannel(), source == null ? null : source
+							.getChannel(), layout);
+				}
+				out.getChannel().force(true);
+			} finally {
+				if (source != null) {
+					source.close();
+				}
+				out.close();
+			}
+			try {
+				Files.move(temporary.toPath(), this.target.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), this.target.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (layout != null) {
+				layout.seal();
+			}
+			written = true;
+			flight.end();
+			if (flight.shouldCommit()) {
+				flight.file = this.target.getPath();
+				flight.size = this.target.length();
+				flight.events = this.events.size();
+				flight.commit();
+			}
+		} finally {
+			if (!written) {
+				temporary.delete();
+			}
+		}
+		return layout;
+	}
+
+	/**
+	 * Writes the lines that start a VCALENDAR.
+	 *
+	 * @param writer
+	 *            The {@link ICalWriter} to write into.
+	 * @throws IOException
+	 *             If the writer fails.
+	 */
+	static void writeHeader(ICalWriter writer) throws IOException {
+		writer.property("BEGIN", "VCALENDAR");
+		writer.property("PRODID", "aisopuro.TCalendar@tkk");
+		writer.property("VERSION", "2.0");
+	}
+
+	/**
+	 * Writes the line that ends a VCALENDAR.
+	 *
+	 * @param writer
+	 *            The {@link ICalWriter} to write into.
+	 * @throws IOException
+	 *             If the writer fails.
+	 */
+	static void writeFooter(ICalWriter writer) throws IOException {
+		writer.property("END", "VCALENDAR");
+	}
+
+	// Writes the calendar through writer into out, copying what it can from
+	// source, and records where each event went into layout. Only writer is
+	// needed if source is null, and layout may be null.
+	private void writeEvents(ICalWriter writer, FileChannel out,
+			FileChannel source, FileLayout layout) throws IOException {
+		writeHeader(writer);
+		long position = writer.getOctets();
+		long runStart = 0; // The bytes of source to be copied next.
+		long runEnd = 0;
+		int total = this.events.size();
+		for (int i = 0; i < total; i++) {
+			Event event = this.live.get(i);
+			int old = -1;
+			if (source != null && !this.dirty.contains(event)) {
+				old = this.base.indexOf(event);
+			}
+			long start = position;
+			if (old >= 0) {
+				long from = this.base.getStart(old);
+				long to = this.base.getEnd(old);
+				// Events that were next to each other are copied at once.
+				if (from != runEnd) {
+					copy(writer, source, out, runStart, runEnd);
+					runStart = from;
+				}
+				runEnd = to;
+				position += to - from;
+			} else {
+				copy(writer, source, out, runStart, runEnd);
+				runStart = 0;
+				runEnd = 0;
+				long before = writer.getOctets();
+				this.events.get(i).writeTo(writer);
+				position += writer.getOctets() - before;
+			}
+			if (layout != null) {
+				layout.add(event, start, position);
+			}
+			if (this.listener != null && (i + 1) % PROGRESS_INTERVAL == 0) {
+				this.listener.progress(i + 1, total);
+			}
+		}
+		copy(writer, source, out, runStart, runEnd);
+		writeFooter(writer);
+		writer.flush();
+		if (this.listener != null) {
+			this.listener.progress(total, total);
+		}
+	}
+
+	// Copies the bytes from start to end of source into out, after what has
+	// been written through writer.
+	private static void copy(ICalWriter writer, FileChannel source,
+			FileChannel out, long start, long end) throws IOException {
+		if (end <= start) {
+			return;
+		}
+		writer.flush();
+		long count = end - start;
+		long done = 0;
+		while (done < count) {
+			done += source.transferTo(start + done, count - done, out);
+		}
+	}
+
+}
@@ -1,18 +1,36 @@
 package calendar;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.sql.Time;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The class TCalendar represents a calendar which can sort, save, load and
@@ -21,6 +39,29 @@ import java.util.TreeMap;
  * are not fully iCal-compatible: loading and saving a preexisting .ics file
  * from another application will almost certainly incur data loss.
  * 
+ * Once a journal has been opened with {@link #openJournal(File)} or the
+ * calendar has been saved with {@link #saveInBackground(File, SaveListener)},
+ * every change is also appended to a {@link ChangeJournal} next to the .ics
+ * file, so that changes are persisted without rewriting the whole file. The
+ * journal is compacted into the .ics file in the background once it grows
+ * large.
+ * 
+ * A calendar opened with {@link #openLazily(File)} only parses the events of
+ * its file that a query touches, so the first week can be shown without
+ * parsing the whole file.
+ * 
+ * The changes made to a calendar are told to its {@link CalendarListener}s
+ * and to the subscribers of {@link #getChanges()}, in batches: one for every
+ * call that changes the calendar, or one for all the changes made between
+ * {@link #begin()} and {@link #commit()}.
+ * 
+ * How many times the events are added, removed, queried, loaded and saved,
+ * and how long that takes, is kept by {@link CalendarMetrics}.
+ * 
+ * The totals of each day of a month are kept in a {@link MonthAggregate}
+ * once asked for, until an event in the month changes, so the month and year
+ * views need not go through the events.
+ * 
  * @author aisopuro@tkk
  * 
  */
@@ -28,16 +69,50 @@ public class TCalendar {
 
 	public static String UID = "TCalendar@aisopuro.tkk";
 
-	private TreeMap<GregorianCalendar, Event> nonRepeaters; // Keys are
-	// startDate.
+	private static final Random RANDOM = new Random();
+
+	// Saves calendars in the background, one at a time.
+	private static final ExecutorService SAVER = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "TCalendar saver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Keys are start times in milliseconds, several events may start at once.
+	private TreeMap<Long, ArrayList<Event>> nonRepeaters;
 	private ArrayList<Event> repeaters;
+	private HashMap<String, Event> byUID;
+	private ChangeJournal journal; // null if changes are not journaled.
+	private ArrayList<ChangeJournal> pending; // Journals of unfinished saves.
+	private int generation; // Changed when the journal is opened or closed.
+	private Set<Event> dirty; // Changed since the last save.
+	private FileLayout layout; // Where the events are in the last saved file.
+	private CalendarIndex index; // The events not parsed yet, or null.
+	private ArrayList<CalendarListener> listeners;
+	private ChangePublisher publisher; // null until asked for.
+	// Where each event is, kept once someone is told about the changes.
+	private IdentityHashMap<Event, long[]> spans;
+	private ArrayList<CalendarChange> changes; // Not told yet.
+	private int depth; // The nesting of begin() and commit().
+	// By the start of the month, made when first asked for.
+	private TreeMap<Long, MonthAggregate> aggregates;
+	private long longest; // The longest non-repeating event, if parsed or not.
 
 	/**
 	 * Creates an empty TCalendar object with no Events.
 	 */
 	public TCalendar() {
 		this.repeaters = new ArrayList<Event>();
-		this.nonRepeaters = new TreeMap<GregorianCalendar, Event>();
+		this.nonRepeaters = new TreeMap<Long, ArrayList<Event>>();
+		this.byUID = new HashMap<String, Event>();
+		this.pending = new ArrayList<ChangeJournal>();
+		this.dirty = newEventSet();
+		this.listeners = new ArrayList<CalendarListener>();
+		this.changes = new ArrayList<CalendarChange>();
+		this.aggregates = new TreeMap<Long, MonthAggregate>();
 	}
 
 	/**
@@ -56,8 +131,7 @@ public class TCalendar {
 	 */
 	public TCalendar(File fileToRead) throws FileNotFoundException,
 			IOException, CorruptedCalendarFileException {
-		this.repeaters = new ArrayList<Event>();
-		this.nonRepeaters = new TreeMap<GregorianCalendar, Event>();
+		this();
 		if (fileToRead.canRead()) {
 			this.loadCalendar(fileToRead);
 		} else {
@@ -65,6 +139,57 @@ public class TCalendar {
 		}
 	}
 
+	/**
+	 * Opens an .ics file lazily: the file is only scanned for where its events
+	 * are and when they start, and the events are parsed when a query first
+	 * touches them. The repeating events are parsed at once. The file must not
+	 * be changed by others while the calendar is in use, until the calendar
+	 * has been saved. Compressed files are loaded as a whole, as they cannot
+	 * be read from an offset.
+	 * 
+	 * @param file
+	 *            The .ics file to open. If it cannot be read, the calendar is
+	 *            empty.
+	 * @return The calendar.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws CorruptedCalendarFileException
+	 *             If the VCALENDAR header is missing, or a repeating event is
+	 *             corrupted. Other corrupted events are only found once they
+	 *             are parsed.
+	 */
+	public static TCalendar openLazily(File file) throws IOException,
+			CorruptedCalendarFileException {
+		if (!file.canRead() || !CalendarFiles.isPlainText(file)) {
+			return new TCalendar(file);
+		}
+		file = file.getAbsoluteFile();
+		TCalendar calendar = new TCalendar();
+		CalendarIndex index = CalendarIndex.scan(file);
+		int count = index.size() + index.getRepeaterCount();
+		calendar.layout = new FileLayout(file, count);
+		calendar.layout.seal();
+		FileChannel channel = index.open();
+		try {
+			for (int i = 0; i < index.getRepeaterCount(); i++) {
+				long offset = index.getRepeaterOffset(i);
+				int length = index.getRepeaterLength(i);
+				Event event = calendar.parseAt(channel, offset, length);
+				calendar.file(event);
+				calendar.layout.add(event, offset, offset + length);
+			}
+		} finally {
+			channel.close();
+		}
+		if (index.size() > 0) {
+			calendar.index = index;
+			// Events that are not parsed yet may already be taking place at
+			// the start of a query.
+			calendar.longest = index.getLongest();
+		}
+		return calendar;
+	}
+
 	/**
 	 * Returns an ArrayList containing a day's events, starting from the time of
 	 * date and ending 24h later.
@@ -76,21 +201,89 @@ public class TCalendar {
 	 *         day, the ArrayList will be empty.
 	 */
 	public ArrayList<Event> getDay(GregorianCalendar date) {
-		ArrayList<Event> daysEvents = new ArrayList<Event>();
-		GregorianCalendar end = (GregorianCalendar) date.clone();
-		end = DateCalc.endOf(end, Calendar.DAY_OF_MONTH);
-		if (!this.nonRepeaters.isEmpty()) {
-			daysEvents.addAll(this.nonRepeaters.subMap(date, end).values());
+		long started = CalendarMetrics.start();
+		try {
+			GregorianCalendar end = (GregorianCalendar) date.clone();
+			end = DateCalc.endOf(end, Calendar.DAY_OF_MONTH);
+			return this.getEvents(date, end);
+		} finally {
+			CalendarMetrics.GET_DAY.record(started);
+		}
+	}
+
+	/**
+	 * Returns the non-repeating events that start between two times, and the
+	 * repeating events that occur between them.
+	 * 
+	 * @param from
+	 *            The start of the range.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @return An ArrayList containing the events. The non-repeating events are
+	 *         in order of their start, followed by the repeating ones.
+	 */
+	public synchronized ArrayList<Event> getEvents(GregorianCalendar from,
+			GregorianCalendar to) {
+		QueryFlightEvent flight = new QueryFlightEvent();
+		flight.begin();
+		ArrayList<Event> events = new ArrayList<Event>();
+		this.materialize(from.getTimeInMillis(), to.getTimeInMillis());
+		for (ArrayList<Event> starting : this.nonRepeaters.subMap(
+				from.getTimeInMillis(), to.getTimeInMillis()).values()) {
+			events.addAll(starting);
 		}
 
 		if (!this.repeaters.isEmpty()) {
 			for (Event currentEvent : this.repeaters) {
-				if (currentEvent.isValid(date, end)) {
-					daysEvents.add(currentEvent);
+				if (currentEvent.isValid(from, to)) {
+					events.add(currentEvent);
+				}
+			}
+		}
+		commit(flight, "getEvents", from, to, events.size());
+		return events;
+	}
+
+	/**
+	 * Returns the events that take place between two times: the non-repeating
+	 * events that start before the end of the range and end after its start,
+	 * and the repeating events that occur between them. Unlike
+	 * {@link #getEvents(GregorianCalendar, GregorianCalendar)}, this includes
+	 * the events that are already going on at the start of the range.
+	 * 
+	 * @param from
+	 *            The start of the range.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @return An ArrayList containing the events. The non-repeating events are
+	 *         in order of their start, followed by the repeating ones.
+	 */
+	public synchronized ArrayList<Event> getOverlapping(
+			GregorianCalendar from, GregorianCalendar to) {
+		QueryFlightEvent flight = new QueryFlightEvent();
+		flight.begin();
+		ArrayList<Event> events = new ArrayList<Event>();
+		long start = from.getTimeInMillis();
+		long end = to.getTimeInMillis();
+		// No event that starts earlier can still be taking place at start.
+		long since = start - this.longest;
+		this.materialize(since, end);
+		for (Map.Entry<Long, ArrayList<Event>> starting : this.nonRepeaters
+				.subMap(since, end).entrySet()) {
+			long time = starting.getKey().longValue();
+			for (Event event : starting.getValue()) {
+				if (time >= start || time + event.getDuration() > start) {
+					events.add(event);
 				}
 			}
 		}
-		return daysEvents;
+		for (Event event : this.repeaters) {
+			if (event.isValid(from, to)) {
+				events.add(event);
+			}
+		}
+		commit(flight, "getOverlapping", from, to, events.size());
+		return events;
 	}
 
 	/**
@@ -105,15 +298,48 @@ public class TCalendar {
 	 *         priority that month. Note, the events are not necessarily in
 	 *         order of occurrence.
 	 */
-	public ArrayList<Event> getMonthsEvents(GregorianCalendar date) {
+	public synchronized ArrayList<Event> getMonthsEvents(
+			GregorianCalendar date) {
+		long started = CalendarMetrics.start();
+		QueryFlightEvent flight = new QueryFlightEvent();
+		flight.begin();
+		try {
+			ArrayList<Event> events = this.findMonthsEvents(date);
+			if (flight.isEnabled()) {
+				// date has been moved to the start of the month.
+				commit(flight, "getMonthsEvents", date, DateCalc.endOf(
+						(GregorianCalendar) date.clone(), Calendar.MONTH),
+						events.size());
+			}
+			return events;
+		} finally {
+			CalendarMetrics.GET_MONTHS_EVENTS.record(started);
+		}
+	}
+
+	// Commits the flight event of a query, if it is being recorded.
+	private static void commit(QueryFlightEvent flight, String query,
+			GregorianCalendar from, GregorianCalendar to, int results) {
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.query = query;
+			flight.from = from.getTimeInMillis();
+			flight.to = to.getTimeInMillis();
+			flight.results = results;
+			flight.commit();
+		}
+	}
+
+	// Finds the high priority events of the month of date.
+	private ArrayList<Event> findMonthsEvents(GregorianCalendar date) {
 		ArrayList<Event> monthsEvents = new ArrayList<Event>();
 		GregorianCalendar end = (GregorianCalendar) date.clone();
 		date = DateCalc.startOf(date, Calendar.MONTH);
 		end = DateCalc.endOf(end, Calendar.MONTH);
-		if (!this.nonRepeaters.isEmpty()) {
-			Collection<Event> monthsNonRepeaters = this.nonRepeaters.subMap(
-					date, end).values();
-			for (Event currentEvent : monthsNonRepeaters) {
+		this.materialize(date.getTimeInMillis(), end.getTimeInMillis());
+		for (ArrayList<Event> starting : this.nonRepeaters.subMap(
+				date.getTimeInMillis(), end.getTimeInMillis()).values()) {
+			for (Event currentEvent : starting) {
 				if (currentEvent.isHighPriority()) {
 					monthsEvents.add(currentEvent);
 				}
@@ -132,34 +358,927 @@ public class TCalendar {
 	}
 
 	/**
-	 * Adds an {@link Event} to this calendar.
+	 * Returns the totals of each day of a month. They are worked out the
+	 * first time and kept until an event that takes place in the month is
+	 * added, removed or changed.
+	 * 
+	 * @param date
+	 *            A date in the month.
+	 * @return The {@link MonthAggregate} of the month.
+	 */
+	public synchronized MonthAggregate getMonthAggregate(
+			GregorianCalendar date) {
+		long started = CalendarMetrics.start();
+		QueryFlightEvent flight = new QueryFlightEvent();
+		flight.begin();
+		try {
+			GregorianCalendar first = DateCalc.startOf(
+					(GregorianCalendar) date.clone(), Calendar.MONTH);
+			Long key = Long.valueOf(first.getTimeInMillis());
+			MonthAggregate aggregate = this.aggregates.get(key);
+			if (aggregate == null) {
+				aggregate = this.aggregate(first);
+				this.aggregates.put(key, aggregate);
+			}
+			if (flight.isEnabled()) {
+				GregorianCalendar end = (GregorianCalendar) first.clone();
+				end.add(Calendar.MONTH, 1);
+				commit(flight, "getMonthAggregate", first, end, aggregate
+						.getDays());
+			}
+			return aggregate;
+		} finally {
+			CalendarMetrics.GET_MONTH_AGGREGATE.record(started);
+		}
+	}
+
+	// Sums up the events that take place in the month starting at first.
+	private MonthAggregate aggregate(GregorianCalendar first) {
+		MonthAggregate aggregate = new MonthAggregate(first);
+		long from = aggregate.getStart();
+		long to = aggregate.getEnd();
+		// No event that starts earlier can reach the month.
+		long since = from - this.longest;
+		this.materialize(since, to);
+		for (Map.Entry<Long, ArrayList<Event>> starting : this.nonRepeaters
+				.subMap(since, to).entrySet()) {
+			long start = starting.getKey().longValue();
+			for (Event event : starting.getValue()) {
+				aggregate.add(event, start, start + event.getDuration());
+			}
+		}
+		for (Event event : this.repeaters) {
+			long duration = event.getDuration();
+			long next = event.getNextOccurrence(from);
+			while (next < to) {
+				aggregate.add(event, next, next + duration);
+				next = event.getNextOccurrence(next + Math.max(duration, 1));
+			}
+		}
+		return aggregate;
+	}
+
+	/**
+	 * Adds an {@link Event} to this calendar. An Event without a UID is given
+	 * a new one (see {@link #newUID()}).
 	 * 
 	 * @param event
 	 *            The {@link Event} to be added.
+	 * @throws UncheckedIOException
+	 *             If the change could not be written into the journal. The
+	 *             Event is added nevertheless.
+	 */
+	public synchronized void addEvent(Event event) {
+		long started = CalendarMetrics.start();
+		try {
+			if (event.getUID() == null) {
+				event.setUID(newUID());
+			}
+			this.file(event);
+			this.dirty.add(event);
+			try {
+				this.record(ChangeJournal.ADD, event);
+			} finally {
+				this.changed(CalendarChange.ADDED, event, null);
+			}
+		} finally {
+			CalendarMetrics.ADD_EVENT.record(started);
+		}
+	}
+
+	/**
+	 * Removes an {@link Event} from this calendar.
+	 * 
+	 * @param target
+	 *            The {@link Event} to be removed.
+	 * @throws UncheckedIOException
+	 *             If the change could not be written into the journal. The
+	 *             Event is removed nevertheless.
 	 */
-	public void addEvent(Event event) {
+	public synchronized void removeEvent(Event target) {
+		long started = CalendarMetrics.start();
+		try {
+			long[] span = this.spanOf(target);
+			if (this.unfile(target)) {
+				this.dirty.remove(target);
+				if (this.layout != null) {
+					this.layout.forget(target);
+				}
+				try {
+					this.record(ChangeJournal.REMOVE, target);
+				} finally {
+					this.changed(CalendarChange.REMOVED, target, span);
+				}
+			}
+		} finally {
+			CalendarMetrics.REMOVE_EVENT.record(started);
+		}
+	}
+
+	/**
+	 * Tells the calendar that an {@link Event} in it has been changed, so that
+	 * it is filed according to its new start and repeating rule, and the
+	 * change is journaled. This must be called after the Event's setters.
+	 * 
+	 * @param target
+	 *            The {@link Event} that was changed.
+	 * @throws UncheckedIOException
+	 *             If the change could not be written into the journal.
+	 */
+	public synchronized void updateEvent(Event target) {
+		long[] span = this.spanOf(target);
+		this.unfile(target);
+		this.file(target);
+		this.dirty.add(target);
+		try {
+			this.record(ChangeJournal.UPDATE, target);
+		} finally {
+			this.changed(CalendarChange.MODIFIED, target, span);
+		}
+	}
+
+	/**
+	 * Returns all the events in this calendar: first the non-repeating ones
+	 * in order of their start, then the repeating ones.
+	 * 
+	 * @return A new {@link ArrayList} containing the events.
+	 */
+	public synchronized ArrayList<Event> getAllEvents() {
+		this.materialize(Long.MIN_VALUE, Long.MAX_VALUE);
+		ArrayList<Event> events = new ArrayList<Event>(this.byUID.size());
+		for (ArrayList<Event> starting : this.nonRepeaters.values()) {
+			events.addAll(starting);
+		}
+		events.addAll(this.repeaters);
+		return events;
+	}
+
+	/**
+	 * Adds a {@link CalendarListener} to be told about the changes made to
+	 * this calendar from now on.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 */
+	public synchronized void addCalendarListener(CalendarListener listener) {
+		this.observe();
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Removes a {@link CalendarListener}.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 */
+	public synchronized void removeCalendarListener(CalendarListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Returns a {@link Flow.Publisher} of the changes made to this calendar.
+	 * Its subscribers are given the batches of changes on a background thread
+	 * as they request them. The batches a subscriber has not requested yet
+	 * are queued, and merged once many are queued, so that a slow subscriber
+	 * does not hold up the calendar.
+	 * 
+	 * @return The publisher.
+	 */
+	public synchronized Flow.Publisher<List<CalendarChange>> getChanges() {
+		if (this.publisher == null) {
+			this.observe();
+			this.publisher = new ChangePublisher();
+		}
+		return this.publisher;
+	}
+
+	/**
+	 * Starts a batch of changes that are told to the listeners together by
+	 * the matching commit(). Batches may be nested.
+	 */
+	public synchronized void begin() {
+		this.depth++;
+	}
+
+	/**
+	 * Ends a batch started with begin(), and tells the listeners about its
+	 * changes once the outermost batch ends. A listener that throws does not
+	 * keep the others from being told.
+	 * 
+	 * @throws RuntimeException
+	 *             The first exception thrown by a listener, once all of them
+	 *             have been told.
+	 */
+	public synchronized void commit() {
+		if (this.depth > 0) {
+			this.depth--;
+		}
+		if (this.depth == 0 && !this.changes.isEmpty()) {
+			List<CalendarChange> batch = Collections
+					.unmodifiableList(CalendarChange.merge(this.changes));
+			this.changes = new ArrayList<CalendarChange>();
+			if (this.publisher != null) {
+				this.publisher.publish(batch);
+			}
+			RuntimeException failure = null;
+			for (CalendarListener listener : new ArrayList<CalendarListener>(
+					this.listeners)) {
+				try {
+					listener.calendarChanged(batch);
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					} else {
+						failure.addSuppressed(e);
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	// Starts keeping track of where the events are, so that the changes to
+	// them can be told.
+	private void observe() {
+		if (this.spans != null) {
+			return;
+		}
+		this.spans = new IdentityHashMap<Event, long[]>();
+		for (ArrayList<Event> starting : this.nonRepeaters.values()) {
+			for (Event event : starting) {
+				this.spans.put(event, span(event));
+			}
+		}
+		for (Event event : this.repeaters) {
+			this.spans.put(event, span(event));
+		}
+	}
+
+	// Returns where event was when it was last filed, or null if no one is
+	// told about the changes.
+	private long[] spanOf(Event event) {
+		return this.spans == null ? null : this.spans.get(event);
+	}
+
+	// Records a change to be told once the current batch ends. The range of
+	// the change covers where the event was before, and where it is now
+	// unless it was removed.
+	private void changed(int type, Event event, long[] before) {
+		if (this.spans == null) {
+			return;
+		}
+		long[] after = type == CalendarChange.REMOVED ? null : this.spans
+				.get(event);
+		long from = Long.MAX_VALUE;
+		long to = Long.MIN_VALUE;
+		for (long[] span : new long[][] { before, after }) {
+			if (span != null) {
+				from = Math.min(from, span[0]);
+				to = Math.max(to, span[1]);
+			}
+		}
+		if (from > to) {
+			from = event.getStart().getTimeInMillis();
+			to = from;
+		}
+		this.changes.add(new CalendarChange(type, event, from, to));
+		this.begin();
+		this.commit();
+	}
+
+	// Returns the range of time an event takes, until its expiration if it
+	// repeats.
+	private static long[] span(Event event) {
+		long start = event.getStart().getTimeInMillis();
+		long end = event.getEnd().getTimeInMillis();
+		if (event.isRepeating()) {
+			GregorianCalendar expiration = event.getExpiration();
+			end = expiration == null ? Long.MAX_VALUE : Math.max(expiration
+					.getTimeInMillis(), end);
+		}
+		return new long[] { start, end };
+	}
+
+	// Parses the events of a lazily opened file that start from from to to,
+	// unless they have been parsed already.
+	private void materialize(long from, long to) {
+		if (this.index == null) {
+			return;
+		}
+		int first = this.index.firstStartingAt(from);
+		int last = to == Long.MAX_VALUE ? this.index.size() : this.index
+				.firstStartingAt(to);
+		int[] positions = new int[last - first];
+		for (int i = first; i < last; i++) {
+			positions[i - first] = i;
+		}
+		this.materialize(positions);
+	}
+
+	// Parses the events of a lazily opened file at the given positions of the
+	// index, unless they have been parsed already.
+	private void materialize(int[] positions) {
+		FileChannel channel = null;
+		try {
+			for (int position : positions) {
+				if (this.index.isLoaded(position)) {
+					continue;
+				}
+				if (channel == null) {
+					channel = this.index.open();
+				}
+				long offset = this.index.getOffset(position);
+				int length = this.index.getLength(position);
+				Event event = this.parseAt(channel, offset, length);
+				this.file(event);
+				this.layout.add(event, offset, offset + length);
+				this.index.setLoaded(position);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (CorruptedCalendarFileException e) {
+			throw new UncheckedIOException(new IOException(e.getMessage(), e));
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Everything has been read already.
+				}
+			}
+		}
+		if (this.index.isComplete()) {
+			this.index = null;
+		}
+	}
+
+	// Parses the VEVENT at offset of a scanned file.
+	private Event parseAt(FileChannel channel, long offset, int length)
+			throws IOException, CorruptedCalendarFileException {
+		return parseEvent(ICalScanner.read(channel, offset, length));
+	}
+
+	/**
+	 * Parses a single VEVENT, such as the serialization of an {@link Event}.
+	 * 
+	 * @param vevent
+	 *            The VEVENT, starting with its BEGIN:VEVENT line.
+	 * @return The {@link Event}.
+	 * @throws IOException
+	 *             Not thrown in practice.
+	 * @throws CorruptedCalendarFileException
+	 *             If the text is not a valid VEVENT.
+	 */
+	static Event parseEvent(String vevent) throws IOException,
+			CorruptedCalendarFileException {
+		ICalReader reader = new ICalReader(new StringReader(vevent));
+		String line = reader.readLine();
+		if (line == null || !"BEGIN:VEVENT".equalsIgnoreCase(line.trim())) {
+			throw new CorruptedCalendarFileException(
+					"The text does not contain a VEVENT");
+		}
+		return eventConstructor(reader, new ICalParser());
+	}
+
+	/**
+	 * Returns the event with a UID, parsing it first if it is in the part of
+	 * a lazily opened file that has not been parsed yet.
+	 * 
+	 * @param uid
+	 *            The UID to look for.
+	 * @return The {@link Event}, or null if there is none.
+	 */
+	synchronized Event findByUID(String uid) {
+		Event event = this.byUID.get(uid);
+		if (event == null && this.index != null) {
+			this.materialize(this.index.findUIDHash(uid.hashCode()));
+			event = this.byUID.get(uid);
+		}
+		return event;
+	}
+
+	// Creates a set of events that compares them by identity.
+	private static Set<Event> newEventSet() {
+		return Collections.newSetFromMap(new IdentityHashMap<Event, Boolean>());
+	}
+
+	// Returns copies of the events, in the same order.
+	private static ArrayList<Event> copyEvents(ArrayList<Event> live) {
+		ArrayList<Event> events = new ArrayList<Event>(live.size());
+		for (Event event : live) {
+			events.add(event.copy());
+		}
+		return events;
+	}
+
+	/**
+	 * Creates a new UID for an {@link Event}, made from the current time, a
+	 * random part and the UID of this application.
+	 * 
+	 * @return The new UID.
+	 */
+	public static String newUID() {
+		StringBuilder uid = new StringBuilder(64);
+		RecurrenceRule.appendDateTime(uid, System.currentTimeMillis(),
+				TimeZone.getDefault());
+		uid.append('-');
+		uid.append(Long.toHexString(RANDOM.nextLong()));
+		uid.append('-');
+		uid.append(UID);
+		return uid.toString();
+	}
+
+	// Adds event into the indexes.
+	private void file(Event event) {
 		if (event.isRepeating()) {
 			this.repeaters.add(event);
+			this.aggregates.clear();
 		} else {
-			this.nonRepeaters.put(event.getStart(), event);
+			Long key = Long.valueOf(event.getStart().getTimeInMillis());
+			this.longest = Math.max(this.longest, event.getDuration());
+			this.forget(key.longValue());
+			ArrayList<Event> starting = this.nonRepeaters.get(key);
+			if (starting == null) {
+				starting = new ArrayList<Event>(1);
+				this.nonRepeaters.put(key, starting);
+			}
+			starting.add(event);
+		}
+		if (event.getUID() != null) {
+			this.byUID.put(event.getUID(), event);
+		}
+		if (this.spans != null) {
+			this.spans.put(event, span(event));
+		}
+	}
+
+	// Removes target from the indexes. A non-repeating event is looked up by
+	// the start it was filed under, which is known while the changes are
+	// told. Otherwise, if target has been changed since it was filed, every
+	// non-repeating event is searched. Returns false if target was not in
+	// this calendar.
+	private boolean unfile(Event target) {
+		boolean found = false;
+		if (target.isRepeating()) {
+			found = this.repeaters.remove(target);
+			if (found) {
+				this.aggregates.clear();
+			}
+		}
+		if (!found) {
+			long[] filed = this.spanOf(target);
+			Long key = Long.valueOf(filed != null ? filed[0] : target
+					.getStart().getTimeInMillis());
+			ArrayList<Event> starting = this.nonRepeaters.get(key);
+			if (starting != null && removeSame(starting, target)) {
+				if (starting.isEmpty()) {
+					this.nonRepeaters.remove(key);
+				}
+				this.forget(key.longValue());
+				found = true;
+			}
+		}
+		if (!found) {
+			if (!target.isRepeating()) {
+				found = this.repeaters.remove(target);
+				if (found) {
+					this.aggregates.clear();
+				}
+			}
+			Iterator<Map.Entry<Long, ArrayList<Event>>> lists;
+			lists = this.nonRepeaters.entrySet().iterator();
+			while (!found && lists.hasNext()) {
+				Map.Entry<Long, ArrayList<Event>> starting = lists.next();
+				if (removeSame(starting.getValue(), target)) {
+					if (starting.getValue().isEmpty()) {
+						lists.remove();
+					}
+					this.forget(starting.getKey().longValue());
+					found = true;
+				}
+			}
+		}
+		if (found && this.byUID.get(target.getUID()) == target) {
+			this.byUID.remove(target.getUID());
+		}
+		if (found && this.spans != null) {
+			this.spans.remove(target);
+		}
+		return found;
+	}
+
+	// Drops the aggregates of the months that a non-repeating event starting
+	// at start may take place in. Its duration may have changed since it was
+	// filed, so it is taken to be as long as the longest one.
+	private void forget(long start) {
+		long end = start + this.longest;
+		// No month is longer than 31 days, so none starting earlier than that
+		// contains start.
+		long since = start - 31L * 24 * 60 * 60 * 1000;
+		this.aggregates.subMap(since, false, end, true).clear();
+	}
+
+	// Removes target itself (not an equal event) from a list of events.
+	private static boolean removeSame(ArrayList<Event> events, Event target) {
+		for (int i = 0; i < events.size(); i++) {
+			if (events.get(i) == target) {
+				events.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Appends a change into the journal and the journals of unfinished saves,
+	// and schedules a compaction when the journal has grown large.
+	private void record(byte type, Event event) {
+		try {
+			if (this.journal != null) {
+				this.journal.append(type, event);
+			}
+			for (ChangeJournal next : this.pending) {
+				next.append(type, event);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (this.journal != null && this.journal.claimCompaction()) {
+			this.saveInBackground(this.journal.getSnapshot(), null);
 		}
 	}
 
 	/**
-	 * Removes an {@link Event} from this calendar.
+	 * Replays the {@link ChangeJournal} of an .ics file on top of this
+	 * calendar, and journals all further changes into it. This calendar
+	 * should contain the events loaded from the file.
+	 * 
+	 * @param snapshot
+	 *            The .ics file whose journal is opened.
+	 * @throws IOException
+	 *             If the journal cannot be read or opened.
+	 * @throws CorruptedCalendarFileException
+	 *             If the journal contains a corrupted event.
+	 */
+	public synchronized void openJournal(File snapshot) throws IOException,
+			CorruptedCalendarFileException {
+		this.closeJournal();
+		// A lazily opened file is still needed for the events not parsed yet.
+		if (this.index == null) {
+			this.layout = null;
+		}
+		this.begin();
+		try {
+			ChangeJournal.replay(ChangeJournal.journalOf(snapshot), this);
+		} finally {
+			this.commit();
+		}
+		this.journal = new ChangeJournal(snapshot);
+	}
+
+	/**
+	 * Saves this calendar into an .ics file on a background thread, and
+	 * journals further changes next to the file once it has been written.
+	 * The events are copied before this method returns, so the file contains
+	 * the calendar as it was at the time of the call, even if it is changed
+	 * while the file is written. The file is first written under a temporary
+	 * name and then renamed over the target, so a crash during the save leaves
+	 * either the old or the new file, and the changes made during the save
+	 * are in the journal of both.
 	 * 
 	 * @param target
+	 *            The .ics file to write.
+	 * @param listener
+	 *            A {@link SaveListener} to report the progress to, or null.
+	 * @return A {@link Future} that completes with the file once it has been
+	 *         written.
 	 */
-	public void removeEvent(Event target) {
-		if (target.isRepeating()) {
-			this.repeaters.remove(target);
+	public synchronized Future<File> saveInBackground(final File target,
+			final SaveListener listener) {
+		final ArrayList<Event> live = this.getAllEvents();
+		final ArrayList<Event> events = copyEvents(live);
+		final int started = this.generation;
+		// If another save is still running, the changes since the last
+		// finished one are not known, so everything is written.
+		final FileLayout base = this.pending.isEmpty() ? this.layout : null;
+		final Set<Event> changed = this.dirty;
+		this.dirty = newEventSet();
+		ChangeJournal next;
+		IOException problem;
+		try {
+			next = ChangeJournal.pending(target);
+			this.pending.add(next);
+			problem = null;
+		} catch (IOException e) {
+			next = null;
+			problem = e;
+		}
+		final ChangeJournal journal = next;
+		final IOException error = problem;
+		return SAVER.submit(new Callable<File>() {
+			public File call() throws IOException {
+				boolean done = false;
+				try {
+					if (error != null) {
+						throw error;
+					}
+					TCalendar.this.prepareSave(target);
+					SnapshotWriter writer = new SnapshotWriter(target, events);
+					writer.setListener(listener);
+					writer.setBase(live, base, changed);
+					FileLayout written = writer.write();
+					TCalendar.this.finishSave(journal, started, written);
+					done = true;
+				} catch (IOException e) {
+					if (listener != null) {
+						listener.failed(e);
+					}
+					throw e;
+				} finally {
+					if (!done) {
+						TCalendar.this.abandonSave(journal, changed);
+					}
+				}
+				if (listener != null) {
+					listener.saved(target);
+				}
+				return target;
+			}
+		});
+	}
+
+	/**
+	 * Saves this calendar into an .ics file and waits for the save to finish.
+	 * See {@link #saveInBackground(File, SaveListener)}.
+	 * 
+	 * @param snapshot
+	 *            The .ics file to write.
+	 * @throws IOException
+	 *             If the file or the journal cannot be written.
+	 */
+	public void saveJournaled(File snapshot) throws IOException {
+		waitFor(this.saveInBackground(snapshot, null));
+	}
+
+	/**
+	 * Writes the journaled changes into the .ics file and empties the journal,
+	 * waiting for it to finish. This is done in the background automatically
+	 * once the journal grows large. Does nothing if there is no journal.
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be written. The journal is kept.
+	 */
+	public void compactJournal() throws IOException {
+		File snapshot;
+		synchronized (this) {
+			if (this.journal == null) {
+				return;
+			}
+			snapshot = this.journal.getSnapshot();
+		}
+		this.saveJournaled(snapshot);
+	}
+
+	/**
+	 * Stops journaling changes. The journal is kept on disk.
+	 * 
+	 * @throws IOException
+	 *             If the journal cannot be closed.
+	 */
+	public synchronized void closeJournal() throws IOException {
+		this.generation++;
+		if (this.journal != null) {
+			ChangeJournal closing = this.journal;
+			this.journal = null;
+			closing.close();
+		}
+	}
+
+	// Deletes the journal of target unless it is the one in use, as it belongs
+	// to what target contained before the save.
+	private synchronized void prepareSave(File target) throws IOException {
+		File stale = ChangeJournal.journalOf(target);
+		if (this.journal != null
+				&& this.journal.getSnapshot().getAbsoluteFile().equals(
+						target.getAbsoluteFile())) {
+			// Replaying it on top of the new file would do no harm, so it is
+			// only replaced once the file has been written.
+			return;
+		}
+		if (stale.exists() && !stale.delete()) {
+			throw new IOException("Could not delete " + stale);
+		}
+	}
+
+	// Makes the journal of a finished save the journal in use, unless the
+	// journal has been opened or closed since the save was started, and keeps
+	// the layout of the file for the next save.
+	private synchronized void finishSave(ChangeJournal next, int started,
+			FileLayout written) throws IOException {
+		this.pending.remove(next);
+		this.layout = written;
+		boolean current = started == this.generation;
+		if (current && this.journal != null) {
+			this.journal.close();
+			this.journal = null;
+		}
+		next.promote();
+		if (current) {
+			this.journal = next;
 		} else {
-			this.nonRepeaters.remove(target);
+			next.close();
+		}
+	}
+
+	// Throws away the journal of a failed save. The events it was to write
+	// are still changed compared to the last file.
+	private synchronized void abandonSave(ChangeJournal next,
+			Set<Event> changed) {
+		this.dirty.addAll(changed);
+		if (next != null) {
+			this.pending.remove(next);
+			try {
+				next.discard();
+			} catch (IOException e) {
+				// The pending journal is ignored when loading anyway.
+			}
+		}
+		if (this.journal != null) {
+			this.journal.releaseCompaction();
+		}
+	}
+
+	// Waits for a save to finish, throwing its IOException.
+	private static void waitFor(Future<File> save) throws IOException {
+		try {
+			save.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while saving");
 		}
 	}
 
+	/**
+	 * Applies a record of a {@link ChangeJournal}. Additions and updates
+	 * replace any event with the same UID, so a record can be applied more
+	 * than once.
+	 * 
+	 * @param type
+	 *            The type of the record.
+	 * @param payload
+	 *            The VEVENT of the record, or the UID for a removal.
+	 * @throws IOException
+	 *             Not thrown in practice.
+	 * @throws CorruptedCalendarFileException
+	 *             If the VEVENT is corrupted.
+	 */
+	void replayChange(byte type, String payload) throws IOException,
+			CorruptedCalendarFileException {
+		Event event = null;
+		String uid = payload;
+		if (type != ChangeJournal.REMOVE) {
+			event = parseEvent(payload);
+			uid = event.getUID();
+		}
+		Event old = this.findByUID(uid);
+		if (old != null) {
+			long[] span = this.spanOf(old);
+			this.unfile(old);
+			this.changed(CalendarChange.REMOVED, old, span);
+		}
+		if (event != null) {
+			this.file(event);
+			this.changed(CalendarChange.ADDED, event, null);
+		}
+	}
+
+	/**
+	 * Applies the changes made to an .ics file by others, as found by
+	 * comparing two digests of it: the VEVENTs that were added or changed are
+	 * parsed and replace the events with the same UID, and the events whose
+	 * UIDs are gone are removed. The other events are left alone, including
+	 * the ones that have been changed in this calendar. The changes are not
+	 * journaled if the file is the one the journal belongs to, as they are in
+	 * the file already.
+	 * 
+	 * @param previous
+	 *            The digest of the file as it was before.
+	 * @param next
+	 *            The digest of the file as it is now.
+	 * @return The number of events that were added, changed or removed, or -1
+	 *         if a save is in progress, in which case nothing was done and
+	 *         the file should be compared again once the save has finished.
+	 * @throws IOException
+	 *             If the file cannot be read, or has been changed again since
+	 *             next was made.
+	 * @throws CorruptedCalendarFileException
+	 *             If a changed VEVENT is corrupted. Nothing has been changed.
+	 */
+	synchronized int reload(CalendarDigest previous, CalendarDigest next)
+			throws IOException, CorruptedCalendarFileException {
+		if (!this.pending.isEmpty()) {
+			return -1;
+		}
+		File file = next.getFile();
+		if (this.layout != null && this.layout.getFile().equals(file)
+				&& this.layout.isCurrent()) {
+			return 0; // Written by this calendar.
+		}
+		this.materialize(Long.MIN_VALUE, Long.MAX_VALUE);
+		// Everything is parsed before any change is made.
+		ArrayList<Event> changed = new ArrayList<Event>();
+		FileLayout layout = new FileLayout(file, next.size());
+		FileChannel channel = next.open();
+		try {
+			for (int i = 0; i < next.size(); i++) {
+				long offset = next.getOffset(i);
+				long end = offset + next.getLength(i);
+				int old = previous.indexOf(next.getUID(i));
+				if (old < 0
+						|| previous.getChecksum(old) != next.getChecksum(i)) {
+					Event event = this.parseAt(channel, offset, next
+							.getLength(i));
+					changed.add(event);
+					layout.add(event, offset, end);
+				} else {
+					Event same = this.byUID.get(next.getUID(i));
+					if (same != null) {
+						layout.add(same, offset, end);
+					}
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		File snapshot = this.journal == null ? null : this.journal
+				.getSnapshot().getAbsoluteFile();
+		boolean journaled = !file.equals(snapshot);
+		int changes;
+		this.begin();
+		try {
+			changes = this.apply(changed, previous, next, journaled);
+		} finally {
+			this.commit();
+		}
+		this.layout = null;
+		if (file.length() == next.getFileLength()
+				&& file.lastModified() == next.getModified()) {
+			layout.seal();
+			this.layout = layout;
+		}
+		return changes;
+	}
+
+	// Files the changed events of a reload in place of the old ones, and
+	// removes the events that are gone from the file. Returns the number of
+	// events changed.
+	private int apply(ArrayList<Event> changed, CalendarDigest previous,
+			CalendarDigest next, boolean journaled) {
+		for (Event event : changed) {
+			Event old = this.byUID.get(event.getUID());
+			long[] span = null;
+			if (old != null) {
+				span = this.spanOf(old);
+				this.unfile(old);
+				this.dirty.remove(old);
+			}
+			this.file(event);
+			if (journaled) {
+				this.dirty.add(event);
+				this.record(ChangeJournal.UPDATE, event);
+			}
+			if (old != null) {
+				this.changed(CalendarChange.REMOVED, old, span);
+			}
+			this.changed(CalendarChange.ADDED, event, null);
+		}
+		int changes = changed.size();
+		for (int i = 0; i < previous.size(); i++) {
+			String uid = previous.getUID(i);
+			Event old = this.byUID.get(uid);
+			if (old != null && next.indexOf(uid) < 0) {
+				long[] span = this.spanOf(old);
+				this.unfile(old);
+				this.dirty.remove(old);
+				if (journaled) {
+					this.record(ChangeJournal.REMOVE, old);
+				}
+				this.changed(CalendarChange.REMOVED, old, span);
+				changes++;
+			}
+		}
+		return changes;
+	}
+
 	/**
 	 * Reads the given .ics file and constructs the events specified within it.
+	 * The file may be compressed with gzip (see {@link CalendarFiles}).
 	 * 
 	 * @param fileToRead
 	 *            The .ics file to be read.
@@ -172,11 +1291,59 @@ public class TCalendar {
 	 */
 	public void loadCalendar(File fileToRead) throws FileNotFoundException,
 			IOException, CorruptedCalendarFileException {
-		FileReader reader = new FileReader(fileToRead);
-		BufferedReader buffReader = new BufferedReader(reader);
+		Reader reader = new InputStreamReader(CalendarFiles.open(fileToRead),
+				"UTF-8");
+		try {
+			this.load(reader, fileToRead.getPath());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads an .ics file from the given {@link Reader} and constructs the
+	 * events specified within it. The reader is not closed.
+	 * 
+	 * @param in
+	 *            The {@link Reader} to read from.
+	 * @throws IOException
+	 *             If there is a problem while reading.
+	 * @throws CorruptedCalendarFileException
+	 *             If the .ics file is corrupted.
+	 */
+	public void loadCalendar(Reader in) throws IOException,
+			CorruptedCalendarFileException {
+		this.load(in, null);
+	}
+
+	// Reads the events of a file, or of a stream if file is null, and
+	// records the metrics and the flight event of the load.
+	private synchronized void load(Reader in, String file)
+			throws IOException, CorruptedCalendarFileException {
+		long started = CalendarMetrics.start();
+		LoadFlightEvent flight = new LoadFlightEvent();
+		flight.begin();
+		ICalReader reader = new ICalReader(in);
+		try {
+			this.readCalendar(reader, flight);
+		} finally {
+			CalendarMetrics.LOAD_CALENDAR.record(started);
+			flight.end();
+			if (flight.shouldCommit()) {
+				flight.file = file;
+				flight.size = reader.getSize();
+				flight.commit();
+			}
+		}
+	}
+
+	// Reads the events of an .ics file, counting them into flight.
+	private void readCalendar(ICalReader reader, LoadFlightEvent flight)
+			throws IOException, CorruptedCalendarFileException {
+		ICalParser parser = new ICalParser();
 		String currentLine;
 
-		currentLine = buffReader.readLine();
+		currentLine = reader.readLine();
 		if (currentLine != null) {
 			currentLine = currentLine.trim();
 		}
@@ -184,40 +1351,59 @@ public class TCalendar {
 			throw new CorruptedCalendarFileException(
 					"VCALENDAR header is missing");
 		}
-		while (buffReader.ready()) {
-			currentLine = buffReader.readLine().trim();
+		// The imported events are forced into the journal all at once, and
+		// told to the listeners as one batch.
+		ChangeJournal batch = this.journal;
+		if (batch != null) {
+			batch.begin();
+		}
+		this.begin();
+		try {
+			while ((currentLine = reader.readLine()) != null) {
+				currentLine = currentLine.trim();
 
-			if ("END:VCALENDAR".equalsIgnoreCase(currentLine)) {
-				break;
+				if ("END:VCALENDAR".equalsIgnoreCase(currentLine)) {
+					break;
+				}
+				if ("BEGIN:VEVENT".equalsIgnoreCase(currentLine)) {
+					Event event = eventConstructor(reader, parser);
+					this.addEvent(event);
+					flight.events++;
+				}
 			}
-			if ("BEGIN:VEVENT".equalsIgnoreCase(currentLine)) {
-				Event event = this.eventConstructor(buffReader);
-				this.addEvent(event);
+		} finally {
+			this.commit();
+			if (batch != null) {
+				batch.commit();
 			}
 		}
 	}
 
-	// Constructs an Event based on what buffReader contains.
-	private Event eventConstructor(BufferedReader buffReader)
+	// Constructs an Event based on what reader contains.
+	private static Event eventConstructor(ICalReader reader, ICalParser parser)
 			throws IOException, CorruptedCalendarFileException {
+		String line;
 		String currentLine;
 		GregorianCalendar dateStamp = null;
 		String UID = null;
 		GregorianCalendar start = null;
 		GregorianCalendar end = null;
-		GregorianCalendar expiration = null;
+		RecurrenceRule rule = null;
 		String category = null;
-		boolean repeater = false;
 		int priority = 0;
-		int repeatFieldValue = 0;
-		int interval = 1;
+		long duration = 0;
+		boolean hasDuration = false;
 
-		while (buffReader.ready()) {
-			currentLine = buffReader.readLine().toUpperCase().trim();
-			if (currentLine == null) {
+		while (true) {
+			line = reader.readLine();
+			if (line == null) {
 				throw new CorruptedCalendarFileException(
 						"Unexpected end of file");
 			}
+			// Time zone names are case sensitive, so dates are parsed from
+			// the original line.
+			line = line.trim();
+			currentLine = line.toUpperCase();
 			if ("END:VEVENT".equalsIgnoreCase(currentLine)) {
 				break;
 			}
@@ -226,20 +1412,21 @@ public class TCalendar {
 						"Unexpected end of VEVENT section");
 			}
 			if (currentLine.startsWith("DTSTART")) {
-				start = parseToDate(currentLine);
+				start = parseToDate(line, parser);
 				continue;
 			}
 			if (currentLine.startsWith("UID")) {
-				String[] split = currentLine.split(":");
-				if (split.length != 2) {
+				// UIDs are case sensitive.
+				int colon = line.indexOf(':');
+				if (colon < 0 || colon == line.length() - 1) {
 					throw new CorruptedCalendarFileException(
 							"The UID is corrupted or missing");
 				}
-				UID = split[1];
+				UID = line.substring(colon + 1);
 				continue;
 			}
 			if (currentLine.startsWith("DTEND")) {
-				end = parseToDate(currentLine);
+				end = parseToDate(line, parser);
 				continue;
 			}
 			if (currentLine.startsWith("CATEGORIES")) {
@@ -257,57 +1444,16 @@ public class TCalendar {
 				continue;
 			}
 			if (currentLine.startsWith("DURATION")) {
-				Time duration = parseDURATION(currentLine);
-				if (end != null) {
-					throw new CorruptedCalendarFileException(
-							"A VEVENT component contained both a DURATION and a DTEND-field.");
-				} else {
-					end = new GregorianCalendar();
-					end.setTimeInMillis(start.getTimeInMillis()
-							+ duration.getTime());
-				}
+				duration = ICalParser.parseDuration(currentLine);
+				hasDuration = true;
 				continue;
 			}
 			if (currentLine.startsWith("RRULE")) {
-				repeater = true;
-				if (!currentLine.contains("FREQ=")) {
-					throw new IllegalArgumentException(
-							"A Recurrence rule section is missing the FREQ-parameter.");
-				}
-				interval = 1;
-				if (currentLine.contains("INTERVAL")) {
-					int cursor = currentLine.indexOf("INTERVAL") + 9;
-					StringBuilder value = new StringBuilder(4);
-					while (cursor < currentLine.length()) {
-						char current = currentLine.charAt(cursor);
-						if (Character.isDigit(current)) {
-							value.append(current);
-							cursor++;
-						} else {
-							break;
-						}
-					}
-					interval = new Integer(value.toString()).intValue();
-				}
-				if (currentLine.contains("WEEKLY")) {
-					repeatFieldValue = Calendar.WEEK_OF_YEAR;
-				} else if (currentLine.contains("DAILY")) {
-					repeatFieldValue = Calendar.DAY_OF_YEAR;
-				} else if (currentLine.contains("MONTHLY")) {
-					repeatFieldValue = Calendar.MONTH;
-				} else if (currentLine.contains("YEARLY")) {
-					repeatFieldValue = Calendar.YEAR;
-				} else {
-					throw new CorruptedCalendarFileException(
-							"The frequency of repetition is missing or corrupted");
-				}
-				if (currentLine.contains("UNTIL")) {
-					String[] split = currentLine.split("UNTIL=");
-					expiration = this.parseToDate(":" + split[1]);
-				}
+				rule = RecurrenceRule.parse(currentLine);
+				continue;
 			}
 			if (currentLine.startsWith("DTSTAMP")) {
-				dateStamp = this.parseToDate(currentLine);
+				dateStamp = parseToDate(line, parser);
 				continue;
 			}
 		}
@@ -316,6 +1462,19 @@ public class TCalendar {
 			throw new CorruptedCalendarFileException(
 					"A VEVENT section is missing required information");
 		}
+		// DURATION may come before DTSTART, so the end is only computed here.
+		if (hasDuration) {
+			if (end != null) {
+				throw new CorruptedCalendarFileException(
+						"A VEVENT component contained both a DURATION and a DTEND-field.");
+			}
+			if (duration < 0) {
+				throw new CorruptedCalendarFileException(
+						"A VEVENT component has a negative DURATION.");
+			}
+			end = new GregorianCalendar();
+			end.setTimeInMillis(start.getTimeInMillis() + duration);
+		}
 		if (end == null) {
 			end = start;
 		}
@@ -324,149 +1483,101 @@ public class TCalendar {
 		event.setPriority(priority);
 		event.setCategory(category);
 		event.setUID(UID);
-		if (repeater) {
-			event.setRepeat(repeatFieldValue, interval, expiration);
+		if (rule != null) {
+			event.setRule(rule);
 		}
 		return event;
 	}
 
-	// Parses the DURATION field in an .ics file.
-	private Time parseDURATION(String currentLine)
+	// Parses a line containing yyyymmdd[Thhmmss[Z]] into a GregorianCalendar.
+	private static GregorianCalendar parseToDate(String parseable, ICalParser parser)
 			throws CorruptedCalendarFileException {
-		String dur = currentLine.split(":")[1];
-		dur = dur.trim();
-		dur.toUpperCase();
-		int weeks = 0;
-		int days = 0;
-		int hours = 0;
-		int minutes = 0;
-		int seconds = 0;
-		char currentChar = dur.charAt(0);
-		if (currentChar != 'P') {
-			throw new CorruptedCalendarFileException(
-					"The DURATION section is corrupted.");
-		} else {
-			int first = 0;
-			int second = 0;
-			int i = 1;
-			while (i < dur.length()) {
-				currentChar = dur.charAt(i);
-				if (Character.isDigit(currentChar)) {
-					if (first != 0 || second != 0) {
-						throw new CorruptedCalendarFileException(
-								"The DURATION section is corrupted.");
-					}
-					first = Character.getNumericValue(currentChar);
-					i++;
-					if (Character.isDigit(dur.charAt(i))) {
-						second = Character.valueOf(dur.charAt(i));
-						i++;
-					}
-					continue;
-				} else {
-					if (second != 0) {
-						first *= 10;
-					}
-					int sum = first + second;
-					first = 0;
-					second = 0;
-					switch (currentChar) {
-					case 'W':
-						weeks = sum;
-						continue;
-					case 'D':
-						days = sum;
-						continue;
-					case 'H':
-						hours = sum;
-						continue;
-					case 'M':
-						minutes = sum;
-						continue;
-					case 'S':
-						seconds = sum;
-						continue;
-					}
-					throw new CorruptedCalendarFileException(
-							"A DURATION-field contained illegal characters (only 0-9, W, D, H, M and S are allowed).");
-				}
-			}
-		}
-		return new Time(weeks * 7 * 24 * 60 * 60 * 1000 + days * 24 * 60 * 60
-				* 1000 + hours * 60 * 60 * 1000 + minutes * 60 * 1000 + seconds
-				* 1000);
-	}
-
-	// Parses a line containng yyyymmddThhmmss into a GregorianCalendar.
-	private GregorianCalendar parseToDate(String parseable)
-			throws CorruptedCalendarFileException {
-		String[] line = parseable.split(":");
-		if (line.length != 2) {
-			throw new CorruptedCalendarFileException(
-					"A date value is incorrect");
-		}
-		String time = line[1]; // Only one colon is allowed per line. (Except
-		// DESCRIPTION, which is not supported)
-		Integer year = new Integer(time.substring(0, 4));
-		Integer month = new Integer(time.substring(4, 6)) - 1; // January is
-		// month zero.
-		Integer dayOfMonth = new Integer(time.substring(6, 8));
-
-		if (time.length() == 8) {
-			return new GregorianCalendar(year.intValue(), month.intValue(),
-					dayOfMonth.intValue(), 0, 0, 0);
-		} else if (time.length() >= 15) {
-			Integer hour = new Integer(time.substring(9, 11));
-			Integer minute = new Integer(time.substring(11, 13));
-			Integer second = new Integer(time.substring(13, 15));
-			return new GregorianCalendar(year.intValue(), month.intValue(),
-					dayOfMonth.intValue(), hour.intValue(), minute.intValue(),
-					second.intValue());
-		} else {
-			throw new CorruptedCalendarFileException(
-					"A date value is incorrect");
-		}
+		GregorianCalendar date = new GregorianCalendar();
+		date.setTimeInMillis(parser.parseDateTime(parseable));
+		return date;
 	}
 
 	/**
-	 * Writes this calendar into the specified file.
+	 * Writes this calendar into the specified file. The events are written
+	 * one at a time through an {@link ICalWriter}, so the memory used does not
+	 * grow with the size of the calendar. The file is written under a
+	 * temporary name and then renamed into place, so if writing fails the
+	 * old file is left as it was. No journal is kept for the file; see
+	 * {@link #saveInBackground(File, SaveListener)}.
 	 * 
 	 * @param inHere
-	 *            The File that is to be written into.
+	 *            The File that is to be written into. If its name does not
+	 *            end with .ics or .ics.gz, the suffix .ics is added. A .ics.gz
+	 *            file is compressed with gzip.
 	 * @throws IOException
 	 */
 	public void serializeCalendar(File inHere) throws IOException {
-		// First build the String to be saved.
-		StringBuilder calendar = new StringBuilder();
-		calendar.append("BEGIN:VCALENDAR\n");
-		calendar.append("PRODID:aisopuro.TCalendar@tkk\n");
-		calendar.append("VERSION:2.0\n");
-
-		if (!this.nonRepeaters.isEmpty()) {
-			Collection<Event> iterator = this.nonRepeaters.values();
-			for (Event event : iterator) {
-				calendar.append(event.getSerialization());
-			}
-		}
-		if (!this.repeaters.isEmpty()) {
-			for (Event event : this.repeaters) {
-				calendar.append(event.getSerialization());
-			}
+		long started = CalendarMetrics.start();
+		try {
+			inHere = CalendarFiles.withSuffix(inHere.getAbsoluteFile());
+			new SnapshotWriter(inHere, this.getAllEvents()).write();
+		} finally {
+			CalendarMetrics.SERIALIZE_CALENDAR.record(started);
 		}
+	}
 
-		calendar.append("END:VCALENDAR\n");
+	/**
+	 * Writes this calendar into the specified channel as UTF-8. The channel is
+	 * not closed.
+	 * 
+	 * @param channel
+	 *            The {@link WritableByteChannel} to write into.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public void serializeCalendar(WritableByteChannel channel)
+			throws IOException {
+		long started = CalendarMetrics.start();
+		try {
+			ICalWriter writer = new ICalWriter(channel);
+			this.writeCalendar(writer);
+			writer.flush();
+		} finally {
+			CalendarMetrics.SERIALIZE_CALENDAR.record(started);
+		}
+	}
 
-		// Write the String into an .ics file.
-		String path = inHere.getAbsolutePath();
-		if (!path.endsWith(".ics")) {
-			path = path.concat(".ics");
-			inHere.delete();
-			inHere = new File(path);
+	/**
+	 * Writes this calendar into the specified {@link Writer}. The writer is
+	 * flushed but not closed.
+	 * 
+	 * @param out
+	 *            The {@link Writer} to write into.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	public void serializeCalendar(Writer out) throws IOException {
+		long started = CalendarMetrics.start();
+		try {
+			ICalWriter writer = new ICalWriter(out);
+			this.writeCalendar(writer);
+			writer.flush();
+		} finally {
+			CalendarMetrics.SERIALIZE_CALENDAR.record(started);
 		}
-		BufferedWriter writer = new BufferedWriter(new FileWriter(inHere));
-		writer.write(calendar.toString());
-		writer.close();
+	}
 
+	// Writes the VCALENDAR and all the events into writer.
+	private void writeCalendar(ICalWriter writer) throws IOException {
+		SaveFlightEvent flight = new SaveFlightEvent();
+		flight.begin();
+		ArrayList<Event> events = this.getAllEvents();
+		SnapshotWriter.writeHeader(writer);
+		for (Event event : events) {
+			event.writeTo(writer);
+		}
+		SnapshotWriter.writeFooter(writer);
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.size = writer.getOctets();
+			flight.events = events.size();
+			flight.commit();
+		}
 	}
 
 }
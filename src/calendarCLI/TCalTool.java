@@ -0,0 +1,474 @@
+package calendarCLI;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import calendar.CalendarFiles;
+import calendar.CalendarGenerator;
+import calendar.CorruptedCalendarFileException;
+import calendar.Event;
+import calendar.EventTree;
+import calendar.Occurrence;
+import calendar.TCalendar;
+import calendarGUI.TCalParser;
+
+/**
+ * TCalTool works on calendar files from the command line, without the GUI,
+ * for batch jobs over many calendars. It can list the events of a range of
+ * time, list the events that overlap, sum the time spent in each category,
+ * convert calendars between .ics, .ics.gz and {@link EventTree} files, and
+ * write made-up calendars for load tests (see {@link CalendarGenerator}).
+ *
+ * The files given are processed in parallel, and their results are written
+ * to the standard output in the order the files were given, one line per
+ * result with the columns separated by tabs. A file named - is read from the
+ * standard input. Once all the files have been processed, the number of
+ * events and bytes read per second is written to the standard error.
+ *
+ * Dates are given like in the GUI: ddmm, ddmmyy, ddmmyyyy or dd.mm.yyyy.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class TCalTool {
+
+	private static final String USAGE = "Usage: TCalTool [-j threads] [-q]"
+			+ " command arguments\n"
+			+ "  query FROM TO FILE...       list the events from FROM to TO\n"
+			+ "  conflicts FROM TO FILE...   list the events that overlap\n"
+			+ "  totals FROM TO FILE...      sum the minutes of each category\n"
+			+ "  convert FORMAT FILE...      write each FILE as ics, ics.gz or"
+			+ " tree\n"
+			+ "  generate SIZE FILE...       write SIZE made-up events into"
+			+ " each FILE\n"
+			+ "A FILE named - is read from the standard input.";
+
+	private static final String STDIN = "-";
+	private static final int GENERATED_DAYS = 5 * 365;
+	private static final String UTF8 = "UTF-8";
+
+	private InputStream in;
+	private PrintStream out;
+	private PrintStream err;
+	private int threads;
+	private boolean quiet;
+
+	// The result of processing one file.
+	private static class Result {
+		StringBuilder output = new StringBuilder();
+		long events;
+		long bytes;
+	}
+
+	/**
+	 * Creates a tool that reads and writes the given streams.
+	 *
+	 * @param in
+	 *            The standard input, read for files named -.
+	 * @param out
+	 *            The standard output, for the results.
+	 * @param err
+	 *            The standard error, for errors and the throughput.
+	 */
+	public TCalTool(InputStream in, PrintStream out, PrintStream err) {
+		this.in = in;
+		this.out = out;
+		this.err = err;
+		this.threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	public static void main(String[] args) throws UnsupportedEncodingException {
+		PrintStream out = new PrintStream(System.out, false, UTF8);
+		int status = new TCalTool(System.in, out, System.err).run(args);
+		out.flush();
+		System.exit(status);
+	}
+
+	/**
+	 * Runs a command.
+	 *
+	 * @param args
+	 *            The options, the command and its arguments.
+	 * @return 0 if every file was processed, 1 if some could not be, and 2 if
+	 *         the arguments were wrong.
+	 */
+	public int run(String[] args) {
+		int next = 0;
+		try {
+			while (next < args.length && args[next].startsWith("-")
+					&& !args[next].equals(STDIN)) {
+				if (args[next].equals("-j") && next + 1 < args.length) {
+					this.threads = Math.max(Integer.parseInt(args[next + 1]),
+							1);
+					next += 2;
+				} else if (args[next].equals("-q")) {
+					this.quiet = true;
+					next++;
+				} else {
+					return this.usage("Unknown option " + args[next]);
+				}
+			}
+			if (next == args.length) {
+				return this.usage(null);
+			}
+			String command = args[next++];
+			if (command.equals("convert")) {
+				if (args.length - next < 2) {
+					return this.usage(null);
+				}
+				String format = args[next];
+				if (!format.equals("ics") && !format.equals("ics.gz")
+						&& !format.equals("tree")) {
+					return this.usage("Unknown format " + format);
+				}
+				return this.process(command, format, null, null,
+						rest(args, next + 1));
+			}
+			if (command.equals("generate")) {
+				if (args.length - next < 2) {
+					return this.usage(null);
+				}
+				if (Integer.parseInt(args[next]) < 0) {
+					return this.usage("The size cannot be negative");
+				}
+				return this.process(command, args[next], null, null, rest(
+						args, next + 1));
+			}
+			if (!command.equals("query") && !command.equals("conflicts")
+					&& !command.equals("totals")) {
+				return this.usage("Unknown command " + command);
+			}
+			if (args.length - next < 3) {
+				return this.usage(null);
+			}
+			GregorianCalendar from = TCalParser.parseToDate(args[next], "0000");
+			GregorianCalendar to = TCalParser.parseToDate(args[next + 1],
+					"0000");
+			if (from == null || to == null) {
+				return this.usage("The dates are missing");
+			}
+			return this.process(command, null, from, to, rest(args, next + 2));
+		} catch (IllegalArgumentException e) {
+			return this.usage("Invalid argument: " + e.getMessage());
+		}
+	}
+
+	// Processes the files in parallel, writing their results in order.
+	private int process(final String command, final String format,
+			final GregorianCalendar from, final GregorianCalendar to,
+			List<String> names) {
+		long started = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+				this.threads, names.size()));
+		ArrayList<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (final String name : names) {
+			results.add(pool.submit(new Callable<Result>() {
+				public Result call() throws Exception {
+					return TCalTool.this.process(command, format, from, to,
+							name);
+				}
+			}));
+		}
+		pool.shutdown();
+		int status = 0;
+		long events = 0;
+		long bytes = 0;
+		Iterator<String> name = names.iterator();
+		for (Future<Result> future : results) {
+			String current = name.next();
+			try {
+				Result result = this.await(future);
+				synchronized (this.out) {
+					this.out.print(result.output);
+				}
+				events += result.events;
+				bytes += result.bytes;
+			} catch (Exception e) {
+				this.err.println(current + ": " + e.getMessage());
+				status = 1;
+			}
+		}
+		this.out.flush();
+		if (!this.quiet) {
+			double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+			this.err.printf("%d files, %d events, %.1f MB in %.2f s: "
+					+ "%.0f events/s, %.1f MB/s%n", names.size(), events,
+					bytes / 1e6, seconds, events / seconds, bytes / 1e6
+							/ seconds);
+		}
+		return status;
+	}
+
+	// Waits for the result of a file, unwrapping the exception it failed with.
+	private Result await(Future<Result> future) throws Exception {
+		while (true) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				// Keep waiting, the pool has been shut down.
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof UncheckedIOException) {
+					cause = cause.getCause();
+				}
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				throw e;
+			}
+		}
+	}
+
+	// Processes one file.
+	private Result process(String command, String format,
+			GregorianCalendar from, GregorianCalendar to, String name)
+			throws IOException, CorruptedCalendarFileException {
+		Result result = new Result();
+		if (!name.equals(STDIN)) {
+			result.bytes = new File(name).length();
+		}
+		if (command.equals("convert")) {
+			this.convert(format, name, result);
+			return result;
+		}
+		if (command.equals("generate")) {
+			this.generate(Integer.parseInt(format), name, result);
+			return result;
+		}
+		ArrayList<Event> events = this.load(name, from, to);
+		result.events = events.size();
+		ArrayList<Occurrence> occurrences = Occurrence.expand(events, from,
+				to);
+		if (command.equals("query")) {
+			for (Occurrence occurrence : occurrences) {
+				Event event = occurrence.getEvent();
+				line(result.output, name, present(occurrence.getStart()),
+						present(occurrence.getEnd()), category(event), event
+								.getUID());
+			}
+		} else if (command.equals("conflicts")) {
+			for (Occurrence[] pair : Occurrence.overlaps(occurrences)) {
+				line(result.output, name, present(pair[1].getStart()),
+						present(Math.min(pair[0].getEnd(), pair[1].getEnd())),
+						pair[0].getEvent().getUID(), pair[1].getEvent()
+								.getUID());
+			}
+		} else {
+			TreeMap<String, Long> totals = new TreeMap<String, Long>();
+			long start = from.getTimeInMillis();
+			long end = to.getTimeInMillis();
+			for (Occurrence occurrence : occurrences) {
+				long duration = Math.min(occurrence.getEnd(), end)
+						- Math.max(occurrence.getStart(), start);
+				String category = category(occurrence.getEvent());
+				Long total = totals.get(category);
+				totals.put(category, Long
+						.valueOf(duration + (total == null ? 0 : total)));
+			}
+			for (Map.Entry<String, Long> total : totals.entrySet()) {
+				line(result.output, name, total.getKey(), String.valueOf(total
+						.getValue().longValue() / 60000));
+			}
+		}
+		return result;
+	}
+
+	// Loads the events of a file that take place from from to to, including
+	// the ones that started earlier. Only the part of an .ics file that is
+	// needed is parsed.
+	private ArrayList<Event> load(String name, GregorianCalendar from,
+			GregorianCalendar to) throws IOException,
+			CorruptedCalendarFileException {
+		if (name.equals(STDIN)) {
+			return this.readStdin().getOverlapping(from, to);
+		}
+		File file = readable(name);
+		if (name.endsWith(EventTree.SUFFIX)) {
+			EventTree tree = new EventTree(file);
+			try {
+				return tree.getOverlapping(from, to);
+			} finally {
+				tree.close();
+			}
+		}
+		return TCalendar.openLazily(file).getOverlapping(from, to);
+	}
+
+	// Writes the calendar of a file in another format next to it, or to the
+	// standard output if it was read from the standard input.
+	private void convert(String format, String name, Result result)
+			throws IOException, CorruptedCalendarFileException {
+		ArrayList<Event> events;
+		if (name.equals(STDIN)) {
+			events = this.readStdin().getAllEvents();
+		} else if (name.endsWith(EventTree.SUFFIX)) {
+			EventTree tree = new EventTree(readable(name));
+			try {
+				events = tree.getAllEvents();
+			} finally {
+				tree.close();
+			}
+		} else {
+			events = new TCalendar(readable(name)).getAllEvents();
+		}
+		result.events = events.size();
+		if (name.equals(STDIN)) {
+			if (!format.equals("ics")) {
+				throw new IOException("Only ics can be written to the"
+						+ " standard output");
+			}
+			TCalendar calendar = calendarOf(events);
+			synchronized (this.out) {
+				Writer writer = new OutputStreamWriter(this.out, UTF8);
+				calendar.serializeCalendar(writer);
+			}
+			return;
+		}
+		File target = new File(baseName(name) + "." + format);
+		File source = new File(name).getAbsoluteFile();
+		if (target.getAbsoluteFile().equals(source)) {
+			throw new IOException("The file is already in " + format);
+		}
+		if (format.equals("tree")) {
+			if (target.exists() && !target.delete()) {
+				throw new IOException("Could not replace " + target);
+			}
+			EventTree tree = new EventTree(target);
+			try {
+				tree.begin();
+				for (Event event : events) {
+					tree.addEvent(event);
+				}
+				tree.commit();
+			} finally {
+				tree.close();
+			}
+		} else {
+			calendarOf(events).serializeCalendar(target);
+		}
+		line(result.output, name, target.getPath());
+	}
+
+	// Writes made-up events into a file, or to the standard output if the
+	// file is named -. The events are seeded with the name, so the same name
+	// always gets the same events.
+	private void generate(int size, String name, Result result)
+			throws IOException {
+		CalendarGenerator generator = new CalendarGenerator(name.hashCode());
+		generator.setSize(size);
+		// Large calendars are crowded into a few years, like a shared one.
+		if (generator.getDays() > GENERATED_DAYS) {
+			generator.setDays(GENERATED_DAYS);
+		}
+		generator.setRepeating(0.1);
+		generator.setDurations(0.5);
+		if (name.equals(STDIN)) {
+			synchronized (this.out) {
+				Writer writer = new OutputStreamWriter(this.out, UTF8);
+				generator.write(writer);
+			}
+		} else {
+			File target = CalendarFiles.withSuffix(new File(name));
+			generator.write(target);
+			result.bytes = target.length();
+			line(result.output, name, target.getPath());
+		}
+		result.events = size;
+	}
+
+	// Reads a calendar from the standard input.
+	private TCalendar readStdin() throws IOException,
+			CorruptedCalendarFileException {
+		TCalendar calendar = new TCalendar();
+		calendar.loadCalendar(new InputStreamReader(this.in, UTF8));
+		return calendar;
+	}
+
+	private int usage(String error) {
+		if (error != null) {
+			this.err.println(error);
+		}
+		this.err.println(USAGE);
+		return 2;
+	}
+
+	// Appends a line of tab separated columns.
+	private static void line(StringBuilder output, String... columns) {
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				output.append('\t');
+			}
+			output.append(columns[i]);
+		}
+		output.append('\n');
+	}
+
+	// Presents a time like dd.mm.yyyy hh:mm.
+	private static String present(long time) {
+		GregorianCalendar date = new GregorianCalendar();
+		date.setTimeInMillis(time);
+		return TCalParser.extractDate(date) + " "
+				+ TCalParser.extractTime(date);
+	}
+
+	private static String category(Event event) {
+		return event.getCategory() == null ? "" : event.getCategory();
+	}
+
+	private static TCalendar calendarOf(ArrayList<Event> events) {
+		TCalendar calendar = new TCalendar();
+		for (Event event : events) {
+			calendar.addEvent(event);
+		}
+		return calendar;
+	}
+
+	// Returns the name of a calendar file without its suffix.
+	private static String baseName(String name) {
+		String[] suffixes = { CalendarFiles.COMPRESSED_SUFFIX,
+				CalendarFiles.SUFFIX, EventTree.SUFFIX };
+		for (String suffix : suffixes) {
+			if (name.endsWith(suffix)) {
+				return name.substring(0, name.length() - suffix.length());
+			}
+		}
+		return name;
+	}
+
+	private static File readable(String name) throws FileNotFoundException {
+		File file = new File(name);
+		if (!file.canRead()) {
+			throw new FileNotFoundException("Cannot read " + name);
+		}
+		return file;
+	}
+
+	private static List<String> rest(String[] args, int from) {
+		ArrayList<String> rest = new ArrayList<String>();
+		for (int i = from; i < args.length; i++) {
+			rest.add(args[i]);
+		}
+		return rest;
+	}
+
+}
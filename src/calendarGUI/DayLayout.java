@@ -0,0 +1,254 @@
+package calendarGUI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import calendar.Event;
+import calendarGUI.WeekModel.Occurrence;
+
+/**
+ * A DayLayout places the occurrences in a day of a {@link WeekModel} side by
+ * side, so that overlapping events are drawn next to each other instead of
+ * on top of each other. Each occurrence gets a column: they are taken in the
+ * order they start and each goes into the leftmost column that is free at
+ * the time, which uses as few columns as there are events at once at the
+ * busiest moment. Events that overlap, directly or through others, form a
+ * group that shares the width of the day between as many columns as the
+ * group needs. The layout takes time in proportion to n log n for n
+ * occurrences.
+ *
+ * The blocks are counted from the start of the day, and an occurrence that
+ * started on an earlier day or goes on to the next one is cut at midnight.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public final class DayLayout {
+
+	// The part of an occurrence in the day.
+	private static class Piece {
+		private Occurrence occurrence;
+		private int top;
+		private int bottom;
+		private int column;
+		private int columns;
+
+		Piece(Occurrence occurrence, int top, int bottom) {
+			this.occurrence = occurrence;
+			this.top = top;
+			this.bottom = bottom;
+		}
+	}
+
+	// A binary heap of longs with the smallest on top, holding at most a
+	// given number of them.
+	private static class Heap {
+		private long[] values;
+		private int size;
+
+		Heap(int capacity) {
+			this.values = new long[capacity];
+		}
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		long peek() {
+			return this.values[0];
+		}
+
+		void add(long value) {
+			int i = this.size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (this.values[parent] <= value) {
+					break;
+				}
+				this.values[i] = this.values[parent];
+				i = parent;
+			}
+			this.values[i] = value;
+		}
+
+		long poll() {
+			long top = this.values[0];
+			long last = this.values[--this.size];
+			int i = 0;
+			while (2 * i + 1 < this.size) {
+				int child = 2 * i + 1;
+				if (child + 1 < this.size
+						&& this.values[child + 1] < this.values[child]) {
+					child++;
+				}
+				if (last <= this.values[child]) {
+					break;
+				}
+				this.values[i] = this.values[child];
+				i = child;
+			}
+			this.values[i] = last;
+			return top;
+		}
+
+		void clear() {
+			this.size = 0;
+		}
+	}
+
+	// Sorts the pieces by their start, the longer ones first.
+	private static final Comparator<Piece> BY_START =
+			new Comparator<Piece>() {
+				public int compare(Piece a, Piece b) {
+					if (a.top != b.top) {
+						return Integer.compare(a.top, b.top);
+					}
+					return Integer.compare(b.bottom, a.bottom);
+				}
+			};
+
+	private Piece[] pieces;
+
+	/**
+	 * Lays out a day of a week.
+	 *
+	 * @param model
+	 *            The {@link WeekModel} of the week.
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 6.
+	 */
+	public DayLayout(WeekModel model, int day) {
+		int first = day * WeekModel.BLOCKS_IN_DAY;
+		int last = first + WeekModel.BLOCKS_IN_DAY;
+		ArrayList<Piece> pieces = new ArrayList<Piece>();
+		// Only the occurrences of the day and those before it can reach it.
+		for (int i = 0; i <= day; i++) {
+			for (Occurrence occurrence : model.getOccurrences(i)) {
+				int top = Math.max(occurrence.getFirst(), first) - first;
+				int bottom = Math.min(occurrence.getLast(), last) - first;
+				if (top < bottom) {
+					pieces.add(new Piece(occurrence, top, bottom));
+				}
+			}
+		}
+		this.pieces = pieces.toArray(new Piece[pieces.size()]);
+		Arrays.sort(this.pieces, BY_START);
+		this.place();
+	}
+
+	// Gives each piece a column, and each group of overlapping pieces its
+	// number of columns.
+	private void place() {
+		// The pieces being placed, by their ends, with their columns in the
+		// low bits, and the columns they have left free.
+		Heap going = new Heap(this.pieces.length);
+		Heap free = new Heap(this.pieces.length);
+		int columns = 0; // The columns the group has used.
+		int group = 0; // The first piece of the group.
+		for (int i = 0; i < this.pieces.length; i++) {
+			Piece piece = this.pieces[i];
+			while (!going.isEmpty() && (going.peek() >>> 32) <= piece.top) {
+				free.add(going.poll() & 0xFFFFFFFFL);
+			}
+			if (going.isEmpty()) {
+				// Nothing overlaps this piece any more: a new group starts.
+				this.group(group, i, columns);
+				group = i;
+				columns = 0;
+				free.clear();
+			}
+			piece.column = free.isEmpty() ? columns++ : (int) free.poll();
+			going.add(((long) piece.bottom << 32) | piece.column);
+		}
+		this.group(group, this.pieces.length, columns);
+	}
+
+	// Sets the number of columns of a group of pieces.
+	private void group(int from, int to, int columns) {
+		for (int i = from; i < to; i++) {
+			this.pieces[i].columns = columns;
+		}
+	}
+
+	/**
+	 * Returns the number of occurrences in the day.
+	 *
+	 * @return The number of occurrences laid out.
+	 */
+	public int size() {
+		return this.pieces.length;
+	}
+
+	/**
+	 * Returns an occurrence. The occurrences are in the order they start in
+	 * the day.
+	 *
+	 * @param i
+	 *            The index of the occurrence, from 0 to size() - 1.
+	 * @return The {@link Occurrence}.
+	 */
+	public Occurrence getOccurrence(int i) {
+		return this.pieces[i].occurrence;
+	}
+
+	/**
+	 * Returns the event of an occurrence.
+	 *
+	 * @param i
+	 *            The index of the occurrence.
+	 * @return The {@link Event}.
+	 */
+	public Event getEvent(int i) {
+		return this.pieces[i].occurrence.getEvent();
+	}
+
+	/**
+	 * Returns the block of the day an occurrence starts in.
+	 *
+	 * @param i
+	 *            The index of the occurrence.
+	 * @return The block, 0 if it started before the day.
+	 */
+	public int getTop(int i) {
+		return this.pieces[i].top;
+	}
+
+	/**
+	 * Returns the block after the last one of the day an occurrence covers.
+	 *
+	 * @param i
+	 *            The index of the occurrence.
+	 * @return The block, at most BLOCKS_IN_DAY.
+	 */
+	public int getBottom(int i) {
+		return this.pieces[i].bottom;
+	}
+
+	/**
+	 * Returns the column of an occurrence.
+	 *
+	 * @param i
+	 *            The index of the occurrence.
+	 * @return The column, from 0 for the leftmost.
+	 */
+	public int getColumn(int i) {
+		return this.pieces[i].column;
+	}
+
+	/**
+	 * Returns the number of columns the width of the day is divided into
+	 * where an occurrence is.
+	 *
+	 * @param i
+	 *            The index of the occurrence.
+	 * @return The columns of the group of overlapping occurrences.
+	 */
+	public int getColumns(int i) {
+		return this.pieces[i].columns;
+	}
+
+}
@@ -0,0 +1,154 @@
+package calendarGUI;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import javax.swing.JComponent;
+import javax.swing.UIManager;
+
+import calendar.MonthAggregate;
+
+/**
+ * A JMonthGrid shows a month as a grid of days, a row a week from Monday to
+ * Sunday. Each day is shaded by the time its events take up compared to the
+ * busiest day of the month, as in a {@link JYearHeatmap}, and shows the
+ * number of its events, their total duration and the category that takes
+ * the most time. Days with high priority events are marked at the top. It is
+ * painted from the {@link MonthAggregate} of the month alone.
+ *
+ * Clicks are not handled here: a listener finds the day under the mouse with
+ * {@link #getDateAt(Point)}.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class JMonthGrid extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	public static Color CELL_LINES = Color.LIGHT_GRAY;
+	public static Color HIGH_PRIORITY = JWeekCanvas.HIGH_PRIORITY;
+
+	public static final int WEEKDAYS = 7;
+	public static final int WEEKS = 6; // The most a month can touch.
+	public static final int CELL_WIDTH = 48;
+	public static final int CELL_HEIGHT = 64;
+	public static final int HEADER_HEIGHT = 16; // Of the names of the days.
+
+	private static final String[] WEEKDAY_NAMES = { "Mo", "Tu", "We", "Th",
+			"Fr", "Sa", "Su" };
+	private static final int MARK_HEIGHT = 3;
+
+	private MonthAggregate month;
+	private int offset; // The cells before the first of the month.
+
+	/**
+	 * Creates a grid of a month.
+	 *
+	 * @param month
+	 *            The {@link MonthAggregate} of the month.
+	 */
+	public JMonthGrid(MonthAggregate month) {
+		this.month = month;
+		int first = month.getMonth().get(Calendar.DAY_OF_WEEK);
+		this.offset = (first - Calendar.MONDAY + WEEKDAYS) % WEEKDAYS;
+		this.setOpaque(true);
+		this.setBackground(UIManager.getColor("Panel.background"));
+		this.setAlignmentX(LEFT_ALIGNMENT);
+		Dimension size = new Dimension(WEEKDAYS * CELL_WIDTH, HEADER_HEIGHT
+				+ WEEKS * CELL_HEIGHT);
+		this.setPreferredSize(size);
+		this.setMaximumSize(size);
+	}
+
+	public MonthAggregate getMonth() {
+		return this.month;
+	}
+
+	/**
+	 * Returns the day at a point of the grid.
+	 *
+	 * @param point
+	 *            The point, as in a {@link java.awt.event.MouseEvent}.
+	 * @return The day, at midnight, or null if the point is not on a day of
+	 *         the month.
+	 */
+	public GregorianCalendar getDateAt(Point point) {
+		int y = point.y - HEADER_HEIGHT;
+		if (point.x < 0 || y < 0 || point.x >= WEEKDAYS * CELL_WIDTH) {
+			return null;
+		}
+		int day = (y / CELL_HEIGHT) * WEEKDAYS + point.x / CELL_WIDTH
+				- this.offset + 1;
+		if (day < 1 || day > this.month.getDays()) {
+			return null;
+		}
+		GregorianCalendar date = this.month.getMonth();
+		date.set(Calendar.DAY_OF_MONTH, day);
+		return date;
+	}
+
+	/**
+	 * Paints the names of the weekdays and the days of the month.
+	 *
+	 * @param g
+	 *            The {@link Graphics} to paint with.
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		Graphics2D g2 = (Graphics2D) g;
+		g2.setColor(this.getBackground());
+		g2.fillRect(0, 0, this.getWidth(), this.getHeight());
+		g2.setFont(this.getFont());
+		FontMetrics metrics = g2.getFontMetrics();
+		g2.setColor(this.getForeground());
+		for (int i = 0; i < WEEKDAYS; i++) {
+			g2.drawString(WEEKDAY_NAMES[i], i * CELL_WIDTH + 3, metrics
+					.getAscent());
+		}
+		long busiest = this.month.getBusiest();
+		for (int day = 1; day <= this.month.getDays(); day++) {
+			int cell = this.offset + day - 1;
+			int x = (cell % WEEKDAYS) * CELL_WIDTH;
+			int y = HEADER_HEIGHT + (cell / WEEKDAYS) * CELL_HEIGHT;
+			this.paintDay(g2, metrics, day, x, y, busiest);
+		}
+	}
+
+	// Paints a day of the month in its cell.
+	private void paintDay(Graphics2D g, FontMetrics metrics, int day, int x,
+			int y, long busiest) {
+		g.setColor(JYearHeatmap.heat(this.month.getDuration(day), busiest));
+		g.fillRect(x, y, CELL_WIDTH, CELL_HEIGHT);
+		if (this.month.getHighPriorityCount(day) > 0) {
+			g.setColor(HIGH_PRIORITY);
+			g.fillRect(x, y, CELL_WIDTH, MARK_HEIGHT);
+		}
+		g.setColor(CELL_LINES);
+		g.drawRect(x, y, CELL_WIDTH - 1, CELL_HEIGHT - 1);
+
+		Graphics2D text = (Graphics2D) g.create(x + 3, y + MARK_HEIGHT,
+				CELL_WIDTH - 6, CELL_HEIGHT - MARK_HEIGHT);
+		text.setColor(this.getForeground());
+		int line = metrics.getAscent();
+		text.drawString(Integer.toString(day), 0, line);
+		int count = this.month.getCount(day);
+		if (count > 0) {
+			text.drawString(Integer.toString(count), 0, line
+					+ metrics.getHeight());
+			text.drawString(TCalParser.presentDuration(this.month
+					.getDuration(day)), 0, line + 2 * metrics.getHeight());
+			text.drawString(this.month.getTopCategory(day), 0, line + 3
+					* metrics.getHeight());
+		}
+		text.dispose();
+	}
+
+}
@@ -298,7 +298,7 @@ public class JToolPanel extends JPanel implements ActionListener {
 				event.setPriority(1);
 				break;
 			}
-			event.setUID(TCalendar.UID);
+			event.setUID(TCalendar.newUID());
 
 			this.master.addEvent(event);
 			this.master.flushToolPane();
@@ -375,7 +375,7 @@ public class JToolPanel extends JPanel implements ActionListener {
 			}
 
 			this.master.flushToolPane();
-			this.master.refreshWeek();
+			this.master.updateEvent(this.target);
 		} catch (NumberFormatException num) {
 			new JErrorFrame("The interval value must be an integer");
 			return;
@@ -0,0 +1,257 @@
+package calendarGUI;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+
+import javax.swing.JComponent;
+import javax.swing.UIManager;
+
+import calendar.Event;
+
+/**
+ * A JWeekCanvas draws the events of a week as columns of time blocks, one
+ * column a day. Instead of a component for every block it paints the blocks
+ * itself from the {@link WeekModel} of the week, only those inside the area
+ * being repainted. Each event is drawn as a box colored by its priority,
+ * with its category and duration if there is room for them. Events that
+ * overlap are drawn side by side, as laid out by the {@link DayLayout} of
+ * the day.
+ *
+ * Clicks are not handled here: a listener finds the events under the mouse
+ * with {@link #getEventsAt(Point)}.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class JWeekCanvas extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	public static Color EMPTY_COLOR = null; // The background of the canvas.
+	public static Color NO_PRIORITY = Color.CYAN;
+	public static Color LOW_PRIORITY = Color.GREEN;
+	public static Color MEDIUM_PRIORITY = Color.YELLOW;
+	public static Color HIGH_PRIORITY = Color.ORANGE;
+	public static Color EVENT_BORDERS = Color.DARK_GRAY;
+	public static Color HOUR_LINES = Color.LIGHT_GRAY;
+
+	public static final int DAYS = WeekModel.DAYS;
+	public static final int BLOCK_WIDTH = 50; // The preferred width.
+	public static final int BLOCK_HEIGHT = 45;
+
+	private static final int BLOCKS_IN_DAY = WeekModel.BLOCKS_IN_DAY;
+	// The narrowest event that is labeled, and that can be clicked alone.
+	private static final int LABEL_WIDTH = 30;
+	private static final int TARGET_WIDTH = 4;
+
+	private WeekModel model;
+
+	/**
+	 * Creates an empty canvas for the week of today.
+	 */
+	public JWeekCanvas() {
+		this.model = new WeekModel(new GregorianCalendar());
+		this.setOpaque(true);
+		this.setBackground(UIManager.getColor("Panel.background"));
+		this.setPreferredSize(new Dimension(DAYS * BLOCK_WIDTH, BLOCKS_IN_DAY
+				* BLOCK_HEIGHT));
+	}
+
+	/**
+	 * Shows a week. If the model is of the week shown, only the columns the
+	 * days that changed reach, in either model, are painted again.
+	 *
+	 * @param model
+	 *            The {@link WeekModel} of the week.
+	 */
+	public void setModel(WeekModel model) {
+		WeekModel old = this.model;
+		this.model = model;
+		if (!old.isSameWeek(model)) {
+			this.repaint();
+			return;
+		}
+		for (int day = 0; day < DAYS; day++) {
+			if (old.getOccurrences(day) != model.getOccurrences(day)) {
+				int reach = Math.max(old.getReach(day), model.getReach(day));
+				int left = this.left(day);
+				this.repaint(left, 0, this.left(reach + 1) - left, this
+						.getHeight());
+			}
+		}
+	}
+
+	public WeekModel getModel() {
+		return this.model;
+	}
+
+	/**
+	 * Returns the events at a point of the canvas. Where the events are too
+	 * narrow to be clicked one by one, all those in the block of time at the
+	 * point are returned.
+	 *
+	 * @param point
+	 *            The point, as in a {@link java.awt.event.MouseEvent}.
+	 * @return The {@link Event}s in the order they start, or an empty list
+	 *         if there are none or the point is outside the blocks.
+	 */
+	public ArrayList<Event> getEventsAt(Point point) {
+		ArrayList<Event> events = new ArrayList<Event>();
+		int day = this.dayAt(point.x);
+		int block = point.y / BLOCK_HEIGHT;
+		if (day < 0 || point.y < 0 || block >= BLOCKS_IN_DAY) {
+			return events;
+		}
+		int left = this.left(day);
+		int width = this.left(day + 1) - left;
+		DayLayout layout = this.model.getLayout(day);
+		for (int i = 0; i < layout.size() && layout.getTop(i) <= block; i++) {
+			if (layout.getBottom(i) <= block) {
+				continue;
+			}
+			int x = left + width * layout.getColumn(i) / layout.getColumns(i);
+			int end = left + width * (layout.getColumn(i) + 1)
+					/ layout.getColumns(i);
+			if (end - x < TARGET_WIDTH) {
+				return this.model.getOccupancy().getEvents(
+						day * BLOCKS_IN_DAY + block);
+			}
+			if (x <= point.x && point.x < end) {
+				events.add(layout.getEvent(i));
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Paints the blocks and the events inside the clip of the graphics.
+	 *
+	 * @param g
+	 *            The {@link Graphics} to paint with.
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		Graphics2D g2 = (Graphics2D) g;
+		Rectangle clip = g2.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, this.getWidth(), this.getHeight());
+		}
+		g2.setColor(this.getBackground());
+		g2.fillRect(clip.x, clip.y, clip.width, clip.height);
+		int top = Math.max(clip.y / BLOCK_HEIGHT, 0);
+		int bottom = Math.min((clip.y + clip.height - 1) / BLOCK_HEIGHT,
+				BLOCKS_IN_DAY - 1);
+		for (int day = 0; day < DAYS; day++) {
+			int left = this.left(day);
+			int right = this.left(day + 1);
+			if (right <= clip.x || left >= clip.x + clip.width) {
+				continue;
+			}
+			for (int block = top; block <= bottom; block++) {
+				this.paintBlock(g2, block, left, right - left);
+			}
+			DayLayout layout = this.model.getLayout(day);
+			for (int i = 0; i < layout.size() && layout.getTop(i) <= bottom;
+					i++) {
+				if (layout.getBottom(i) > top) {
+					this.paintEvent(g2, layout, i, left, right - left);
+				}
+			}
+		}
+	}
+
+	// Paints the lines of an empty block of a day.
+	private void paintBlock(Graphics2D g, int block, int x, int width) {
+		int y = block * BLOCK_HEIGHT;
+		if (EMPTY_COLOR != null) {
+			g.setColor(EMPTY_COLOR);
+			g.fillRect(x, y, width, BLOCK_HEIGHT);
+		}
+		g.setColor(HOUR_LINES);
+		g.drawLine(x, y, x, y + BLOCK_HEIGHT - 1);
+		g.drawLine(x + width - 1, y, x + width - 1, y + BLOCK_HEIGHT - 1);
+		if ((block + 1) % TCalGUI.BLOCKS_IN_HOUR == 0) {
+			g.drawLine(x, y + BLOCK_HEIGHT - 1, x + width - 1, y
+					+ BLOCK_HEIGHT - 1);
+		}
+	}
+
+	// Paints the i:th event of the layout of a day in its column.
+	private void paintEvent(Graphics2D g, DayLayout layout, int i, int left,
+			int width) {
+		Event event = layout.getEvent(i);
+		int x = left + width * layout.getColumn(i) / layout.getColumns(i);
+		int end = left + width * (layout.getColumn(i) + 1)
+				/ layout.getColumns(i);
+		int y = layout.getTop(i) * BLOCK_HEIGHT;
+		int height = (layout.getBottom(i) - layout.getTop(i)) * BLOCK_HEIGHT;
+		g.setColor(this.colorOf(event.getPriority()));
+		g.fillRect(x, y, end - x, height);
+		if (end - x >= TARGET_WIDTH) {
+			g.setColor(EVENT_BORDERS);
+			g.drawRect(x, y, end - x - 1, height - 1);
+		}
+		if (end - x >= LABEL_WIDTH) {
+			Graphics2D text = (Graphics2D) g.create(x + 3, y, end - x - 6,
+					height);
+			text.setColor(this.getForeground());
+			text.setFont(this.getFont());
+			FontMetrics metrics = text.getFontMetrics();
+			int line = metrics.getAscent() + 2;
+			text.drawString(categoryOf(event), 0, line);
+			text.drawString(event.getTextDuration(), 0, line
+					+ metrics.getHeight());
+			text.dispose();
+		}
+	}
+
+	// Returns the category of an event, or "" if it has none.
+	private static String categoryOf(Event event) {
+		return event.getCategory() == null ? "" : event.getCategory();
+	}
+
+	// Returns the color of an event by its priority. The colors are those of
+	// the priorities in JEventPreview.
+	private Color colorOf(int priority) {
+		if (priority > 5 && priority < 10) { // Low priority.
+			return LOW_PRIORITY;
+		} else if (priority == 5) { // Medium priority.
+			return MEDIUM_PRIORITY;
+		} else if (priority > 0 && priority < 5) { // High priority.
+			return HIGH_PRIORITY;
+		} else { // Default priority
+			return NO_PRIORITY;
+		}
+	}
+
+	// Returns the x coordinate where the column of a day starts. The columns
+	// share the width of the canvas.
+	private int left(int day) {
+		return day * this.getWidth() / DAYS;
+	}
+
+	// Returns the day of the column at an x coordinate, or -1 if there is
+	// none.
+	private int dayAt(int x) {
+		if (x < 0 || x >= this.getWidth()) {
+			return -1;
+		}
+		int day = x * DAYS / this.getWidth();
+		while (this.left(day + 1) <= x) {
+			day++;
+		}
+		while (this.left(day) > x) {
+			day--;
+		}
+		return day;
+	}
+
+}
@@ -0,0 +1,157 @@
+package calendarGUI;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+
+import javax.swing.JComponent;
+import javax.swing.UIManager;
+
+import calendar.MonthAggregate;
+
+/**
+ * A JYearHeatmap shows how busy each day of a year is: a row for each month
+ * and a cell for each day, shaded by the time the events take up on the day
+ * compared to the busiest day of the year. It is painted from the
+ * {@link MonthAggregate}s of the months alone, so it takes as long to paint
+ * however many events the calendar has.
+ *
+ * Clicks are not handled here: a listener finds the day under the mouse with
+ * {@link #getDateAt(Point)}.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class JYearHeatmap extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	public static Color FREE_DAY = Color.WHITE;
+	public static Color BUSY_DAY = new Color(0xE0, 0x60, 0x20);
+	public static Color CELL_LINES = Color.LIGHT_GRAY;
+
+	public static final int MONTHS = 12;
+	public static final int CELL_SIZE = 11;
+	public static final int LABEL_WIDTH = 30; // Of the names of the months.
+
+	private static final int DAYS = 31;
+
+	private List<MonthAggregate> months;
+	private long busiest;
+
+	/**
+	 * Creates a heatmap of a year.
+	 *
+	 * @param months
+	 *            The {@link MonthAggregate}s of the months of the year, from
+	 *            January.
+	 * @throws IllegalArgumentException
+	 *             If there are not 12 months.
+	 */
+	public JYearHeatmap(List<MonthAggregate> months) {
+		if (months.size() != MONTHS) {
+			throw new IllegalArgumentException("A year has " + MONTHS
+					+ " months");
+		}
+		this.months = new ArrayList<MonthAggregate>(months);
+		for (MonthAggregate month : this.months) {
+			this.busiest = Math.max(this.busiest, month.getBusiest());
+		}
+		this.setOpaque(true);
+		this.setBackground(UIManager.getColor("Panel.background"));
+		this.setAlignmentX(LEFT_ALIGNMENT);
+		Dimension size = new Dimension(LABEL_WIDTH + DAYS * CELL_SIZE, MONTHS
+				* CELL_SIZE);
+		this.setPreferredSize(size);
+		this.setMaximumSize(size);
+	}
+
+	/**
+	 * Returns the day at a point of the heatmap.
+	 *
+	 * @param point
+	 *            The point, as in a {@link java.awt.event.MouseEvent}.
+	 * @return The day, at midnight, or null if the point is not on a day.
+	 */
+	public GregorianCalendar getDateAt(Point point) {
+		int x = point.x - LABEL_WIDTH;
+		if (x < 0 || point.y < 0) {
+			return null;
+		}
+		int day = x / CELL_SIZE + 1;
+		int month = point.y / CELL_SIZE;
+		if (month >= MONTHS || day > this.months.get(month).getDays()) {
+			return null;
+		}
+		GregorianCalendar date = this.months.get(month).getMonth();
+		date.set(Calendar.DAY_OF_MONTH, day);
+		return date;
+	}
+
+	/**
+	 * Paints the names of the months and the days.
+	 *
+	 * @param g
+	 *            The {@link Graphics} to paint with.
+	 */
+	@Override
+	protected void paintComponent(Graphics g) {
+		Graphics2D g2 = (Graphics2D) g;
+		g2.setColor(this.getBackground());
+		g2.fillRect(0, 0, this.getWidth(), this.getHeight());
+		g2.setFont(this.getFont());
+		FontMetrics metrics = g2.getFontMetrics();
+		for (int row = 0; row < MONTHS; row++) {
+			MonthAggregate month = this.months.get(row);
+			int y = row * CELL_SIZE;
+			g2.setColor(this.getForeground());
+			g2.drawString(month.getMonth().getDisplayName(Calendar.MONTH,
+					Calendar.SHORT, Locale.UK), 0, y + (CELL_SIZE + metrics
+					.getAscent() - metrics.getDescent()) / 2);
+			for (int day = 1; day <= month.getDays(); day++) {
+				int x = LABEL_WIDTH + (day - 1) * CELL_SIZE;
+				g2.setColor(heat(month.getDuration(day), this.busiest));
+				g2.fillRect(x, y, CELL_SIZE, CELL_SIZE);
+				g2.setColor(CELL_LINES);
+				g2.drawRect(x, y, CELL_SIZE - 1, CELL_SIZE - 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the shade of a day, from FREE_DAY for a day without events to
+	 * BUSY_DAY for the busiest day.
+	 *
+	 * @param duration
+	 *            The time the events take up on the day.
+	 * @param busiest
+	 *            The time they take up on the busiest day shown.
+	 * @return The {@link Color} of the day.
+	 */
+	static Color heat(long duration, long busiest) {
+		if (duration <= 0 || busiest <= 0) {
+			return FREE_DAY;
+		}
+		double share = Math.min((double) duration / busiest, 1);
+		// A day with any events at all is told apart from a free one.
+		share = 0.15 + 0.85 * share;
+		return new Color(mix(FREE_DAY.getRed(), BUSY_DAY.getRed(), share),
+				mix(FREE_DAY.getGreen(), BUSY_DAY.getGreen(), share), mix(
+						FREE_DAY.getBlue(), BUSY_DAY.getBlue(), share));
+	}
+
+	// Mixes two components of colors.
+	private static int mix(int from, int to, double share) {
+		return (int) Math.round(from + (to - from) * share);
+	}
+
+}
@@ -0,0 +1,37 @@
+package calendarGUI;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timestamp;
+
+/**
+ * A RenderFlightEvent is recorded by Java Flight Recorder when the week view
+ * of the {@link TCalGUI}, or a day of it, is drawn, or computed ahead of time
+ * for the cache.
+ * 
+ * @author aisopuro@tkk
+ * 
+ */
+
+@Name("calendar.Render")
+@Label("Calendar Render")
+@Category("TCalendar")
+@Description("A week or a day of the week view drawn")
+class RenderFlightEvent extends jdk.jfr.Event {
+
+	@Label("View")
+	@Description("week or day, or prefetched week or day")
+	String view;
+
+	@Label("Date")
+	@Description("The first day drawn")
+	@Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+	long date;
+
+	@Label("Events")
+	@Description("The number of events drawn")
+	int events;
+
+}
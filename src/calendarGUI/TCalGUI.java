@@ -1,28 +1,42 @@
 package calendarGUI;
 
 import java.awt.Color;
-import java.awt.Component;
-import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.*;
 
+import calendar.CalendarChange;
+import calendar.CalendarFiles;
+import calendar.CalendarListener;
+import calendar.CalendarMetrics;
+import calendar.CalendarWatcher;
 import calendar.CorruptedCalendarFileException;
 import calendar.DateCalc;
 import calendar.Event;
+import calendar.MonthAggregate;
+import calendar.ReloadListener;
+import calendar.SaveListener;
 import calendar.TCalendar;
-import calendarGUI.JTimeBlock;
 
 /**
  * The class TCalGUI describes a graphical user interface for the TCalendar
@@ -41,12 +55,27 @@ public class TCalGUI implements ActionListener {
 	private static Locale DEFAULT_LOCALE = Locale.UK;
 	private static double SPLIT_PANE_WEIGHT = 0.7;
 	private static int SCROLL_SPEED = 16;
+	private static int CACHED_WEEKS = 8;
+	private static int CACHED_MONTHS = 3;
+	private static int[] PREFETCHED_WEEKS = { 1, -1 }; // From the one shown.
+
+	// Computes the views next to the one shown, when nothing else is done.
+	private static final ExecutorService PREFETCH = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "TCalendar prefetch");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
 
 	// Interactive objects
 	private static JMenuItem MENU_NEW;
 	private static JMenuItem MENU_IMPORT;
 	private static JMenuItem MENU_LOAD;
 	private static JMenuItem MENU_SAVE;
+	private static JCheckBoxMenuItem MENU_WATCH;
 
 	private static JButton PREVIOUS_BUTTON;
 	private static JButton CURRENT_BUTTON;
@@ -55,15 +84,29 @@ public class TCalGUI implements ActionListener {
 	private static JTextField GOTO;
 
 	private static JButton MONTH_VIEW;
+	private static JButton YEAR_VIEW;
 
 	// Other fields/objects
 	private TCalendar calendar;
+	private File file; // The file the calendar was loaded from or saved in.
+	private CalendarWatcher watcher; // null if the file is not watched.
+	private CalendarListener changes; // Shows the changes to the calendar.
 	private int currentWeek;
 	private static GregorianCalendar thisMonday;
 	private GregorianCalendar currentMonday;
+	private WeekModel target; // The week shown, or being computed.
+	// The week being computed, and the days of it that are queried.
+	private SwingWorker<WeekModel, Void> weekWorker;
+	private boolean[] pendingDays;
+	private SwingWorker<TCalendar, Void> loader; // The file being loaded.
+	private SwingWorker<?, Void> viewWorker; // The month or year summed up.
+	// The weeks and the high priority events of the months computed lately.
+	private ViewCache<WeekModel> weeks;
+	private ViewCache<ArrayList<Event>> months;
+	private volatile int prefetches; // Only the latest prefetch is run.
 	private JPanel toolPane;
 	private JFrame topFrame;
-	private JPanel weekPanel;
+	private JWeekCanvas weekCanvas;
 	private JToolBar weekdates;
 	private JLabel currentYear;
 
@@ -73,6 +116,23 @@ public class TCalGUI implements ActionListener {
 	public TCalGUI() {
 		this.topFrame = new JFrame("TCalendar");
 		this.calendar = new TCalendar();
+		this.weeks = new ViewCache<WeekModel>(CACHED_WEEKS);
+		this.months = new ViewCache<ArrayList<Event>>(CACHED_MONTHS);
+		// Only the days a change touched are drawn again.
+		this.changes = new CalendarListener() {
+			public void calendarChanged(final List<CalendarChange> changes) {
+				if (SwingUtilities.isEventDispatchThread()) {
+					TCalGUI.this.showChanges(changes);
+				} else {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							TCalGUI.this.showChanges(changes);
+						}
+					});
+				}
+			}
+		};
+		this.calendar.addCalendarListener(this.changes);
 		this.currentWeek = 0; // Cursor, 0 = current week, negative for past,
 		// positive for future weeks.
 
@@ -95,16 +155,19 @@ public class TCalGUI implements ActionListener {
 		MENU_IMPORT = new JMenuItem("Import Events");
 		MENU_LOAD = new JMenuItem("Load Calendar");
 		MENU_SAVE = new JMenuItem("Save Calendar");
+		MENU_WATCH = new JCheckBoxMenuItem("Watch for Changes");
 		// Set the action commands for the menu items.
 		MENU_NEW.addActionListener(this);
 		MENU_IMPORT.addActionListener(this);
 		MENU_LOAD.addActionListener(this);
 		MENU_SAVE.addActionListener(this);
+		MENU_WATCH.addActionListener(this);
 
 		file.add(MENU_NEW);
 		file.add(MENU_IMPORT);
 		file.add(MENU_LOAD);
 		file.add(MENU_SAVE);
+		file.add(MENU_WATCH);
 		menu.add(file);
 
 		separator = new JSeparator(JSeparator.VERTICAL);
@@ -140,11 +203,14 @@ public class TCalGUI implements ActionListener {
 		separator.setPreferredSize(new Dimension(50, menu.getHeight()));
 		menu.add(separator);
 
-		// Create the Month View button.
+		// Create the Month View and Year View buttons.
 		MONTH_VIEW = new JButton("Month View");
 		MONTH_VIEW.addActionListener(this);
+		YEAR_VIEW = new JButton("Year View");
+		YEAR_VIEW.addActionListener(this);
 
 		menu.add(MONTH_VIEW);
+		menu.add(YEAR_VIEW);
 
 		separator = new JSeparator(JSeparator.VERTICAL);
 		separator.setPreferredSize(new Dimension(50, menu.getHeight()));
@@ -162,63 +228,38 @@ public class TCalGUI implements ActionListener {
 		this.weekdates.setEnabled(false);
 		this.weekDateUpdate(new GregorianCalendar());
 
-		// Create the week view with empty JTimeBlocks
-		this.weekPanel = new JPanel(new GridLayout(1, 8));
-		this.weekPanel.setBackground(Color.WHITE);
-
-		JTimeBlock unit;
-		JTimeBlock previousBlock = null;
-		for (int i = 1; i < 8; i++) {
-			JPanel current = new JPanel();
-			for (int j = 1; j <= 24 * BLOCKS_IN_HOUR; j++) { // TimeBlocks are
-				// set to be 15
-				// min long.
-				unit = new JTimeBlock(previousBlock);
-				unit.setPreferredSize(new Dimension(50, 45));
-				// Mark hours with light grey borders
-				if (j % BLOCKS_IN_HOUR == 0) {
-					unit.setBorder(BorderFactory.createMatteBorder(0, 1, 1, 1,
-							Color.LIGHT_GRAY));
-				} else {
-					unit.setBorder(BorderFactory.createMatteBorder(0, 1, 0, 1,
-							Color.LIGHT_GRAY));
-				}
-				// Add a MouseListener that processes clicks
-				unit.addMouseListener(new MouseListener() {
-
-					// Process the click
-					@Override
-					public void mouseClicked(MouseEvent e) {
-						processClick(e.getComponent());
-					}
+		// Create the week view, which draws the blocks of time itself.
+		this.weekCanvas = new JWeekCanvas();
+		// Add a MouseListener that processes clicks
+		this.weekCanvas.addMouseListener(new MouseListener() {
 
-					// The rest intentionally left blank.
-					@Override
-					public void mouseReleased(MouseEvent e) {
-					}
+			// Process the click
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				processClick(TCalGUI.this.weekCanvas.getEventsAt(e
+						.getPoint()));
+			}
 
-					@Override
-					public void mousePressed(MouseEvent e) {
-					}
+			// The rest intentionally left blank.
+			@Override
+			public void mouseReleased(MouseEvent e) {
+			}
 
-					@Override
-					public void mouseExited(MouseEvent e) {
-					}
+			@Override
+			public void mousePressed(MouseEvent e) {
+			}
 
-					@Override
-					public void mouseEntered(MouseEvent e) {
-					}
-				});
+			@Override
+			public void mouseExited(MouseEvent e) {
+			}
 
-				current.add(unit);
-				previousBlock = unit;
+			@Override
+			public void mouseEntered(MouseEvent e) {
 			}
-			current.setLayout(new BoxLayout(current, BoxLayout.Y_AXIS));
-			this.weekPanel.add(current);
-		}
+		});
 
-		// Put the weekpanel, with the timeblocks, into scrollpane
-		JScrollPane scrollPane = new JScrollPane(weekPanel,
+		// Put the week view into scrollpane
+		JScrollPane scrollPane = new JScrollPane(this.weekCanvas,
 				JScrollPane.VERTICAL_SCROLLBAR_ALWAYS,
 				JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 		scrollPane.setLayout(new ScrollPaneLayout());
@@ -249,68 +290,125 @@ public class TCalGUI implements ActionListener {
 
 	}
 
-	// Returns all the timeblocks to default coloration
-	private void flushWeek() {
-		Component[] days = this.weekPanel.getComponents();
-		Component[] blocks;
-		int i;
-		for (Component day : days) {
-			blocks = ((Container) day).getComponents();
-			i = 1;
-			for (Component unit : blocks) {
-				((JTimeBlock) unit).flush();
-				if (((JTimeBlock) unit).getComponentCount() != 0) {
-					((JTimeBlock) unit).removeAll();
+	// Load an .ics file (replaces the old calendar). The file is read in the
+	// background and the old calendar is shown, journaled and watched until
+	// it has been read.
+	private void load(final File toLoad) {
+		if (CalendarFiles.isCalendarFile(toLoad)) {
+			this.showTitle("TCalendar - loading " + toLoad.getName());
+			this.loader = new SwingWorker<TCalendar, Void>() {
+				@Override
+				protected TCalendar doInBackground() throws IOException,
+						CorruptedCalendarFileException {
+					// Only the events that are shown are parsed from the file.
+					TCalendar calendar = TCalendar.openLazily(toLoad);
+					// Recovers the changes made after the file was last saved.
+					calendar.openJournal(toLoad);
+					return calendar;
 				}
-				if (i % BLOCKS_IN_HOUR == 0) {
-					((JTimeBlock) unit).setBorder(BorderFactory
-							.createMatteBorder(0, 1, 1, 1, Color.LIGHT_GRAY));
-				} else {
-					((JTimeBlock) unit).setBorder(BorderFactory
-							.createMatteBorder(0, 1, 0, 1, Color.LIGHT_GRAY));
+
+				@Override
+				protected void done() {
+					TCalGUI.this.loaded(this, toLoad);
 				}
-				i++;
+			};
+			this.loader.execute();
+		} else {
+			new JErrorFrame(
+					"The file type is incorrect, only .ics and .ics.gz files"
+							+ " are accepted");
+		}
+	}
 
+	// Replaces the calendar with the one a loader has read, unless another
+	// file has been loaded since. If the file could not be read, the old
+	// calendar is kept as it was.
+	private void loaded(SwingWorker<TCalendar, Void> loader, File toLoad) {
+		TCalendar calendar = this.result(loader);
+		if (loader != this.loader) {
+			if (calendar != null) {
+				try {
+					calendar.closeJournal();
+				} catch (IOException e) {
+					// The calendar is not used, nor is its journal.
+				}
 			}
+			return;
+		}
+		this.loader = null;
+		if (calendar == null) {
+			this.showTitle(this.title());
+			return;
+		}
+		TCalendar old = this.calendar;
+		this.stopWatching();
+		old.removeCalendarListener(this.changes);
+		this.calendar = calendar;
+		this.calendar.addCalendarListener(this.changes);
+		try {
+			old.closeJournal();
+		} catch (IOException e) {
+			new JErrorFrame(e.getMessage());
+		}
+		this.weeks.clear();
+		this.months.clear();
+		this.file = toLoad;
+		this.showTitle(this.title());
+		if (MENU_WATCH.isSelected()) {
+			this.startWatching();
 		}
+		this.showWeek(new GregorianCalendar());
 	}
 
-	// Load an .ics file (replaces the old calendar).
-	private void load(File toLoad) {
-		if (toLoad.getName().endsWith(".ics")) {
-			try {
-				this.calendar = new TCalendar(toLoad);
-				this.showWeek(new GregorianCalendar());
-			} catch (FileNotFoundException e) {
-				new JErrorFrame(e.getMessage());
-			} catch (IOException e) {
-				new JErrorFrame(e.getMessage());
-			} catch (CorruptedCalendarFileException e) {
-				new JErrorFrame(e.getMessage());
-			}
+	// Import an .ics file (adds events to current calendar) in the
+	// background.
+	private void importEvents(final File toLoad) {
+		if (CalendarFiles.isCalendarFile(toLoad)) {
+			final TCalendar calendar = this.calendar;
+			this.showTitle("TCalendar - importing " + toLoad.getName());
+			new SwingWorker<File, Void>() {
+				@Override
+				protected File doInBackground() throws IOException,
+						CorruptedCalendarFileException {
+					calendar.loadCalendar(toLoad);
+					return toLoad;
+				}
+
+				@Override
+				protected void done() {
+					TCalGUI.this.showTitle(TCalGUI.this.title());
+					if (TCalGUI.this.result(this) != null) {
+						TCalGUI.this.showWeek(new GregorianCalendar());
+					}
+				}
+			}.execute();
 		} else {
 			new JErrorFrame(
-					"The file type is incorrect, only .ics files are accepted");
+					"The file type is incorrect, only .ics and .ics.gz files"
+							+ " are accepted");
 		}
 	}
 
-	// Import an .ics file (adds events to current calendar).
-	private void importEvents(File toLoad) {
-		if (toLoad.getName().endsWith(".ics")) {
-			try {
-				this.calendar.loadCalendar(toLoad);
-				this.showWeek(new GregorianCalendar());
-			} catch (FileNotFoundException e) {
-				new JErrorFrame(e.getMessage());
-			} catch (IOException e) {
-				new JErrorFrame(e.getMessage());
-			} catch (CorruptedCalendarFileException e) {
-				new JErrorFrame(e.getMessage());
+	// Returns the result of a background task that is done, or null if it
+	// failed, showing the error.
+	private <T> T result(SwingWorker<T, ?> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			// A task that is done does not wait.
+			Thread.currentThread().interrupt();
+		} catch (CancellationException e) {
+			// Nothing to show.
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
-		} else {
-			new JErrorFrame(
-					"The file type is incorrect, only .ics files are accepted");
+			new JErrorFrame(cause.getMessage());
 		}
+		return null;
 	}
 
 	/**
@@ -320,8 +418,28 @@ public class TCalGUI implements ActionListener {
 	 *            The {@link Event} to be added.
 	 */
 	public void addEvent(Event toAdd) {
-		this.calendar.addEvent(toAdd);
-		this.showWeek(this.currentMonday);
+		try {
+			this.calendar.addEvent(toAdd);
+		} catch (UncheckedIOException e) {
+			new JErrorFrame("The change could not be saved: "
+					+ e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Files an {@link Event} that has been edited anew in the calendar and
+	 * updates the GUI.
+	 * 
+	 * @param target
+	 *            The {@link Event} that was edited.
+	 */
+	public void updateEvent(Event target) {
+		try {
+			this.calendar.updateEvent(target);
+		} catch (UncheckedIOException e) {
+			new JErrorFrame("The change could not be saved: "
+					+ e.getCause().getMessage());
+		}
 	}
 
 	/**
@@ -331,113 +449,227 @@ public class TCalGUI implements ActionListener {
 		this.showWeek(this.currentMonday);
 	}
 
-	// Shows the currents week.
+	// Shows the currents week. The days are queried in the background,
+	// unless the week has been computed lately.
 	private void showWeek(GregorianCalendar reference) {
-		Component[] days = this.weekPanel.getComponents();
-
-		this.flushWeek();
-
-		this.weekDateUpdate(reference);
-		reference = (GregorianCalendar) reference.clone();
-		reference = DateCalc.startOf(reference, Calendar.WEEK_OF_YEAR);
-
-		this.currentYear.setText(""+ reference.get(Calendar.YEAR));
-
-		for (Component day : days) {
-			this.updateDay(reference, (JPanel) day);
-			reference.add(Calendar.DAY_OF_MONTH, 1);
+		WeekModel week = new WeekModel(reference);
+		WeekModel cached = this.weeks.get(week.getStart(0));
+		if (cached != null) {
+			if (this.weekWorker != null) {
+				this.weekWorker.cancel(false);
+				this.weekWorker = null;
+			}
+			this.showModel(cached);
+			return;
 		}
-		this.topFrame.validate();
+		boolean[] days = new boolean[WeekModel.DAYS];
+		Arrays.fill(days, true);
+		this.requestWeek(week, days);
 	}
 
-	// Updates a day in the weekview (a column of JTimeBlocks)
-	private void updateDay(GregorianCalendar reference, JPanel weekday) {
-		GregorianCalendar start = (GregorianCalendar) reference.clone();
-		GregorianCalendar end = (GregorianCalendar) reference.clone();
-
-		start = DateCalc.startOf(start, Calendar.DAY_OF_MONTH);
-
-		end = DateCalc.endOf(end, Calendar.DAY_OF_MONTH);
-
-		ArrayList<Event> today = this.calendar.getDay(start);
-		for (Event current : today) {
-			this.colorBlocks(start, weekday, current, end);
+	// Shows the changes made to the calendar in the week view: the days of
+	// the week shown, or being computed, that the changes touched are
+	// queried again.
+	private void showChanges(List<CalendarChange> changes) {
+		this.weeks.invalidate(changes);
+		this.months.invalidate(changes);
+		if (this.target == null) {
+			return;
 		}
+		boolean[] days = new boolean[WeekModel.DAYS];
+		boolean touched = false;
+		for (int day = 0; day < WeekModel.DAYS; day++) {
+			long start = this.target.getStart(day);
+			long end = this.target.getStart(day + 1);
+			for (CalendarChange change : changes) {
+				if (change.touches(start, end)) {
+					days[day] = true;
+					touched = true;
+					break;
+				}
+			}
+		}
+		if (!touched) {
+			return;
+		}
+		if (this.weekWorker != null) {
+			// The week being computed may have missed the changes.
+			for (int day = 0; day < WeekModel.DAYS; day++) {
+				days[day] |= this.pendingDays[day];
+			}
+		}
+		this.requestWeek(this.target, days);
 	}
 
-	// Colors the necessary number of blocks, depending on the event.
-	private void colorBlocks(GregorianCalendar dayStart, JPanel weekday,
-			Event current, GregorianCalendar dayEnd) {
-
-		int startIndex = this.startBlock(current, dayStart);
-		int duration = this.getDurationInBlocks(current.getDuration());
-
-		JTimeBlock start = (JTimeBlock) weekday.getComponent(startIndex);
-		if (start.getComponentCount() == 0) {
-			start.add(new JLabel(current.getCategory()));
-			start.add(new JLabel(current.getTextDuration()));
-		} else {
-			start.removeAll();
-			start.add(new JLabel("Overlap"));
+	// Queries the marked days of a week in the background, taking the others
+	// from base, and shows the week when done. A week still being computed
+	// is cancelled, so only the latest request is ever shown.
+	private void requestWeek(final WeekModel base, final boolean[] days) {
+		if (this.weekWorker != null) {
+			this.weekWorker.cancel(false);
 		}
-		start.addEvent(current, duration);
+		this.target = base;
+		this.pendingDays = days;
+		final TCalendar calendar = this.calendar;
+		final long generation = this.weeks.getGeneration();
+		this.weekWorker = new SwingWorker<WeekModel, Void>() {
+			@Override
+			protected WeekModel doInBackground() {
+				return TCalGUI.this.buildWeek(calendar, base, days, this,
+						false);
+			}
+
+			@Override
+			protected void done() {
+				if (this == TCalGUI.this.weekWorker && !this.isCancelled()) {
+					TCalGUI.this.weekWorker = null;
+					WeekModel model = TCalGUI.this.result(this);
+					if (model != null) {
+						TCalGUI.this.weeks.put(model.getStart(0), model
+								.getStart(WeekModel.DAYS), model, generation);
+					}
+					TCalGUI.this.showModel(model);
+				}
+			}
+		};
+		this.weekWorker.execute();
 	}
 
-	private int startBlock(Event target, GregorianCalendar day) {
-		DateCalc.startOf(day, Calendar.DAY_OF_MONTH);
-		GregorianCalendar futureStart = (GregorianCalendar) target.getStart()
-				.clone();
-		if (target.isRepeating()) {
-			int fieldDifference = DateCalc.getFieldDifference(target
-					.getRepeatField(), target.getStart(), day);
-			int multiple = Math.abs(fieldDifference / target.getInterval());
-			futureStart.add(target.getRepeatField(), multiple
-					* target.getInterval());
-		}
-		if (futureStart.before(day)) {
-			return 0;
-		} else {
-			int hour = target.getStart().get(Calendar.HOUR_OF_DAY);
-			int minute = target.getStart().get(Calendar.MINUTE);
-			return (hour * BLOCKS_IN_HOUR) + (minute / MINUTES_PER_BLOCK);
+	// Queries the marked days of a week into a model. Returns null if the
+	// task, if any, is cancelled first. A prefetched week is recorded apart
+	// from the ones that are shown. Called in the background.
+	private WeekModel buildWeek(TCalendar calendar, WeekModel model,
+			boolean[] days, Future<?> task, boolean prefetch) {
+		long started = CalendarMetrics.start();
+		RenderFlightEvent flight = new RenderFlightEvent();
+		flight.begin();
+		int drawn = 0;
+		try {
+			for (int day = 0; day < WeekModel.DAYS; day++) {
+				if (task != null && task.isCancelled()) {
+					return null;
+				}
+				if (days[day]) {
+					ArrayList<Event> events = this.queryDay(calendar, model
+							.getDay(day), prefetch);
+					model = model.withDay(day, events);
+					drawn += events.size();
+				}
+			}
+			// Worked out here rather than on the Event Dispatch Thread.
+			for (int day = 0; day < WeekModel.DAYS; day++) {
+				model.getLayout(day);
+			}
+			return model;
+		} finally {
+			(prefetch ? CalendarMetrics.PREFETCH_WEEK
+					: CalendarMetrics.RENDER_WEEK).record(started);
+			flight.end();
+			if (flight.shouldCommit()) {
+				flight.view = prefetch ? "prefetched week" : "week";
+				flight.date = model.getWeek().getTimeInMillis();
+				flight.events = drawn;
+				flight.commit();
+			}
 		}
 	}
 
-	// Calculates how many blocks are needed to represent the duration (as given
-	// in milliseconds)
-	private int getDurationInBlocks(long duration) {
-		long minute = 1000 * 60;
-		// If the duration is less than a single block, return 1
-		if (duration < MINUTES_PER_BLOCK * minute) {
-			return 1;
+	// Queries the events of a day. Called in the background.
+	private ArrayList<Event> queryDay(TCalendar calendar,
+			GregorianCalendar start, boolean prefetch) {
+		RenderFlightEvent flight = new RenderFlightEvent();
+		flight.begin();
+		ArrayList<Event> today = calendar.getDay(start);
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.view = prefetch ? "prefetched day" : "day";
+			flight.date = start.getTimeInMillis();
+			flight.events = today.size();
+			flight.commit();
 		}
-		long hour = 60 * minute;
-		long day = 24 * hour;
-		long week = 7 * day;
-		int blocks = 0;
+		return today;
+	}
 
-		if (duration > week) {
-			blocks += (duration / week) * 7 * 24 * BLOCKS_IN_HOUR;
-			duration = duration % week;
+	// Shows a week that has been computed.
+	private void showModel(WeekModel model) {
+		if (model == null) {
+			return;
 		}
-		if (duration > day) {
-			blocks += (duration / day) * 24 * BLOCKS_IN_HOUR;
-			duration = duration % day;
+		this.target = model;
+		if (!this.weekCanvas.getModel().isSameWeek(model)) {
+			GregorianCalendar monday = model.getWeek();
+			this.weekDateUpdate(monday);
+			this.currentYear.setText("" + monday.get(Calendar.YEAR));
+			this.topFrame.validate();
 		}
-		if (duration > hour) {
-			blocks += (duration / hour) * BLOCKS_IN_HOUR;
-			duration = duration % hour;
+		this.weekCanvas.setModel(model);
+		this.prefetch(model);
+	}
+
+	// Computes the weeks next to a week, and its month, in the background
+	// for the cache. A prefetch still going on is abandoned.
+	private void prefetch(WeekModel shown) {
+		final int prefetch = ++this.prefetches;
+		final TCalendar calendar = this.calendar;
+		final GregorianCalendar monday = shown.getWeek();
+		PREFETCH.execute(new Runnable() {
+			public void run() {
+				for (int step : PREFETCHED_WEEKS) {
+					if (prefetch != TCalGUI.this.prefetches) {
+						return;
+					}
+					GregorianCalendar week = (GregorianCalendar) monday.clone();
+					week.add(Calendar.WEEK_OF_YEAR, step);
+					TCalGUI.this.prefetchWeek(calendar, week);
+				}
+				if (prefetch == TCalGUI.this.prefetches) {
+					TCalGUI.this.getMonthsEvents(calendar, monday);
+					calendar.getMonthAggregate(monday);
+				}
+			}
+		});
+	}
+
+	// Computes a week for the cache unless it is there already. Called in
+	// the background.
+	private void prefetchWeek(TCalendar calendar, GregorianCalendar reference) {
+		long generation = this.weeks.getGeneration();
+		WeekModel model = new WeekModel(reference);
+		if (this.weeks.get(model.getStart(0)) == null) {
+			boolean[] days = new boolean[WeekModel.DAYS];
+			Arrays.fill(days, true);
+			model = this.buildWeek(calendar, model, days, null, true);
+			this.weeks.put(model.getStart(0), model.getStart(WeekModel.DAYS),
+					model, generation);
 		}
-		if (duration > minute) {
-			blocks += (duration / minute) / MINUTES_PER_BLOCK;
+	}
+
+	// Returns the high priority events of the month of a day, from the cache
+	// if they have been computed lately.
+	private ArrayList<Event> getMonthsEvents(TCalendar calendar,
+			GregorianCalendar day) {
+		long generation = this.months.getGeneration();
+		GregorianCalendar first = DateCalc.startOf((GregorianCalendar) day
+				.clone(), Calendar.MONTH);
+		ArrayList<Event> events = this.months.get(first.getTimeInMillis());
+		if (events == null) {
+			events = calendar.getMonthsEvents(first);
+			GregorianCalendar next = (GregorianCalendar) first.clone();
+			next.add(Calendar.MONTH, 1);
+			this.months.put(first.getTimeInMillis(), next.getTimeInMillis(),
+					events, generation);
 		}
-		return blocks;
+		return events;
 	}
 
 	/**
 	 * Flushes the toolPanel, clearing all objects from it and updating the GUI
 	 */
 	public void flushToolPane() {
+		if (this.viewWorker != null) {
+			this.viewWorker.cancel(false);
+			this.viewWorker = null;
+		}
 		this.toolPane.removeAll();
 		this.toolPane.repaint();
 	}
@@ -466,25 +698,115 @@ public class TCalGUI implements ActionListener {
 		}
 	}
 
-	// Checks that the file inHere is ok before writing into it
+	// Checks that the file inHere is ok and saves the calendar into it in the
+	// background, showing the progress in the title bar.
 	private void fileBuilder(File inHere) {
 		if (this.calendar == null) {
 			new JErrorFrame("There is no calendar to save.");
+			return;
+		}
+		inHere = CalendarFiles.withSuffix(inHere);
+		this.showTitle("TCalendar - saving " + inHere.getName());
+		// Further changes are journaled next to the saved file.
+		this.calendar.saveInBackground(inHere, new SaveListener() {
+			public void progress(int written, int total) {
+				long percent = total == 0 ? 100 : 100L * written / total;
+				TCalGUI.this.showTitle("TCalendar - saving " + percent + "%");
+			}
+
+			public void saved(final File saved) {
+				TCalGUI.this.showTitle("TCalendar - " + saved.getName());
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						TCalGUI.this.savedAs(saved);
+					}
+				});
+			}
+
+			public void failed(final IOException e) {
+				TCalGUI.this.showTitle("TCalendar");
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						new JErrorFrame("There was an unexpected I/O exception: "
+								+ e.getMessage());
+					}
+				});
+			}
+		});
+	}
+
+	// Watches the file the calendar was saved in from now on, if a file is
+	// watched.
+	private void savedAs(File saved) {
+		this.file = saved;
+		if (this.watcher != null
+				&& !this.watcher.getFile().equals(saved.getAbsoluteFile())) {
+			this.stopWatching();
+			this.startWatching();
+		}
+	}
+
+	// Starts applying the changes others make to the file of the calendar.
+	private void startWatching() {
+		if (this.file == null) {
+			new JErrorFrame("Load or save a calendar to watch its file.");
+			MENU_WATCH.setSelected(false);
+			return;
 		}
+		final CalendarWatcher watcher = new CalendarWatcher(this.calendar,
+				this.file);
+		watcher.setListener(new ReloadListener() {
+			public void reloaded(int changes) {
+				// The days that changed are drawn again by the calendar
+				// listener.
+			}
+
+			public void failed(Exception e) {
+				// The file is read again when the other application is done.
+				TCalGUI.this.showTitle("TCalendar - could not reload "
+						+ watcher.getFile().getName() + ": " + e.getMessage());
+			}
+		});
 		try {
-			this.calendar.serializeCalendar(inHere);
+			watcher.start();
+			this.watcher = watcher;
+			MENU_WATCH.setSelected(true);
 		} catch (IOException e) {
-			String error = "There was an unexpected I/O exception: "
-					+ e.getMessage();
-			new JErrorFrame(error);
+			MENU_WATCH.setSelected(false);
+			new JErrorFrame(e.getMessage());
+		} catch (CorruptedCalendarFileException e) {
+			MENU_WATCH.setSelected(false);
+			new JErrorFrame(e.getMessage());
+		}
+	}
+
+	// Stops watching the file of the calendar.
+	private void stopWatching() {
+		if (this.watcher != null) {
+			this.watcher.stop();
+			this.watcher = null;
 		}
 	}
 
+	// Returns the title of the window when nothing is being done.
+	private String title() {
+		return this.file == null ? "TCalendar" : "TCalendar - "
+				+ this.file.getName();
+	}
+
+	// Sets the title of the window from any thread.
+	private void showTitle(final String title) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				TCalGUI.this.topFrame.setTitle(title);
+			}
+		});
+	}
+
 	// If a user clicks a timeblock this adds previews of any Events into the
 	// toolPane
-	private void processClick(Component block) {
+	private void processClick(List<Event> overlapping) {
 		this.flushToolPane();
-		ArrayList<Event> overlapping = ((JTimeBlock) block).getEventsInBlock();
 		JPanel list = new JPanel();
 		list.setLayout(new BoxLayout(list, BoxLayout.Y_AXIS));
 		if (overlapping != null) {
@@ -527,64 +849,192 @@ public class TCalGUI implements ActionListener {
 	 * @param target
 	 */
 	public void deleteEvent(Event target) {
-		this.calendar.removeEvent(target);
-		this.showWeek(this.currentMonday);
+		try {
+			this.calendar.removeEvent(target);
+		} catch (UncheckedIOException e) {
+			new JErrorFrame("The change could not be saved: "
+					+ e.getCause().getMessage());
+		}
 	}
 
-	// Shows the month view: a list of previews for all the high priority events
-	// in the month, followed by a summary of their durations.
+	// Shows the month view: a grid of the days of the month and the time
+	// each category takes, followed by previews of the high priority events.
+	// They are computed in the background.
 	private void showMonth() {
+		final TCalendar calendar = this.calendar;
+		final GregorianCalendar day = (GregorianCalendar) this.currentMonday
+				.clone();
+		this.startView(new SwingWorker<List<MonthAggregate>, Void>() {
+			private ArrayList<Event> high;
+
+			@Override
+			protected List<MonthAggregate> doInBackground() {
+				this.high = TCalGUI.this.getMonthsEvents(calendar, day);
+				return TCalGUI.this.sumUp(calendar, day, 1);
+			}
+
+			@Override
+			protected void done() {
+				if (this == TCalGUI.this.viewWorker && !this.isCancelled()) {
+					TCalGUI.this.viewWorker = null;
+					List<MonthAggregate> month = TCalGUI.this.result(this);
+					if (month != null) {
+						TCalGUI.this.showMonth(month.get(0), this.high);
+					}
+				}
+			}
+		});
+	}
+
+	// Fills the toolPane with the month view.
+	private void showMonth(MonthAggregate month, ArrayList<Event> thismonth) {
 		JPanel monthList = new JPanel();
 		monthList.setLayout(new BoxLayout(monthList, BoxLayout.Y_AXIS));
-		String currentMonth = this.currentMonday.getDisplayName(Calendar.MONTH,
-				Calendar.LONG, DEFAULT_LOCALE);
-		JLabel monthName = new JLabel(currentMonth);
+		GregorianCalendar first = month.getMonth();
+		JLabel monthName = new JLabel(first.getDisplayName(Calendar.MONTH,
+				Calendar.LONG, DEFAULT_LOCALE)
+				+ " " + first.get(Calendar.YEAR));
 		monthList.add(monthName);
-		ArrayList<Event> thismonth = this.calendar
-				.getMonthsEvents(this.currentMonday);
+		final JMonthGrid grid = new JMonthGrid(month);
+		grid.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				TCalGUI.this.showDate(grid.getDateAt(e.getPoint()));
+			}
+		});
+		monthList.add(grid);
+		monthList.add(this.durations(Arrays.asList(month)));
 		if (thismonth.isEmpty()) {
 			monthList.add(new JLabel("No high-priority"));
 			monthList.add(new JLabel("events this month"));
 		} else {
-			HashMap<String, Long> durations = new HashMap<String, Long>(
-					thismonth.size());
-			Long duration;
-			Long previous;
-			GregorianCalendar firstOf = (GregorianCalendar) this.currentMonday
-					.clone();
-			firstOf = DateCalc.startOf(firstOf, Calendar.MONTH);
 			for (Event current : thismonth) {
-				duration = new Long(current.getDurationInMonth(firstOf));
-				previous = durations.get(current.getCategory());
-				if (previous != null) {
-					previous += duration;
-				} else {
-					durations.put(current.getCategory(), duration);
-				}
 				monthList.add(new JEventPreview(this, current));
 			}
+		}
+
+		this.toolPane.add(monthList);
+		this.toolPane.validate();
+	}
 
-			JPanel summary = new JPanel();
-			summary.setLayout(new BoxLayout(summary, BoxLayout.Y_AXIS));
+	// Shows the year view: a heatmap of how busy the days of the year are,
+	// and the time each category takes. It is computed in the background.
+	private void showYear() {
+		final TCalendar calendar = this.calendar;
+		final GregorianCalendar day = DateCalc.startOf(
+				(GregorianCalendar) this.currentMonday.clone(), Calendar.YEAR);
+		this.startView(new SwingWorker<List<MonthAggregate>, Void>() {
+			@Override
+			protected List<MonthAggregate> doInBackground() {
+				return TCalGUI.this.sumUp(calendar, day,
+						JYearHeatmap.MONTHS);
+			}
 
-			JLabel label = new JLabel("Durations:");
-			summary.add(label);
-			JLabel line;
-			for (String current : durations.keySet()) {
-				line = new JLabel(current
-						+ ": "
-						+ TCalParser.presentDuration(durations.get(current)
-								.longValue()));
-				summary.add(line);
+			@Override
+			protected void done() {
+				if (this == TCalGUI.this.viewWorker && !this.isCancelled()) {
+					TCalGUI.this.viewWorker = null;
+					List<MonthAggregate> months = TCalGUI.this.result(this);
+					if (months != null) {
+						TCalGUI.this.showYear(months);
+					}
+				}
 			}
+		});
+	}
 
-			monthList.add(summary);
-		}
+	// Fills the toolPane with the year view.
+	private void showYear(List<MonthAggregate> months) {
+		JPanel yearList = new JPanel();
+		yearList.setLayout(new BoxLayout(yearList, BoxLayout.Y_AXIS));
+		yearList.add(new JLabel("" + months.get(0).getMonth().get(
+				Calendar.YEAR)));
+		final JYearHeatmap heatmap = new JYearHeatmap(months);
+		heatmap.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				TCalGUI.this.showDate(heatmap.getDateAt(e.getPoint()));
+			}
+		});
+		yearList.add(heatmap);
+		yearList.add(this.durations(months));
 
-		this.toolPane.add(monthList);
+		this.toolPane.add(yearList);
 		this.toolPane.validate();
 	}
 
+	// Runs a worker that computes the month or year view, in place of the
+	// one still running.
+	private void startView(SwingWorker<?, Void> worker) {
+		if (this.viewWorker != null) {
+			this.viewWorker.cancel(false);
+		}
+		this.viewWorker = worker;
+		worker.execute();
+	}
+
+	// Returns the aggregates of a number of months from the month of a day.
+	// Called in the background.
+	private List<MonthAggregate> sumUp(TCalendar calendar,
+			GregorianCalendar day, int months) {
+		RenderFlightEvent flight = new RenderFlightEvent();
+		flight.begin();
+		GregorianCalendar month = DateCalc.startOf((GregorianCalendar) day
+				.clone(), Calendar.MONTH);
+		ArrayList<MonthAggregate> aggregates = new ArrayList<MonthAggregate>(
+				months);
+		int events = 0;
+		for (int i = 0; i < months; i++) {
+			MonthAggregate aggregate = calendar.getMonthAggregate(month);
+			for (int date = 1; date <= aggregate.getDays(); date++) {
+				events += aggregate.getCount(date);
+			}
+			aggregates.add(aggregate);
+			month.add(Calendar.MONTH, 1);
+		}
+		flight.end();
+		if (flight.shouldCommit()) {
+			flight.view = months == 1 ? "month" : "year";
+			flight.date = aggregates.get(0).getStart();
+			flight.events = events;
+			flight.commit();
+		}
+		return aggregates;
+	}
+
+	// Returns a summary of the time each category takes in some months.
+	private JPanel durations(List<MonthAggregate> months) {
+		TreeMap<String, Long> durations = new TreeMap<String, Long>();
+		for (MonthAggregate month : months) {
+			for (String category : month.getCategories()) {
+				Long previous = durations.get(category);
+				long duration = month.getCategoryDuration(category);
+				durations.put(category, Long.valueOf(previous == null
+						? duration : previous.longValue() + duration));
+			}
+		}
+		JPanel summary = new JPanel();
+		summary.setLayout(new BoxLayout(summary, BoxLayout.Y_AXIS));
+		summary.setAlignmentX(JComponent.LEFT_ALIGNMENT);
+		summary.add(new JLabel("Durations:"));
+		for (String current : durations.keySet()) {
+			summary.add(new JLabel(current
+					+ ": "
+					+ TCalParser.presentDuration(durations.get(current)
+							.longValue())));
+		}
+		return summary;
+	}
+
+	// Shows the week of a day in the week view, if there is a day.
+	private void showDate(GregorianCalendar date) {
+		if (date == null) {
+			return;
+		}
+		this.currentMonday = DateCalc.startOf(date, Calendar.WEEK_OF_YEAR);
+		this.showWeek(this.currentMonday);
+	}
+
 	// Action handler
 	@Override
 	public void actionPerformed(ActionEvent action) {
@@ -603,12 +1053,12 @@ public class TCalGUI implements ActionListener {
 
 				@Override
 				public String getDescription() {
-					return "iCalendar (.ics)";
+					return "iCalendar (.ics, .ics.gz)";
 				}
 
 				@Override
 				public boolean accept(File f) {
-					return f.getName().endsWith(".ics");
+					return CalendarFiles.isCalendarFile(f);
 				}
 			});
 			JFrame saveFrame = new JFrame("Save Calendar");
@@ -629,6 +1079,15 @@ public class TCalGUI implements ActionListener {
 			}
 		}
 
+		// Handle the "Watch for Changes" option in the "File" menu.
+		if (MENU_WATCH.equals(source)) {
+			if (MENU_WATCH.isSelected()) {
+				this.startWatching();
+			} else {
+				this.stopWatching();
+			}
+		}
+
 		// Handle the "Import" button in the "File" menu.
 		if (MENU_IMPORT.equals(source)) {
 			JFileChooser chooser = new JFileChooser();
@@ -648,9 +1107,7 @@ public class TCalGUI implements ActionListener {
 						.getSource()).getText());
 				GregorianCalendar toHere = TCalParser.parseToDate(input,
 						"00:00");
-				this.currentMonday = DateCalc.startOf(toHere,
-						Calendar.WEEK_OF_YEAR);
-				this.showWeek(this.currentMonday);
+				this.showDate(toHere);
 				((JTextField) action.getSource()).setText("");
 			} catch (IllegalArgumentException e) {
 				new JErrorFrame("Not a valid date");
@@ -683,5 +1140,11 @@ public class TCalGUI implements ActionListener {
 			this.flushToolPane();
 			this.showMonth();
 		}
+
+		// Handle the "Year View" button.
+		if (YEAR_VIEW.equals(source)) {
+			this.flushToolPane();
+			this.showYear();
+		}
 	}
 }
@@ -0,0 +1,142 @@
+package calendarGUI;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import calendar.CalendarChange;
+
+/**
+ * A ViewCache keeps what has been computed for the latest views of the
+ * calendar, such as the {@link WeekModel}s of weeks, so that moving back and
+ * forth between them needs no queries. Each view is stored by the range of
+ * time it shows, and when the cache is full the view used longest ago is
+ * dropped.
+ *
+ * A view computed in the background may be out of date by the time it is
+ * stored: the changes made to the calendar meanwhile drop the views they
+ * touch (see {@link #invalidate(List)}) and start a new generation, and a
+ * view computed in an older generation is not stored.
+ *
+ * @author aisopuro@tkk
+ *
+ * @param <V>
+ *            The type of the views.
+ */
+
+public class ViewCache<V> {
+
+	// A view and the range it shows.
+	private static class Entry<V> {
+		private V view;
+		private long to;
+
+		Entry(V view, long to) {
+			this.view = view;
+			this.to = to;
+		}
+	}
+
+	private LinkedHashMap<Long, Entry<V>> views;
+	private long generation;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity
+	 *            The number of views kept, at least 1.
+	 * @throws IllegalArgumentException
+	 *             If capacity is less than 1.
+	 */
+	public ViewCache(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"The cache must hold at least one view");
+		}
+		this.views = new LinkedHashMap<Long, Entry<V>>(capacity * 2, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry<V>> e) {
+				return this.size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the generation of the cache. Take it before computing a view
+	 * to store.
+	 *
+	 * @return The number of times the cache has been invalidated or cleared.
+	 */
+	public synchronized long getGeneration() {
+		return this.generation;
+	}
+
+	/**
+	 * Returns a view.
+	 *
+	 * @param from
+	 *            The start of the range the view shows, in milliseconds.
+	 * @return The view, or null if it is not in the cache.
+	 */
+	public synchronized V get(long from) {
+		Entry<V> entry = this.views.get(from);
+		return entry == null ? null : entry.view;
+	}
+
+	/**
+	 * Stores a view, unless the calendar has changed since it was computed.
+	 *
+	 * @param from
+	 *            The start of the range the view shows, in milliseconds.
+	 * @param to
+	 *            The end of the range, not included.
+	 * @param view
+	 *            The view.
+	 * @param generation
+	 *            The generation (see {@link #getGeneration()}) when the view
+	 *            was started.
+	 * @return true if the view was stored.
+	 */
+	public synchronized boolean put(long from, long to, V view,
+			long generation) {
+		if (generation != this.generation) {
+			return false;
+		}
+		this.views.put(from, new Entry<V>(view, to));
+		return true;
+	}
+
+	/**
+	 * Drops the views that changes touched and starts a new generation.
+	 *
+	 * @param changes
+	 *            The {@link CalendarChange}s made to the calendar.
+	 */
+	public synchronized void invalidate(List<CalendarChange> changes) {
+		this.generation++;
+		Iterator<Map.Entry<Long, Entry<V>>> i;
+		for (i = this.views.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Long, Entry<V>> view = i.next();
+			for (CalendarChange change : changes) {
+				if (change.touches(view.getKey(), view.getValue().to)) {
+					i.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops all the views and starts a new generation, as when another
+	 * calendar is loaded.
+	 */
+	public synchronized void clear() {
+		this.generation++;
+		this.views.clear();
+	}
+
+}
@@ -0,0 +1,315 @@
+package calendarGUI;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import calendar.DateCalc;
+import calendar.Event;
+
+/**
+ * A WeekModel holds what the week view shows of a week: the occurrences of
+ * the events of each day, as the blocks of time they cover. A model is never
+ * changed once made, so it can be made in the background and handed over to
+ * the Event Dispatch Thread to be shown by a {@link JWeekCanvas}; a day is
+ * updated by making a new model that shares the other days with the old one.
+ *
+ * The blocks are counted from the start of the week, BLOCKS_IN_DAY for each
+ * day. An occurrence belongs to the day it starts on, and one that lasts past
+ * midnight covers blocks of the next days too, up to the end of the week.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public final class WeekModel {
+
+	public static final int DAYS = 7;
+	public static final int BLOCKS_IN_DAY = 24 * TCalGUI.BLOCKS_IN_HOUR;
+	public static final int BLOCKS = DAYS * BLOCKS_IN_DAY;
+
+	/**
+	 * An occurrence of an {@link Event} in the week.
+	 */
+	public static final class Occurrence {
+		private final Event event;
+		private final int first;
+		private final int last;
+
+		Occurrence(Event event, int first, int last) {
+			this.event = event;
+			this.first = first;
+			this.last = last;
+		}
+
+		public Event getEvent() {
+			return this.event;
+		}
+
+		/**
+		 * Returns the block the occurrence starts in.
+		 *
+		 * @return The block, counted from the start of the week.
+		 */
+		public int getFirst() {
+			return this.first;
+		}
+
+		/**
+		 * Returns the block after the last one the occurrence covers.
+		 *
+		 * @return The block, at most BLOCKS.
+		 */
+		public int getLast() {
+			return this.last;
+		}
+	}
+
+	private final GregorianCalendar monday;
+	private final long[] starts; // Of the days and of the next week.
+	private final List<List<Occurrence>> days;
+	// Worked out when first asked for.
+	private WeekOccupancy occupancy;
+	private DayLayout[] layouts;
+
+	/**
+	 * Creates a model of a week without events.
+	 *
+	 * @param reference
+	 *            A day of the week.
+	 */
+	public WeekModel(GregorianCalendar reference) {
+		this.monday = DateCalc.startOf((GregorianCalendar) reference.clone(),
+				Calendar.WEEK_OF_YEAR);
+		this.starts = new long[DAYS + 1];
+		GregorianCalendar day = (GregorianCalendar) this.monday.clone();
+		for (int i = 0; i <= DAYS; i++) {
+			this.starts[i] = day.getTimeInMillis();
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		List<Occurrence> none = Collections.emptyList();
+		this.days = Collections.nCopies(DAYS, none);
+	}
+
+	// Creates a model like another one with the occurrences of a day
+	// replaced.
+	private WeekModel(WeekModel model, int day, List<Occurrence> occurrences) {
+		this.monday = model.monday;
+		this.starts = model.starts;
+		ArrayList<List<Occurrence>> days = new ArrayList<List<Occurrence>>(
+				model.days);
+		days.set(day, Collections.unmodifiableList(occurrences));
+		this.days = Collections.unmodifiableList(days);
+	}
+
+	/**
+	 * Returns the first day of the week.
+	 *
+	 * @return The Monday of the week, at midnight.
+	 */
+	public GregorianCalendar getWeek() {
+		return (GregorianCalendar) this.monday.clone();
+	}
+
+	/**
+	 * Returns the start of a day of the week.
+	 *
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday.
+	 * @return The day, at midnight.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 6.
+	 */
+	public GregorianCalendar getDay(int day) {
+		if (day < 0 || day >= DAYS) {
+			throw new IndexOutOfBoundsException("No day " + day);
+		}
+		GregorianCalendar start = (GregorianCalendar) this.monday.clone();
+		start.setTimeInMillis(this.starts[day]);
+		return start;
+	}
+
+	/**
+	 * Returns the start of a day of the week in milliseconds.
+	 *
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday, or 7 for the Monday
+	 *            after the week.
+	 * @return The time at midnight.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 7.
+	 */
+	public long getStart(int day) {
+		return this.starts[day];
+	}
+
+	/**
+	 * Checks whether another model is of the same week.
+	 *
+	 * @param other
+	 *            The other model.
+	 * @return true if both start on the same Monday.
+	 */
+	public boolean isSameWeek(WeekModel other) {
+		return this.starts[0] == other.starts[0];
+	}
+
+	/**
+	 * Returns the occurrences that start on a day.
+	 *
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday.
+	 * @return The {@link Occurrence}s, which cannot be changed. A day that
+	 *         has not changed between two models has the same list in both.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 6.
+	 */
+	public List<Occurrence> getOccurrences(int day) {
+		return this.days.get(day);
+	}
+
+	/**
+	 * Returns the last day the occurrences of a day reach.
+	 *
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday.
+	 * @return The day, at least the one given.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 6.
+	 */
+	public int getReach(int day) {
+		int last = (day + 1) * BLOCKS_IN_DAY;
+		for (Occurrence occurrence : this.days.get(day)) {
+			last = Math.max(last, occurrence.last);
+		}
+		return (last - 1) / BLOCKS_IN_DAY;
+	}
+
+	/**
+	 * Returns the occupancy of the blocks of the week, working it out the
+	 * first time.
+	 *
+	 * @return The {@link WeekOccupancy}.
+	 */
+	public synchronized WeekOccupancy getOccupancy() {
+		if (this.occupancy == null) {
+			this.occupancy = new WeekOccupancy(this);
+		}
+		return this.occupancy;
+	}
+
+	/**
+	 * Returns the layout of the occurrences in a day, working it out the
+	 * first time.
+	 *
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday.
+	 * @return The {@link DayLayout}.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 6.
+	 */
+	public synchronized DayLayout getLayout(int day) {
+		if (this.layouts == null) {
+			this.layouts = new DayLayout[DAYS];
+		}
+		if (this.layouts[day] == null) {
+			this.layouts[day] = new DayLayout(this, day);
+		}
+		return this.layouts[day];
+	}
+
+	/**
+	 * Makes a model of the week with the events of a day replaced. Each
+	 * occurrence of an event that starts on the day is added; one going on
+	 * at midnight is left to the day it started on, unless the day is Monday.
+	 *
+	 * @param day
+	 *            The day, 0 for Monday to 6 for Sunday.
+	 * @param events
+	 *            The {@link Event}s that occur on the day, as given by
+	 *            {@link calendar.TCalendar#getDay(GregorianCalendar)}.
+	 * @return The new model.
+	 * @throws IndexOutOfBoundsException
+	 *             If day is not from 0 to 6.
+	 */
+	public WeekModel withDay(int day, List<Event> events) {
+		if (day < 0 || day >= DAYS) {
+			throw new IndexOutOfBoundsException("No day " + day);
+		}
+		ArrayList<Occurrence> occurrences = new ArrayList<Occurrence>(events
+				.size());
+		long from = this.starts[day];
+		long to = this.starts[day + 1];
+		for (Event event : events) {
+			long duration = event.getDuration();
+			long next = event.getNextOccurrence(from);
+			if (next < from) {
+				// An occurrence going on at midnight is drawn from the day
+				// it started on, or from the start of the week.
+				if (day == 0) {
+					this.add(occurrences, event, 0, next + duration - from);
+				}
+				next = event.getNextOccurrence(next + Math.max(duration, 1));
+			}
+			while (next < to) {
+				this.add(occurrences, event, day * BLOCKS_IN_DAY
+						+ this.startBlock(next), duration);
+				next = event.getNextOccurrence(next + Math.max(duration, 1));
+			}
+		}
+		return new WeekModel(this, day, occurrences);
+	}
+
+	// Adds an occurrence that starts in a block of the week and lasts for a
+	// duration, cut at the end of the week.
+	private void add(ArrayList<Occurrence> occurrences, Event event,
+			int first, long duration) {
+		long last = first + this.getDurationInBlocks(duration);
+		occurrences.add(new Occurrence(event, first, (int) Math.min(last,
+				BLOCKS)));
+	}
+
+	// Returns the block of its day a time is in.
+	private int startBlock(long time) {
+		GregorianCalendar start = (GregorianCalendar) this.monday.clone();
+		start.setTimeInMillis(time);
+		int hour = start.get(Calendar.HOUR_OF_DAY);
+		int minute = start.get(Calendar.MINUTE);
+		return (hour * TCalGUI.BLOCKS_IN_HOUR)
+				+ (minute / TCalGUI.MINUTES_PER_BLOCK);
+	}
+
+	// Calculates how many blocks are needed to represent the duration (as given
+	// in milliseconds)
+	private int getDurationInBlocks(long duration) {
+		long minute = 1000 * 60;
+		// If the duration is less than a single block, return 1
+		if (duration < TCalGUI.MINUTES_PER_BLOCK * minute) {
+			return 1;
+		}
+		long hour = 60 * minute;
+		long day = 24 * hour;
+		long week = 7 * day;
+		int blocks = 0;
+
+		if (duration > week) {
+			// Longer than the week anyway.
+			return BLOCKS;
+		}
+		if (duration > day) {
+			blocks += (duration / day) * BLOCKS_IN_DAY;
+			duration = duration % day;
+		}
+		if (duration > hour) {
+			blocks += (duration / hour) * TCalGUI.BLOCKS_IN_HOUR;
+			duration = duration % hour;
+		}
+		if (duration > minute) {
+			blocks += (duration / minute) / TCalGUI.MINUTES_PER_BLOCK;
+		}
+		return blocks;
+	}
+
+}
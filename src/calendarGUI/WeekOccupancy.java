@@ -0,0 +1,112 @@
+package calendarGUI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import calendar.Event;
+import calendarGUI.WeekModel.Occurrence;
+
+/**
+ * A WeekOccupancy lists the events in each block of time of a
+ * {@link WeekModel}. The week view asks for it only where the events are too
+ * narrow to be clicked one by one (see {@link JWeekCanvas#getEventsAt}), so
+ * it is worked out when first needed. The occurrences are sorted by their
+ * first block with a counting sort and listed for the blocks they cover, in
+ * time proportional to the number of blocks and occurrences, plus the number
+ * of events listed.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public final class WeekOccupancy {
+
+	private static final int BLOCKS = WeekModel.BLOCKS;
+
+	// The events of block i are events[offsets[i]] up to
+	// events[offsets[i + 1]], in the order they start.
+	private int[] offsets;
+	private Event[] events;
+
+	/**
+	 * Works out the events in the blocks of a week.
+	 *
+	 * @param model
+	 *            The {@link WeekModel} of the week.
+	 */
+	public WeekOccupancy(WeekModel model) {
+		ArrayList<Occurrence> all = new ArrayList<Occurrence>();
+		for (int day = 0; day < WeekModel.DAYS; day++) {
+			all.addAll(model.getOccurrences(day));
+		}
+		Occurrence[] sorted = sortByFirst(all);
+
+		// The changes in the number of events at each block, summed up in
+		// the sweep.
+		int[] changes = new int[BLOCKS + 1];
+		for (Occurrence occurrence : sorted) {
+			changes[occurrence.getFirst()]++;
+			changes[occurrence.getLast()]--;
+		}
+		this.offsets = new int[BLOCKS + 1];
+		int count = 0;
+		for (int block = 0; block < BLOCKS; block++) {
+			count += changes[block];
+			this.offsets[block + 1] = this.offsets[block] + count;
+		}
+
+		this.events = new Event[this.offsets[BLOCKS]];
+		int[] next = Arrays.copyOf(this.offsets, BLOCKS);
+		for (Occurrence occurrence : sorted) {
+			for (int block = occurrence.getFirst(); block < occurrence
+					.getLast(); block++) {
+				this.events[next[block]++] = occurrence.getEvent();
+			}
+		}
+	}
+
+	// Sorts occurrences by their first block, counting how many start in each
+	// block to find where they go. Those that start in the same block stay
+	// in order, so the events of a day do.
+	private static Occurrence[] sortByFirst(ArrayList<Occurrence> all) {
+		int[] next = new int[BLOCKS + 1];
+		for (Occurrence occurrence : all) {
+			next[occurrence.getFirst() + 1]++;
+		}
+		for (int block = 0; block < BLOCKS; block++) {
+			next[block + 1] += next[block];
+		}
+		Occurrence[] sorted = new Occurrence[all.size()];
+		for (Occurrence occurrence : all) {
+			sorted[next[occurrence.getFirst()]++] = occurrence;
+		}
+		return sorted;
+	}
+
+	/**
+	 * Returns the number of events in a block.
+	 *
+	 * @param block
+	 *            The block, counted from the start of the week.
+	 * @return The number of events.
+	 */
+	public int getCount(int block) {
+		return this.offsets[block + 1] - this.offsets[block];
+	}
+
+	/**
+	 * Returns the events in a block.
+	 *
+	 * @param block
+	 *            The block, counted from the start of the week.
+	 * @return The {@link Event}s, in the order they start.
+	 */
+	public ArrayList<Event> getEvents(int block) {
+		ArrayList<Event> events = new ArrayList<Event>(this.getCount(block));
+		for (int i = this.offsets[block]; i < this.offsets[block + 1]; i++) {
+			events.add(this.events[i]);
+		}
+		return events;
+	}
+
+}
@@ -0,0 +1,442 @@
+package calendarServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import calendar.CorruptedCalendarFileException;
+import calendar.DateCalc;
+import calendar.Event;
+import calendar.Occurrence;
+import calendar.TCalendar;
+
+/**
+ * A CalendarServer answers queries on a {@link TCalendar} over HTTP with
+ * JSON, using the HTTP server of the JDK. Every query is a GET request:
+ *
+ * /day?date=2011-05-02 lists the occurrences of events on a day,
+ * /week?date=2011-05-02 those of the week (from Monday) containing a day, and
+ * /range?from=2011-05-02&to=2011-05-09 those from one time to another.
+ * /freebusy?from=...&to=... lists the intervals during which some event is
+ * taking place, and /conflicts?from=...&to=... the occurrences that overlap.
+ * A range may be at most MAX_RANGE_DAYS days long, so that one query cannot
+ * expand a daily event into millions of occurrences.
+ *
+ * Times are given like 2011-05-02 or 2011-05-02T09:30, and answered like
+ * 2011-05-02T09:30:00, in the time zone of the server. A query that cannot be
+ * answered gets a JSON object with an "error".
+ *
+ * Each request is handled on a thread of its own: a virtual thread if the
+ * Java runtime has them, and otherwise a thread from a fixed pool. The methods
+ * of a TCalendar are synchronized, so the calendar may be changed while it is
+ * being served, but only one query reads it at a time; parsing the request and
+ * writing the answer are done in parallel. A lazily opened calendar reads its
+ * file while it holds its monitor, and up to JDK 23 a virtual thread that
+ * blocks in or on a monitor pins the thread that carries it. The queries
+ * therefore wait for each other on a lock of the server, on which a virtual
+ * thread does not pin its carrier, so only the one reading the calendar does.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class CalendarServer {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int MAX_RANGE_DAYS = 366;
+
+	private static final String UTF8 = "UTF-8";
+	private static final String NO_DELAY = "sun.net.httpserver.nodelay";
+	// The number of threads per processor when there are no virtual threads.
+	private static final int THREADS_PER_PROCESSOR = 4;
+
+	private TCalendar calendar;
+	private ReentrantLock reading; // Held by the query reading the calendar.
+	private HttpServer server; // null if not started.
+	private ExecutorService executor;
+
+	// A query that cannot be answered, with the status to answer it with.
+	private static class QueryException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private int status;
+
+		QueryException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Creates a server for a calendar.
+	 *
+	 * @param calendar
+	 *            The {@link TCalendar} to serve.
+	 */
+	public CalendarServer(TCalendar calendar) {
+		this.calendar = calendar;
+		this.reading = new ReentrantLock();
+	}
+
+	/**
+	 * Serves an .ics file. The arguments are the file and optionally the port,
+	 * DEFAULT_PORT if not given.
+	 *
+	 * @param args
+	 *            The command line arguments.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: CalendarServer FILE [port]");
+			System.exit(2);
+		}
+		try {
+			int port = args.length > 1 ? Integer.parseInt(args[1])
+					: DEFAULT_PORT;
+			TCalendar calendar = TCalendar.openLazily(new File(args[0]));
+			CalendarServer server = new CalendarServer(calendar);
+			server.start(new InetSocketAddress(port));
+			System.out.println("Serving " + args[0] + " on http://localhost:"
+					+ server.getPort() + "/");
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid port " + args[1]);
+			System.exit(2);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (CorruptedCalendarFileException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Starts serving.
+	 *
+	 * @param address
+	 *            The address to listen at. Port 0 picks a free port.
+	 * @throws IOException
+	 *             If the server cannot listen at the address.
+	 */
+	public synchronized void start(InetSocketAddress address)
+			throws IOException {
+		if (this.server != null) {
+			return;
+		}
+		// Without this the small answers wait for delayed acknowledgements.
+		// It only has an effect before the first server of the JVM is made.
+		if (System.getProperty(NO_DELAY) == null) {
+			System.setProperty(NO_DELAY, "true");
+		}
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				CalendarServer.this.handle(exchange);
+			}
+		});
+		this.executor = newExecutor();
+		server.setExecutor(this.executor);
+		server.start();
+		this.server = server;
+	}
+
+	/**
+	 * Returns the port the server listens at.
+	 *
+	 * @return The port, or -1 if the server has not been started.
+	 */
+	public synchronized int getPort() {
+		if (this.server == null) {
+			return -1;
+		}
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops serving, letting the requests being handled finish for up to a
+	 * second.
+	 */
+	public synchronized void stop() {
+		if (this.server != null) {
+			this.server.stop(1);
+			this.executor.shutdown();
+			this.server = null;
+		}
+	}
+
+	// Answers a request.
+	private void handle(HttpExchange exchange) throws IOException {
+		int status = 200;
+		StringBuilder json = new StringBuilder();
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.getResponseHeaders().set("Allow", "GET");
+				throw new QueryException(405, "Only GET is supported");
+			}
+			this.answer(exchange.getRequestURI().getPath(), parameters(exchange
+					.getRequestURI().getRawQuery()), json);
+		} catch (QueryException e) {
+			status = e.status;
+			error(json, e.getMessage());
+		} catch (IllegalArgumentException e) {
+			// The query string could not be decoded.
+			status = 400;
+			error(json, e.getMessage());
+		} catch (UncheckedIOException e) {
+			status = 500;
+			error(json, e.getCause().getMessage());
+		}
+		byte[] body = json.toString().getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Writes the answer to a query into json.
+	private void answer(String path, HashMap<String, String> parameters,
+			StringBuilder json) throws QueryException {
+		GregorianCalendar from;
+		GregorianCalendar to;
+		if (path.equals("/day") || path.equals("/week")) {
+			from = parseTime(parameters, "date");
+			boolean week = path.equals("/week");
+			from = DateCalc.startOf(from, week ? Calendar.WEEK_OF_YEAR
+					: Calendar.DAY_OF_MONTH);
+			to = (GregorianCalendar) from.clone();
+			to.add(Calendar.DAY_OF_MONTH, week ? 7 : 1);
+		} else if (path.equals("/range") || path.equals("/freebusy")
+				|| path.equals("/conflicts")) {
+			from = parseTime(parameters, "from");
+			to = parseTime(parameters, "to");
+		} else {
+			throw new QueryException(404, "Unknown query " + path);
+		}
+		if (!from.before(to)) {
+			throw new QueryException(400, "The range is empty");
+		}
+		GregorianCalendar limit = (GregorianCalendar) from.clone();
+		limit.add(Calendar.DAY_OF_MONTH, MAX_RANGE_DAYS);
+		if (to.after(limit)) {
+			throw new QueryException(400, "The range is longer than "
+					+ MAX_RANGE_DAYS + " days");
+		}
+		ArrayList<Event> events;
+		this.reading.lock();
+		try {
+			events = this.calendar.getOverlapping(from, to);
+		} finally {
+			this.reading.unlock();
+		}
+		ArrayList<Occurrence> occurrences = Occurrence.expand(events, from,
+				to);
+		// Used for presenting every time of the answer.
+		GregorianCalendar date = new GregorianCalendar();
+		if (path.equals("/freebusy")) {
+			json.append("{\"busy\":[");
+			ArrayList<long[]> busy = Occurrence.busy(occurrences);
+			for (int i = 0; i < busy.size(); i++) {
+				json.append(i > 0 ? ",{\"start\":" : "{\"start\":");
+				time(json, date, busy.get(i)[0]);
+				json.append(",\"end\":");
+				time(json, date, busy.get(i)[1]);
+				json.append('}');
+			}
+		} else if (path.equals("/conflicts")) {
+			json.append("{\"conflicts\":[");
+			ArrayList<Occurrence[]> pairs = Occurrence.overlaps(occurrences);
+			for (int i = 0; i < pairs.size(); i++) {
+				Occurrence[] pair = pairs.get(i);
+				json.append(i > 0 ? ",{\"start\":" : "{\"start\":");
+				time(json, date, pair[1].getStart());
+				json.append(",\"end\":");
+				time(json, date, Math.min(pair[0].getEnd(), pair[1]
+						.getEnd()));
+				json.append(",\"events\":[");
+				occurrence(json, date, pair[0]);
+				json.append(',');
+				occurrence(json, date, pair[1]);
+				json.append("]}");
+			}
+		} else {
+			json.append("{\"events\":[");
+			for (int i = 0; i < occurrences.size(); i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				occurrence(json, date, occurrences.get(i));
+			}
+		}
+		json.append("]}");
+	}
+
+	// Returns an executor running every task on a virtual thread of its own,
+	// or on a fixed pool of daemon threads on runtimes without them.
+	private static ExecutorService newExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			// Not available on this runtime.
+		}
+		return Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors()
+				* THREADS_PER_PROCESSOR, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "TCalendar server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// Replaces the contents of json with an error.
+	private static void error(StringBuilder json, String message) {
+		json.setLength(0);
+		json.append("{\"error\":");
+		quote(json, message);
+		json.append('}');
+	}
+
+	// Writes an occurrence as a JSON object.
+	private static void occurrence(StringBuilder json, GregorianCalendar date,
+			Occurrence occurrence) {
+		Event event = occurrence.getEvent();
+		json.append("{\"uid\":");
+		quote(json, event.getUID());
+		json.append(",\"category\":");
+		quote(json, event.getCategory());
+		json.append(",\"start\":");
+		time(json, date, occurrence.getStart());
+		json.append(",\"end\":");
+		time(json, date, occurrence.getEnd());
+		json.append(",\"priority\":").append(event.getPriority());
+		json.append(",\"repeating\":").append(event.isRepeating());
+		json.append('}');
+	}
+
+	// Writes a time as a JSON string like 2011-05-02T09:30:00, using date to
+	// split it into fields.
+	private static void time(StringBuilder json, GregorianCalendar date,
+			long time) {
+		date.setTimeInMillis(time);
+		json.append('"');
+		pad(json, date.get(Calendar.YEAR), 4).append('-');
+		pad(json, date.get(Calendar.MONTH) + 1, 2).append('-');
+		pad(json, date.get(Calendar.DAY_OF_MONTH), 2).append('T');
+		pad(json, date.get(Calendar.HOUR_OF_DAY), 2).append(':');
+		pad(json, date.get(Calendar.MINUTE), 2).append(':');
+		pad(json, date.get(Calendar.SECOND), 2).append('"');
+	}
+
+	// Writes a number with leading zeros up to digits digits.
+	private static StringBuilder pad(StringBuilder json, int number,
+			int digits) {
+		for (int limit = 10; digits > 1; digits--, limit *= 10) {
+			if (number < limit) {
+				json.append('0');
+			}
+		}
+		return json.append(number);
+	}
+
+	// Writes a string as a JSON string, or null.
+	private static void quote(StringBuilder json, String text) {
+		if (text == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	// Parses a time like 2011-05-02 or 2011-05-02T09:30[:00].
+	private static GregorianCalendar parseTime(
+			HashMap<String, String> parameters, String name)
+			throws QueryException {
+		String value = parameters.get(name);
+		if (value == null) {
+			throw new QueryException(400, "The parameter " + name
+					+ " is missing");
+		}
+		try {
+			if (value.length() != 10 && value.length() != 16
+					&& value.length() != 19) {
+				throw new IllegalArgumentException();
+			}
+			int year = Integer.parseInt(value.substring(0, 4));
+			int month = Integer.parseInt(value.substring(5, 7)) - 1;
+			int day = Integer.parseInt(value.substring(8, 10));
+			int hour = 0;
+			int minute = 0;
+			int second = 0;
+			if (value.length() > 10) {
+				hour = Integer.parseInt(value.substring(11, 13));
+				minute = Integer.parseInt(value.substring(14, 16));
+			}
+			if (value.length() > 16) {
+				second = Integer.parseInt(value.substring(17, 19));
+			}
+			GregorianCalendar time = new GregorianCalendar(year, month, day,
+					hour, minute, second);
+			time.setLenient(false);
+			// Throws an IllegalArgumentException for dates like 2011-02-30.
+			time.get(Calendar.ERA);
+			return time;
+		} catch (IllegalArgumentException e) {
+			throw new QueryException(400, "Invalid " + name + ": " + value);
+		}
+	}
+
+	// Parses the parameters of a query string.
+	private static HashMap<String, String> parameters(String query)
+			throws UnsupportedEncodingException {
+		HashMap<String, String> parameters = new HashMap<String, String>();
+		if (query == null) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals),
+						UTF8), URLDecoder.decode(pair.substring(equals + 1),
+						UTF8));
+			}
+		}
+		return parameters;
+	}
+
+}
@@ -0,0 +1,206 @@
+package calendarServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+/**
+ * LoadTest sends small queries to a {@link CalendarServer} from several
+ * threads for a while, and reports how many were answered per second and how
+ * long the answers took. The queries ask for random days, weeks and free/busy
+ * times of a year.
+ *
+ * @author aisopuro@tkk
+ *
+ */
+
+public class LoadTest {
+
+	private static final String USAGE = "Usage: LoadTest URL [threads]"
+			+ " [seconds] [year]";
+	private static final int DEFAULT_THREADS = 32;
+	private static final int DEFAULT_SECONDS = 10;
+	// The part of the run whose results are thrown away, in milliseconds.
+	private static final long WARM_UP = 1000;
+	private static final String[] QUERIES = { "day?date=%s", "week?date=%s",
+			"freebusy?from=%sT08:00&to=%sT18:00" };
+
+	private String base;
+	private int year;
+	private volatile boolean measuring;
+	private volatile boolean running;
+
+	// The latencies measured by one thread, in nanoseconds.
+	private static class Latencies {
+		long[] times = new long[1024];
+		int count;
+		int errors;
+
+		void add(long time) {
+			if (this.count == this.times.length) {
+				this.times = Arrays.copyOf(this.times, this.count * 2);
+			}
+			this.times[this.count++] = time;
+		}
+	}
+
+	/**
+	 * Creates a load test against a server.
+	 *
+	 * @param base
+	 *            The URL of the server, like http://localhost:8080/.
+	 * @param year
+	 *            The year to query.
+	 */
+	public LoadTest(String base, int year) {
+		this.base = base.endsWith("/") ? base : base + "/";
+		this.year = year;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 1 || args.length > 4) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		int threads;
+		int seconds;
+		int year;
+		try {
+			threads = args.length > 1 ? Integer.parseInt(args[1])
+					: DEFAULT_THREADS;
+			seconds = args.length > 2 ? Integer.parseInt(args[2])
+					: DEFAULT_SECONDS;
+			year = args.length > 3 ? Integer.parseInt(args[3])
+					: new GregorianCalendar().get(Calendar.YEAR);
+		} catch (NumberFormatException e) {
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+		System.out.println(new LoadTest(args[0], year).run(threads,
+				seconds * 1000L));
+	}
+
+	/**
+	 * Sends queries for a while, after a second of warming up.
+	 *
+	 * @param threads
+	 *            The number of threads sending queries, each waiting for the
+	 *            answer before sending the next one.
+	 * @param duration
+	 *            How long to measure, in milliseconds.
+	 * @return A report of the number of queries answered, the queries per
+	 *         second, the median, 99th percentile and longest latency, and the
+	 *         number of failed queries.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the threads.
+	 */
+	public String run(int threads, long duration) throws InterruptedException {
+		final ArrayList<Latencies> results = new ArrayList<Latencies>();
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		this.running = true;
+		for (int i = 0; i < threads; i++) {
+			final Latencies latencies = new Latencies();
+			final Random random = new Random(i);
+			results.add(latencies);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					LoadTest.this.work(random, latencies);
+				}
+			}, "LoadTest " + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+		Thread.sleep(WARM_UP);
+		this.measuring = true;
+		long started = System.nanoTime();
+		Thread.sleep(duration);
+		this.measuring = false;
+		double seconds = (System.nanoTime() - started) / 1e9;
+		this.running = false;
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		int count = 0;
+		int errors = 0;
+		for (Latencies latencies : results) {
+			count += latencies.count;
+			errors += latencies.errors;
+		}
+		long[] all = new long[count];
+		int next = 0;
+		for (Latencies latencies : results) {
+			System.arraycopy(latencies.times, 0, all, next, latencies.count);
+			next += latencies.count;
+		}
+		Arrays.sort(all);
+		return String.format("%d queries in %.1f s: %.0f queries/s, "
+				+ "p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d errors", count,
+				seconds, count / seconds, percentile(all, 50) / 1e6,
+				percentile(all, 99) / 1e6, percentile(all, 100) / 1e6, errors);
+	}
+
+	// Sends queries until the test ends.
+	private void work(Random random, Latencies latencies) {
+		byte[] buffer = new byte[8192];
+		while (this.running) {
+			GregorianCalendar date = new GregorianCalendar(this.year,
+					Calendar.JANUARY, 1);
+			date.add(Calendar.DAY_OF_YEAR, random.nextInt(365));
+			String day = String.format("%04d-%02d-%02d", date
+					.get(Calendar.YEAR), date.get(Calendar.MONTH) + 1, date
+					.get(Calendar.DAY_OF_MONTH));
+			String query = String.format(QUERIES[random
+					.nextInt(QUERIES.length)], day, day);
+			boolean measured = this.measuring;
+			long started = System.nanoTime();
+			boolean answered = this.send(this.base + query, buffer);
+			long time = System.nanoTime() - started;
+			if (measured && this.measuring) {
+				if (answered) {
+					latencies.add(time);
+				} else {
+					latencies.errors++;
+				}
+			}
+		}
+	}
+
+	// Sends a query and reads the answer. The connection is kept alive for
+	// the next query.
+	private boolean send(String query, byte[] buffer) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(query)
+					.openConnection();
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			if (in != null) {
+				while (in.read(buffer) >= 0) {
+					// Read the whole answer so the connection can be reused.
+				}
+				in.close();
+			}
+			return status == 200;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Returns the latency that percent of the sorted latencies do not exceed.
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+		return sorted[Math.max(index, 0)];
+	}
+
+}
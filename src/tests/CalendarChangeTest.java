@@ -0,0 +1,210 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.CalendarChange;
+import calendar.CalendarListener;
+import calendar.CalendarWatcher;
+import calendar.MeetingEvent;
+import calendar.TCalendar;
+
+public class CalendarChangeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Batches implements CalendarListener {
+        ArrayList<List<CalendarChange>> batches = new ArrayList<List<CalendarChange>>();
+
+        public void calendarChanged(List<CalendarChange> changes) {
+            this.batches.add(changes);
+        }
+    }
+
+    private static String types(List<CalendarChange> changes) {
+        ArrayList<String> types = new ArrayList<String>();
+        for (CalendarChange change : changes) {
+            types.add(change.toString().split(" ")[0]);
+        }
+        return types.toString();
+    }
+
+    @Test
+    public void changesAreBatchedAndMerged() {
+        TCalendar calendar = new TCalendar();
+        MeetingEvent kept = Events.meeting(2011, Calendar.JUNE, 1, 10, 0, 60);
+        calendar.addEvent(kept);
+        Batches listener = new Batches();
+        calendar.addCalendarListener(listener);
+
+        MeetingEvent added = Events.meeting(2011, Calendar.JUNE, 2, 10, 0, 60);
+        calendar.addEvent(added);
+        assertEquals(1, listener.batches.size());
+        assertEquals("[ADDED]", types(listener.batches.get(0)));
+
+        calendar.begin();
+        MeetingEvent temporary = Events.meeting(2011, Calendar.JUNE, 3, 10, 0, 60);
+        calendar.addEvent(temporary);
+        calendar.removeEvent(temporary);
+        calendar.updateEvent(kept);
+        calendar.removeEvent(added);
+        assertEquals(1, listener.batches.size());
+        calendar.commit();
+        assertEquals(2, listener.batches.size());
+        List<CalendarChange> batch = listener.batches.get(1);
+        assertEquals("[MODIFIED, REMOVED]", types(batch));
+        assertSame(kept, batch.get(0).getEvent());
+        assertSame(added, batch.get(1).getEvent());
+
+        calendar.removeCalendarListener(listener);
+        calendar.addEvent(Events.meeting(2011, Calendar.JUNE, 4, 10, 0, 60));
+        assertEquals(2, listener.batches.size());
+    }
+
+    @Test
+    public void modificationCoversOldAndNewPlace() {
+        TCalendar calendar = new TCalendar();
+        MeetingEvent event = Events.meeting(2011, Calendar.JUNE, 1, 10, 0, 60);
+        calendar.addEvent(event);
+        Batches listener = new Batches();
+        calendar.addCalendarListener(listener);
+        long oldStart = event.getStart().getTimeInMillis();
+
+        MeetingEvent target = Events.meeting(2011, Calendar.JUNE, 5, 10, 0, 60);
+        event.setNewStartEnd(target.getStart(), target.getEnd());
+        calendar.updateEvent(event);
+        CalendarChange change = listener.batches.get(0).get(0);
+        assertEquals(CalendarChange.MODIFIED, change.getType());
+        assertEquals(oldStart, change.getFrom());
+        assertEquals(event.getEnd().getTimeInMillis(), change.getTo());
+        assertTrue(change.touches(oldStart, oldStart + 1));
+        assertTrue(change.touches(Events.meeting(2011, Calendar.JUNE, 5, 0, 0, 60).getStart().getTimeInMillis(),
+                Events.meeting(2011, Calendar.JUNE, 6, 0, 0, 60).getStart().getTimeInMillis()));
+        assertFalse(change.touches(Events.meeting(2011, Calendar.JUNE, 6, 0, 0, 60).getStart().getTimeInMillis(),
+                Events.meeting(2011, Calendar.JUNE, 7, 0, 0, 60).getStart().getTimeInMillis()));
+    }
+
+    @Test
+    public void failingListenerKeepsTheChangeJournaled() throws Exception {
+        File ics = this.folder.newFile("test.ics");
+        TCalendar calendar = new TCalendar();
+        calendar.saveJournaled(ics);
+        calendar.addCalendarListener(new CalendarListener() {
+            public void calendarChanged(List<CalendarChange> changes) {
+                throw new IllegalStateException("listener");
+            }
+        });
+        Batches listener = new Batches();
+        calendar.addCalendarListener(listener);
+
+        try {
+            calendar.addEvent(Events.meeting(2011, Calendar.JUNE, 1, 10, 0, 60));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("listener", e.getMessage());
+        }
+        // The other listener is told, and the change is in the journal.
+        assertEquals(1, listener.batches.size());
+        calendar.closeJournal();
+        TCalendar recovered = new TCalendar(ics);
+        recovered.openJournal(ics);
+        assertEquals(1, recovered.getAllEvents().size());
+    }
+
+    @Test
+    public void slowSubscribersGetMergedBacklog() throws Exception {
+        TCalendar calendar = new TCalendar();
+        final ArrayList<List<CalendarChange>> received = new ArrayList<List<CalendarChange>>();
+        final Flow.Subscription[] subscription = new Flow.Subscription[1];
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch rest = new CountDownLatch(10);
+        calendar.getChanges().subscribe(new Flow.Subscriber<List<CalendarChange>>() {
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            public void onNext(List<CalendarChange> batch) {
+                synchronized (received) {
+                    received.add(batch);
+                }
+                first.countDown();
+                rest.countDown();
+            }
+
+            public void onError(Throwable e) {
+            }
+
+            public void onComplete() {
+            }
+        });
+        MeetingEvent event = Events.meeting(2011, Calendar.JUNE, 1, 10, 0, 60);
+        calendar.addEvent(event);
+        assertEquals(0, received.size());
+        subscription[0].request(1);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        // Far more batches than are queued before the next request: every
+        // 64 queued batches are merged into one.
+        for (int i = 0; i < 200; i++) {
+            calendar.updateEvent(event);
+        }
+        calendar.removeEvent(event);
+        subscription[0].request(Long.MAX_VALUE);
+        assertTrue(rest.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        synchronized (received) {
+            assertEquals(10, received.size());
+            assertEquals("[ADDED]", types(received.get(0)));
+            assertEquals("[MODIFIED]", types(received.get(1)));
+            assertEquals("[REMOVED]", types(received.get(9)));
+        }
+        subscription[0].cancel();
+    }
+
+    @Test
+    public void reloadIsOneBatch() throws Exception {
+        File ics = new File(this.folder.getRoot(), "shared.ics");
+        TCalendar other = new TCalendar();
+        MeetingEvent moved = Events.meeting(2011, Calendar.JUNE, 2, 10, 0, 60);
+        MeetingEvent removed = Events.meeting(2011, Calendar.JUNE, 3, 10, 0, 60);
+        other.addEvent(Events.meeting(2011, Calendar.JUNE, 1, 10, 0, 60));
+        other.addEvent(moved);
+        other.addEvent(removed);
+        other.serializeCalendar(ics);
+
+        TCalendar calendar = new TCalendar();
+        calendar.loadCalendar(ics);
+        Batches listener = new Batches();
+        calendar.addCalendarListener(listener);
+        CalendarWatcher watcher = new CalendarWatcher(calendar, ics);
+        watcher.start();
+        try {
+            MeetingEvent target = Events.meeting(2011, Calendar.JUNE, 5, 9, 0, 60);
+            moved.setNewStartEnd(target.getStart(), target.getEnd());
+            other.updateEvent(moved);
+            other.removeEvent(removed);
+            other.addEvent(Events.meeting(2011, Calendar.JUNE, 6, 10, 0, 60));
+            other.serializeCalendar(ics);
+            watcher.reload();
+        } finally {
+            watcher.stop();
+        }
+        assertEquals(1, listener.batches.size());
+        List<CalendarChange> batch = listener.batches.get(0);
+        assertEquals("[REMOVED, ADDED, ADDED, REMOVED]", types(batch));
+        assertEquals(moved.getUID(), batch.get(0).getEvent().getUID());
+        assertEquals(removed.getUID(), batch.get(3).getEvent().getUID());
+    }
+}
@@ -0,0 +1,98 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.CalendarGenerator;
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendar.RecurrenceRule;
+import calendar.TCalendar;
+
+public class CalendarGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String write(CalendarGenerator generator) throws Exception {
+        StringWriter out = new StringWriter();
+        generator.write(out);
+        return out.toString();
+    }
+
+    @Test
+    public void sameSeedGivesSameCalendar() throws Exception {
+        CalendarGenerator generator = new CalendarGenerator(7);
+        generator.setSize(500);
+        generator.setRepeating(0.3);
+        generator.setDurations(0.5);
+        String first = write(generator);
+        assertEquals(first, write(generator));
+        CalendarGenerator other = new CalendarGenerator(8);
+        other.setSize(500);
+        assertFalse(first.equals(write(other)));
+
+        TCalendar loaded = new TCalendar();
+        loaded.loadCalendar(new StringReader(first));
+        assertEquals(500, loaded.getAllEvents().size());
+        HashMap<String, Event> byUID = new HashMap<String, Event>();
+        for (Event event : loaded.getAllEvents()) {
+            byUID.put(event.getUID(), event);
+        }
+        TCalendar generated = generator.generate();
+        for (Event event : generated.getAllEvents()) {
+            Event same = byUID.get(event.getUID());
+            assertEquals(event.getStart(), same.getStart());
+            assertEquals(event.getEnd(), same.getEnd());
+            assertEquals(event.isRepeating(), same.isRepeating());
+        }
+    }
+
+    @Test
+    public void settingsShapeTheEvents() throws Exception {
+        CalendarGenerator generator = new CalendarGenerator(1);
+        generator.setSize(2000);
+        generator.setRepeating(1);
+        generator.setFrequencies(0, 0, 0, 1);
+        generator.setCategories(3);
+        generator.setDurations(1);
+        HashSet<String> categories = new HashSet<String>();
+        int expiring = 0;
+        for (MeetingEvent event : generator) {
+            categories.add(event.getCategory());
+            assertEquals(RecurrenceRule.YEARLY, event.getRule().getFrequency());
+            if (event.getRule().getUntil() != Long.MAX_VALUE) {
+                expiring++;
+            }
+        }
+        assertEquals(3, categories.size());
+        assertTrue(expiring > 800 && expiring < 1200);
+        String ics = write(generator);
+        assertFalse(ics.contains("DTEND"));
+        assertEquals(2000, ics.split("DURATION:PT").length - 1);
+
+        generator.setOverlap(2);
+        int days = generator.getDays();
+        generator.setOverlap(4);
+        assertEquals(days / 2.0, generator.getDays(), 1);
+        generator.setDays(100);
+        assertEquals(100, generator.getDays());
+    }
+
+    @Test
+    public void compressedFilesAreWritten() throws Exception {
+        CalendarGenerator generator = new CalendarGenerator(3);
+        File file = new File(this.folder.getRoot(), "generated.ics.gz");
+        generator.write(file);
+        assertEquals(1000, new TCalendar(file).getAllEvents().size());
+    }
+}
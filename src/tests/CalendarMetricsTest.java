@@ -0,0 +1,89 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.GregorianCalendar;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+import calendar.CalendarGenerator;
+import calendar.CalendarMetrics;
+import calendar.OperationMetrics;
+import calendar.TCalendar;
+
+public class CalendarMetricsTest {
+
+    @After
+    public void switchOn() {
+        CalendarMetrics.setRecording(true);
+    }
+
+    @Test
+    public void operationsAreCountedAndPublished() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName getDay = new ObjectName("calendar:type=Operation,name=getDay");
+        ObjectName load = new ObjectName("calendar:type=Operation,name=loadCalendar");
+        long days = CalendarMetrics.GET_DAY.getCount();
+        long loads = CalendarMetrics.LOAD_CALENDAR.getCount();
+        long adds = CalendarMetrics.ADD_EVENT.getCount();
+
+        CalendarGenerator generator = new CalendarGenerator(5);
+        generator.setSize(100);
+        StringWriter ics = new StringWriter();
+        generator.write(ics);
+        TCalendar calendar = new TCalendar();
+        calendar.loadCalendar(new StringReader(ics.toString()));
+        for (int i = 0; i < 10; i++) {
+            calendar.getDay(new GregorianCalendar(2011, 0, 1 + i));
+        }
+
+        assertEquals(days + 10, CalendarMetrics.GET_DAY.getCount());
+        assertEquals(loads + 1, CalendarMetrics.LOAD_CALENDAR.getCount());
+        assertEquals(adds + 100, CalendarMetrics.ADD_EVENT.getCount());
+        assertEquals(days + 10, ((Long) server.getAttribute(getDay, "Count")).longValue());
+        assertTrue((Double) server.getAttribute(load, "MaxMicros") > 0);
+        assertTrue(CalendarMetrics.GET_DAY.getMedianMicros()
+                <= CalendarMetrics.GET_DAY.getP99Micros());
+    }
+
+    @Test
+    public void metricsCanBeSwitchedOff() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName control = new ObjectName("calendar:type=Metrics");
+        TCalendar calendar = new TCalendar();
+        long days = CalendarMetrics.GET_DAY.getCount();
+        server.setAttribute(control, new Attribute("Enabled", false));
+        assertFalse(CalendarMetrics.isRecording());
+        calendar.getDay(new GregorianCalendar(2011, 0, 1));
+        assertEquals(days, CalendarMetrics.GET_DAY.getCount());
+
+        server.setAttribute(control, new Attribute("Enabled", true));
+        calendar.getDay(new GregorianCalendar(2011, 0, 1));
+        assertEquals(days + 1, CalendarMetrics.GET_DAY.getCount());
+        server.invoke(control, "reset", new Object[0], new String[0]);
+        assertEquals(0, CalendarMetrics.GET_DAY.getCount());
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        OperationMetrics renders = CalendarMetrics.RENDER_WEEK;
+        renders.reset();
+        // 1000 operations taking from 1 to 1000 microseconds.
+        for (int i = 1; i <= 1000; i++) {
+            renders.record(System.nanoTime() - i * 1000L);
+        }
+        assertEquals(1000, renders.getCount());
+        assertEquals(500, renders.getMedianMicros(), 500 / 8.0 + 5);
+        assertEquals(990, renders.getP99Micros(), 990 / 8.0 + 5);
+        assertTrue(renders.getMaxMicros() >= 1000);
+        renders.reset();
+    }
+}
@@ -0,0 +1,138 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Calendar;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import calendar.MeetingEvent;
+import calendar.RecurrenceRule;
+import calendar.TCalendar;
+import calendarServer.CalendarServer;
+import calendarServer.LoadTest;
+
+public class CalendarServerTest {
+
+    private CalendarServer server;
+    private TCalendar calendar;
+    private int status;
+
+    private static MeetingEvent event(int day, int hour, int hours, String uid) {
+        MeetingEvent event = Events.meeting(2011, Calendar.MAY, day, hour, 0, hours * 60);
+        event.setUID(uid);
+        event.setCategory("WORK");
+        return event;
+    }
+
+    @Before
+    public void start() throws Exception {
+        this.calendar = new TCalendar();
+        MeetingEvent daily = event(2, 9, 1, "daily");
+        daily.setRule(RecurrenceRule.parse("RRULE:FREQ=DAILY;COUNT=5"));
+        this.calendar.addEvent(daily);
+        this.calendar.addEvent(event(3, 8, 4, "long \"one\""));
+        this.calendar.addEvent(event(3, 14, 1, "afternoon"));
+        this.server = new CalendarServer(this.calendar);
+        this.server.start(new InetSocketAddress("localhost", 0));
+    }
+
+    @After
+    public void stop() {
+        this.server.stop();
+    }
+
+    private String get(String query) throws Exception {
+        URL url = new URL("http://localhost:" + this.server.getPort() + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        this.status = connection.getResponseCode();
+        InputStream in = this.status < 400 ? connection.getInputStream() : connection
+                .getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, read);
+        }
+        in.close();
+        return body.toString("UTF-8");
+    }
+
+    @Test
+    public void queriesAreAnsweredWithJSON() throws Exception {
+        String day = get("/day?date=2011-05-03");
+        assertEquals(200, this.status);
+        assertEquals("{\"events\":["
+                + "{\"uid\":\"long \\\"one\\\"\",\"category\":\"WORK\",\"start\":\"2011-05-03T08:00:00\","
+                + "\"end\":\"2011-05-03T12:00:00\",\"priority\":0,\"repeating\":false},"
+                + "{\"uid\":\"daily\",\"category\":\"WORK\",\"start\":\"2011-05-03T09:00:00\","
+                + "\"end\":\"2011-05-03T10:00:00\",\"priority\":0,\"repeating\":true},"
+                + "{\"uid\":\"afternoon\",\"category\":\"WORK\",\"start\":\"2011-05-03T14:00:00\","
+                + "\"end\":\"2011-05-03T15:00:00\",\"priority\":0,\"repeating\":false}]}", day);
+
+        String week = get("/week?date=2011-05-04");
+        assertEquals(7, week.split("\"uid\"").length - 1);
+
+        assertEquals("{\"busy\":[{\"start\":\"2011-05-03T08:00:00\",\"end\":\"2011-05-03T12:00:00\"},"
+                + "{\"start\":\"2011-05-03T14:00:00\",\"end\":\"2011-05-03T15:00:00\"}]}",
+                get("/freebusy?from=2011-05-03T00:00&to=2011-05-04"));
+
+        String conflicts = get("/conflicts?from=2011-05-01&to=2011-06-01");
+        assertTrue(conflicts.startsWith("{\"conflicts\":[{\"start\":\"2011-05-03T09:00:00\","
+                + "\"end\":\"2011-05-03T10:00:00\",\"events\":[{\"uid\":\"long"));
+        assertEquals(1, conflicts.split("\"events\"").length - 1);
+    }
+
+    @Test
+    public void eventsGoingOnAtTheStartAreIncluded() throws Exception {
+        MeetingEvent standup = Events.meeting(2011, Calendar.MAY, 10, 8, 30, 60);
+        standup.setUID("standup");
+        this.calendar.addEvent(standup);
+        MeetingEvent review = Events.meeting(2011, Calendar.MAY, 10, 9, 0, 30);
+        review.setUID("review");
+        this.calendar.addEvent(review);
+
+        assertEquals("{\"busy\":[{\"start\":\"2011-05-10T08:30:00\",\"end\":\"2011-05-10T09:30:00\"}]}",
+                get("/freebusy?from=2011-05-10T09:00&to=2011-05-10T10:00"));
+        assertTrue(get("/conflicts?from=2011-05-10T09:00&to=2011-05-10T10:00").startsWith(
+                "{\"conflicts\":[{\"start\":\"2011-05-10T09:00:00\",\"end\":\"2011-05-10T09:30:00\","
+                + "\"events\":[{\"uid\":\"standup\""));
+        String range = get("/range?from=2011-05-10T09:15&to=2011-05-10T10:00");
+        assertEquals(2, range.split("\"uid\"").length - 1);
+        // It is over by then.
+        assertEquals("{\"events\":[]}", get("/range?from=2011-05-10T09:30&to=2011-05-10T10:00"));
+    }
+
+    @Test
+    public void badQueriesAreRefused() throws Exception {
+        assertEquals("{\"error\":\"Invalid date: 2011-02-30\"}", get("/day?date=2011-02-30"));
+        assertEquals(400, this.status);
+        get("/range?from=2011-05-01");
+        assertEquals(400, this.status);
+        get("/range?from=2011-05-02&to=2011-05-01");
+        assertEquals(400, this.status);
+        assertEquals("{\"error\":\"The range is longer than 366 days\"}",
+                get("/range?from=0001-01-01&to=9999-12-31"));
+        assertEquals(400, this.status);
+        get("/freebusy?from=2011-01-01&to=2012-01-03");
+        assertEquals(400, this.status);
+        get("/conflicts?from=2011-01-01&to=2012-01-02");
+        assertEquals(200, this.status);
+        get("/calendar");
+        assertEquals(404, this.status);
+    }
+
+    @Test
+    public void loadTestReportsLatencies() throws Exception {
+        String report = new LoadTest("http://localhost:" + this.server.getPort(), 2011).run(2, 200);
+        assertTrue(report, report.matches("\\d+ queries in .*p50 .*p99 .*, 0 errors"));
+    }
+
+}
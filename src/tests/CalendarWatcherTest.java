@@ -0,0 +1,87 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Calendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.CalendarWatcher;
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendar.TCalendar;
+
+public class CalendarWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long startOf(TCalendar calendar, String uid) {
+        for (Event event : calendar.getAllEvents()) {
+            if (uid.equals(event.getUID())) {
+                return event.getStart().getTimeInMillis();
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void onlyChangedEventsAreReplaced() throws Exception {
+        File ics = new File(this.folder.getRoot(), "shared.ics");
+        TCalendar other = new TCalendar();
+        MeetingEvent kept = Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60);
+        MeetingEvent moved = Events.meeting(2011, Calendar.APRIL, 2, 10, 0, 60);
+        MeetingEvent removed = Events.meeting(2011, Calendar.APRIL, 3, 10, 0, 60);
+        other.addEvent(kept);
+        other.addEvent(moved);
+        other.addEvent(removed);
+        other.serializeCalendar(ics);
+
+        TCalendar calendar = TCalendar.openLazily(ics);
+        CalendarWatcher watcher = new CalendarWatcher(calendar, ics);
+        watcher.start();
+        try {
+            Event keptBefore = calendar.getDay(Events.meeting(2011, Calendar.APRIL, 1, 0, 0, 60).getStart()).get(0);
+            MeetingEvent target = Events.meeting(2011, Calendar.APRIL, 5, 9, 0, 60);
+            moved.setNewStartEnd(target.getStart(), target.getEnd());
+            other.updateEvent(moved);
+            other.removeEvent(removed);
+            MeetingEvent added = Events.meeting(2011, Calendar.APRIL, 6, 10, 0, 60);
+            other.addEvent(added);
+            other.serializeCalendar(ics);
+            watcher.reload();
+
+            assertEquals(3, calendar.getAllEvents().size());
+            assertSame(keptBefore, calendar.getDay(Events.meeting(2011, Calendar.APRIL, 1, 0, 0, 60).getStart()).get(0));
+            assertEquals(moved.getStart().getTimeInMillis(), startOf(calendar, moved.getUID()));
+            assertEquals(-1, startOf(calendar, removed.getUID()));
+            assertEquals(added.getStart().getTimeInMillis(), startOf(calendar, added.getUID()));
+        } finally {
+            watcher.stop();
+        }
+    }
+
+    @Test
+    public void ownSavesAreNotReloaded() throws Exception {
+        File ics = new File(this.folder.getRoot(), "own.ics");
+        TCalendar calendar = new TCalendar();
+        MeetingEvent event = Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60);
+        calendar.addEvent(event);
+        calendar.saveJournaled(ics);
+        CalendarWatcher watcher = new CalendarWatcher(calendar, ics);
+        watcher.start();
+        try {
+            MeetingEvent target = Events.meeting(2011, Calendar.APRIL, 2, 10, 0, 60);
+            event.setNewStartEnd(target.getStart(), target.getEnd());
+            calendar.updateEvent(event);
+            calendar.saveJournaled(ics);
+            assertEquals(0, watcher.reload());
+            assertSame(event, calendar.getAllEvents().get(0));
+        } finally {
+            watcher.stop();
+        }
+    }
+}
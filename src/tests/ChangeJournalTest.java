@@ -0,0 +1,121 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.ChangeJournal;
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendar.SaveListener;
+import calendar.TCalendar;
+
+public class ChangeJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Loads the file and its journal as the GUI does after a crash.
+    private static TCalendar recover(File ics) throws Exception {
+        TCalendar calendar = new TCalendar(ics);
+        calendar.openJournal(ics);
+        return calendar;
+    }
+
+    @Test
+    public void changesSurviveWithoutSaving() throws Exception {
+        File ics = new File(this.folder.getRoot(), "test.ics");
+        TCalendar calendar = new TCalendar();
+        calendar.saveJournaled(ics);
+        MeetingEvent moved = Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60);
+        MeetingEvent removed = Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60); // Starts at the same time.
+        calendar.addEvent(moved);
+        calendar.addEvent(removed);
+        MeetingEvent target = Events.meeting(2011, Calendar.APRIL, 2, 9, 0, 60);
+        moved.setNewStartEnd(target.getStart(), target.getEnd());
+        calendar.updateEvent(moved);
+        calendar.removeEvent(removed);
+
+        ArrayList<Event> events = recover(ics).getAllEvents();
+        assertEquals(1, events.size());
+        assertEquals(moved.getUID(), events.get(0).getUID());
+        assertEquals(moved.getStart().getTimeInMillis(),
+                events.get(0).getStart().getTimeInMillis());
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        File ics = new File(this.folder.getRoot(), "test.ics");
+        TCalendar calendar = new TCalendar();
+        calendar.saveJournaled(ics);
+        calendar.addEvent(Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60));
+        calendar.closeJournal();
+        File journal = ChangeJournal.journalOf(ics);
+        long length = journal.length();
+        FileOutputStream out = new FileOutputStream(journal, true);
+        out.write(new byte[] { 0, 0, 1, 0, 7 });
+        out.close();
+
+        assertEquals(1, recover(ics).getAllEvents().size());
+        assertEquals(length, journal.length());
+    }
+
+    @Test
+    public void compactionEmptiesTheJournal() throws Exception {
+        File ics = new File(this.folder.getRoot(), "test.ics");
+        TCalendar calendar = new TCalendar();
+        calendar.saveJournaled(ics);
+        for (int day = 1; day <= 10; day++) {
+            calendar.addEvent(Events.meeting(2011, Calendar.APRIL, day, 12, 0, 60));
+        }
+        calendar.compactJournal();
+        assertEquals(0, ChangeJournal.journalOf(ics).length());
+        assertEquals(2, this.folder.getRoot().list().length);
+        assertEquals(10, recover(ics).getAllEvents().size());
+    }
+
+    @Test
+    public void backgroundSaveWritesTheCalendarAsItWas() throws Exception {
+        File ics = new File(this.folder.getRoot(), "test.ics");
+        TCalendar calendar = new TCalendar();
+        MeetingEvent event = Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60);
+        calendar.addEvent(event);
+        final ArrayList<File> saved = new ArrayList<File>();
+        Future<File> save = calendar.saveInBackground(ics, new SaveListener() {
+            public void progress(int written, int total) {
+            }
+
+            public void saved(File file) {
+                saved.add(file);
+            }
+
+            public void failed(IOException error) {
+            }
+        });
+        // Changed after the call, so not in the file but in its journal.
+        MeetingEvent target = Events.meeting(2011, Calendar.APRIL, 3, 8, 0, 60);
+        event.setNewStartEnd(target.getStart(), target.getEnd());
+        calendar.updateEvent(event);
+        calendar.addEvent(Events.meeting(2011, Calendar.APRIL, 4, 8, 0, 60));
+        assertEquals(ics, save.get());
+        assertEquals(ics, saved.get(0));
+
+        TCalendar file = new TCalendar(ics);
+        assertEquals(1, file.getAllEvents().size());
+        assertEquals(Events.meeting(2011, Calendar.APRIL, 1, 10, 0, 60).getStart().getTimeInMillis(),
+                file.getAllEvents().get(0).getStart().getTimeInMillis());
+        file.openJournal(ics);
+        assertEquals(2, file.getAllEvents().size());
+        assertEquals(event.getStart().getTimeInMillis(),
+                file.getAllEvents().get(0).getStart().getTimeInMillis());
+    }
+}
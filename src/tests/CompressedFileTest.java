@@ -0,0 +1,59 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.MeetingEvent;
+import calendar.TCalendar;
+
+public class CompressedFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void gzipFilesAreWrittenAndRead() throws Exception {
+        TCalendar calendar = new TCalendar();
+        for (int day = 1; day <= 28; day++) {
+            GregorianCalendar start = new GregorianCalendar(2011, Calendar.FEBRUARY, day, 12, 0);
+            GregorianCalendar end = (GregorianCalendar) start.clone();
+            end.add(Calendar.HOUR_OF_DAY, 1);
+            calendar.addEvent(new MeetingEvent(start, end));
+        }
+        File plain = new File(this.folder.getRoot(), "plain.ics");
+        File packed = new File(this.folder.getRoot(), "packed.ics.gz");
+        calendar.serializeCalendar(plain);
+        calendar.serializeCalendar(packed);
+
+        FileInputStream in = new FileInputStream(packed);
+        assertEquals(0x1f, in.read());
+        assertEquals(0x8b, in.read());
+        in.close();
+        assertTrue(packed.length() * 4 < plain.length());
+        assertEquals(28, new TCalendar(packed).getAllEvents().size());
+    }
+
+    @Test
+    public void zstdFilesAreRejected() throws Exception {
+        File zstd = new File(this.folder.getRoot(), "archive.ics");
+        FileOutputStream out = new FileOutputStream(zstd);
+        out.write(new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0, 0 });
+        out.close();
+        try {
+            new TCalendar(zstd);
+            fail("A Zstandard file was loaded");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("Zstandard"));
+        }
+    }
+}
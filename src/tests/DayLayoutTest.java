@@ -0,0 +1,115 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+import org.junit.Test;
+
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendarGUI.DayLayout;
+import calendarGUI.WeekModel;
+
+public class DayLayoutTest {
+
+    private static WeekModel week() {
+        return new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 6));
+    }
+
+    private static int index(DayLayout layout, Event event) {
+        for (int i = 0; i < layout.size(); i++) {
+            if (layout.getEvent(i) == event) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void overlappingEventsGetColumns() {
+        MeetingEvent a = Events.meeting(2011, Calendar.JUNE, 6, 9, 0, 120);
+        MeetingEvent b = Events.meeting(2011, Calendar.JUNE, 6, 10, 0, 60);
+        MeetingEvent c = Events.meeting(2011, Calendar.JUNE, 6, 11, 0, 60);
+        MeetingEvent d = Events.meeting(2011, Calendar.JUNE, 6, 10, 30, 60);
+        MeetingEvent alone = Events.meeting(2011, Calendar.JUNE, 6, 14, 0, 30);
+        MeetingEvent night = Events.meeting(2011, Calendar.JUNE, 5, 23, 0, 120);
+        WeekModel model = week().withDay(0, Arrays.<Event> asList(a, b, c, d, alone, night));
+        DayLayout layout = model.getLayout(0);
+        assertSame(layout, model.getLayout(0));
+        assertEquals(6, layout.size());
+
+        assertEquals(0, layout.getColumn(index(layout, a)));
+        assertEquals(1, layout.getColumn(index(layout, b)));
+        assertEquals(2, layout.getColumn(index(layout, d)));
+        // c starts when a and b end.
+        assertEquals(0, layout.getColumn(index(layout, c)));
+        for (Event event : Arrays.<Event> asList(a, b, c, d)) {
+            assertEquals(3, layout.getColumns(index(layout, event)));
+        }
+        assertEquals(0, layout.getColumn(index(layout, alone)));
+        assertEquals(1, layout.getColumns(index(layout, alone)));
+
+        // Cut at midnight.
+        int i = index(layout, night);
+        assertEquals(0, i);
+        assertEquals(0, layout.getTop(i));
+        assertEquals(4, layout.getBottom(i));
+        assertEquals(1, layout.getColumns(i));
+    }
+
+    @Test
+    public void eventsPastMidnightAreLaidOutOnBothDays() {
+        MeetingEvent late = Events.meeting(2011, Calendar.JUNE, 6, 23, 0, 120);
+        MeetingEvent early = Events.meeting(2011, Calendar.JUNE, 7, 0, 0, 30);
+        WeekModel model = week().withDay(0, Arrays.<Event> asList(late));
+        model = model.withDay(1, Arrays.<Event> asList(late, early));
+        assertEquals(1, model.getLayout(0).size());
+        assertEquals(92, model.getLayout(0).getTop(0));
+        assertEquals(96, model.getLayout(0).getBottom(0));
+        DayLayout next = model.getLayout(1);
+        assertEquals(2, next.size());
+        assertEquals(2, next.getColumns(0));
+        assertEquals(0, next.getColumn(index(next, late)));
+        assertEquals(1, next.getColumn(index(next, early)));
+    }
+
+    @Test
+    public void columnsNeverOverlap() {
+        Random random = new Random(7);
+        ArrayList<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 400; i++) {
+            events.add(Events.meeting(2011, Calendar.JUNE, 6, 8 + random.nextInt(10), 15 * random.nextInt(4),
+                    15 * (1 + random.nextInt(12))));
+        }
+        DayLayout layout = week().withDay(0, events).getLayout(0);
+        assertEquals(400, layout.size());
+        int most = 0;
+        for (int i = 0; i < layout.size(); i++) {
+            assertTrue(layout.getColumn(i) < layout.getColumns(i));
+            most = Math.max(most, layout.getColumns(i));
+            for (int j = 0; j < i; j++) {
+                if (layout.getBottom(j) > layout.getTop(i)) {
+                    assertEquals(layout.getColumns(j), layout.getColumns(i));
+                    assertTrue(layout.getColumn(j) != layout.getColumn(i));
+                }
+            }
+        }
+        // As many columns as events at once at the busiest block.
+        int busiest = 0;
+        for (int block = 0; block < WeekModel.BLOCKS_IN_DAY; block++) {
+            int count = 0;
+            for (int i = 0; i < layout.size(); i++) {
+                if (layout.getTop(i) <= block && block < layout.getBottom(i)) {
+                    count++;
+                }
+            }
+            busiest = Math.max(busiest, count);
+        }
+        assertEquals(busiest, most);
+    }
+}
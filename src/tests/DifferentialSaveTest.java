@@ -0,0 +1,57 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Calendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.MeetingEvent;
+import calendar.TCalendar;
+
+public class DifferentialSaveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MeetingEvent event(int day, int hour) {
+        MeetingEvent event = Events.meeting(2011, Calendar.MAY, day, hour, 0, 45);
+        event.setCategory("Lecture " + day + " \u00e4\u00e4kk\u00f6set");
+        return event;
+    }
+
+    private static String serialization(TCalendar calendar) throws Exception {
+        StringWriter out = new StringWriter();
+        calendar.serializeCalendar(out);
+        return out.toString();
+    }
+
+    @Test
+    public void savingAgainMatchesAFullSave() throws Exception {
+        File ics = new File(this.folder.getRoot(), "test.ics");
+        TCalendar calendar = new TCalendar();
+        MeetingEvent[] events = new MeetingEvent[20];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = event(i + 1, 9);
+            calendar.addEvent(events[i]);
+        }
+        calendar.saveJournaled(ics);
+
+        events[3].setCategory("Exam");
+        calendar.updateEvent(events[3]);
+        events[7].setNewStartEnd(event(25, 8).getStart(), event(25, 8).getEnd());
+        calendar.updateEvent(events[7]);
+        calendar.removeEvent(events[12]);
+        calendar.addEvent(event(2, 9)); // Starts with events[1].
+        calendar.saveJournaled(ics);
+
+        String saved = new String(Files.readAllBytes(ics.toPath()), "UTF-8");
+        assertEquals(serialization(calendar), saved);
+        assertEquals(20, new TCalendar(ics).getAllEvents().size());
+    }
+}
@@ -0,0 +1,139 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.Event;
+import calendar.EventTree;
+import calendar.MeetingEvent;
+import calendar.RecurrenceRule;
+
+public class EventTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Fills a tree with four events a day for 1000 days, and a weekly event.
+    private File fill() throws Exception {
+        File file = new File(this.folder.getRoot(), "events" + EventTree.SUFFIX);
+        EventTree tree = new EventTree(file);
+        tree.begin();
+        for (int day = 0; day < 1000; day++) {
+            for (int hour = 8; hour < 16; hour += 2) {
+                tree.addEvent(Events.meeting(2011, Calendar.JANUARY, 1 + day, hour, 0, 60));
+            }
+        }
+        MeetingEvent weekly = Events.meeting(2011, Calendar.JANUARY, 1, 18, 0, 60);
+        weekly.setRule(RecurrenceRule.parse("RRULE:FREQ=WEEKLY"));
+        tree.addEvent(weekly);
+        tree.commit();
+        tree.close();
+        return file;
+    }
+
+    @Test
+    public void rangeQueriesReadOnlyTheirPages() throws Exception {
+        File file = fill();
+        EventTree tree = new EventTree(file);
+        assertEquals(4001, tree.size());
+        long read = tree.getPagesRead();
+        GregorianCalendar day = Events.meeting(2011, Calendar.JANUARY, 501, 0, 0, 60).getStart();
+        ArrayList<Event> events = tree.getDay(day);
+        assertEquals(4, events.size());
+        assertTrue(tree.getPagesRead() - read <= 5);
+        GregorianCalendar from = Events.meeting(2011, Calendar.JANUARY, 701, 0, 0, 60).getStart();
+        GregorianCalendar to = Events.meeting(2011, Calendar.JANUARY, 708, 0, 0, 60).getStart();
+        events = tree.getEvents(from, to);
+        assertEquals(29, events.size());
+        for (int i = 1; i < 28; i++) {
+            assertFalse(events.get(i).getStart().before(events.get(i - 1).getStart()));
+        }
+        assertTrue(events.get(28).isRepeating());
+        tree.close();
+    }
+
+    @Test
+    public void changesSurviveReopening() throws Exception {
+        File file = fill();
+        EventTree tree = new EventTree(file);
+        Event moved = tree.getDay(Events.meeting(2011, Calendar.JANUARY, 11, 0, 0, 60).getStart()).get(0);
+        Event removed = tree.getDay(Events.meeting(2011, Calendar.JANUARY, 21, 0, 0, 60).getStart()).get(1);
+        moved.setNewStartEnd(Events.meeting(2011, Calendar.JANUARY, 31, 20, 0, 60).getStart(), Events.meeting(2011, Calendar.JANUARY, 31, 21, 0, 60).getStart());
+        tree.updateEvent(moved);
+        tree.removeEvent(removed);
+        MeetingEvent large = Events.meeting(2011, Calendar.JANUARY, 41, 20, 0, 60);
+        StringBuilder category = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            category.append("CATEGORY");
+        }
+        large.setCategory(category.toString());
+        tree.addEvent(large);
+        tree.close();
+
+        EventTree reopened = new EventTree(file);
+        assertEquals(4001, reopened.size());
+        assertEquals(3, reopened.getDay(Events.meeting(2011, Calendar.JANUARY, 11, 0, 0, 60).getStart()).size());
+        assertEquals(3, reopened.getDay(Events.meeting(2011, Calendar.JANUARY, 21, 0, 0, 60).getStart()).size());
+        ArrayList<Event> day = reopened.getDay(Events.meeting(2011, Calendar.JANUARY, 31, 0, 0, 60).getStart());
+        assertEquals(5, day.size());
+        assertEquals(moved.getUID(), day.get(4).getUID());
+        day = reopened.getDay(Events.meeting(2011, Calendar.JANUARY, 41, 0, 0, 60).getStart());
+        assertEquals(category.toString(), day.get(4).getCategory());
+        reopened.close();
+    }
+
+    @Test
+    public void tornHeaderFallsBackToTheLastCommit() throws Exception {
+        File file = fill();
+        EventTree tree = new EventTree(file);
+        tree.addEvent(Events.meeting(2011, Calendar.JANUARY, 2001, 8, 0, 60));
+        tree.close();
+        assertEquals(4002, new EventTree(file).size());
+
+        // Whichever header is newer is damaged, as if the last commit had
+        // been interrupted while writing it.
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(12);
+        long first = raw.readLong();
+        raw.seek(4096 + 12);
+        long second = raw.readLong();
+        raw.seek(first > second ? 40 : 4096 + 40);
+        raw.writeLong(-2);
+        raw.close();
+
+        EventTree reopened = new EventTree(file);
+        assertEquals(4001, reopened.size());
+        assertEquals(0, reopened.getDay(Events.meeting(2011, Calendar.JANUARY, 2001, 0, 0, 60).getStart()).size());
+        reopened.addEvent(Events.meeting(2011, Calendar.JANUARY, 2002, 8, 0, 60));
+        reopened.close();
+        assertEquals(4002, new EventTree(file).size());
+    }
+
+    @Test
+    public void repeatingEventStoredAgainIsListedOnce() throws Exception {
+        File file = new File(this.folder.getRoot(), "events" + EventTree.SUFFIX);
+        EventTree tree = new EventTree(file);
+        MeetingEvent weekly = Events.meeting(2011, Calendar.JANUARY, 1, 18, 0, 60);
+        weekly.setRule(RecurrenceRule.parse("RRULE:FREQ=WEEKLY"));
+        tree.addEvent(weekly);
+        // The same start and UID replace the stored entry.
+        tree.addEvent(weekly.copy());
+        assertEquals(1, tree.size());
+        assertEquals(1, tree.getAllEvents().size());
+        tree.close();
+
+        EventTree reopened = new EventTree(file);
+        assertEquals(1, reopened.getAllEvents().size());
+        reopened.close();
+    }
+
+}
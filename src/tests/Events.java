@@ -0,0 +1,22 @@
+package tests;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import calendar.MeetingEvent;
+
+// The events the tests fill their calendars with.
+final class Events {
+
+    private Events() {
+    }
+
+    // An event starting at a local time and lasting the given minutes.
+    static MeetingEvent meeting(int year, int month, int day, int hour, int minute,
+            int minutes) {
+        GregorianCalendar start = new GregorianCalendar(year, month, day, hour, minute);
+        GregorianCalendar end = (GregorianCalendar) start.clone();
+        end.add(Calendar.MINUTE, minutes);
+        return new MeetingEvent(start, end);
+    }
+}
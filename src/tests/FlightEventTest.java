@@ -0,0 +1,72 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.CalendarGenerator;
+import calendar.TCalendar;
+
+public class FlightEventTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void operationsAreRecorded() throws Exception {
+        CalendarGenerator generator = new CalendarGenerator(11);
+        generator.setSize(300);
+        File ics = new File(this.folder.getRoot(), "flight.ics");
+        generator.write(ics);
+
+        Recording recording = new Recording();
+        recording.enable("calendar.Load").withThreshold(Duration.ZERO);
+        recording.enable("calendar.Save").withThreshold(Duration.ZERO);
+        recording.enable("calendar.Query").withThreshold(Duration.ZERO);
+        recording.start();
+        TCalendar calendar = new TCalendar(ics);
+        calendar.getDay(new GregorianCalendar(2011, 0, 3));
+        calendar.getMonthsEvents(new GregorianCalendar(2011, 1, 14));
+        calendar.serializeCalendar(new File(this.folder.getRoot(), "saved.ics"));
+        calendar.serializeCalendar(new StringWriter());
+        recording.stop();
+        File dump = new File(this.folder.getRoot(), "recording.jfr");
+        recording.dump(dump.toPath());
+        recording.close();
+
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump.toPath());
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            Integer count = counts.get(name);
+            counts.put(name, count == null ? 1 : count + 1);
+            if (name.equals("calendar.Load")) {
+                assertEquals(ics.getPath(), event.getString("file"));
+                assertEquals(ics.length(), event.getLong("size"));
+                assertEquals(300, event.getInt("events"));
+            } else if (name.equals("calendar.Save")) {
+                assertEquals(300, event.getInt("events"));
+                assertTrue(event.getLong("size") > 0);
+            } else if (event.getString("query").equals("getMonthsEvents")) {
+                assertEquals(new GregorianCalendar(2011, 1, 1).getTimeInMillis(),
+                        event.getInstant("from").toEpochMilli());
+            }
+        }
+        assertEquals(Integer.valueOf(1), counts.get("calendar.Load"));
+        assertEquals(Integer.valueOf(2), counts.get("calendar.Save"));
+        assertEquals(Integer.valueOf(2), counts.get("calendar.Query"));
+    }
+}
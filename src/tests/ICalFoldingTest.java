@@ -0,0 +1,128 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import calendar.ICalReader;
+import calendar.ICalWriter;
+
+public class ICalFoldingTest {
+
+    private static final String UTF8 = "UTF-8";
+
+    private static String repeat(char c, int times) {
+        StringBuilder text = new StringBuilder(times);
+        for (int i = 0; i < times; i++) {
+            text.append(c);
+        }
+        return text.toString();
+    }
+
+    // Writes the value as a SUMMARY line in UTF-8.
+    private static byte[] write(String value) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ICalWriter writer = new ICalWriter(Channels.newChannel(bytes));
+        writer.property("SUMMARY", value);
+        long octets = writer.getOctets();
+        writer.close();
+        assertEquals(bytes.size(), octets);
+        return bytes.toByteArray();
+    }
+
+    // The lengths in octets of the physical lines, which all end in CRLF.
+    private static List<Integer> lineOctets(byte[] bytes) {
+        List<Integer> lengths = new ArrayList<Integer>();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                assertEquals('\r', bytes[i - 1]);
+                lengths.add(i - 1 - start);
+                start = i + 1;
+            }
+        }
+        assertEquals(bytes.length, start);
+        return lengths;
+    }
+
+    // Reads the content lines back.
+    private static List<String> read(byte[] bytes) throws Exception {
+        ICalReader reader = new ICalReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), UTF8));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        reader.close();
+        return lines;
+    }
+
+    // Checks that the value is folded into the given physical lines and reads
+    // back whole.
+    private static void assertFolded(String value, Integer... octets) throws Exception {
+        byte[] bytes = write(value);
+        List<Integer> lengths = lineOctets(bytes);
+        assertEquals(Arrays.asList(octets), lengths);
+        for (int length : lengths) {
+            assertTrue(length <= ICalWriter.MAX_LINE_OCTETS);
+        }
+        List<String> lines = read(bytes);
+        assertEquals(1, lines.size());
+        assertEquals("SUMMARY:" + value, lines.get(0));
+    }
+
+    @Test
+    public void lineOfExactly75OctetsIsNotFolded() throws Exception {
+        // "SUMMARY:" takes eight octets.
+        assertFolded(repeat('a', 67), 75);
+        assertFolded(repeat('a', 68), 75, 2);
+        // The continuation lines hold 74 octets after the space.
+        assertFolded(repeat('a', 67 + 74), 75, 75);
+        assertFolded(repeat('a', 67 + 75), 75, 75, 2);
+    }
+
+    @Test
+    public void multibyteCharactersAreNotSplit() throws Exception {
+        // Two octets that would end at 76 go on the next line.
+        assertFolded(repeat('a', 66) + "\u00e4", 74, 3);
+        assertFolded(repeat('a', 65) + "\u00e4", 75);
+        // Three octets from 74 to 76.
+        assertFolded(repeat('a', 65) + "\u20ac", 73, 4);
+        assertFolded(repeat('a', 64) + "\u20ac", 75);
+        assertFolded(repeat('\u20ac', 60), 74, 73, 43);
+    }
+
+    @Test
+    public void surrogatePairsAreNotSplit() throws Exception {
+        String face = "\ud83d\ude00"; // Four octets in UTF-8.
+        assertFolded(repeat('a', 63) + face, 75);
+        assertFolded(repeat('a', 64) + face, 72, 5);
+        assertFolded(repeat('a', 66) + face, 74, 5);
+        StringBuilder faces = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            faces.append(face);
+        }
+        assertFolded(faces.toString(), 72, 73, 25);
+    }
+
+    @Test
+    public void tabsContinueLines() throws Exception {
+        ICalReader reader = new ICalReader(new StringReader(
+                "SUMMARY:ab\r\n\tcd\r\n ef\r\n\r\nDESCRIPTION:x\r\n\t\r\n"));
+        assertEquals("SUMMARY:abcdef", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("DESCRIPTION:x", reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+    }
+}
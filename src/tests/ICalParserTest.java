@@ -0,0 +1,222 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import calendar.CorruptedCalendarFileException;
+import calendar.Event;
+import calendar.ICalParser;
+import calendar.TCalendar;
+
+public class ICalParserTest {
+
+    private static final TimeZone HELSINKI = TimeZone.getTimeZone("Europe/Helsinki");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    // The instant of a UTC time, from the days since the epoch.
+    private static long utc(int year, int month, int day, int hour, int minute) {
+        return ICalParser.daysFromCivil(year, month, day) * 24 * HOUR
+                + hour * HOUR + minute * 60 * 1000L;
+    }
+
+    private static void assertRejected(ICalParser parser, String line) {
+        try {
+            parser.parseDateTime(line);
+            fail(line + " was accepted");
+        } catch (CorruptedCalendarFileException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertBadDuration(String line) {
+        try {
+            ICalParser.parseDuration(line);
+            fail(line + " was accepted");
+        } catch (CorruptedCalendarFileException e) {
+            // Expected.
+        }
+    }
+
+    // A calendar of one event starting at 10:00 UTC on 6 June 2011.
+    private static String vevent(String... lines) {
+        StringBuilder ics = new StringBuilder(
+                "BEGIN:VCALENDAR\r\nBEGIN:VEVENT\r\nUID:1@test\r\n"
+                + "DTSTAMP:20110601T000000Z\r\nDTSTART:20110606T100000Z\r\n");
+        for (String line : lines) {
+            ics.append(line).append("\r\n");
+        }
+        return ics.append("END:VEVENT\r\nEND:VCALENDAR\r\n").toString();
+    }
+
+    @Test
+    public void utcTimesIgnoreTheZone() throws Exception {
+        ICalParser parser = new ICalParser(NEW_YORK);
+        long expected = utc(2011, 3, 30, 13, 0);
+        assertEquals(expected, parser.parseDateTime("DTSTART:20110330T130000Z"));
+        assertEquals(expected, parser.parseDateTime("DTSTART:20110330t130000z"));
+        assertEquals(expected,
+                parser.parseDateTime("DTSTART;TZID=Europe/Helsinki:20110330T130000Z"));
+        assertEquals(expected + 59 * 1000L, parser.parseDateTime("DTEND:20110330T130059Z  "));
+    }
+
+    @Test
+    public void zonesAreNamedByTZID() throws Exception {
+        ICalParser parser = new ICalParser(NEW_YORK);
+        // Helsinki is three hours ahead of UTC in summer.
+        long expected = utc(2011, 3, 30, 10, 0);
+        assertEquals(expected,
+                parser.parseDateTime("DTSTART;TZID=Europe/Helsinki:20110330T130000"));
+        assertEquals(expected,
+                parser.parseDateTime("DTSTART;TZID=\"Europe/Helsinki\":20110330T130000"));
+        assertEquals(expected, parser.parseDateTime(
+                "DTSTART;VALUE=DATE-TIME;tzid=Europe/Helsinki;X-A=b:20110330T130000"));
+        // An unknown zone is taken as floating, here New York, four hours
+        // behind UTC in summer.
+        assertEquals(utc(2011, 3, 30, 17, 0),
+                parser.parseDateTime("DTSTART;TZID=Mars/Olympus:20110330T130000"));
+        assertEquals(utc(2011, 3, 30, 17, 0),
+                parser.parseDateTime("DTSTART;TZID=\"Mars/Olympus\":20110330T130000"));
+        // The zone looked up last is not used for another TZID.
+        assertEquals(expected,
+                parser.parseDateTime("DTSTART;TZID=Europe/Helsinki:20110330T130000"));
+    }
+
+    @Test
+    public void floatingTimesAreInTheParsersZone() throws Exception {
+        assertEquals(utc(2011, 1, 15, 7, 0),
+                new ICalParser(HELSINKI).parseDateTime("DTSTART:20110115T090000"));
+        assertEquals(utc(2011, 1, 15, 14, 0),
+                new ICalParser(NEW_YORK).parseDateTime("DTSTART:20110115T090000"));
+    }
+
+    @Test
+    public void datesStartAtMidnight() throws Exception {
+        ICalParser parser = new ICalParser(HELSINKI);
+        assertEquals(utc(2011, 6, 5, 21, 0),
+                parser.parseDateTime("DTSTART;VALUE=DATE:20110606"));
+        assertEquals(utc(2012, 2, 29, 0, 0), ICalParser.parseDateTime("20120229", 0, 8,
+                TimeZone.getTimeZone("UTC")));
+        assertEquals(utc(1969, 12, 31, 0, 0), ICalParser.parseDateTime("x19691231x", 1, 9,
+                TimeZone.getTimeZone("UTC")));
+    }
+
+    @Test
+    public void timesInTheSpringGapMoveForward() throws Exception {
+        ICalParser parser = new ICalParser(HELSINKI);
+        // On 27 March 2011 the clocks in Helsinki went from 03:00 to 04:00.
+        assertEquals(utc(2011, 3, 27, 0, 59),
+                parser.parseDateTime("DTSTART:20110327T025900"));
+        assertEquals(utc(2011, 3, 27, 1, 30),
+                parser.parseDateTime("DTSTART:20110327T033000"));
+        assertEquals(utc(2011, 3, 27, 1, 0),
+                parser.parseDateTime("DTSTART:20110327T040000"));
+    }
+
+    @Test
+    public void timesInTheAutumnOverlapAreTakenOnce() throws Exception {
+        ICalParser parser = new ICalParser(HELSINKI);
+        // On 30 October 2011 the clocks in Helsinki went from 04:00 back to
+        // 03:00, so 03:30 happened twice. The second one, in winter time,
+        // is taken.
+        assertEquals(utc(2011, 10, 30, 1, 30),
+                parser.parseDateTime("DTSTART:20111030T033000"));
+        assertEquals(utc(2011, 10, 30, 1, 30),
+                ICalParser.localToUtc(utc(2011, 10, 30, 3, 30), HELSINKI));
+        assertEquals(utc(2011, 10, 29, 23, 59),
+                parser.parseDateTime("DTSTART:20111030T025900"));
+        assertEquals(utc(2011, 10, 30, 2, 0),
+                parser.parseDateTime("DTSTART:20111030T040000"));
+    }
+
+    @Test
+    public void invalidDatesAreRejected() {
+        ICalParser parser = new ICalParser(HELSINKI);
+        assertRejected(parser, "DTSTART:20110230");
+        assertRejected(parser, "DTSTART:20110229T100000");
+        assertRejected(parser, "DTSTART:20111301");
+        assertRejected(parser, "DTSTART:20110100");
+        assertRejected(parser, "DTSTART:20110101T240000");
+        assertRejected(parser, "DTSTART:20110101T106000");
+        assertRejected(parser, "DTSTART:20110101X100000");
+        assertRejected(parser, "DTSTART:2011010");
+        assertRejected(parser, "DTSTART:20110101T1000");
+        assertRejected(parser, "DTSTART:2011O101");
+        assertRejected(parser, "DTSTART 20110101");
+    }
+
+    @Test
+    public void durationsAreParsed() throws Exception {
+        assertEquals(15 * 60 * 1000L, ICalParser.parseDuration("DURATION:PT15M"));
+        assertEquals(90 * 60 * 1000L, ICalParser.parseDuration("DURATION:PT90M"));
+        assertEquals(15 * 24 * HOUR + 5 * HOUR + 20 * 1000L,
+                ICalParser.parseDuration("DURATION:P15DT5H0M20S"));
+        assertEquals(24 * HOUR + 2 * HOUR, ICalParser.parseDuration("DURATION:P1DT2H"));
+        assertEquals(24 * HOUR, ICalParser.parseDuration("DURATION:P1D  "));
+        assertEquals(14 * 24 * HOUR, ICalParser.parseDuration("DURATION:P2W"));
+        assertEquals(7 * 24 * HOUR + 24 * HOUR, ICalParser.parseDuration("DURATION:P1W1D"));
+        assertEquals(-15 * 60 * 1000L, ICalParser.parseDuration("DURATION:-PT15M"));
+        assertEquals(24 * HOUR, ICalParser.parseDuration("DURATION:+P1D"));
+        assertEquals(HOUR, ICalParser.parseDuration("DURATION:pt1h"));
+        assertEquals(HOUR, ICalParser.parseDuration("xxPT1Hyy", 2, 6));
+    }
+
+    @Test
+    public void badDurationsAreRejected() throws Exception {
+        assertBadDuration("DURATION:");
+        assertBadDuration("DURATION:P");
+        assertBadDuration("DURATION:PT");
+        assertBadDuration("DURATION:1H");
+        assertBadDuration("DURATION:--PT1H");
+        assertBadDuration("DURATION:PT1M1H");
+        assertBadDuration("DURATION:P1D2D");
+        assertBadDuration("DURATION:PT1H2H");
+        assertBadDuration("DURATION:P1DT1HT1M");
+        assertBadDuration("DURATION:P1H");
+        assertBadDuration("DURATION:PT1D");
+        assertBadDuration("DURATION:PT1");
+        assertBadDuration("DURATION:PTH");
+        assertBadDuration("DURATION:PT1X");
+        assertBadDuration("DURATION:P1.5D");
+        // Too large for a long, in digits or in milliseconds.
+        assertBadDuration("DURATION:PT99999999999999999999S");
+        assertBadDuration("DURATION:P100000000000000W");
+        assertBadDuration("DURATION:P15250284452W4D");
+        assertEquals(15250284452L * 7 * 24 * HOUR + 3 * 24 * HOUR,
+                ICalParser.parseDuration("DURATION:P15250284452W3D"));
+    }
+
+    @Test
+    public void durationsEndTheEvents() throws Exception {
+        TCalendar calendar = new TCalendar();
+        calendar.loadCalendar(new StringReader(vevent("DURATION:PT1H30M")));
+        Event event = calendar.getAllEvents().get(0);
+        assertEquals(utc(2011, 6, 6, 11, 30), event.getEnd().getTimeInMillis());
+        assertEquals(90 * 60 * 1000L, event.getDuration());
+
+        // DURATION may come before DTSTART.
+        calendar = new TCalendar();
+        calendar.loadCalendar(new StringReader("BEGIN:VCALENDAR\r\nBEGIN:VEVENT\r\n"
+                + "UID:2@test\r\nDTSTAMP:20110601T000000Z\r\nDURATION:P1W\r\n"
+                + "DTSTART:20110606T100000Z\r\n"
+                + "END:VEVENT\r\nEND:VCALENDAR\r\n"));
+        assertEquals(utc(2011, 6, 13, 10, 0),
+                calendar.getAllEvents().get(0).getEnd().getTimeInMillis());
+
+        for (String[] lines : new String[][] {
+                { "DURATION:PT1H", "DTEND:20110606T110000Z" },
+                { "DTEND:20110606T110000Z", "DURATION:PT1H" },
+                { "DURATION:-PT1H" } }) {
+            try {
+                new TCalendar().loadCalendar(new StringReader(vevent(lines)));
+                fail(lines[0] + " was accepted");
+            } catch (CorruptedCalendarFileException e) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendar.RecurrenceRule;
+import calendar.TCalendar;
+
+public class LazyLoadTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Writes a calendar with an event on every day of 2011 and a weekly one.
+    private File write() throws Exception {
+        TCalendar calendar = new TCalendar();
+        for (int day = 0; day < 365; day++) {
+            calendar.addEvent(Events.meeting(2011, Calendar.JANUARY, day + 1, 9, 0, 60));
+        }
+        MeetingEvent weekly = Events.meeting(2011, Calendar.JANUARY, 3, 12, 0, 60);
+        weekly.setRule(RecurrenceRule.parse("RRULE:FREQ=WEEKLY"));
+        calendar.addEvent(weekly);
+        File ics = new File(this.folder.getRoot(), "test.ics");
+        calendar.serializeCalendar(ics);
+        return ics;
+    }
+
+    @Test
+    public void queriesSeeTheSameEventsAsAFullLoad() throws Exception {
+        File ics = write();
+        TCalendar lazy = TCalendar.openLazily(ics);
+        TCalendar full = new TCalendar(ics);
+        GregorianCalendar monday = new GregorianCalendar(2011, Calendar.MAY, 2);
+        for (int day = 0; day < 7; day++) {
+            assertEquals(full.getDay(monday).size(), lazy.getDay(monday).size());
+            monday.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        assertEquals(2, lazy.getDay(new GregorianCalendar(2011, Calendar.MAY, 2)).size());
+        assertEquals(366, lazy.getAllEvents().size());
+    }
+
+    @Test
+    public void journalReplaysOntoUnparsedEvents() throws Exception {
+        File ics = write();
+        TCalendar calendar = TCalendar.openLazily(ics);
+        calendar.openJournal(ics);
+        GregorianCalendar june = new GregorianCalendar(2011, Calendar.JUNE, 1);
+        Event removed = calendar.getDay(june).get(0);
+        calendar.removeEvent(removed);
+        calendar.closeJournal();
+
+        TCalendar recovered = TCalendar.openLazily(ics);
+        recovered.openJournal(ics);
+        assertEquals(0, recovered.getDay(june).size());
+        ArrayList<Event> events = recovered.getAllEvents();
+        assertEquals(365, events.size());
+        recovered.saveJournaled(ics);
+        assertEquals(365, new TCalendar(ics).getAllEvents().size());
+    }
+}
@@ -0,0 +1,166 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Point;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.MeetingEvent;
+import calendar.MonthAggregate;
+import calendar.TCalendar;
+import calendarGUI.JMonthGrid;
+import calendarGUI.JYearHeatmap;
+
+public class MonthAggregateTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MeetingEvent event(int month, int day, int hour, int minute, int minutes,
+            String category) {
+        MeetingEvent event = Events.meeting(2011, month, day, hour, minute, minutes);
+        event.setCategory(category);
+        return event;
+    }
+
+    private static GregorianCalendar june() {
+        return new GregorianCalendar(2011, Calendar.JUNE, 15);
+    }
+
+    @Test
+    public void daysAreSummedUp() {
+        TCalendar calendar = new TCalendar();
+        MeetingEvent high = event(Calendar.JUNE, 6, 10, 0, 60, "Work");
+        high.setPriority(2);
+        calendar.addEvent(high);
+        calendar.addEvent(event(Calendar.JUNE, 6, 10, 30, 90, "Work"));
+        calendar.addEvent(event(Calendar.JUNE, 6, 23, 0, 120, "Sleep"));
+        calendar.addEvent(event(Calendar.MAY, 31, 23, 0, 120, "Travel"));
+        calendar.addEvent(event(Calendar.JUNE, 30, 23, 30, 60, "Travel"));
+        MeetingEvent gym = event(Calendar.JUNE, 20, 8, 0, 60, "Gym");
+        gym.setRepeat(Calendar.DAY_OF_MONTH, 1, null);
+        calendar.addEvent(gym);
+
+        MonthAggregate month = calendar.getMonthAggregate(june());
+        assertEquals(30, month.getDays());
+        assertEquals(new GregorianCalendar(2011, Calendar.JUNE, 1), month.getMonth());
+        assertEquals(3, month.getCount(6));
+        assertEquals(3 * HOUR + HOUR / 2, month.getDuration(6));
+        assertEquals(1, month.getHighPriorityCount(6));
+        assertEquals("Work", month.getTopCategory(6));
+        // Events are cut at midnight and at the ends of the month.
+        assertEquals(1, month.getCount(7));
+        assertEquals(HOUR, month.getDuration(7));
+        assertEquals(HOUR, month.getDuration(1));
+        assertEquals(2, month.getCount(30));
+        assertEquals(HOUR + HOUR / 2, month.getDuration(30));
+        assertEquals(0, month.getCount(19));
+        assertNull(month.getTopCategory(19));
+        assertEquals(HOUR, month.getDuration(20));
+
+        assertEquals(11 * HOUR, month.getCategoryDuration("Gym"));
+        assertEquals(HOUR + HOUR / 2, month.getCategoryDuration("Travel"));
+        assertEquals(HOUR / 2, month.getCategoryDuration("Travel", 30));
+        assertEquals(0, month.getCategoryDuration("Nothing"));
+        assertEquals(4, month.getCategories().size());
+        assertEquals(3 * HOUR + HOUR / 2, month.getBusiest());
+
+        MonthAggregate july = calendar.getMonthAggregate(new GregorianCalendar(2011,
+                Calendar.JULY, 1));
+        assertEquals(2, july.getCount(1));
+        assertEquals(HOUR / 2 + HOUR, july.getDuration(1));
+    }
+
+    @Test
+    public void changesDropTheMonthsTheyTouch() {
+        TCalendar calendar = new TCalendar();
+        MeetingEvent moved = event(Calendar.JUNE, 6, 10, 0, 60, "Work");
+        calendar.addEvent(moved);
+        MonthAggregate month = calendar.getMonthAggregate(june());
+        assertSame(month, calendar.getMonthAggregate(june()));
+        assertEquals(1, month.getCount(6));
+
+        // Another month is left alone.
+        calendar.addEvent(event(Calendar.AUGUST, 6, 10, 0, 60, "Work"));
+        assertSame(month, calendar.getMonthAggregate(june()));
+
+        calendar.addEvent(event(Calendar.JUNE, 8, 10, 0, 60, "Work"));
+        MonthAggregate added = calendar.getMonthAggregate(june());
+        assertNotSame(month, added);
+        assertEquals(1, added.getCount(8));
+        // An aggregate that was handed out is not changed.
+        assertEquals(0, month.getCount(8));
+
+        moved.setNewStartEnd(new GregorianCalendar(2011, Calendar.JULY, 4, 10, 0),
+                new GregorianCalendar(2011, Calendar.JULY, 4, 13, 0));
+        calendar.updateEvent(moved);
+        assertEquals(0, calendar.getMonthAggregate(june()).getCount(6));
+        assertEquals(3 * HOUR, calendar.getMonthAggregate(
+                new GregorianCalendar(2011, Calendar.JULY, 1)).getDuration(4));
+
+        calendar.removeEvent(moved);
+        assertEquals(0, calendar.getMonthAggregate(
+                new GregorianCalendar(2011, Calendar.JULY, 1)).getCount(4));
+
+        MeetingEvent weekly = event(Calendar.JANUARY, 3, 9, 0, 30, "Meeting");
+        weekly.setRepeat(Calendar.WEEK_OF_YEAR, 1, null);
+        calendar.addEvent(weekly);
+        assertEquals(4, calendar.getMonthAggregate(june()).getCount(6)
+                + calendar.getMonthAggregate(june()).getCount(13)
+                + calendar.getMonthAggregate(june()).getCount(20)
+                + calendar.getMonthAggregate(june()).getCount(27));
+    }
+
+    @Test
+    public void daysAreFoundInTheViews() {
+        TCalendar calendar = new TCalendar();
+        calendar.addEvent(event(Calendar.JUNE, 5, 10, 0, 60, "Work"));
+        // June 2011 starts on a Wednesday.
+        JMonthGrid grid = new JMonthGrid(calendar.getMonthAggregate(june()));
+        int top = JMonthGrid.HEADER_HEIGHT + 1;
+        assertNull(grid.getDateAt(new Point(1, top)));
+        assertEquals(new GregorianCalendar(2011, Calendar.JUNE, 1),
+                grid.getDateAt(new Point(2 * JMonthGrid.CELL_WIDTH + 1, top)));
+        assertEquals(new GregorianCalendar(2011, Calendar.JUNE, 6), grid.getDateAt(
+                new Point(1, top + JMonthGrid.CELL_HEIGHT)));
+        assertNull(grid.getDateAt(new Point(1, 1)));
+
+        ArrayList<MonthAggregate> year = new ArrayList<MonthAggregate>();
+        for (int month = 0; month < 12; month++) {
+            year.add(calendar.getMonthAggregate(new GregorianCalendar(2011, month, 1)));
+        }
+        JYearHeatmap heatmap = new JYearHeatmap(year);
+        int cell = JYearHeatmap.CELL_SIZE;
+        assertEquals(new GregorianCalendar(2011, Calendar.JUNE, 5), heatmap.getDateAt(
+                new Point(JYearHeatmap.LABEL_WIDTH + 4 * cell + 1, 5 * cell + 1)));
+        // There is no February 30th.
+        assertNull(heatmap.getDateAt(new Point(JYearHeatmap.LABEL_WIDTH + 29 * cell + 1,
+                cell + 1)));
+        assertNull(heatmap.getDateAt(new Point(1, 1)));
+    }
+
+    @Test
+    public void eventsNotParsedYetAreCounted() throws Exception {
+        TCalendar written = new TCalendar();
+        written.addEvent(event(Calendar.JANUARY, 28, 10, 0, 10 * 24 * 60, "Travel"));
+        File file = this.folder.newFile("trip.ics");
+        written.serializeCalendar(file);
+
+        // The trip starts in January but is still going on in February.
+        MonthAggregate february = TCalendar.openLazily(file).getMonthAggregate(
+                new GregorianCalendar(2011, Calendar.FEBRUARY, 1));
+        assertEquals(1, february.getCount(1));
+        assertEquals(24 * HOUR, february.getDuration(1));
+        assertEquals(1, february.getCount(7));
+        assertEquals(0, february.getCount(8));
+    }
+}
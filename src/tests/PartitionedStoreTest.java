@@ -0,0 +1,80 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendar.PartitionedStore;
+import calendar.RecurrenceRule;
+
+public class PartitionedStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Fills a store with an event on the 1st and 15th of every month of 2001-2010.
+    private PartitionedStore fill(File directory) throws Exception {
+        PartitionedStore store = new PartitionedStore(directory, 3);
+        for (int year = 2001; year <= 2010; year++) {
+            for (int month = 0; month < 12; month++) {
+                store.addEvent(Events.meeting(year, month, 1, 10, 0, 60));
+                store.addEvent(Events.meeting(year, month, 15, 10, 0, 60));
+            }
+        }
+        MeetingEvent weekly = Events.meeting(2001, Calendar.JANUARY, 2, 10, 0, 60);
+        weekly.setRule(RecurrenceRule.parse("RRULE:FREQ=WEEKLY"));
+        store.addEvent(weekly);
+        assertEquals(3, store.getLoadedSegments());
+        store.save();
+        return store;
+    }
+
+    @Test
+    public void queriesLoadOnlyTheirMonths() throws Exception {
+        File directory = this.folder.getRoot();
+        fill(directory);
+        assertEquals(121, directory.list().length);
+
+        PartitionedStore store = new PartitionedStore(directory, 3);
+        assertEquals(0, store.getLoadedSegments());
+        assertEquals(1, store.getDay(new GregorianCalendar(2005, Calendar.MAY, 15)).size());
+        assertEquals(1, store.getLoadedSegments());
+        ArrayList<Event> year = store.getEvents(new GregorianCalendar(2007, Calendar.JANUARY, 1),
+                new GregorianCalendar(2008, Calendar.JANUARY, 1));
+        assertEquals(25, year.size());
+        assertEquals(3, store.getLoadedSegments());
+    }
+
+    @Test
+    public void eventsMoveBetweenEvictedSegments() throws Exception {
+        File directory = this.folder.getRoot();
+        PartitionedStore store = fill(directory);
+        GregorianCalendar march = new GregorianCalendar(2003, Calendar.MARCH, 1);
+        Event moved = store.getDay(march).get(0);
+        assertFalse(moved.isRepeating());
+        store.getDay(new GregorianCalendar(2009, Calendar.JUNE, 1));
+        store.getDay(new GregorianCalendar(2009, Calendar.JULY, 1));
+        store.getDay(new GregorianCalendar(2009, Calendar.AUGUST, 1));
+
+        MeetingEvent target = Events.meeting(2004, Calendar.APRIL, 2, 10, 0, 60);
+        moved.setNewStartEnd(target.getStart(), target.getEnd());
+        store.updateEvent(moved);
+        store.evictAll();
+
+        PartitionedStore reopened = new PartitionedStore(directory, 3);
+        assertEquals(0, reopened.getDay(march).size());
+        assertEquals(1, reopened.getDay(new GregorianCalendar(2004, Calendar.APRIL, 2)).size());
+        // The event on the 15th and the weekly one.
+        assertEquals(2, reopened.getEvents(new GregorianCalendar(2003, Calendar.MARCH, 1),
+                new GregorianCalendar(2003, Calendar.APRIL, 1)).size());
+    }
+}
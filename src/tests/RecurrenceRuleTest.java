@@ -0,0 +1,108 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import calendar.CorruptedCalendarFileException;
+import calendar.MeetingEvent;
+import calendar.RecurrenceRule;
+
+public class RecurrenceRuleTest {
+
+    // Creates a one hour event starting at the given time, repeating by rule.
+    private static MeetingEvent event(int year, int month, int day, int hour,
+            String rule) throws CorruptedCalendarFileException {
+        MeetingEvent event = Events.meeting(year, month, day, hour, 0, 60);
+        event.setRule(RecurrenceRule.parse(rule));
+        return event;
+    }
+
+    private static long millis(int year, int month, int day, int hour) {
+        return new GregorianCalendar(year, month, day, hour, 0).getTimeInMillis();
+    }
+
+    @Test
+    public void secondTuesday() throws CorruptedCalendarFileException {
+        MeetingEvent test = event(2011, Calendar.MARCH, 8, 10, "RRULE:FREQ=MONTHLY;BYDAY=2TU");
+        assertEquals(millis(2011, Calendar.APRIL, 12, 10),
+                test.getNextOccurrence(millis(2011, Calendar.MARCH, 9, 0)));
+        assertEquals(millis(2012, Calendar.MAY, 8, 10),
+                test.getNextOccurrence(millis(2012, Calendar.MAY, 1, 0)));
+    }
+
+    @Test
+    public void lastWeekdayOfMonth() throws CorruptedCalendarFileException {
+        MeetingEvent test = event(2011, Calendar.MARCH, 31, 9,
+                "FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1");
+        // April 30th 2011 is a Saturday.
+        assertEquals(millis(2011, Calendar.APRIL, 29, 9),
+                test.getNextOccurrence(millis(2011, Calendar.APRIL, 1, 0)));
+    }
+
+    @Test
+    public void countSetsTheExpiration() throws CorruptedCalendarFileException {
+        MeetingEvent test = event(2011, Calendar.MARCH, 1, 10, "FREQ=DAILY;INTERVAL=3;COUNT=4");
+        GregorianCalendar last = new GregorianCalendar(2011, Calendar.MARCH, 10, 11, 0);
+        assertEquals(last.getTimeInMillis(), test.getExpiration().getTimeInMillis());
+        assertEquals(Long.MAX_VALUE,
+                test.getNextOccurrence(millis(2011, Calendar.MARCH, 10, 12)));
+    }
+
+    @Test(timeout = 1000)
+    public void lastStartOfPlainRulesIsComputed() throws CorruptedCalendarFileException {
+        TimeZone zone = TimeZone.getDefault();
+        long start = millis(2011, Calendar.MARCH, 1, 10);
+        assertEquals(millis(2011, Calendar.MARCH, 10, 10),
+                RecurrenceRule.parse("FREQ=DAILY;INTERVAL=3;COUNT=4").getLastStart(start, zone));
+        assertEquals(millis(2012, Calendar.MAY, 1, 10),
+                RecurrenceRule.parse("FREQ=MONTHLY;INTERVAL=2;COUNT=8").getLastStart(start, zone));
+        assertEquals(millis(2014, Calendar.MARCH, 1, 10),
+                RecurrenceRule.parse("FREQ=YEARLY;COUNT=4").getLastStart(start, zone));
+        // The last occurrence before UNTIL.
+        assertEquals(millis(2011, Calendar.MARCH, 29, 10),
+                RecurrenceRule.parse("FREQ=WEEKLY;COUNT=1000;UNTIL=20110404").getLastStart(start, zone));
+        // The 31st is not in every month (March, May, July, August, October),
+        // so those are walked through.
+        assertEquals(millis(2011, Calendar.OCTOBER, 31, 10),
+                RecurrenceRule.parse("FREQ=MONTHLY;COUNT=5").getLastStart(
+                        millis(2011, Calendar.MARCH, 31, 10), zone));
+        // Occurrences past the year 9999 are not told apart from forever.
+        assertEquals(Long.MAX_VALUE,
+                RecurrenceRule.parse("FREQ=DAILY;COUNT=2147483647").getLastStart(start, zone));
+        assertEquals(Long.MAX_VALUE,
+                RecurrenceRule.parse("FREQ=DAILY;BYDAY=MO;COUNT=2147483647").getLastStart(start, zone));
+    }
+
+    @Test
+    public void monthsWithoutTheDayAreSkipped() throws CorruptedCalendarFileException {
+        MeetingEvent test = event(2011, Calendar.JANUARY, 31, 9, "FREQ=MONTHLY");
+        assertEquals(millis(2011, Calendar.MARCH, 31, 9),
+                test.getNextOccurrence(millis(2011, Calendar.FEBRUARY, 1, 0)));
+    }
+
+    @Test
+    public void ruleIsWrittenBack() throws CorruptedCalendarFileException {
+        String rule = "FREQ=WEEKLY;INTERVAL=2;COUNT=10;BYDAY=TU,TH";
+        assertEquals(rule, RecurrenceRule.parse(rule).toString());
+    }
+
+    @Test
+    public void untilIsWrittenInUtc() throws CorruptedCalendarFileException {
+        TimeZone zone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("Europe/Helsinki"));
+            RecurrenceRule rule = RecurrenceRule.parse("FREQ=DAILY;UNTIL=20110630T120000");
+            assertEquals("FREQ=DAILY;UNTIL=20110630T090000Z", rule.toString());
+            long until = rule.getUntil();
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            assertEquals(until, RecurrenceRule.parse(rule.toString()).getUntil());
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+    }
+}
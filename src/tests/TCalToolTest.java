@@ -0,0 +1,166 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.Calendar;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import calendar.EventTree;
+import calendar.MeetingEvent;
+import calendar.RecurrenceRule;
+import calendar.TCalendar;
+import calendarCLI.TCalTool;
+
+public class TCalToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    private static MeetingEvent event(int day, int hour, int hours, String category) {
+        MeetingEvent event = Events.meeting(2011, Calendar.MAY, day, hour, 0, hours * 60);
+        event.setCategory(category);
+        return event;
+    }
+
+    // Writes a calendar with a daily meeting and two overlapping events.
+    private File calendar(String name) throws Exception {
+        TCalendar calendar = new TCalendar();
+        MeetingEvent daily = event(2, 9, 1, "MEETING");
+        daily.setRule(RecurrenceRule.parse("RRULE:FREQ=DAILY;COUNT=5"));
+        daily.setUID("daily");
+        calendar.addEvent(daily);
+        MeetingEvent work = event(3, 8, 4, "WORK");
+        work.setUID("work");
+        calendar.addEvent(work);
+        MeetingEvent lunch = event(5, 12, 1, "LUNCH");
+        lunch.setUID("lunch");
+        calendar.addEvent(lunch);
+        File file = new File(this.folder.getRoot(), name);
+        calendar.serializeCalendar(file);
+        return file;
+    }
+
+    private int run(String input, String... args) throws Exception {
+        this.out.reset();
+        this.err.reset();
+        TCalTool tool = new TCalTool(new ByteArrayInputStream(input.getBytes("UTF-8")),
+                new PrintStream(this.out, true, "UTF-8"), new PrintStream(this.err, true, "UTF-8"));
+        return tool.run(args);
+    }
+
+    private String[] lines() throws Exception {
+        return this.out.toString("UTF-8").split("\n");
+    }
+
+    @Test
+    public void queriesRunOverSeveralFiles() throws Exception {
+        String first = calendar("first.ics").getPath();
+        String second = calendar("second.ics").getPath();
+        assertEquals(0, run("", "-j", "2", "query", "01.05.2011", "05.05.2011", first, second));
+        String[] lines = lines();
+        assertEquals(8, lines.length);
+        assertEquals(first + "\t02.05.2011 09:00\t02.05.2011 10:00\tMEETING\tdaily", lines[0]);
+        assertEquals(first + "\t03.05.2011 08:00\t03.05.2011 12:00\tWORK\twork", lines[1]);
+        assertTrue(lines[4].startsWith(second + "\t"));
+        assertTrue(this.err.toString("UTF-8").startsWith("2 files, 4 events"));
+
+        assertEquals(0, run("", "-q", "conflicts", "01.05.2011", "01.06.2011", first));
+        lines = lines();
+        assertEquals(1, lines.length);
+        assertEquals(first + "\t03.05.2011 09:00\t03.05.2011 10:00\twork\tdaily", lines[0]);
+        assertEquals("", this.err.toString("UTF-8"));
+
+        assertEquals(0, run("", "-q", "totals", "01.05.2011", "04.05.2011", first));
+        lines = lines();
+        assertEquals(first + "\tMEETING\t120", lines[0]);
+        assertEquals(first + "\tWORK\t240", lines[1]);
+    }
+
+    @Test
+    public void eventsGoingOnAtTheStartAreIncluded() throws Exception {
+        TCalendar calendar = new TCalendar();
+        MeetingEvent night = event(10, 22, 4, "TRAVEL");
+        night.setUID("night");
+        calendar.addEvent(night);
+        MeetingEvent call = event(11, 1, 1, "CALL");
+        call.setUID("call");
+        calendar.addEvent(call);
+        File ics = new File(this.folder.getRoot(), "night.ics");
+        calendar.serializeCalendar(ics);
+        assertEquals(0, run("", "-q", "convert", "tree", ics.getPath()));
+        File tree = new File(this.folder.getRoot(), "night" + EventTree.SUFFIX);
+        StringWriter text = new StringWriter();
+        calendar.serializeCalendar(text);
+
+        for (String name : new String[] { ics.getPath(), tree.getPath(), "-" }) {
+            assertEquals(0, run(text.toString(), "-q", "totals", "11.05.2011", "12.05.2011",
+                    name));
+            String[] lines = lines();
+            assertEquals(2, lines.length);
+            assertEquals(name + "\tCALL\t60", lines[0]);
+            assertEquals(name + "\tTRAVEL\t120", lines[1]);
+
+            assertEquals(0, run(text.toString(), "-q", "conflicts", "11.05.2011",
+                    "12.05.2011", name));
+            assertEquals(name + "\t11.05.2011 01:00\t11.05.2011 02:00\tnight\tcall",
+                    lines()[0]);
+
+            assertEquals(0, run(text.toString(), "-q", "query", "11.05.2011", "12.05.2011",
+                    name));
+            assertEquals(name + "\t10.05.2011 22:00\t11.05.2011 02:00\tTRAVEL\tnight",
+                    lines()[0]);
+        }
+    }
+
+    @Test
+    public void filesAreConvertedBothWays() throws Exception {
+        File ics = calendar("calendar.ics");
+        assertEquals(0, run("", "-q", "convert", "tree", ics.getPath()));
+        File tree = new File(this.folder.getRoot(), "calendar" + EventTree.SUFFIX);
+        assertEquals(ics.getPath() + "\t" + tree.getPath(), lines()[0]);
+        EventTree converted = new EventTree(tree);
+        assertEquals(3, converted.getAllEvents().size());
+        converted.close();
+        assertTrue(ics.delete());
+
+        assertEquals(0, run("", "-q", "convert", "ics.gz", tree.getPath()));
+        File compressed = new File(this.folder.getRoot(), "calendar.ics.gz");
+        assertEquals(1, run("", "-q", "query", "01.05.2011", "01.06.2011",
+                compressed.getPath(), ics.getPath()));
+        assertEquals(7, lines().length);
+        assertTrue(this.err.toString("UTF-8").startsWith(ics.getPath() + ": "));
+
+        byte[] bytes = new byte[(int) calendar("input.ics").length()];
+        FileInputStream in = new FileInputStream(calendar("input.ics"));
+        in.read(bytes);
+        in.close();
+        assertEquals(0, run(new String(bytes, "UTF-8"), "-q", "convert", "ics", "-"));
+        assertTrue(this.out.toString("UTF-8").startsWith("BEGIN:VCALENDAR"));
+        assertEquals(3, this.out.toString("UTF-8").split("BEGIN:VEVENT").length - 1);
+    }
+
+    @Test
+    public void calendarsAreGenerated() throws Exception {
+        File generated = new File(this.folder.getRoot(), "generated.ics");
+        assertEquals(0, run("", "generate", "200", generated.getPath()));
+        assertTrue(this.err.toString("UTF-8").startsWith("1 files, 200 events"));
+        assertEquals(200, new TCalendar(generated).getAllEvents().size());
+        long length = generated.length();
+        assertEquals(0, run("", "-q", "generate", "200", generated.getPath()));
+        assertEquals(length, generated.length());
+        assertEquals(2, run("", "generate", "many", generated.getPath()));
+    }
+
+}
@@ -0,0 +1,56 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+import calendar.CalendarChange;
+import calendar.MeetingEvent;
+import calendarGUI.ViewCache;
+
+public class ViewCacheTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void leastRecentlyUsedViewsAreDropped() {
+        ViewCache<String> cache = new ViewCache<String>(2);
+        long generation = cache.getGeneration();
+        assertTrue(cache.put(0, DAY, "first", generation));
+        assertTrue(cache.put(DAY, 2 * DAY, "second", generation));
+        assertEquals("first", cache.get(0));
+        assertTrue(cache.put(2 * DAY, 3 * DAY, "third", generation));
+        assertEquals("first", cache.get(0));
+        assertNull(cache.get(DAY));
+        assertEquals("third", cache.get(2 * DAY));
+    }
+
+    @Test
+    public void changesDropTheViewsTheyTouch() {
+        ViewCache<String> cache = new ViewCache<String>(4);
+        long generation = cache.getGeneration();
+        GregorianCalendar start = new GregorianCalendar(2011, Calendar.JUNE, 6, 10, 0);
+        long monday = new GregorianCalendar(2011, Calendar.JUNE, 6).getTimeInMillis();
+        GregorianCalendar end = (GregorianCalendar) start.clone();
+        end.add(Calendar.HOUR_OF_DAY, 1);
+        MeetingEvent event = new MeetingEvent(start, end);
+        cache.put(monday, monday + 7 * DAY, "this week", generation);
+        cache.put(monday + 7 * DAY, monday + 14 * DAY, "next week", generation);
+
+        cache.invalidate(Arrays.asList(new CalendarChange(CalendarChange.ADDED, event,
+                start.getTimeInMillis(), end.getTimeInMillis())));
+        assertNull(cache.get(monday));
+        assertEquals("next week", cache.get(monday + 7 * DAY));
+        // A view computed before the change is out of date.
+        assertFalse(cache.put(monday, monday + 7 * DAY, "this week", generation));
+        assertNull(cache.get(monday));
+        assertTrue(cache.put(monday, monday + 7 * DAY, "this week", cache.getGeneration()));
+
+        cache.clear();
+        assertNull(cache.get(monday + 7 * DAY));
+    }
+}
@@ -0,0 +1,134 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendarGUI.JWeekCanvas;
+import calendarGUI.WeekModel;
+
+public class WeekCanvasTest {
+
+    private static final int WIDTH = 7 * 100;
+    private static final int HEIGHT = 96 * JWeekCanvas.BLOCK_HEIGHT;
+
+    private static MeetingEvent event(int day, int hour, int minute, int minutes, int priority) {
+        MeetingEvent event = Events.meeting(2011, Calendar.JUNE, day, hour, minute, minutes);
+        event.setPriority(priority);
+        return event;
+    }
+
+    // The point in the middle of the block of a day at a time.
+    private static Point at(int day, int hour, int minute) {
+        return at(day, hour, minute, 50);
+    }
+
+    // A point in the block of a day at a time, x pixels from the left of the day.
+    private static Point at(int day, int hour, int minute, int x) {
+        return new Point(day * 100 + x, (hour * 4 + minute / 15) * JWeekCanvas.BLOCK_HEIGHT
+                + JWeekCanvas.BLOCK_HEIGHT / 2);
+    }
+
+    private static Color color(BufferedImage image, Point point) {
+        return new Color(image.getRGB(point.x, point.y));
+    }
+
+    @Test
+    public void eventsArePaintedAndFound() {
+        JWeekCanvas canvas = new JWeekCanvas();
+        canvas.setSize(WIDTH, HEIGHT);
+        // Monday the 6th of June 2011.
+        WeekModel model = new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 8));
+        assertEquals(6, model.getWeek().get(Calendar.DAY_OF_MONTH));
+        MeetingEvent high = event(6, 10, 0, 60, 1);
+        MeetingEvent low = event(6, 10, 30, 90, 7);
+        MeetingEvent late = event(7, 23, 0, 120, 0);
+        MeetingEvent daily = event(1, 8, 0, 30, 5);
+        daily.setRepeat(Calendar.DAY_OF_MONTH, 1, null);
+        model = model.withDay(0, Arrays.<Event> asList(high, low, daily));
+        model = model.withDay(1, Arrays.<Event> asList(late, daily));
+        model = model.withDay(2, Arrays.<Event> asList(late, daily));
+        assertEquals(2, model.getReach(1));
+        canvas.setModel(model);
+        assertEquals(0, canvas.getComponentCount());
+
+        // The overlapping events are side by side.
+        assertEquals(Arrays.asList(high), canvas.getEventsAt(at(0, 10, 15, 25)));
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(at(0, 10, 15, 75)));
+        assertEquals(Arrays.asList(high), canvas.getEventsAt(at(0, 10, 45, 25)));
+        assertEquals(Arrays.asList(low), canvas.getEventsAt(at(0, 10, 45, 75)));
+        assertEquals(Arrays.asList(low), canvas.getEventsAt(at(0, 11, 45, 75)));
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(at(0, 11, 45, 25)));
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(at(0, 12, 0)));
+        // An event past midnight is in the next column once.
+        assertEquals(Arrays.asList(late), canvas.getEventsAt(at(1, 23, 30)));
+        assertEquals(Arrays.asList(late), canvas.getEventsAt(at(2, 0, 45)));
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(at(2, 1, 0)));
+        assertEquals(Arrays.asList(daily), canvas.getEventsAt(at(2, 8, 15)));
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(new Point(-1, 0)));
+
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        canvas.paint(g);
+        g.dispose();
+        assertEquals(JWeekCanvas.HIGH_PRIORITY, color(image, at(0, 10, 45, 25)));
+        assertEquals(JWeekCanvas.LOW_PRIORITY, color(image, at(0, 10, 45, 75)));
+        assertEquals(canvas.getBackground(), color(image, at(0, 11, 45, 25)));
+        assertEquals(JWeekCanvas.NO_PRIORITY, color(image, at(2, 0, 0)));
+        assertEquals(JWeekCanvas.MEDIUM_PRIORITY, color(image, at(1, 8, 0)));
+        assertEquals(canvas.getBackground(), color(image, at(0, 12, 0)));
+        assertEquals(JWeekCanvas.EVENT_BORDERS, color(image, at(0, 10, 45, 50)));
+
+        // A new model for a day shares the other days with the old one.
+        WeekModel changed = model.withDay(0, new ArrayList<Event>());
+        assertSame(model.getOccurrences(1), changed.getOccurrences(1));
+        assertEquals(2, model.getOccurrences(1).size());
+        canvas.setModel(changed);
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(at(0, 10, 45, 25)));
+        assertEquals(Arrays.asList(late), canvas.getEventsAt(at(2, 0, 45)));
+        canvas.setModel(new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 13)));
+        assertEquals(new ArrayList<Event>(), canvas.getEventsAt(at(2, 0, 45)));
+    }
+
+    @Test
+    public void narrowEventsAreClickedTogether() {
+        JWeekCanvas canvas = new JWeekCanvas();
+        canvas.setSize(WIDTH, HEIGHT);
+        ArrayList<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 300; i++) {
+            events.add(event(6, 9 + i % 2, 0, 120, 0));
+        }
+        WeekModel model = new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 6));
+        canvas.setModel(model.withDay(0, events));
+        assertEquals(150, canvas.getEventsAt(at(0, 9, 0)).size());
+        assertEquals(300, canvas.getEventsAt(at(0, 10, 0)).size());
+    }
+
+    @Test
+    public void eventsWithoutCategoryArePainted() {
+        JWeekCanvas canvas = new JWeekCanvas();
+        canvas.setSize(WIDTH, HEIGHT);
+        // A VEVENT without CATEGORIES is read with a null category.
+        MeetingEvent event = event(6, 10, 0, 120, 1);
+        event.setCategory(null);
+        WeekModel model = new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 6));
+        canvas.setModel(model.withDay(0, Arrays.<Event> asList(event)));
+
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        canvas.paint(g);
+        g.dispose();
+        assertEquals(JWeekCanvas.HIGH_PRIORITY, color(image, at(0, 11, 45, 90)));
+    }
+}
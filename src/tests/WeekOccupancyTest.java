@@ -0,0 +1,75 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+import calendar.Event;
+import calendar.MeetingEvent;
+import calendarGUI.WeekModel;
+import calendarGUI.WeekOccupancy;
+
+public class WeekOccupancyTest {
+
+    private static MeetingEvent event(int day, int hour, int minutes, int priority) {
+        MeetingEvent event = Events.meeting(2011, Calendar.JUNE, day, hour, 0, minutes);
+        event.setPriority(priority);
+        return event;
+    }
+
+    // The block of a day of the week of the 6th of June 2011 at an hour.
+    private static int block(int day, int hour) {
+        return day * WeekModel.BLOCKS_IN_DAY + hour * 4;
+    }
+
+    @Test
+    public void blocksAreSwept() {
+        MeetingEvent low = event(6, 9, 120, 7);
+        MeetingEvent high = event(6, 10, 30, 2);
+        MeetingEvent none = event(7, 10, 60, 0);
+        // Lasts past the end of the week.
+        MeetingEvent long_ = event(7, 12, 60 * 24 * 30, 5);
+        WeekModel model = new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 6));
+        model = model.withDay(0, Arrays.<Event> asList(low, high));
+        model = model.withDay(1, Arrays.<Event> asList(long_, none));
+        WeekOccupancy occupancy = model.getOccupancy();
+        assertSame(occupancy, model.getOccupancy());
+
+        assertEquals(0, occupancy.getCount(block(0, 8)));
+        assertEquals(1, occupancy.getCount(block(0, 9)));
+        assertEquals(2, occupancy.getCount(block(0, 10)));
+        assertEquals(Arrays.asList(low, high), occupancy.getEvents(block(0, 10)));
+        assertEquals(1, occupancy.getCount(block(0, 10) + 2));
+        assertEquals(new ArrayList<Event>(), occupancy.getEvents(block(0, 11)));
+
+        assertEquals(Arrays.asList(none), occupancy.getEvents(block(1, 10)));
+        assertEquals(Arrays.asList(long_), occupancy.getEvents(block(1, 12)));
+        assertEquals(Arrays.asList(long_), occupancy.getEvents(WeekModel.BLOCKS - 1));
+    }
+
+    @Test
+    public void manyConcurrentEvents() {
+        ArrayList<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 500; i++) {
+            events.add(event(6, 8 + i % 3, 240, i % 10));
+        }
+        WeekModel model = new WeekModel(new GregorianCalendar(2011, Calendar.JUNE, 6));
+        WeekOccupancy occupancy = model.withDay(0, events).getOccupancy();
+        assertEquals(500, occupancy.getCount(block(0, 11)));
+        assertEquals(167, occupancy.getCount(block(0, 8)));
+        // The events are listed in the order they start, those starting
+        // together in the order of the day.
+        ArrayList<Event> listed = occupancy.getEvents(block(0, 11));
+        int next = 0;
+        for (int hour = 0; hour < 3; hour++) {
+            for (int i = hour; i < 500; i += 3) {
+                assertSame(events.get(i), listed.get(next++));
+            }
+        }
+    }
+}